@@ -0,0 +1,338 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+/**
+ * Demosaicing using Adaptive Homogeneity-Directed interpolation (AHD),
+ * after Hirakawa and Parks.
+ *
+ * The image is interpolated twice, once horizontally and once vertically.
+ * Both results are converted to CIELab and for each pixel the direction
+ * with the more homogeneous neighborhood is chosen.
+ *
+ * Only Bayer patterns are supported. The five outermost rows and columns
+ * are interpolated bilinearly.
+ */
+public class AHDDemosaicer implements Demosaicer {
+
+    /**
+     * The width of the image border that is interpolated bilinearly
+     */
+    protected static final int BORDER = 5;
+
+    /**
+     * The number of rows and columns around the tile that are needed for
+     * the green interpolation, color interpolation and the homogeneity map
+     */
+    protected static final int WORK_HALO = 3;
+
+    /**
+     * sRGB (D65) to XYZ, normalized to the D65 white point
+     */
+    protected static final double[][] XYZ_RGB = {
+        {0.412453 / 0.950456, 0.357580 / 0.950456, 0.180423 / 0.950456},
+        {0.212671, 0.715160, 0.072169},
+        {0.019334 / 1.088754, 0.119193 / 1.088754, 0.950227 / 1.088754}
+    };
+
+    /**
+     * The CIELab function f(t) for t = i / 65535, scaled by 65536
+     */
+    protected static final int[] CBRT = new int[0x10000];
+
+    static {
+        for (int i = 0; i < CBRT.length; i++)
+        {
+            double r = i / 65535.0;
+            double f = (r > 0.008856) ? Math.cbrt(r) : (7.787 * r + 16.0 / 116.0);
+            CBRT[i] = (int) Math.round(f * 65536);
+        }
+    }
+
+    @Override
+    public int getHalo()
+    {
+        return BORDER;
+    }
+
+    @Override
+    public int getWorkingSetBytesPerPixel()
+    {
+        // input and output, plus green, RGB, Lab and homogeneity
+        // for both directions
+        return 64;
+    }
+
+    @Override
+    public boolean supportsPattern(CFAPattern pattern)
+    {
+        return pattern.isBayer();
+    }
+
+    @Override
+    public void demosaicTile(PixelPlane cfa, CFAPattern pattern, PixelPlane rgb, int x0, int x1, int y0, int y1)
+    {
+        int w = cfa.getWidth();
+        int h = cfa.getHeight();
+
+        // the part of the tile that is interpolated with AHD
+        int xa = Math.max(x0, BORDER);
+        int xb = Math.min(x1, w - BORDER);
+        int ya = Math.max(y0, BORDER);
+        int yb = Math.min(y1, h - BORDER);
+        boolean tooSmall = (xa >= xb) || (ya >= yb);
+
+        for (int y = y0; y < y1; y++)
+        {
+            if (tooSmall || (y < ya) || (y >= yb))
+            {
+                for (int x = x0; x < x1; x++) BilinearDemosaicer.interpolatePixel(cfa, pattern, rgb, x, y);
+            }
+            else
+            {
+                for (int x = x0; x < xa; x++) BilinearDemosaicer.interpolatePixel(cfa, pattern, rgb, x, y);
+                for (int x = xb; x < x1; x++) BilinearDemosaicer.interpolatePixel(cfa, pattern, rgb, x, y);
+            }
+        }
+        if (tooSmall) return;
+
+        // working buffers for the rows [ya - WORK_HALO, yb + WORK_HALO)
+        // and the columns [xa - WORK_HALO, xb + WORK_HALO)
+        int top = ya - WORK_HALO;
+        int left = xa - WORK_HALO;
+        int rows = (yb - ya) + 2 * WORK_HALO;
+        int bw = (xb - xa) + 2 * WORK_HALO;
+        int[][] green = new int[2][rows * bw];
+        int[][] col = new int[2][rows * bw * 3];
+        int[][] lab = new int[2][rows * bw * 3];
+        byte[][] homo = new byte[2][rows * bw];
+
+        for (int d = 0; d < 2; d++)
+        {
+            interpolateGreen(cfa, pattern, green[d], top, left, rows, bw, d == 0);
+            interpolateColors(cfa, pattern, green[d], col[d], top, left, rows, bw);
+            convertToLab(col[d], lab[d], bw, rows);
+        }
+        buildHomogeneityMap(lab, homo, bw, rows);
+        chooseDirection(col, homo, rgb, top, left, bw, xa, xb, ya, yb);
+    }
+
+    /**
+     * Interpolates the green channel in one direction using the
+     * Hamilton-Adams filter, restricted to the range of the neighboring
+     * green pixels. Calculated for all rows and columns of the buffer,
+     * which starts at (left, top) and has a width of bw pixels.
+     */
+    protected void interpolateGreen(PixelPlane cfa, CFAPattern pattern, int[] green, int top, int left, int rows, int bw, boolean horizontal)
+    {
+        short[] in = cfa.getData();
+        int step = horizontal ? 1 : cfa.getStride();
+
+        for (int r = 0; r < rows; r++)
+        {
+            int y = top + r;
+            for (int i = 0; i < bw; i++)
+            {
+                int x = left + i;
+                int p = cfa.rowOffset(y) + x;
+                int c = in[p] & 0xffff;
+                if (pattern.colorAt(x, y) == 1)
+                {
+                    green[r * bw + i] = c;
+                    continue;
+                }
+
+                int g1 = in[p - step] & 0xffff;
+                int g2 = in[p + step] & 0xffff;
+                int c1 = in[p - 2 * step] & 0xffff;
+                int c2 = in[p + 2 * step] & 0xffff;
+
+                int g = ((2 * (g1 + g2 + c) - c1 - c2) + 2) >> 2;
+                green[r * bw + i] = ulim(g, g1, g2);
+            }
+        }
+    }
+
+    /**
+     * Interpolates red and blue from the color differences to the green
+     * channel of one direction. Calculated for the buffer columns [1, bw-1)
+     * of the buffer rows [1, rows-1).
+     */
+    protected void interpolateColors(PixelPlane cfa, CFAPattern pattern, int[] green, int[] col, int top, int left, int rows, int bw)
+    {
+        short[] in = cfa.getData();
+        int stride = cfa.getStride();
+
+        for (int r = 1; r < (rows - 1); r++)
+        {
+            int y = top + r;
+            for (int i = 1; i < (bw - 1); i++)
+            {
+                int x = left + i;
+                int p = cfa.rowOffset(y) + x;
+                int q = r * bw + i;
+                int own = pattern.colorAt(x, y);
+                int g = green[q];
+                int dst = 3 * q;
+
+                col[dst + 1] = g;
+                if (own == 1)
+                {
+                    // the missing colors are left/right and above/below
+                    int cH = pattern.colorAt(x + 1, y);
+                    int cV = pattern.colorAt(x, y + 1);
+                    int dH = (in[p - 1] & 0xffff) - green[q - 1] + (in[p + 1] & 0xffff) - green[q + 1];
+                    int dV = (in[p - stride] & 0xffff) - green[q - bw] + (in[p + stride] & 0xffff) - green[q + bw];
+                    col[dst + cH] = clip(g + (dH >> 1));
+                    col[dst + cV] = clip(g + (dV >> 1));
+                }
+                else
+                {
+                    // the other color is on the diagonals
+                    int diff = (in[p - stride - 1] & 0xffff) - green[q - bw - 1];
+                    diff += (in[p - stride + 1] & 0xffff) - green[q - bw + 1];
+                    diff += (in[p + stride - 1] & 0xffff) - green[q + bw - 1];
+                    diff += (in[p + stride + 1] & 0xffff) - green[q + bw + 1];
+                    col[dst + own] = in[p] & 0xffff;
+                    col[dst + 2 - own] = clip(g + ((diff + 2) >> 2));
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts RGB to CIELab for the buffer columns [1, bw-1) of the buffer
+     * rows [1, rows-1). All components are scaled by 64.
+     */
+    protected void convertToLab(int[] col, int[] lab, int bw, int rows)
+    {
+        for (int r = 1; r < (rows - 1); r++)
+        {
+            for (int x = 1; x < (bw - 1); x++)
+            {
+                int i = 3 * (r * bw + x);
+                int cr = col[i];
+                int cg = col[i + 1];
+                int cb = col[i + 2];
+
+                int fx = CBRT[clip((int) (XYZ_RGB[0][0] * cr + XYZ_RGB[0][1] * cg + XYZ_RGB[0][2] * cb))];
+                int fy = CBRT[clip((int) (XYZ_RGB[1][0] * cr + XYZ_RGB[1][1] * cg + XYZ_RGB[1][2] * cb))];
+                int fz = CBRT[clip((int) (XYZ_RGB[2][0] * cr + XYZ_RGB[2][1] * cg + XYZ_RGB[2][2] * cb))];
+
+                // fx, fy, fz are scaled by 65536 = 64 * 1024
+                lab[i] = (int) ((116L * fy - 16L * 65536) >> 10);
+                lab[i + 1] = (int) ((500L * (fx - fy)) >> 10);
+                lab[i + 2] = (int) ((200L * (fy - fz)) >> 10);
+            }
+        }
+    }
+
+    /**
+     * Counts for each pixel and direction the number of 4-neighbors that are
+     * similar in luminance and chrominance. Calculated for the buffer
+     * columns [2, bw-2) of the buffer rows [2, rows-2).
+     */
+    protected void buildHomogeneityMap(int[][] lab, byte[][] homo, int bw, int rows)
+    {
+        int[] nb = {-3, 3, -3 * bw, 3 * bw};
+        int[][] ldiff = new int[2][4];
+        long[][] abdiff = new long[2][4];
+
+        for (int r = 2; r < (rows - 2); r++)
+        {
+            for (int x = 2; x < (bw - 2); x++)
+            {
+                int i = 3 * (r * bw + x);
+                for (int d = 0; d < 2; d++)
+                {
+                    int[] l = lab[d];
+                    for (int k = 0; k < 4; k++)
+                    {
+                        int j = i + nb[k];
+                        ldiff[d][k] = Math.abs(l[i] - l[j]);
+                        long da = l[i + 1] - l[j + 1];
+                        long db = l[i + 2] - l[j + 2];
+                        abdiff[d][k] = da * da + db * db;
+                    }
+                }
+
+                int leps = Math.min(Math.max(ldiff[0][0], ldiff[0][1]), Math.max(ldiff[1][2], ldiff[1][3]));
+                long abeps = Math.min(Math.max(abdiff[0][0], abdiff[0][1]), Math.max(abdiff[1][2], abdiff[1][3]));
+
+                for (int d = 0; d < 2; d++)
+                {
+                    int cnt = 0;
+                    for (int k = 0; k < 4; k++)
+                    {
+                        if ((ldiff[d][k] <= leps) && (abdiff[d][k] <= abeps)) cnt++;
+                    }
+                    homo[d][r * bw + x] = (byte) cnt;
+                }
+            }
+        }
+    }
+
+    /**
+     * Selects for each output pixel in [xa, xb) x [ya, yb) the direction
+     * with the higher homogeneity in its 3x3 neighborhood, or the average
+     * if both are equal
+     */
+    protected void chooseDirection(int[][] col, byte[][] homo, PixelPlane rgb, int top, int left, int bw, int xa, int xb, int ya, int yb)
+    {
+        short[] out = rgb.getData();
+
+        for (int y = ya; y < yb; y++)
+        {
+            int r = y - top;
+            int dst = rgb.rowOffset(y) + 3 * xa;
+            for (int x = xa - left; x < (xb - left); x++)
+            {
+                int hm0 = 0;
+                int hm1 = 0;
+                for (int dy = -1; dy <= 1; dy++)
+                {
+                    int q = (r + dy) * bw + x;
+                    hm0 += homo[0][q - 1] + homo[0][q] + homo[0][q + 1];
+                    hm1 += homo[1][q - 1] + homo[1][q] + homo[1][q + 1];
+                }
+
+                int i = 3 * (r * bw + x);
+                for (int c = 0; c < 3; c++)
+                {
+                    int v;
+                    if (hm0 > hm1) v = col[0][i + c];
+                    else if (hm1 > hm0) v = col[1][i + c];
+                    else v = (col[0][i + c] + col[1][i + c] + 1) >> 1;
+                    out[dst + c] = (short) v;
+                }
+                dst += 3;
+            }
+        }
+    }
+
+    /**
+     * Limits a value to the range spanned by two other values
+     */
+    private static int ulim(int v, int a, int b)
+    {
+        if (a > b) return Math.max(b, Math.min(v, a));
+        return Math.max(a, Math.min(v, b));
+    }
+
+    private static int clip(int v)
+    {
+        if (v < 0) return 0;
+        if (v > 0xffff) return 0xffff;
+        return v;
+    }
+}
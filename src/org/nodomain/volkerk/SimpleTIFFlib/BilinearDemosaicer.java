@@ -0,0 +1,198 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+/**
+ * Bilinear demosaicing: each missing color of a pixel is the average of all
+ * pixels of that color in the 3x3 neighborhood. Fast, but produces zipper
+ * artifacts at edges. Good enough for previews and proxies.
+ *
+ * Works for any CFA pattern and uses integer arithmetic only.
+ */
+public class BilinearDemosaicer implements Demosaicer {
+
+    @Override
+    public int getHalo()
+    {
+        return 1;
+    }
+
+    @Override
+    public int getWorkingSetBytesPerPixel()
+    {
+        // two bytes input and six bytes output per pixel
+        return 8;
+    }
+
+    @Override
+    public boolean supportsPattern(CFAPattern pattern)
+    {
+        return true;
+    }
+
+    @Override
+    public void demosaicTile(PixelPlane cfa, CFAPattern pattern, PixelPlane rgb, int x0, int x1, int y0, int y1)
+    {
+        int w = cfa.getWidth();
+        int h = cfa.getHeight();
+        int[][][] deltas = getNeighborDeltas(pattern, cfa.getStride());
+
+        // the columns of the tile that have all neighbors
+        int xa = Math.max(x0, 1);
+        int xb = Math.min(x1, w - 1);
+
+        for (int y = y0; y < y1; y++)
+        {
+            if ((y == 0) || (y == (h - 1)) || (xa >= xb))
+            {
+                for (int x = x0; x < x1; x++) interpolatePixel(cfa, pattern, rgb, x, y);
+                continue;
+            }
+
+            for (int x = x0; x < xa; x++) interpolatePixel(cfa, pattern, rgb, x, y);
+            interpolateInnerRow(cfa, pattern, rgb, deltas, y, xa, xb);
+            for (int x = xb; x < x1; x++) interpolatePixel(cfa, pattern, rgb, x, y);
+        }
+    }
+
+    /**
+     * Precomputes for each position within the CFA pattern and for each color
+     * the index offsets of the neighbors in the sample array that have this color
+     *
+     * @param pattern the CFA pattern
+     * @param stride the row stride of the CFA sample array
+     *
+     * @return an array [pos][color][n] with the offsets in the sample array
+     */
+    protected static int[][][] getNeighborDeltas(CFAPattern pattern, int stride)
+    {
+        int cols = pattern.getCols();
+        int rows = pattern.getRows();
+        int[][][] result = new int[cols * rows][3][];
+
+        for (int py = 0; py < rows; py++)
+        {
+            for (int px = 0; px < cols; px++)
+            {
+                for (int c = 0; c < 3; c++)
+                {
+                    int n = 0;
+                    int[] tmp = new int[8];
+                    for (int ny = -1; ny <= 1; ny++)
+                    {
+                        for (int nx = -1; nx <= 1; nx++)
+                        {
+                            if ((nx == 0) && (ny == 0)) continue;
+                            if (pattern.colorAt(px + nx, py + ny) != c) continue;
+                            tmp[n++] = ny * stride + nx;
+                        }
+                    }
+
+                    int[] d = new int[n];
+                    System.arraycopy(tmp, 0, d, 0, n);
+                    result[py * cols + px][c] = d;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Interpolates the pixels [xa, xb) of a row that is neither the first
+     * nor the last one; xa > 0 and xb < w. All neighbors exist, so there's
+     * no need for any boundary checks
+     */
+    protected void interpolateInnerRow(PixelPlane cfa, CFAPattern pattern, PixelPlane rgb, int[][][] deltas, int y, int xa, int xb)
+    {
+        short[] in = cfa.getData();
+        short[] out = rgb.getData();
+        int cols = pattern.getCols();
+        int posBase = (y % pattern.getRows()) * cols;
+
+        int src = cfa.rowOffset(y) + xa;
+        int dst = rgb.rowOffset(y) + 3 * xa;
+
+        for (int x = xa; x < xb; x++)
+        {
+            int pos = posBase + (x % cols);
+            int[][] d = deltas[pos];
+            int own = pattern.pattern[pos];
+
+            for (int c = 0; c < 3; c++)
+            {
+                if (c == own)
+                {
+                    out[dst + c] = in[src];
+                    continue;
+                }
+
+                int[] dc = d[c];
+                int n = dc.length;
+                int sum = 0;
+                for (int i = 0; i < n; i++) sum += in[src + dc[i]] & 0xffff;
+
+                out[dst + c] = (short) ((n == 0) ? 0 : ((sum + (n >> 1)) / n));
+            }
+
+            src++;
+            dst += 3;
+        }
+    }
+
+    /**
+     * Interpolates a single pixel, only using neighbors within the image.
+     * Used for the image borders, also by other algorithms.
+     *
+     * @param cfa the CFA data
+     * @param pattern the CFA pattern
+     * @param rgb the output plane
+     * @param x the 0-based x-coordinate of the pixel
+     * @param y the 0-based y-coordinate of the pixel
+     */
+    protected static void interpolatePixel(PixelPlane cfa, CFAPattern pattern, PixelPlane rgb, int x, int y)
+    {
+        int w = cfa.getWidth();
+        int h = cfa.getHeight();
+        int own = pattern.colorAt(x, y);
+
+        int sumR = 0, sumG = 0, sumB = 0;
+        int cntR = 0, cntG = 0, cntB = 0;
+        for (int ny = y - 1; ny <= y + 1; ny++)
+        {
+            if ((ny < 0) || (ny >= h)) continue;
+            for (int nx = x - 1; nx <= x + 1; nx++)
+            {
+                if ((nx < 0) || (nx >= w) || ((nx == x) && (ny == y))) continue;
+                int c = pattern.colorAt(nx, ny);
+                int v = cfa.get(nx, ny);
+                if (c == 0) { sumR += v; cntR++; }
+                else if (c == 1) { sumG += v; cntG++; }
+                else { sumB += v; cntB++; }
+            }
+        }
+
+        int ownVal = cfa.get(x, y);
+        rgb.set(x, y, 0, (own == 0) ? ownVal : average(sumR, cntR));
+        rgb.set(x, y, 1, (own == 1) ? ownVal : average(sumG, cntG));
+        rgb.set(x, y, 2, (own == 2) ? ownVal : average(sumB, cntB));
+    }
+
+    /**
+     * A rounded integer average which returns 0 for empty sets
+     */
+    private static int average(int sum, int cnt)
+    {
+        return (cnt == 0) ? 0 : ((sum + (cnt >> 1)) / cnt);
+    }
+}
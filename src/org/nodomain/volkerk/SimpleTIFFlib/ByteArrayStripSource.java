@@ -0,0 +1,92 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Strips from image data that is already in memory in its final format,
+ * e. g. the bit stream of a RAW frame. The strips are views on the
+ * data; nothing is copied.
+ */
+public class ByteArrayStripSource implements StripSource {
+    
+    /**
+     * The image data, row by row
+     */
+    protected final ByteBuffer data;
+    
+    /**
+     * The number of bytes per row, including padding
+     */
+    protected final int bytesPerRow;
+    
+    /**
+     * The number of rows of the image
+     */
+    protected final int height;
+    
+    /**
+     * The number of rows per strip
+     */
+    protected final int rowsPerStrip;
+    
+    /**
+     * Constructor
+     * 
+     * @param _data the image data; the first height * bytesPerRow bytes are used
+     * @param _bytesPerRow the number of bytes per row, including padding
+     * @param _height the number of rows
+     * @param _rowsPerStrip the number of rows per strip
+     */
+    public ByteArrayStripSource(byte[] _data, int _bytesPerRow, int _height, int _rowsPerStrip)
+    {
+        if ((_bytesPerRow < 1) || (_height < 1) || (_rowsPerStrip < 1))
+        {
+            throw new IllegalArgumentException("Invalid image dimensions");
+        }
+        if (((long) _bytesPerRow * _height) > _data.length)
+        {
+            throw new IllegalArgumentException("Not enough image data for " + _height + " rows");
+        }
+        
+        data = ByteBuffer.wrap(_data);
+        bytesPerRow = _bytesPerRow;
+        height = _height;
+        rowsPerStrip = Math.min(_rowsPerStrip, _height);
+    }
+    
+    @Override
+    public int getStripCount()
+    {
+        return (height + rowsPerStrip - 1) / rowsPerStrip;
+    }
+    
+    @Override
+    public int getRowsPerStrip()
+    {
+        return rowsPerStrip;
+    }
+    
+    @Override
+    public ByteBuffer getStrip(int i)
+    {
+        int y0 = i * rowsPerStrip;
+        int rows = Math.min(rowsPerStrip, height - y0);
+        
+        ByteBuffer result = data.duplicate();
+        result.limit((y0 + rows) * bytesPerRow);
+        result.position(y0 * bytesPerRow);
+        
+        return result;
+    }
+}
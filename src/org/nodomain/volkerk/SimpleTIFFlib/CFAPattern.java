@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+/**
+ * An immutable description of a color filter array pattern, as returned
+ * by CFA_getPattern() and CFA_getPatternDim()
+ */
+public class CFAPattern {
+
+    /**
+     * The colors of the pattern, 0 (R), 1 (G) or 2 (B), row by row
+     */
+    protected final int[] pattern;
+
+    /**
+     * The number of columns of the pattern
+     */
+    protected final int cols;
+
+    /**
+     * The number of rows of the pattern
+     */
+    protected final int rows;
+
+    /**
+     * Constructor
+     *
+     * @param _pattern the CFA pattern as array of 0 (R), 1 (G) or 2 (B)
+     * @param patternDim number of columns and rows of the CFA pattern
+     */
+    public CFAPattern(int[] _pattern, int[] patternDim)
+    {
+        if ((patternDim.length != 2) || (patternDim[0] < 1) || (patternDim[1] < 1) || ((patternDim[0] * patternDim[1]) != _pattern.length))
+        {
+            throw new IllegalArgumentException("CFA pattern and pattern dimension don't match");
+        }
+
+        for (int c : _pattern)
+        {
+            if ((c < 0) || (c > 2)) throw new IllegalArgumentException("Invalid color " + c + " in CFA pattern");
+        }
+
+        pattern = _pattern.clone();
+        cols = patternDim[0];
+        rows = patternDim[1];
+    }
+
+    /**
+     * Returns the color at an arbitrary position, including negative coordinates
+     *
+     * @param x the x-coordinate of the pixel
+     * @param y the y-coordinate of the pixel
+     *
+     * @return 0=R, 1=G, 2=B for the pixel color
+     */
+    public int colorAt(int x, int y)
+    {
+        int px = ((x % cols) + cols) % cols;
+        int py = ((y % rows) + rows) % rows;
+        return pattern[py * cols + px];
+    }
+
+    public int getCols()
+    {
+        return cols;
+    }
+
+    public int getRows()
+    {
+        return rows;
+    }
+
+    /**
+     * Checks for a Bayer pattern: 2x2 pixels with two greens on one diagonal
+     * and red and blue on the other one
+     *
+     * @return true if this is a Bayer pattern
+     */
+    public boolean isBayer()
+    {
+        if ((cols != 2) || (rows != 2)) return false;
+        if ((pattern[0] == 1) && (pattern[3] == 1)) return ((pattern[1] + pattern[2]) == 2) && (pattern[1] != 1);
+        if ((pattern[1] == 1) && (pattern[2] == 1)) return ((pattern[0] + pattern[3]) == 2) && (pattern[0] != 1);
+        return false;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Compresses the strips or tiles of another StripSource in parallel.
+ * 
+ * The uncompressed strips are fetched in order and handed to a ForkJoin
+ * pool for compression, up to a fixed number ahead of the strip that the
+ * TIFFWriter is waiting for. The compressed strips are delivered in their
+ * original order, so the writer stores them one after the other and records
+ * their real sizes as byte counts. Only the strips within the window are
+ * in memory.
+ * 
+ * The COMPRESSION tag of the directory has to be set to the same scheme
+ * by the caller.
+ * 
+ * Usage:
+ * <pre>
+ * d.addShort(TIFF_TAG.COMPRESSION, TIFF_TAG.COMPRESSION_JPEG);
+ * d.setTiles(new CompressingStripSource(tiles, TIFF_TAG.COMPRESSION_JPEG, tileWidth, bpp), tileWidth, tileLength);
+ * </pre>
+ */
+public class CompressingStripSource implements StripSource {
+    
+    protected final StripSource src;
+    protected final int compression;
+    protected final int samplesPerRow;
+    protected final int bpp;
+    protected final ForkJoinPool pool;
+    
+    /**
+     * The maximum number of strips that are compressed ahead
+     */
+    protected final int window;
+    
+    /**
+     * The tasks for the strips nextToDeliver ... nextToSubmit-1
+     */
+    protected final ArrayDeque<ForkJoinTask<byte[]>> pending = new ArrayDeque<>();
+    protected int nextToSubmit = 0;
+    protected int nextToDeliver = 0;
+    
+    /**
+     * Encoders that are currently not used by any task
+     */
+    protected final ConcurrentLinkedQueue<StripEncoder> idleEncoders = new ConcurrentLinkedQueue<>();
+    
+    /**
+     * Constructor. Compresses on the common ForkJoin pool.
+     * 
+     * @param _src the source of the uncompressed strips or tiles
+     * @param _compression the compression scheme, see StripEncoder.isSupported()
+     * @param _samplesPerRow the number of samples per row of a strip or tile
+     * @param _bpp the number of bits per sample
+     */
+    public CompressingStripSource(StripSource _src, int _compression, int _samplesPerRow, int _bpp)
+    {
+        this(_src, _compression, _samplesPerRow, _bpp, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param _src the source of the uncompressed strips or tiles
+     * @param _compression the compression scheme, see StripEncoder.isSupported()
+     * @param _samplesPerRow the number of samples per row of a strip or tile
+     * @param _bpp the number of bits per sample
+     * @param _pool the ForkJoin pool for compressing the strips
+     */
+    public CompressingStripSource(StripSource _src, int _compression, int _samplesPerRow, int _bpp, ForkJoinPool _pool)
+    {
+        if (_src == null) throw new IllegalArgumentException("Need a valid strip source!");
+        if (_pool == null) throw new IllegalArgumentException("Need a valid ForkJoinPool!");
+        if (!(StripEncoder.isSupported(_compression))) throw new IllegalArgumentException("Unsupported compression " + _compression);
+        
+        // fail early for invalid parameters
+        StripEncoder.create(_compression, _samplesPerRow, _bpp).close();
+        
+        src = _src;
+        compression = _compression;
+        samplesPerRow = _samplesPerRow;
+        bpp = _bpp;
+        pool = _pool;
+        window = 2 * pool.getParallelism();
+    }
+    
+    @Override
+    public int getStripCount()
+    {
+        return src.getStripCount();
+    }
+    
+    @Override
+    public int getRowsPerStrip()
+    {
+        return src.getRowsPerStrip();
+    }
+    
+    @Override
+    public ByteBuffer getStrip(int i)
+    {
+        if (i != nextToDeliver) throw new IllegalStateException("Strips have to be requested in ascending order");
+        
+        int n = getStripCount();
+        while ((nextToSubmit < n) && (nextToSubmit < (i + window)))
+        {
+            // the source's buffer is only valid until its next call; copy it
+            ByteBuffer b = src.getStrip(nextToSubmit++);
+            byte[] raw = new byte[b.remaining()];
+            b.get(raw);
+            pending.addLast(pool.submit(new EncodeTask(raw)));
+        }
+        
+        byte[] result;
+        try
+        {
+            result = pending.removeFirst().join();
+        }
+        catch (RuntimeException e)
+        {
+            closeEncoders();
+            throw e;
+        }
+        
+        nextToDeliver++;
+        if (nextToDeliver == n) closeEncoders();
+        
+        return ByteBuffer.wrap(result);
+    }
+    
+    /**
+     * Releases the encoders after the last strip
+     */
+    protected void closeEncoders()
+    {
+        for (ForkJoinTask<byte[]> t : pending) t.quietlyJoin();
+        pending.clear();
+        
+        StripEncoder enc;
+        while ((enc = idleEncoders.poll()) != null) enc.close();
+    }
+    
+    /**
+     * Compresses a single strip with an idle encoder or a new one
+     */
+    protected class EncodeTask extends RecursiveTask<byte[]> {
+        private static final long serialVersionUID = 1L;
+        
+        final byte[] raw;
+        
+        EncodeTask(byte[] _raw)
+        {
+            raw = _raw;
+        }
+        
+        @Override
+        protected byte[] compute()
+        {
+            StripEncoder enc = idleEncoders.poll();
+            if (enc == null) enc = StripEncoder.create(compression, samplesPerRow, bpp);
+            
+            try
+            {
+                return enc.encode(raw, 0, raw.length);
+            }
+            finally
+            {
+                idleEncoders.offer(enc);
+            }
+        }
+    }
+}
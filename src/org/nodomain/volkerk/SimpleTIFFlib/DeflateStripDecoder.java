@@ -0,0 +1,58 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A decoder for Deflate compressed strips (compression 8 and 32946), which
+ * are zlib streams. The Inflater is reset for each strip instead of being
+ * re-created, which saves the allocation of its native state.
+ */
+public class DeflateStripDecoder extends StripDecoder {
+    
+    protected final Inflater inflater = new Inflater();
+    
+    @Override
+    public int decode(byte[] src, int srcOffset, int count, byte[] dst)
+    {
+        inflater.reset();
+        inflater.setInput(src, srcOffset, count);
+        
+        int n = 0;
+        try
+        {
+            while ((n < dst.length) && !(inflater.finished()))
+            {
+                int cnt = inflater.inflate(dst, n, dst.length - n);
+                n += cnt;
+                
+                // truncated data: return what we've got so far
+                if ((cnt == 0) && (inflater.needsInput() || inflater.needsDictionary())) break;
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new IllegalArgumentException("Corrupt Deflate data: " + e.getMessage());
+        }
+        
+        return n;
+    }
+    
+    @Override
+    public void close()
+    {
+        inflater.end();
+    }
+}
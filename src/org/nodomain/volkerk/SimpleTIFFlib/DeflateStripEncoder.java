@@ -0,0 +1,62 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * An encoder for Deflate compressed strips (compression 8 and 32946).
+ * The Deflater is reset for each strip instead of being re-created.
+ */
+public class DeflateStripEncoder extends StripEncoder {
+    
+    protected final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    
+    /**
+     * A reusable buffer for the compressed data
+     */
+    protected byte[] out = new byte[0];
+    
+    public DeflateStripEncoder(int _samplesPerRow, int _bpp)
+    {
+        super(_samplesPerRow, _bpp);
+    }
+    
+    @Override
+    public byte[] encode(byte[] src, int srcOffset, int count)
+    {
+        deflater.reset();
+        deflater.setInput(src, srcOffset, count);
+        deflater.finish();
+        
+        // enough for incompressible data in most cases; grows otherwise
+        int size = count + (count >> 8) + 64;
+        if (out.length < size) out = new byte[size];
+        
+        int n = 0;
+        while (!(deflater.finished()))
+        {
+            if (n == out.length) out = Arrays.copyOf(out, 2 * out.length);
+            n += deflater.deflate(out, n, out.length - n);
+        }
+        
+        return Arrays.copyOf(out, n);
+    }
+    
+    @Override
+    public void close()
+    {
+        deflater.end();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The tiling and scheduling core for all demosaicing algorithms.
+ *
+ * The image is split into tiles which are small enough to keep the working
+ * set of a tile (input, output and the algorithm's temporary data) within
+ * TARGET_TILE_BYTES, independent of the image width. The tiles are processed
+ * on a ForkJoin pool. Each tile reads the pixels directly around itself
+ * (the "halo") from the shared input plane, so no data has to be copied
+ * between the tiles. The results are written straight into the RGB output plane.
+ */
+public class DemosaicEngine {
+
+    /**
+     * The number of bytes that the working set of a tile should occupy in the cache
+     */
+    protected static final int TARGET_TILE_BYTES = 256 * 1024;
+
+    /**
+     * The minimum width and height of a tile
+     */
+    protected static final int MIN_TILE_SIZE = 16;
+
+    /**
+     * The pool that executes the tiles
+     */
+    protected final ForkJoinPool pool;
+
+    /**
+     * Constructor. Uses the common ForkJoin pool.
+     */
+    public DemosaicEngine()
+    {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param _pool the ForkJoin pool for processing the tiles
+     */
+    public DemosaicEngine(ForkJoinPool _pool)
+    {
+        if (_pool == null) throw new IllegalArgumentException("Need a valid ForkJoinPool!");
+        pool = _pool;
+    }
+
+    /**
+     * Demosaics a CFA image into an RGB plane using bilinear interpolation
+     *
+     * @param cfa the CFA data with one sample per pixel
+     * @param pattern the CFA pattern as array of 0 (R), 1 (G) or 2 (B)
+     * @param patternDim number of columns and rows of the CFA pattern
+     *
+     * @return a plane with three channels (R, G, B) and the same value range as the input
+     */
+    public PixelPlane demosaic(PixelPlane cfa, int[] pattern, int[] patternDim)
+    {
+        return demosaic(cfa, new CFAPattern(pattern, patternDim), new BilinearDemosaicer());
+    }
+
+    /**
+     * Demosaics a CFA image into an RGB plane
+     *
+     * @param cfa the CFA data with one sample per pixel
+     * @param pattern the CFA pattern of the image
+     * @param algo the demosaicing algorithm
+     *
+     * @return a plane with three channels (R, G, B) and the same value range as the input
+     */
+    public PixelPlane demosaic(PixelPlane cfa, CFAPattern pattern, Demosaicer algo)
+    {
+        if (cfa.getChannels() != 1)
+        {
+            throw new IllegalArgumentException("CFA data needs exactly one sample per pixel");
+        }
+        if (!(algo.supportsPattern(pattern)))
+        {
+            throw new IllegalArgumentException(algo.getClass().getSimpleName() + " doesn't support this CFA pattern");
+        }
+
+        PixelPlane rgb = new PixelPlane(cfa.getWidth(), cfa.getHeight(), 3);
+
+        // square tiles according to the algorithm's working set, but large enough
+        // to keep the overhead for the halo small; narrow images get taller tiles.
+        // Even sizes keep all tiles at the same position within common CFA patterns.
+        int pixels = TARGET_TILE_BYTES / algo.getWorkingSetBytesPerPixel();
+        int minSize = Math.max(MIN_TILE_SIZE, 4 * algo.getHalo());
+        int tileW = Math.min(Math.max((int) Math.sqrt(pixels), minSize) & ~1, cfa.getWidth());
+        int tileH = Math.max(pixels / tileW, minSize) & ~1;
+
+        int across = (cfa.getWidth() + tileW - 1) / tileW;
+        int down = (cfa.getHeight() + tileH - 1) / tileH;
+        pool.invoke(new TileTask(cfa, pattern, rgb, algo, tileW, tileH, across, 0, across * down));
+
+        return rgb;
+    }
+
+    /**
+     * Demosaics a range of tiles, splitting it recursively
+     */
+    protected static class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        final PixelPlane cfa;
+        final CFAPattern pattern;
+        final PixelPlane rgb;
+        final Demosaicer algo;
+        final int tileW;
+        final int tileH;
+        final int across;
+        final int t0;
+        final int t1;
+
+        TileTask(PixelPlane _cfa, CFAPattern _pattern, PixelPlane _rgb, Demosaicer _algo, int _tileW, int _tileH, int _across, int _t0, int _t1)
+        {
+            cfa = _cfa;
+            pattern = _pattern;
+            rgb = _rgb;
+            algo = _algo;
+            tileW = _tileW;
+            tileH = _tileH;
+            across = _across;
+            t0 = _t0;
+            t1 = _t1;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if ((t1 - t0) > 1)
+            {
+                int mid = (t0 + t1) >>> 1;
+                invokeAll(new TileTask(cfa, pattern, rgb, algo, tileW, tileH, across, t0, mid),
+                        new TileTask(cfa, pattern, rgb, algo, tileW, tileH, across, mid, t1));
+                return;
+            }
+
+            int x0 = (t0 % across) * tileW;
+            int y0 = (t0 / across) * tileH;
+            algo.demosaicTile(cfa, pattern, rgb, x0, Math.min(x0 + tileW, cfa.getWidth()), y0, Math.min(y0 + tileH, cfa.getHeight()));
+        }
+    }
+}
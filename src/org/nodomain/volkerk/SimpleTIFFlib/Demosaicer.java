@@ -0,0 +1,63 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+/**
+ * A demosaicing algorithm which can be run by the DemosaicEngine.
+ *
+ * The engine splits the image into tiles and calls demosaicTile() for each
+ * tile, possibly from several threads at the same time. An implementation
+ * may read any pixel of the CFA input but must only write the pixels of its
+ * tile to the output.
+ */
+public interface Demosaicer {
+
+    /**
+     * The number of rows and columns around a tile that the algorithm reads
+     * from the CFA data for interpolating the tile
+     *
+     * @return the width of the halo on each side of a tile
+     */
+    int getHalo();
+
+    /**
+     * The approximate number of bytes per pixel that the algorithm touches
+     * while processing a tile, including input, output and temporary data.
+     * Used by the engine for sizing the tiles.
+     *
+     * @return the working set size in bytes per pixel
+     */
+    int getWorkingSetBytesPerPixel();
+
+    /**
+     * Checks whether the algorithm can handle a specific CFA pattern
+     *
+     * @param pattern the CFA pattern of the image
+     *
+     * @return true if the pattern is supported
+     */
+    boolean supportsPattern(CFAPattern pattern);
+
+    /**
+     * Interpolates the RGB values for a tile
+     *
+     * @param cfa the CFA data with one sample per pixel
+     * @param pattern the CFA pattern of the image
+     * @param rgb the output plane with three channels (R, G, B)
+     * @param x0 the first column of the tile
+     * @param x1 the first column after the tile
+     * @param y0 the first row of the tile
+     * @param y1 the first row after the tile
+     */
+    void demosaicTile(PixelPlane cfa, CFAPattern pattern, PixelPlane rgb, int x0, int x1, int y0, int y1);
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.nodomain.volkerk.LoggingLib.LoggingClass;
+
+/**
+ * Walks a directory tree and reads the metadata of all TIFF / DNG files
+ * into a MetadataIndex.
+ * 
+ * The files are parsed on a ForkJoin pool. Each file read is wrapped into
+ * a ManagedBlocker, so that the pool starts additional threads while
+ * workers are waiting for I/O; thus the number of outstanding reads is not
+ * limited by the number of cores. Files that can't be parsed are skipped.
+ */
+public class DirectoryScanner extends LoggingClass {
+    
+    /**
+     * The default file name extensions of files to scan, lower case
+     */
+    public static final String[] DEFAULT_EXTENSIONS = new String[] {".dng", ".tif", ".tiff"};
+    
+    /**
+     * The number of files that a task processes without splitting further
+     */
+    protected static final int FILES_PER_TASK = 8;
+    
+    /**
+     * The pool that parses the files
+     */
+    protected final ForkJoinPool pool;
+    
+    /**
+     * The file name extensions to scan, lower case
+     */
+    protected String[] extensions = DEFAULT_EXTENSIONS;
+    
+    /**
+     * The number of files that couldn't be parsed in the last scan
+     */
+    protected final AtomicInteger errorCount = new AtomicInteger();
+    
+    /**
+     * Constructor. Uses the common ForkJoin pool.
+     */
+    public DirectoryScanner()
+    {
+        this(ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param _pool the ForkJoin pool for parsing the files
+     */
+    public DirectoryScanner(ForkJoinPool _pool)
+    {
+        if (_pool == null) throw new IllegalArgumentException("Need a valid ForkJoinPool!");
+        pool = _pool;
+    }
+    
+    /**
+     * Sets the file name extensions of the files to scan, e. g. ".dng"
+     * 
+     * @param ext one or more extensions, case insensitive
+     */
+    public void setExtensions(String... ext)
+    {
+        if (ext.length == 0) throw new IllegalArgumentException("Need at least one extension");
+        
+        String[] tmp = new String[ext.length];
+        for (int i = 0; i < ext.length; i++) tmp[i] = ext[i].toLowerCase();
+        extensions = tmp;
+    }
+    
+    /**
+     * @return the number of files that couldn't be parsed in the last scan
+     */
+    public int getErrorCount()
+    {
+        return errorCount.get();
+    }
+    
+    /**
+     * Scans a directory tree
+     * 
+     * @param root the directory to scan, including all sub-directories
+     * 
+     * @return an index with one record per file, sorted by path
+     */
+    public MetadataIndex scan(Path root) throws IOException
+    {
+        logPush("Scanning ", root);
+        
+        errorCount.set(0);
+        List<Path> files = findFiles(root);
+        dbg(files.size(), " files found");
+        
+        MetadataIndex result = parseFiles(files);
+        
+        logPop("Done, ", result.size(), " files indexed, ", errorCount.get(), " errors");
+        return result;
+    }
+    
+    /**
+     * Reads the metadata of a list of files in parallel. Adds the files
+     * that can't be parsed to the error count.
+     * 
+     * @param files the files to parse
+     * 
+     * @return an index with one record per file that could be parsed, in the order of the list
+     */
+    public MetadataIndex parseFiles(List<Path> files)
+    {
+        MetadataRecord[] result = new MetadataRecord[files.size()];
+        pool.invoke(new ScanTask(files, result, 0, files.size()));
+        
+        ArrayList<MetadataRecord> recs = new ArrayList<>(result.length);
+        for (MetadataRecord r : result)
+        {
+            if (r != null) recs.add(r);
+        }
+        
+        return new MetadataIndex(recs);
+    }
+    
+    /**
+     * Scans a directory tree and writes the index to a file
+     * 
+     * @param root the directory to scan, including all sub-directories
+     * @param indexFile the file to write the index to; will be overwritten
+     * 
+     * @return the index
+     */
+    public MetadataIndex scanToIndex(Path root, Path indexFile) throws IOException
+    {
+        MetadataIndex idx = scan(root);
+        idx.write(indexFile);
+        return idx;
+    }
+    
+    /**
+     * Collects all files with a matching extension
+     * 
+     * @param root the directory to search
+     * 
+     * @return the files, sorted by path
+     */
+    public List<Path> findFiles(Path root) throws IOException
+    {
+        final ArrayList<Path> files = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+            {
+                if (attrs.isRegularFile() && hasMatchingExtension(file)) files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc)
+            {
+                dbg("Can't access ", file, ": ", exc.getMessage());
+                errorCount.incrementAndGet();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        
+        Path[] tmp = files.toArray(new Path[files.size()]);
+        Arrays.sort(tmp);
+        return Arrays.asList(tmp);
+    }
+    
+    /**
+     * Checks the file name against the list of extensions
+     */
+    protected boolean hasMatchingExtension(Path p)
+    {
+        String name = p.getFileName().toString().toLowerCase();
+        for (String ext : extensions)
+        {
+            if (name.endsWith(ext)) return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Parses a single file; called by the worker threads
+     * 
+     * @param p the file to parse
+     * 
+     * @return the record or null if the file couldn't be parsed
+     */
+    protected MetadataRecord parseFile(final Path p)
+    {
+        final MetadataRecord[] result = new MetadataRecord[1];
+        
+        try
+        {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                @Override
+                public boolean block() throws InterruptedException
+                {
+                    try
+                    {
+                        result[0] = MetadataRecord.fromFile(p);
+                    }
+                    catch (IOException | RuntimeException e)
+                    {
+                        dbg("Skipping ", p, ": ", e.getMessage());
+                        errorCount.incrementAndGet();
+                    }
+                    return true;
+                }
+                
+                @Override
+                public boolean isReleasable()
+                {
+                    return false;
+                }
+            });
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        
+        return result[0];
+    }
+    
+    /**
+     * Parses a range of files, splitting it recursively
+     */
+    protected class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        final List<Path> files;
+        final MetadataRecord[] result;
+        final int i0;
+        final int i1;
+        
+        ScanTask(List<Path> _files, MetadataRecord[] _result, int _i0, int _i1)
+        {
+            files = _files;
+            result = _result;
+            i0 = _i0;
+            i1 = _i1;
+        }
+        
+        @Override
+        protected void compute()
+        {
+            if ((i1 - i0) > FILES_PER_TASK)
+            {
+                int mid = (i0 + i1) >>> 1;
+                invokeAll(new ScanTask(files, result, i0, mid), new ScanTask(files, result, mid, i1));
+                return;
+            }
+            
+            for (int i = i0; i < i1; i++) result[i] = parseFile(files.get(i));
+        }
+    }
+}
@@ -13,9 +13,13 @@
 package org.nodomain.volkerk.SimpleTIFFlib;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import org.nodomain.volkerk.LoggingLib.LoggingClass;
 
 /**
@@ -24,9 +28,51 @@ import org.nodomain.volkerk.LoggingLib.LoggingClass;
 public class FlexByteArray extends LoggingClass {
     
     /**
-     * The data which is maintained by this class
+     * The data which is maintained by this class. Either a heap buffer
+     * wrapping a byte array or a memory mapped region of a file
      */
-    protected byte[] data;
+    protected ByteBuffer data;
+    
+    /**
+     * A second view on the same data with a fixed big endian byte order,
+     * independent of the current swap status. Used for reading bit streams
+     * which are stored MSB first
+     */
+    protected ByteBuffer dataMSBFirst;
+    
+    /**
+     * For data larger than 2 GB: the consecutive segments of the data,
+     * each one covering 2^segmentBits bytes plus SEGMENT_OVERLAP bytes of
+     * the next segment. A value of any size starting in a segment can thus
+     * be read from that segment. Null if all data is in "data".
+     */
+    protected ByteBuffer[] segments = null;
+    
+    /**
+     * The segments with a fixed big endian byte order, see dataMSBFirst
+     */
+    protected ByteBuffer[] segmentsMSBFirst = null;
+    
+    /**
+     * The log2 of the segment size (without overlap)
+     */
+    protected int segmentBits = DEFAULT_SEGMENT_BITS;
+    
+    /**
+     * The total number of bytes in the array
+     */
+    protected long size;
+    
+    /**
+     * The default segment size of 1 GB for mapping large files
+     */
+    public static final int DEFAULT_SEGMENT_BITS = 30;
+    
+    /**
+     * The number of bytes by which a segment overlaps with the next one;
+     * this is the size of the largest value that can be read at once
+     */
+    public static final int SEGMENT_OVERLAP = 8;
     
     /**
      * A flag whether the byte order should be swapped when reading multi-byte values
@@ -40,9 +86,226 @@ public class FlexByteArray extends LoggingClass {
      * @param inData array of bytes containing the data for this class.
      */
     public FlexByteArray(byte[] inData)
+    {
+        this(ByteBuffer.wrap(checkNotNull(inData).clone()));
+    }
+    
+    /**
+     * Constructor. Uses an existing ByteBuffer (e. g. a memory mapped file)
+     * without copying its content. All accesses are absolute, so the buffer's
+     * position and limit are irrelevant; the whole capacity is used.
+     * 
+     * @param inData the buffer containing the data for this class
+     */
+    public FlexByteArray(ByteBuffer inData)
+    {
+        if (inData == null) throw new IllegalArgumentException();
+        data = inData.duplicate();
+        data.clear();
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        
+        dataMSBFirst = data.duplicate();
+        dataMSBFirst.order(ByteOrder.BIG_ENDIAN);
+        
+        size = data.capacity();
+    }
+    
+    /**
+     * Constructor for data that is split into several segments, e. g. a
+     * file that is too large for a single mapping.
+     * 
+     * Each segment except for the last one must contain exactly
+     * 2^_segmentBits bytes plus the first SEGMENT_OVERLAP bytes of the next
+     * segment (or less, if the data ends there).
+     * 
+     * @param _segments the segments of the data in ascending order
+     * @param _segmentBits log2 of the segment size without the overlap
+     */
+    protected FlexByteArray(ByteBuffer[] _segments, int _segmentBits)
+    {
+        if ((_segments == null) || (_segments.length == 0)) throw new IllegalArgumentException();
+        if ((_segmentBits < 3) || (_segmentBits > 30)) throw new IllegalArgumentException("Invalid segment size");
+        
+        long segSize = 1L << _segmentBits;
+        segmentBits = _segmentBits;
+        segments = new ByteBuffer[_segments.length];
+        segmentsMSBFirst = new ByteBuffer[_segments.length];
+        
+        for (int i = 0; i < _segments.length; i++)
+        {
+            ByteBuffer b = _segments[i].duplicate();
+            b.clear();
+            
+            boolean isLast = (i == (_segments.length - 1));
+            if ((!isLast) && (b.capacity() < (segSize + Math.min(SEGMENT_OVERLAP, _segments[i + 1].capacity()))))
+            {
+                throw new IllegalArgumentException("Segment " + i + " is too small");
+            }
+            if (b.capacity() > (segSize + SEGMENT_OVERLAP))
+            {
+                throw new IllegalArgumentException("Segment " + i + " is too large");
+            }
+            
+            segments[i] = b.order(ByteOrder.LITTLE_ENDIAN);
+            segmentsMSBFirst[i] = b.duplicate().order(ByteOrder.BIG_ENDIAN);
+        }
+        
+        size = (segments.length - 1) * segSize + segments[segments.length - 1].capacity();
+        
+        // the first segment serves all callers that only know a single buffer
+        data = segments[0];
+        dataMSBFirst = segmentsMSBFirst[0];
+    }
+    
+    /**
+     * Splits a buffer into segments; for testing the segment logic
+     * with small data
+     * 
+     * @param inData the complete data
+     * @param _segmentBits log2 of the segment size without the overlap
+     * 
+     * @return a FlexByteArray with segments that share the content of inData
+     */
+    protected static FlexByteArray segmented(ByteBuffer inData, int _segmentBits)
+    {
+        long segSize = 1L << _segmentBits;
+        int cap = inData.capacity();
+        int cnt = (int) Math.max(1, (cap + segSize - 1) / segSize);
+        
+        ByteBuffer[] segs = new ByteBuffer[cnt];
+        for (int i = 0; i < cnt; i++)
+        {
+            ByteBuffer b = inData.duplicate();
+            int start = (int) (i * segSize);
+            b.limit((int) Math.min(cap, start + segSize + SEGMENT_OVERLAP));
+            b.position(start);
+            segs[i] = b.slice();
+        }
+        
+        return new FlexByteArray(segs, _segmentBits);
+    }
+    
+    /**
+     * Returns the buffer that contains the value at a given offset
+     * 
+     * @param offset the 0-based offset in the array
+     * 
+     * @return "data" or the segment for the offset
+     */
+    protected final ByteBuffer buf(long offset)
+    {
+        return (segments == null) ? data : segments[(int) (offset >>> segmentBits)];
+    }
+    
+    /**
+     * Same as buf(), but for the big endian view of the data
+     */
+    protected final ByteBuffer bufMSBFirst(long offset)
+    {
+        return (segments == null) ? dataMSBFirst : segmentsMSBFirst[(int) (offset >>> segmentBits)];
+    }
+    
+    /**
+     * Converts an offset in the array into an index in the buffer returned by buf()
+     * 
+     * @param offset the 0-based offset in the array
+     * 
+     * @return the index within the buffer
+     */
+    protected final int idx(long offset)
+    {
+        return (segments == null) ? (int) offset : (int) (offset & ((1L << segmentBits) - 1));
+    }
+    
+    /**
+     * Helper for the array constructor which has to validate its argument
+     * before it can be cloned
+     * 
+     * @param inData the array to check
+     * @return the unmodified array
+     */
+    private static byte[] checkNotNull(byte[] inData)
     {
         if (inData == null) throw new IllegalArgumentException();
-        data = inData.clone();
+        return inData;
+    }
+    
+    /**
+     * Maps a file read-only into memory and returns a FlexByteArray for the
+     * mapped region. Pages are only read from disk when they are accessed
+     * for the first time; all write accesses to the data will fail.
+     * 
+     * @param p the Path of the file to map
+     * @return a FlexByteArray instance viewing the mapped file
+     * @throws IOException 
+     */
+    public static FlexByteArray mapFile(Path p) throws IOException
+    {
+        return mapFile(p, false);
+    }
+    
+    /**
+     * Maps a file into memory and returns a FlexByteArray for the mapped region.
+     * 
+     * Pages are only read from disk when they are accessed for the first time.
+     * If writable data is requested, the mapping is private (copy-on-write):
+     * modifications are never written back to the file. Use dumpToFile() for
+     * storing modified data.
+     * 
+     * A private mapping requires a channel that is open for writing (although
+     * the file is never modified). If the file can't be opened for writing,
+     * e. g. because of missing permissions or a read-only file system, the
+     * file is mapped read-only and all write accesses to the data will fail.
+     * 
+     * Files larger than 2 GB are mapped in several overlapping segments
+     * of 1 GB. These are always read-only, because modifications of the
+     * overlapping parts of two private mappings wouldn't be visible in
+     * both mappings.
+     * 
+     * @param p the Path of the file to map
+     * @param writable if true, try to map the file with a private mapping that can be modified
+     * @return a FlexByteArray instance viewing the mapped file
+     * @throws IOException 
+     */
+    public static FlexByteArray mapFile(Path p, boolean writable) throws IOException
+    {
+        FileChannel.MapMode mode = FileChannel.MapMode.READ_ONLY;
+        FileChannel fc = null;
+        if (writable && (Files.size(p) <= Integer.MAX_VALUE))
+        {
+            try
+            {
+                fc = FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                mode = FileChannel.MapMode.PRIVATE;
+            }
+            catch (IOException e)
+            {
+                // no write access, read-only file system, locked file, ...
+                fc = null;
+            }
+        }
+        if (fc == null) fc = FileChannel.open(p, StandardOpenOption.READ);
+        
+        try
+        {
+            // the mappings remain valid after the channel has been closed
+            long fSize = fc.size();
+            if (fSize <= Integer.MAX_VALUE) return new FlexByteArray(fc.map(mode, 0, fSize));
+            
+            long segSize = 1L << DEFAULT_SEGMENT_BITS;
+            ByteBuffer[] segs = new ByteBuffer[(int) ((fSize + segSize - 1) / segSize)];
+            for (int i = 0; i < segs.length; i++)
+            {
+                long start = i * segSize;
+                segs[i] = fc.map(FileChannel.MapMode.READ_ONLY, start, Math.min(fSize - start, segSize + SEGMENT_OVERLAP));
+            }
+            
+            return new FlexByteArray(segs, DEFAULT_SEGMENT_BITS);
+        }
+        finally
+        {
+            fc.close();
+        }
     }
     
     /**
@@ -57,10 +320,18 @@ public class FlexByteArray extends LoggingClass {
         if (p == null) resultLog((LOG_FAIL));
         else resultLog(LOG_OK);
 
-        try
+        try (FileChannel fc = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
         {
-            preLog(LVL_DEBUG, "Calling Files.write()");
-            Files.write(p, data);
+            preLog(LVL_DEBUG, "Writing data to FileChannel");
+            ByteBuffer[] src = (segments == null) ? new ByteBuffer[] {data} : segments;
+            for (int i = 0; i < src.length; i++)
+            {
+                // skip the overlap, it's the beginning of the next segment
+                ByteBuffer b = src[i].duplicate();
+                b.clear();
+                if (i < (src.length - 1)) b.limit(1 << segmentBits);
+                while (b.hasRemaining()) fc.write(b);
+            }
             resultLog(LOG_OK);
         }
         catch (IOException ex)
@@ -79,6 +350,12 @@ public class FlexByteArray extends LoggingClass {
     public void setSwap(boolean doSwapBytes)
     {
         swapBytes = doSwapBytes;
+        ByteOrder order = swapBytes ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        data.order(order);
+        if (segments != null)
+        {
+            for (ByteBuffer b : segments) b.order(order);
+        }
     }
     
     /**
@@ -99,13 +376,13 @@ public class FlexByteArray extends LoggingClass {
      * @param offset the 0-based starting position
      * @param count the number of bytes to check for
      */
-    protected void assertArrayBoundary(int offset, int count)
+    protected void assertArrayBoundary(long offset, int count)
     {
         if ((offset < 0) || (count < 0)) throw new IllegalArgumentException();
         
         long lastByteOffset = offset + count - 1;
         
-        if (lastByteOffset >= data.length) throw new IllegalArgumentException("Requested offset " + lastByteOffset + " is beyond the file end at " + data.length);
+        if (lastByteOffset >= size) throw new IllegalArgumentException("Requested offset " + lastByteOffset + " is beyond the file end at " + size);
     }
     
     /**
@@ -117,7 +394,7 @@ public class FlexByteArray extends LoggingClass {
      * @param count the number of bytes to retrieve
      * @return count bytes from the array; if necessary in inversed order, depending on the swap status
      */
-    public byte[] getSwappedSlice(int offset, int count)
+    public byte[] getSwappedSlice(long offset, int count)
     {
         assertArrayBoundary(offset, count);
         byte[] result = new byte[count];
@@ -127,17 +404,55 @@ public class FlexByteArray extends LoggingClass {
         {
             if (swapBytes)
             {
-                result[count - n - 1] = data[offset + n];
+                result[count - n - 1] = buf(offset + n).get(idx(offset + n));
             }
             else
             {
-                result[n] = data[offset + n];
+                result[n] = buf(offset + n).get(idx(offset + n));
             }
         }
         
         return result;
     }
     
+    /**
+     * Copies a block of bytes from the array without any byte swapping
+     * 
+     * Throws an exception if the requested block exceeds the array boundaries
+     * 
+     * @param offset the offset of the first byte to copy (0-based)
+     * @param dst the array to copy the bytes to
+     * @param dstOffset the index of the first byte in dst to write to
+     * @param count the number of bytes to copy
+     */
+    public void getBytes(long offset, byte[] dst, int dstOffset, int count)
+    {
+        assertArrayBoundary(offset, count);
+        
+        while (count > 0)
+        {
+            // copy up to the end of the current segment
+            ByteBuffer b = buf(offset);
+            int i = idx(offset);
+            int n = (segments == null) ? count : (int) Math.min(count, (1L << segmentBits) - i);
+            
+            if (b.hasArray())
+            {
+                System.arraycopy(b.array(), b.arrayOffset() + i, dst, dstOffset, n);
+            }
+            else
+            {
+                ByteBuffer src = b.duplicate();
+                src.position(i);
+                src.get(dst, dstOffset, n);
+            }
+            
+            offset += n;
+            dstOffset += n;
+            count -= n;
+        }
+    }
+    
     /**
      * Take an array of bytes in LSB order and writes it into the data block
      * and swaps the byte sequence, if necessary
@@ -145,7 +460,7 @@ public class FlexByteArray extends LoggingClass {
      * @param buf is the array with the LSB data
      * @param offset is the 0-based start address for the write access
      */
-    public void writeSwappedSlice(byte[] buf, int offset)
+    public void writeSwappedSlice(byte[] buf, long offset)
     {
         assertArrayBoundary(offset, buf.length);
         
@@ -156,11 +471,12 @@ public class FlexByteArray extends LoggingClass {
         {
             if (swapBytes)
             {
-                data[offset + count - n - 1] = buf[n];
+                long ptr = offset + count - n - 1;
+                buf(ptr).put(idx(ptr), buf[n]);
             }
             else
             {
-                data[offset + n] = buf[n];
+                buf(offset + n).put(idx(offset + n), buf[n]);
             }
         }
     }
@@ -173,10 +489,10 @@ public class FlexByteArray extends LoggingClass {
      * @param offset the position of the byte in the array
      * @return a value between 0...255, according to the byte value
      */
-    public int getByte(int offset)
+    public int getByte(long offset)
     {
         assertArrayBoundary(offset, 1);
-        return (data[offset] & 0xff);
+        return (buf(offset).get(idx(offset)) & 0xff);
     }
     
     /**
@@ -185,7 +501,7 @@ public class FlexByteArray extends LoggingClass {
      * @param offset the position of the byte in the data array
      * @param newVal the value to write to the bit
      */
-    public void setByte(int offset, int newVal)
+    public void setByte(long offset, int newVal)
     {
         assertArrayBoundary(offset, 1);
         
@@ -194,7 +510,7 @@ public class FlexByteArray extends LoggingClass {
         
         // cast and store
         byte b = (byte) newVal;
-        data[offset] = b;
+        buf(offset).put(idx(offset), b);
     }
     
     /**
@@ -203,10 +519,10 @@ public class FlexByteArray extends LoggingClass {
      * @param offset the position of the byte in the array
      * @return a value between -128...127, according to the byte value
      */
-    public byte getSignedByte(int offset)
+    public byte getSignedByte(long offset)
     {
         assertArrayBoundary(offset, 1);
-        return data[offset];
+        return buf(offset).get(idx(offset));
     }
     
     /**
@@ -215,15 +531,12 @@ public class FlexByteArray extends LoggingClass {
      * @param offset the position of the first byte in the array
      * @return a value between 0...65535, according to the byte values
      */
-    public int getUint16(int offset)
+    public int getUint16(long offset)
     {
         assertArrayBoundary(offset, 2);
         
-        // adjust byte order, if necessary
-        byte[] tmp = getSwappedSlice(offset, 2);
-        
-        // compute the 16-bit value
-        return (tmp[0] & 0xff) + (tmp[1] & 0xff) *256;
+        // the buffer's byte order reflects the swap status
+        return buf(offset).getShort(idx(offset)) & 0xffff;
     }
     
     /**
@@ -233,18 +546,13 @@ public class FlexByteArray extends LoggingClass {
      * @param offset 0-based index of the first byte
      * @param newVal the 16-bit value to write
      */
-    public void setUint16(int offset, int newVal)
+    public void setUint16(long offset, int newVal)
     {
-        // range-limit the new value
-        newVal &= 0xFFFF;
-        
-        // convert the int into a byte array with LSB first
-        byte[] buf = new byte[2];
-        buf[0] = (byte) (newVal % 256);
-        buf[1] = (byte) (newVal / 256);
+        assertArrayBoundary(offset, 2);
         
-        // write the data incl. a possible byte swap
-        writeSwappedSlice(buf, offset);
+        // the cast range-limits the new value to 16 bits;
+        // the buffer's byte order reflects the swap status
+        buf(offset).putShort(idx(offset), (short) newVal);
     }
             
     /**
@@ -254,20 +562,39 @@ public class FlexByteArray extends LoggingClass {
      * @param offset 0-based index of the first byte
      * @param newVal the 32-bit value to write
      */
-    public void setUint32(int offset, long newVal)
+    public void setUint32(long offset, long newVal)
     {
-        // range-limit the new value
-        newVal &= 0xFFFFFFFF;
-        
-        // convert the int into a byte array with LSB first
-        byte[] buf = new byte[4];
-        buf[0] = (byte) (newVal % 256);
-        buf[1] = (byte) ((newVal >> 8) & 0xff);
-        buf[2] = (byte) ((newVal >> 16) & 0xff);
-        buf[3] = (byte) ((newVal >> 24) & 0xff);
+        assertArrayBoundary(offset, 4);
         
-        // write the data incl. a possible byte swap
-        writeSwappedSlice(buf, offset);
+        // the cast range-limits the new value to 32 bits;
+        // the buffer's byte order reflects the swap status
+        buf(offset).putInt(idx(offset), (int) newVal);
+    }
+    
+    /**
+     * Retrieves a 32-bit unsigned integer with the MSB at the lowest address,
+     * regardless of the current swap status. Used for reading bit streams.
+     * 
+     * @param offset the position of the first byte in the array
+     * @return a value between 0 ... 2^32 - 1, according to the byte values
+     */
+    public long getUint32MSBFirst(long offset)
+    {
+        assertArrayBoundary(offset, 4);
+        return bufMSBFirst(offset).getInt(idx(offset)) & 0xffffffffL;
+    }
+    
+    /**
+     * Stores an unsigned 32-bit value with the MSB at the lowest address,
+     * regardless of the current swap status. Used for writing bit streams.
+     * 
+     * @param offset 0-based index of the first byte
+     * @param newVal the 32-bit value to write
+     */
+    public void setUint32MSBFirst(long offset, long newVal)
+    {
+        assertArrayBoundary(offset, 4);
+        bufMSBFirst(offset).putInt(idx(offset), (int) newVal);
     }
     
     /**
@@ -276,19 +603,10 @@ public class FlexByteArray extends LoggingClass {
      * @param offset the position of the first byte in the array
      * @return a value between -32768...32767, according to the byte values
      */
-    public int getSint16(int offset)
+    public int getSint16(long offset)
     {
         assertArrayBoundary(offset, 2);
-        
-        // retrieve the "pure data" as unsigned word
-        // and convert it into a bit string
-        int u = getUint16(offset);
-        String tmp = Integer.toBinaryString(u);
-        
-        // interpret the bit string as a signed 16-bit integer
-        short result = (short)Integer.parseInt(tmp, 2);
-        
-        return result;
+        return buf(offset).getShort(idx(offset));
     }
             
     /**
@@ -300,18 +618,50 @@ public class FlexByteArray extends LoggingClass {
      * @param offset the position of the first byte in the array
      * @return a value between 0 ... 2^32 - 1, according to the byte values
      */
-    public long getUint32(int offset)
+    public long getUint32(long offset)
     {
         assertArrayBoundary(offset, 4);
         
-        // construct the result from four (swapped) bytes
-        byte[] tmp = getSwappedSlice(offset, 4);
-        long result = (tmp[0] & 0xff);
-        result += (tmp[1] & 0xff) << 8;
-        result += (tmp[2] & 0xff) << 16;
-        result += (tmp[3] & 0xff) << 24;
-        
-        return result;
+        // no masking here: values with the MSB set have always been
+        // returned sign-extended and existing callers depend on that
+        return buf(offset).getInt(idx(offset));
+    }
+    
+    /**
+     * Retrieves an 32-bit unsigned integer from the array without the
+     * sign extension of getUint32(); used for offsets beyond 2 GB
+     * 
+     * @param offset the position of the first byte in the array
+     * @return a value between 0 ... 2^32 - 1, according to the byte values
+     */
+    public long getUint32Unsigned(long offset)
+    {
+        return getUint32(offset) & 0xffffffffL;
+    }
+    
+    /**
+     * Retrieves an 64-bit integer from the array, e. g. a BigTIFF offset
+     * 
+     * @param offset the position of the first byte in the array
+     * @return the value as long
+     */
+    public long getUint64(long offset)
+    {
+        assertArrayBoundary(offset, 8);
+        return buf(offset).getLong(idx(offset));
+    }
+    
+    /**
+     * Stores a 64-bit value in the data block, taking the
+     * current byte order into account
+     * 
+     * @param offset 0-based index of the first byte
+     * @param newVal the 64-bit value to write
+     */
+    public void setUint64(long offset, long newVal)
+    {
+        assertArrayBoundary(offset, 8);
+        buf(offset).putLong(idx(offset), newVal);
     }
     
     /**
@@ -320,23 +670,30 @@ public class FlexByteArray extends LoggingClass {
      * @param offset the position of the first byte in the array
      * @return a value between -2^31 ... 2^31-1, according to the byte values
      */
-    public int getSint32(int offset)
+    public int getSint32(long offset)
     {
         assertArrayBoundary(offset, 4);
-        
-        // get the raw, unsigend data, convert it into to in
-        long u = getUint32(offset);
-        return (int) u;
+        return buf(offset).getInt(idx(offset));
     }
     
     /**
      * Get the number of bytes stored in the array
      * 
-     * @return the array size in bytes
+     * @return the array size in bytes; Integer.MAX_VALUE for larger arrays, see size()
      */
     public int length()
     {
-        return data.length;
+        return (int) Math.min(size(), Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Get the number of bytes stored in the array
+     * 
+     * @return the array size in bytes
+     */
+    public long size()
+    {
+        return size;
     }
     
     /**
@@ -346,7 +703,12 @@ public class FlexByteArray extends LoggingClass {
      */
     public byte[] getDataClone()
     {
-        return data.clone();
+        if (size() > Integer.MAX_VALUE) throw new IllegalStateException("The data is too large for an array");
+        
+        byte[] result = new byte[(int) size()];
+        getBytes(0, result, 0, result.length);
+        
+        return result;
     }
     
 }
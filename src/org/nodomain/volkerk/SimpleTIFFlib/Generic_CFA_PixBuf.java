@@ -139,7 +139,7 @@ public abstract class Generic_CFA_PixBuf {
         if (((bpp % 8) != 0) || (bpp == 24)) return CFA_setPixel_BitPuzzle(x, y, newVal);
                 
         // find the base address of the pixel
-        int ptr = (int) CFA_getPixOffsetInBuffer(x, y);
+        long ptr = CFA_getPixOffsetInBuffer(x, y);
         
         // is it only a getPixel-call?
         if (newVal < 0)
@@ -172,19 +172,17 @@ public abstract class Generic_CFA_PixBuf {
         int bpp = CFA_getBitsPerPixel();
                 
         // find the first byte containing the first bit of the pixel
-        int ptr = (int) CFA_getPixOffsetInBuffer(x, y);
+        long ptr = CFA_getPixOffsetInBuffer(x, y);
         
         // assumption: one pixel is never spread across more than four bytes
         // read all bits into a long, in the sequence they are stored in the file.
         // This means a "Big Endian" interpreation of the bytes, but only for
         // one DWORD read
-        boolean oldSwapStatus = data.getSwap();
-        data.setSwap(true);
-        long allBits = data.getUint32(ptr);
-        data.setSwap(oldSwapStatus);
+        long allBits = CFA_getBitstreamWord(ptr);
         
-        // find the position of the first pixel within the first byte / string
-        int firstBitIndex = (x * bpp) % 8;   // 0-based index of the first bit in the first byte, with index ZERO BEING THE MSB
+        // find the position of the first pixel within the first byte / string;
+        // each row segment starts at a byte boundary
+        int firstBitIndex = ((x % CFA_getSegmentWidth()) * bpp) % 8;   // 0-based index of the first bit in the first byte, with index ZERO BEING THE MSB
         firstBitIndex = 7 - firstBitIndex; // 0-based index of the first bit in the first byte, with index ZERO BEING THE LSB, as normal
         firstBitIndex += 24;  // plus three bytes to get the 0-based index of the first bit within the DWORD
         
@@ -220,10 +218,8 @@ public abstract class Generic_CFA_PixBuf {
         allBits = allBits & mask;
         allBits = allBits | nv;
         
-        // write back the DWORK
-        data.setSwap(true);
-        data.setUint32(ptr, allBits);
-        data.setSwap(oldSwapStatus);
+        // write back the DWORD
+        CFA_setBitstreamWord(ptr, allBits);
                 
         return newVal;
     }
@@ -232,66 +228,178 @@ public abstract class Generic_CFA_PixBuf {
      * Returns the CFA image data into an 2-dim array of ints,
      * which each int representing the intensity of one pixel
      * 
+     * Prefer CFA_getPixelPlane(), which needs much less memory and stores
+     * the data row by row
+     * 
      * @return a 2-dim int array with color intensities for each pixel in the image
      */
     public int[][] CFA_getPixelData()
     {
         int bpp = CFA_getBitsPerPixel();
+        if (bpp <= 16) return CFA_getPixelPlane().toColumnMajorArray();
         
-        // If we have multiple pixels in one byte (color depth unequal 8, 16
-        // or 32), we need a special method to puzzle the bits for one pixel together
-        if (((bpp % 8) != 0) || (bpp == 24)) return CFA_getPixelData_BitPuzzle();
-        
+        // more than 16 bits per pixel don't fit into a PixelPlane;
+        // read them one by one
         int w = (int) imgWidth();
         int h = (int) imgHeight();
         
         int[][] result = new int[w][h];
         
-        int bytesPerSample = bpp / 8;   // we have either 8, 16 or 32 bpp; so this is fine
+        for (int y=0; y < h; y++)
+        {
+            for (int x=0; x < w; x++) result[x][y] = CFA_getPixel(x, y);  // THIS WILL FAIL FOR 32 BPP!!
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Returns the CFA image data as a PixelPlane with one 16-bit sample per
+     * pixel, stored row by row
+     * 
+     * Works for up to 16 bits per pixel.
+     * 
+     * @return a PixelPlane with the intensity of each pixel in the image
+     */
+    public PixelPlane CFA_getPixelPlane()
+    {
+        int w = imgWidth();
+        int h = imgHeight();
         
-        int row = 0;
+        PixelPlane result = new PixelPlane(w, h);
+        byte[] scratch = new byte[PixelPacker.bytesPerRow(w, CFA_getBitsPerPixel())];
         
-        for (int y = 0; y < h; y++)
+        for (int y=0; y < h; y++)
         {
-            // get the base address of the row
-            int basePtr = (int) CFA_getPixOffsetInBuffer(0, y);
-            
-            for (int x=0; x < w; x++)
-            {
-                int ptr = basePtr + x*bytesPerSample;
-                
-                if (bytesPerSample == 1) result[x][y] = data.getByte(ptr);
-                else if (bytesPerSample == 2) result[x][y] = data.getUint16(ptr);
-                else result[x][y] = (int) data.getUint32(ptr);  // THIS WILL FAIL FOR 32 BPP!!
-            }
+            CFA_readRow(y, result.getData(), result.rowOffset(y), scratch);
         }
         
         return result;
     }
     
     /**
-     * Returns the CFA image data into an 2-dim array of ints,
-     * which each int representing the intensity of one pixel
+     * Reads all pixels of a row at once. Much faster than calling CFA_getPixel()
+     * for every pixel, especially for bit-packed data.
      * 
-     * Designed for images with bits-per-sample != 8, 16, 32
+     * Works for up to 16 bits per pixel.
      * 
-     * Currently implemented as "brute-force-get-one-pixel-after-the-other" and leaves much room for improvement
+     * @param y the 0-based y-coordinate of the row
+     * @param dst the array to store the pixel values in; needs at least imgWidth() entries. The values are unsigned, i. e. they have to be masked with 0xFFFF
+     */
+    public void CFA_readRow(int y, short[] dst)
+    {
+        int bpp = CFA_getBitsPerPixel();
+        byte[] scratch = null;
+        if ((bpp % 8) != 0) scratch = new byte[PixelPacker.bytesPerRow(imgWidth(), bpp)];
+        
+        CFA_readRow(y, dst, 0, scratch);
+    }
+    
+    /**
+     * Reads all pixels of a row at once, using a caller-provided buffer for
+     * the packed row data. Allows for reading many rows without allocations.
      * 
-     * @return a 2-dim int array with color intensities for each pixel in the image
+     * @param y the 0-based y-coordinate of the row
+     * @param dst the array to store the pixel values in
+     * @param dstOffset the index in dst for the first pixel of the row; dst needs at least imgWidth() entries from here on
+     * @param scratch a buffer with at least PixelPacker.bytesPerRow(imgWidth(), bpp) bytes; only used for bit-packed data and may be null otherwise
      */
-    protected int[][] CFA_getPixelData_BitPuzzle()
+    protected void CFA_readRow(int y, short[] dst, int dstOffset, byte[] scratch)
     {
-        int w = (int) imgWidth();
-        int h = (int) imgHeight();
+        int w = imgWidth();
+        int bpp = CFA_getBitsPerPixel();
         
-        int[][] result = new int[w][h];
+        if ((y < 0) || (y >= imgHeight()))
+        {
+            throw new IllegalArgumentException("Invalid row: " + y);
+        }
+        if ((dstOffset < 0) || ((dst.length - dstOffset) < w))
+        {
+            throw new IllegalArgumentException("Destination array too small for " + w + " pixels");
+        }
+        if (bpp > 16)
+        {
+            throw new IllegalArgumentException("Can't read rows with " + bpp + " bits per pixel");
+        }
         
-        for (int y=0; y < h; y++)
+        // read the row segment by segment; for images stored
+        // in strips, that's the whole row in one go
+        int segW = CFA_getSegmentWidth();
+        for (int x0 = 0; x0 < w; x0 += segW)
+        {
+            long ptr = CFA_getRowSegmentOffset(x0, y);
+            CFA_readSegment(ptr, Math.min(segW, w - x0), bpp, dst, dstOffset + x0, scratch);
+        }
+    }
+    
+    /**
+     * Reads the pixels of a row segment
+     * 
+     * @param ptr the offset of the first byte of the segment in "data"
+     * @param count the number of pixels to read
+     * @param bpp the number of bits per pixel, up to 16
+     * @param dst the array to store the pixel values in
+     * @param dstOffset the index in dst for the first pixel
+     * @param scratch a buffer with at least PixelPacker.bytesPerRow(count, bpp) bytes; only used for bit-packed data
+     */
+    protected void CFA_readSegment(long ptr, int count, int bpp, short[] dst, int dstOffset, byte[] scratch)
+    {
+        // byte-aligned pixels are read in the byte order of the data block
+        if (bpp == 8)
         {
-            for (int x=0; x < w; x++) result[x][y] = CFA_getPixel(x, y);
+            for (int x=0; x < count; x++) dst[dstOffset + x] = (short) data.getByte(ptr + x);
+            return;
+        }
+        if (bpp == 16)
+        {
+            for (int x=0; x < count; x++) dst[dstOffset + x] = (short) data.getUint16(ptr + 2*x);
+            return;
         }
         
-        return result;
+        // bit-packed pixels: copy the whole segment in one go and unpack it
+        int rowBytes = PixelPacker.bytesPerRow(count, bpp);
+        CFA_getRowBytes(ptr, scratch, rowBytes);
+        PixelPacker.unpackRow(scratch, 0, bpp, dst, dstOffset, count);
+    }
+    
+    /**
+     * Reads four bytes of the pixel bit stream with the first byte in the MSB.
+     * Subclasses can override this, if the stream is not stored byte by
+     * byte in the data block.
+     * 
+     * @param ptr the offset of the first byte in the bit stream
+     * 
+     * @return the four bytes as unsigned 32-bit value
+     */
+    protected long CFA_getBitstreamWord(long ptr)
+    {
+        return data.getUint32MSBFirst(ptr);
+    }
+    
+    /**
+     * Writes four bytes of the pixel bit stream with the first byte in the MSB.
+     * Counterpart of CFA_getBitstreamWord().
+     * 
+     * @param ptr the offset of the first byte in the bit stream
+     * @param newVal the four bytes as unsigned 32-bit value
+     */
+    protected void CFA_setBitstreamWord(long ptr, long newVal)
+    {
+        data.setUint32MSBFirst(ptr, newVal);
+    }
+    
+    /**
+     * Copies a block of bytes of the pixel bit stream, e. g. a whole row.
+     * Subclasses can override this, if the stream is not stored byte by
+     * byte in the data block.
+     * 
+     * @param ptr the offset of the first byte in the bit stream
+     * @param dst the array to copy the bytes to, starting at index 0
+     * @param count the number of bytes to copy
+     */
+    protected void CFA_getRowBytes(long ptr, byte[] dst, int count)
+    {
+        data.getBytes(ptr, dst, 0, count);
     }
     
     /**
@@ -303,43 +411,47 @@ public abstract class Generic_CFA_PixBuf {
      */
     public void CFA_raw2png(String destFileName, boolean useGrayscale)
     {
-        int[][] rawData = CFA_getPixelData();
+        PixelPlane rawData = CFA_getPixelPlane();
+        short[] pix = rawData.getData();
+        int w = imgWidth();
+        int h = imgHeight();
         
         // convert to 8-bit color depth, if necessary
         int bpp = CFA_getBitsPerPixel();
-        if (bpp > 8)
-        {
-            int bitDiff = bpp - 8;
-            
-            for (int y=0; y < imgHeight(); y++)
-            {
-                for (int x=0; x < imgWidth(); x++)
-                {
-                    rawData[x][y] = rawData[x][y] >> bitDiff;
-                }
-            }
-        }
+        int bitDiff = Math.max(bpp - 8, 0);
+        
+        // the bit shift for placing an intensity value in the R, G or B
+        // byte of an RGB int, for each position in the CFA pattern
+        int nCols = CFA_getPatternDim()[0];
+        int nRows = CFA_getPatternDim()[1];
+        int[] pattern = CFA_getPattern();
+        int[] colShift = new int[pattern.length];
+        for (int i=0; i < pattern.length; i++) colShift[i] = 16 - 8*pattern[i];
         
         // create a new buffered image
-        BufferedImage img = new BufferedImage((int)imgWidth(), (int)imgHeight(), BufferedImage.TYPE_INT_RGB);
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int[] rgbRow = new int[w];
         
-        // write all pixels
-        for (int y=0; y < imgHeight(); y++)
+        // write all pixels, row by row
+        for (int y=0; y < h; y++)
         {
-            for (int x=0; x < imgWidth(); x++)
+            int ptr = rawData.rowOffset(y);
+            int patternRowBase = (y % nRows) * nCols;
+            
+            for (int x=0; x < w; x++)
             {
-                int col;
+                int col = (pix[ptr + x] & 0xffff) >> bitDiff;
                 if (useGrayscale)
                 {
-                    col = rawData[x][y];
                     col += (col << 16) + (col << 8);
                 }
                 else
                 {
-                    col = CFA_col2rgbInt(x, y, rawData[x][y]);
+                    col = col << colShift[patternRowBase + (x % nCols)];
                 }
-                img.setRGB(x, y, col);
+                rgbRow[x] = col;
             }
+            img.setRGB(0, y, w, 1, rgbRow, 0, w);
         }
         
         // write the file
@@ -389,12 +501,40 @@ public abstract class Generic_CFA_PixBuf {
             throw new IllegalArgumentException("Invalid coordinates: " + x + ", " + y);
         }
         
-        long ptr = CFA_getRowOffsetInBuffer(y);
-        ptr += x * CFA_getBitsPerPixel() / 8;
+        int segW = CFA_getSegmentWidth();
+        long ptr = CFA_getRowSegmentOffset(x - (x % segW), y);
+        ptr += (long) (x % segW) * CFA_getBitsPerPixel() / 8;
         
         return ptr;
     }
     
+    /**
+     * The number of pixels in a row segment, i. e. the number of pixels that
+     * are stored consecutively in the buffer. For images stored in strips,
+     * this is the image width; for tiled images the tile width.
+     * 
+     * Each row segment starts at a byte boundary.
+     * 
+     * @return the number of pixels per row segment
+     */
+    protected int CFA_getSegmentWidth()
+    {
+        return imgWidth();
+    }
+    
+    /**
+     * Returns the offset within the data block of the first byte of a row segment
+     * 
+     * @param x0 the 0-based x-coordinate of the first pixel of the segment; a multiple of CFA_getSegmentWidth()
+     * @param y the 0-based y-coordinate of the row
+     * 
+     * @return the offset of the first byte in "data" that contains pixel bits of the segment
+     */
+    protected long CFA_getRowSegmentOffset(int x0, int y)
+    {
+        return CFA_getRowOffsetInBuffer(y);
+    }
+    
     /**
      * Returns the offset within the data block of the first byte of a row
      * 
@@ -408,6 +548,28 @@ public abstract class Generic_CFA_PixBuf {
     abstract public int imgHeight();
     
     
+    /**
+     * Demosaics the CFA data into an RGB plane, using all available CPU cores
+     * 
+     * @return a PixelPlane with R, G and B samples for each pixel; same value range as the CFA data
+     */
+    public PixelPlane CFA_demosaic()
+    {
+        return new DemosaicEngine().demosaic(CFA_getPixelPlane(), CFA_getPattern(), CFA_getPatternDim());
+    }
+    
+    /**
+     * Demosaics the CFA data into an RGB plane with a specific algorithm, using all available CPU cores
+     * 
+     * @param algo the demosaicing algorithm, e. g. BilinearDemosaicer, VNGDemosaicer or AHDDemosaicer
+     * 
+     * @return a PixelPlane with R, G and B samples for each pixel; same value range as the CFA data
+     */
+    public PixelPlane CFA_demosaic(Demosaicer algo)
+    {
+        return new DemosaicEngine().demosaic(CFA_getPixelPlane(), new CFAPattern(CFA_getPattern(), CFA_getPatternDim()), algo);
+    }
+    
     /**
      * A very primitive demosaicing for testing purposes. Results are written to a PNG file
      * 
@@ -417,237 +579,47 @@ public abstract class Generic_CFA_PixBuf {
      */
     public void CFA_primitiveDemosaic(String destFileName)
     {
-        int[][] rawData = CFA_getPixelData();
+        PixelPlane rgb = CFA_demosaic();
+        short[] pix = rgb.getData();
         int w = (int) imgWidth();
         int h = (int) imgHeight();
         
-        double[][][] demosData = new double[w][h][3];
-        
         // create a new buffered image
         BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int[] rgbRow = new int[w];
         
-        // keep track of the overall maximum value for each color component
-        double maxR = -1;
-        double maxG = -1;
-        double maxB = -1;
-        
-        // loop over all pixels and interpolate them one by one
-        for (int y=0; y < h; y++)
-        {
-            for (int x=0; x < w; x++)
-            {
-                // get the color type
-                int color = CFA_coord2color(x, y);
-                
-                // target variable for the RGB-values for this pixel
-                double r=0;
-                double g=0;
-                double b=0;
-                
-                double tmp = 0;
-                double cnt = 0;
-                    
-                // apply different interpolation algorithms, depending on the color
-                if (color == 0) // red pixel, need to find blue and green
-                {
-                    r = rawData[x][y];
-                    
-                    // green: use the green pixel left, right, above and below the red pixel
-                    if ((x-1) >= 0)
-                    {
-                        tmp += rawData[x-1][y];
-                        cnt++;
-                    }
-                    if ((x+1) < w)
-                    {
-                        tmp += rawData[x+1][y];
-                        cnt++;
-                    }
-                    if ((y-1) >= 0)
-                    {
-                        tmp += rawData[x][y-1];
-                        cnt++;
-                    }
-                    if ((y+1) < h)
-                    {
-                        tmp += rawData[x][y+1];
-                        cnt++;
-                    }
-                    
-                    g = tmp / cnt;
-                    
-                    // blue: use the blue pixel at the top left, top right, bottom left, bottom right of the red pixel
-                    tmp = 0;
-                    cnt = 0;
-                    if (((x-1) >= 0) && ((y-1) >= 0))
-                    {
-                        tmp += rawData[x-1][y-1];
-                        cnt++;
-                    }
-                    if (((x+1) < w) && ((y-1) >= 0))
-                    {
-                        tmp += rawData[x+1][y-1];
-                        cnt++;
-                    }
-                    if (((x-1) >= 0) && ((y+1) < h))
-                    {
-                        tmp += rawData[x-1][y+1];
-                        cnt++;
-                    }
-                    if (((x+1) < w) && ((y+1) < h))
-                    {
-                        tmp += rawData[x+1][y+1];
-                        cnt++;
-                    }
-                    
-                    b = tmp / cnt;
-                }
-                
-                else if (color == 1)  // green pixel: need to find red and blue
-                {
-                    g = rawData[x][y];
-                    
-                    // neighbor1: use the pixel left and right of the green pixel
-                    if ((x-1) >= 0)
-                    {
-                        tmp += rawData[x-1][y];
-                        cnt++;
-                    }
-                    if ((x+1) < w)
-                    {
-                        tmp += rawData[x+1][y];
-                        cnt++;
-                    }
-                    
-                    double n1 = tmp / cnt;
-                    
-                    // neighbor2: use the pixel above and below the green pixel
-                    tmp = 0;
-                    cnt = 0;
-                    if ((y-1) >= 0)
-                    {
-                        tmp += rawData[x][y-1];
-                        cnt++;
-                    }
-                    if ((y+1) < h)
-                    {
-                        tmp += rawData[x][y+1];
-                        cnt++;
-                    }
-                    
-                    double n2 = tmp / cnt;
-                    
-                    // in EVEN rows, n1 is red and n2 is blue;
-                    // vice versa in ODD rows
-                    if ((y % 2) == 0)
-                    {
-                        r = n1;
-                        b = n2;
-                    }
-                    else
-                    {
-                        r = n2;
-                        b = n1;
-                    }
-                }
-                
-                // blue pixel; need red and green
-                else
-                {
-                    b = rawData[x][y];
-                    
-                    // green: use the green pixel left, right, above and below the blue pixel
-                    if ((x-1) >= 0)
-                    {
-                        tmp += rawData[x-1][y];
-                        cnt++;
-                    }
-                    if ((x+1) < w)
-                    {
-                        tmp += rawData[x+1][y];
-                        cnt++;
-                    }
-                    if ((y-1) >= 0)
-                    {
-                        tmp += rawData[x][y-1];
-                        cnt++;
-                    }
-                    if ((y+1) < h)
-                    {
-                        tmp += rawData[x][y+1];
-                        cnt++;
-                    }
-                    
-                    g = tmp / cnt;
-                    
-                    // red: use the red pixel at the top left, top right, bottom left, bottom right of the blue pixel
-                    tmp = 0;
-                    cnt = 0;
-                    if (((x-1) >= 0) && ((y-1) >= 0))
-                    {
-                        tmp += rawData[x-1][y-1];
-                        cnt++;
-                    }
-                    if (((x+1) < w) && ((y-1) >= 0))
-                    {
-                        tmp += rawData[x+1][y-1];
-                        cnt++;
-                    }
-                    if (((x-1) >= 0) && ((y+1) < h))
-                    {
-                        tmp += rawData[x-1][y+1];
-                        cnt++;
-                    }
-                    if (((x+1) < w) && ((y+1) < h))
-                    {
-                        tmp += rawData[x+1][y+1];
-                        cnt++;
-                    }
-                    
-                    r = tmp / cnt;
-                }
-                
-                demosData[x][y][0] = r;
-                demosData[x][y][1] = g;
-                demosData[x][y][2] = b;
-                
-                if (r > maxR) maxR = r;
-                if (g > maxG) maxG = g;
-                if (b > maxB) maxB = b;
-            }
-        }
-        
-        // find the overall maximum intensity for a later
-        // normalization to 8-bit
-        double maxVal = Math.max(maxR, maxG);
-        maxVal = Math.max(maxVal, maxB);
+        // the overall maximum value for each color component
+        double maxR = rgb.getMax(0);
+        double maxG = rgb.getMax(1);
+        double maxB = rgb.getMax(2);
         
         // tweak the factors a bit. values empirically established.
         // I guess this is something like whitebalance-adjustment
-        maxVal *= 0.4;
         maxR *= 0.75 * 0.5;
         maxG *= 1.15 * 0.5;
         maxB *= 1.1 * 0.5;
         
-        // normalize all color values to 8 bit and store them in
-        // the data structures for a PNG
+        // normalize all color values to 8 bit in 16.16 fixed point arithmetic
+        // and store them in the data structures for a PNG
+        long scaleR = (maxR > 0) ? (long) (255 * 65536.0 / maxR) : 0;
+        long scaleG = (maxG > 0) ? (long) (255 * 65536.0 / maxG) : 0;
+        long scaleB = (maxB > 0) ? (long) (255 * 65536.0 / maxB) : 0;
+        
         for (int y=0; y < h; y++)
         {
+            int ptr = rgb.rowOffset(y);
+            
             for (int x=0; x < w; x++)
             {
-                int r = (int) (demosData[x][y][0] / maxR * 255);
-                int g = (int) (demosData[x][y][1] / maxG * 255);
-                int b = (int) (demosData[x][y][2] / maxB * 255);
-                
-                r = Math.min(r, 255);
-                g = Math.min(g, 255);
-                b = Math.min(b, 255);
+                int r = (int) Math.min(((pix[ptr] & 0xffff) * scaleR) >> 16, 255);
+                int g = (int) Math.min(((pix[ptr+1] & 0xffff) * scaleG) >> 16, 255);
+                int b = (int) Math.min(((pix[ptr+2] & 0xffff) * scaleB) >> 16, 255);
+                ptr += 3;
                 
-                int col = (r << 16) + (g << 8) + b;
-                img.setRGB(x, y, col);
+                rgbRow[x] = (r << 16) + (g << 8) + b;
             }
+            img.setRGB(0, y, w, 1, rgbRow, 0, w);
         }
-
         
         // write the file
         File outfile = new File(destFileName);
@@ -709,7 +681,8 @@ public abstract class Generic_CFA_PixBuf {
         if (ref.CFA_getDataLength() != data.length()) return false;
         
         // compare word by word
-        for (int ptr=0; ptr < data.length(); ptr += 4)
+        int ptr = 0;
+        for (; (ptr + 4) <= data.length(); ptr += 4)
         {
             long d1 = data.getUint32(ptr);
             long d2 = ref.data.getUint32(ptr);
@@ -718,12 +691,9 @@ public abstract class Generic_CFA_PixBuf {
         
         // compare the last three bytes separately, in case the field length
         // was not a multiple of four
-        for (int i = -1; i > -4; i--)
+        for (; ptr < data.length(); ptr++)
         {
-            int ptr = data.length() - i;
-            long d1 = data.getUint32(ptr);
-            long d2 = ref.data.getUint32(ptr);
-            if (d1 != d2) return false;            
+            if (data.getByte(ptr) != ref.data.getByte(ptr)) return false;
         }
         
         return true;
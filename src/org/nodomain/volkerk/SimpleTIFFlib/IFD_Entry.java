@@ -33,7 +33,11 @@ public class IFD_Entry {
         SLONG,
         SRATIONAL,
         FLOAT,
-        DOUBLE
+        DOUBLE,
+        IFD,
+        LONG8,
+        SLONG8,
+        IFD8
     }
     
     /**
@@ -46,40 +50,67 @@ public class IFD_Entry {
     /**
      * The entry's tag ID
      */
-    protected int tag;
+    protected final int tag;
     
     /**
      * The entry's data data
      */
-    protected ENTRY_TYPE type;
+    protected final ENTRY_TYPE type;
     
     /**
      * The number of values associated with this tag
      */
-    protected int numVal;
+    protected final int numVal;
     
     /**
      * The data block in which this tag is somewhere stored ("data" is more
      * than just the 12-bytes for the entry!).
      */
-    protected FlexByteArray data;
+    protected final FlexByteArray data;
     
     /**
      * The offset to the first byte of the entry within the data block
      */
-    protected int offset;
+    protected final long offset;
+    
+    /**
+     * True for BigTIFF entries with 20 bytes: tag, type, an 8-byte count
+     * and an 8-byte value field
+     */
+    protected final boolean bigTiff;
+    
+    /**
+     * The decoded values of the entry, filled on first request; volatile,
+     * because entries are shared between the threads that decode an image
+     */
+    protected volatile String stringVal = null;
+    protected volatile int[] intArrayVal = null;
+    protected volatile long[] longArrayVal = null;
+    
+    /**
+     * Constructor. Determines ID and value of the tag
+     * 
+     * @param _data the data block in which the entry is stored
+     * @param _offset the 0-based of the first byte of the entry
+     */
+    public IFD_Entry(FlexByteArray _data, long _offset)
+    {
+        this(_data, _offset, false);
+    }
     
     /**
      * Constructor. Determines ID and value of the tag
      * 
      * @param _data the data block in which the entry is stored
      * @param _offset the 0-based of the first byte of the entry
+     * @param _bigTiff true if the entry is part of a BigTIFF file
      */
-    public IFD_Entry(FlexByteArray _data, int _offset)
+    public IFD_Entry(FlexByteArray _data, long _offset, boolean _bigTiff)
     {        
         // store the datablock for later
         data = _data;
         offset = _offset;
+        bigTiff = _bigTiff;
         
         // get the tag ID from the first two bytes of the entry
         tag = data.getUint16(offset);
@@ -87,37 +118,90 @@ public class IFD_Entry {
         // get the tag type from the next two bytes
         // and make sure it's valid
         int rawType = data.getUint16(offset + 2);
-        if (!(determineType(rawType))) throw new IllegalArgumentException("Unknown tag type " + rawType);
+        type = determineType(rawType);
+        if (type == null) throw new IllegalArgumentException("Unknown tag type " + rawType);
         
         // get the number of values for the entry
-        numVal = data.getUint16(offset + 4);        
+        long cnt = bigTiff ? data.getUint64(offset + 4) : data.getUint32Unsigned(offset + 4);
+        if ((cnt < 0) || (cnt > Integer.MAX_VALUE)) throw new IllegalArgumentException("Invalid value count " + cnt + " for tag " + getTagHex());
+        numVal = (int) cnt;
+    }
+    
+    /**
+     * @return the offset of the value field within the data block
+     */
+    protected long getValueFieldOffset()
+    {
+        return offset + (bigTiff ? 12 : 8);
+    }
+    
+    /**
+     * @return the size of the value field in bytes: 4 or 8 for BigTIFF
+     */
+    protected int getValueFieldSize()
+    {
+        return bigTiff ? 8 : 4;
+    }
+    
+    /**
+     * Interprets the value field as pointer to the actual data that is
+     * stored outside the entry
+     * 
+     * @return the offset of the data within the data block
+     */
+    protected long getDataPointer()
+    {
+        long vf = getValueFieldOffset();
+        return bigTiff ? data.getUint64(vf) : data.getUint32Unsigned(vf);
+    }
+    
+    /**
+     * Checks whether the entry's values fit into the value field
+     * 
+     * @param elemSize the size of a single value in bytes
+     * 
+     * @return true if the values are stored in the entry itself
+     */
+    protected boolean isStoredInEntry(int elemSize)
+    {
+        return ((long) getNumVal() * elemSize) <= getValueFieldSize();
+    }
+    
+    /**
+     * @return the size of a single LONG-like value: 8 for the BigTIFF types, 4 otherwise
+     */
+    protected int getLongSize()
+    {
+        return ((type == ENTRY_TYPE.LONG8) || (type == ENTRY_TYPE.SLONG8) || (type == ENTRY_TYPE.IFD8)) ? 8 : 4;
     }
     
     /**
      * Resolves the numeric "type"-flag in the entry into one of the internal ENUMs
-     * and sets the member variable "type" accordingly
      * 
      * @param rawType the type number according to the TIFF spec
      * 
-     * @return true if the type could be determined, false otherwise
+     * @return the type or null if the type is unknown
      */
-    protected boolean determineType(int rawType)
+    protected static ENTRY_TYPE determineType(int rawType)
     {
-        if (rawType == 1) type = ENTRY_TYPE.BYTE;
-        else if (rawType == 2) type = ENTRY_TYPE.ASCII;
-        else if (rawType == 3) type = ENTRY_TYPE.SHORT;
-        else if (rawType == 4) type = ENTRY_TYPE.LONG;
-        else if (rawType == 5) type = ENTRY_TYPE.RATIONAL;
-        else if (rawType == 6) type = ENTRY_TYPE.SBYTE;
-        else if (rawType == 7) type = ENTRY_TYPE.UNDEFINED;
-        else if (rawType == 8) type = ENTRY_TYPE.SSHORT;
-        else if (rawType == 9) type = ENTRY_TYPE.SLONG;
-        else if (rawType == 10) type = ENTRY_TYPE.SRATIONAL;
-        else if (rawType == 11) type = ENTRY_TYPE.FLOAT;
-        else if (rawType == 12) type = ENTRY_TYPE.DOUBLE;
-        else return false;
+        if (rawType == 1) return ENTRY_TYPE.BYTE;
+        else if (rawType == 2) return ENTRY_TYPE.ASCII;
+        else if (rawType == 3) return ENTRY_TYPE.SHORT;
+        else if (rawType == 4) return ENTRY_TYPE.LONG;
+        else if (rawType == 5) return ENTRY_TYPE.RATIONAL;
+        else if (rawType == 6) return ENTRY_TYPE.SBYTE;
+        else if (rawType == 7) return ENTRY_TYPE.UNDEFINED;
+        else if (rawType == 8) return ENTRY_TYPE.SSHORT;
+        else if (rawType == 9) return ENTRY_TYPE.SLONG;
+        else if (rawType == 10) return ENTRY_TYPE.SRATIONAL;
+        else if (rawType == 11) return ENTRY_TYPE.FLOAT;
+        else if (rawType == 12) return ENTRY_TYPE.DOUBLE;
+        else if (rawType == 13) return ENTRY_TYPE.IFD;
+        else if (rawType == 16) return ENTRY_TYPE.LONG8;
+        else if (rawType == 17) return ENTRY_TYPE.SLONG8;
+        else if (rawType == 18) return ENTRY_TYPE.IFD8;
         
-        return true;
+        return null;
     }
     
     /**
@@ -196,8 +280,7 @@ public class IFD_Entry {
         // determine the base adress of the data. It's either the entry itself
         // our an external data block. In the later case, the address of the
         // external block is stored in the entry
-        int ptr = offset+8;
-        if (!inEntryValue) ptr = (int) getLong();
+        long ptr = inEntryValue ? getValueFieldOffset() : getDataPointer();
         
         if (type == ENTRY_TYPE.BYTE) return data.getByte(ptr + cnt);
         else if (type == ENTRY_TYPE.SHORT) return data.getUint16(ptr + 2*cnt);
@@ -229,10 +312,11 @@ public class IFD_Entry {
     {
         //assertType(ENTRY_TYPE.LONG);
         
-        int ptr = offset+8;
-        if (!inEntryValue) ptr = (int) getLong();
+        long ptr = inEntryValue ? getValueFieldOffset() : getDataPointer();
         
-        return data.getUint32(ptr + 4*cnt);
+        // 32-bit values remain sign-extended for compatibility
+        if (getLongSize() == 8) return data.getUint64(ptr + 8L*cnt);
+        return data.getUint32(ptr + 4L*cnt);
     }
     
     /**
@@ -254,11 +338,12 @@ public class IFD_Entry {
      */
     public String getString()
     {
-        int ptr = offset + 8;
+        String val = stringVal;
+        if (val != null) return val;
         
-        // if we have more than four characters incl. the terminating zero,
-        // the string is stored outside the entry
-        if (getNumVal() > 4) ptr = (int) getLong();
+        // if we have more than four (BigTIFF: eight) characters incl. the
+        // terminating zero, the string is stored outside the entry
+        long ptr = isStoredInEntry(1) ? getValueFieldOffset() : getDataPointer();
         
         String result = "";
         for (int i=0; i<getNumVal(); i++)
@@ -271,6 +356,7 @@ public class IFD_Entry {
             else result += (char) c;
         }
         
+        stringVal = result;
         return result;
     }
     
@@ -295,12 +381,12 @@ public class IFD_Entry {
     public double getDouble(int cnt)
     {
         assertType(ENTRY_TYPE.RATIONAL);
-        int ptr = offset + 8;
         
         if (type == ENTRY_TYPE.RATIONAL)
         {
-            // a RATIONAL entry needs 8 bytes, therefore it is always stored outside the entry
-            ptr = (int) getLong() + cnt*8;
+            // a RATIONAL entry needs 8 bytes, therefore it is stored outside
+            // the entry unless it's a single value in a BigTIFF entry
+            long ptr = (isStoredInEntry(8) ? getValueFieldOffset() : getDataPointer()) + cnt*8L;
             long numerator = data.getUint32(ptr);
             long denom = data.getUint32(ptr + 4);
             
@@ -318,13 +404,16 @@ public class IFD_Entry {
      */
     public int[] getIntArray()
     {
+        int[] val = intArrayVal;
+        if (val != null) return val.clone();
+        
         // calculate the total size of the array to see if it fits into the
         // entry or if it's stored outside
-        int byteSize = getNumVal();
-        if ((type == ENTRY_TYPE.SHORT) || (type == ENTRY_TYPE.SSHORT)) byteSize *= 2;
-        if ((type == ENTRY_TYPE.SLONG)) byteSize *= 4;
+        int elemSize = 1;
+        if ((type == ENTRY_TYPE.SHORT) || (type == ENTRY_TYPE.SSHORT)) elemSize = 2;
+        if ((type == ENTRY_TYPE.SLONG)) elemSize = 4;
         
-        boolean inEntryArray = (byteSize < 5);
+        boolean inEntryArray = isStoredInEntry(elemSize);
         
         // copy all values into an array
         int[] result = new int[getNumVal()];
@@ -334,7 +423,8 @@ public class IFD_Entry {
             result[i] = getInt(inEntryArray, i);
         }
         
-        return result;
+        intArrayVal = result;
+        return result.clone();
     }
     
     /**
@@ -344,8 +434,11 @@ public class IFD_Entry {
      */
     public long[] getLongArray()
     {
-        // if the entry has 0 or 1 entry, the array fits into the entry
-        boolean inEntryArray = (getNumVal() < 2);
+        long[] val = longArrayVal;
+        if (val != null) return val.clone();
+        
+        // check whether the array fits into the entry
+        boolean inEntryArray = isStoredInEntry(getLongSize());
         
         long[] result = new long[getNumVal()];
         
@@ -354,6 +447,7 @@ public class IFD_Entry {
             result[i] = getLong(inEntryArray, i);
         }
         
-        return result;
+        longArrayVal = result;
+        return result.clone();
     }
 }
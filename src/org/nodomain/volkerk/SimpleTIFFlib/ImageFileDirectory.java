@@ -15,6 +15,9 @@ package org.nodomain.volkerk.SimpleTIFFlib;
 import java.awt.image.*;
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import javax.imageio.*;
 
 /**
@@ -23,12 +26,50 @@ import javax.imageio.*;
  */
 public class ImageFileDirectory extends Generic_CFA_PixBuf {
     
+    protected static final int IFD_ENTRY_SIZE = 12;
+    
     /**
-     * A hashmap which stores all IFD entries for this directory, accessible via entry tag
+     * The size of an entry in a BigTIFF file
      */
-    protected HashMap<Integer, IFD_Entry> entries;
+    protected static final int BIGTIFF_ENTRY_SIZE = 20;
     
-    protected static final int IFD_ENTRY_SIZE = 12;
+    /**
+     * The offset of the first entry within the data block
+     */
+    protected final long entriesOffset;
+    
+    /**
+     * The size of each entry: IFD_ENTRY_SIZE or BIGTIFF_ENTRY_SIZE
+     */
+    protected final int entrySize;
+    
+    /**
+     * True if the directory is part of a BigTIFF file with 64-bit offsets
+     */
+    protected final boolean bigTiff;
+    
+    /**
+     * The number of entries in this directory
+     */
+    protected final int entryCount;
+    
+    /**
+     * The tags of all entries, sorted ascending for binary search
+     */
+    protected final int[] sortedTags;
+    
+    /**
+     * The position of each entry of sortedTags within the directory
+     */
+    protected final int[] sortedIndex;
+    
+    /**
+     * The IFD_Entry objects that have been requested so far, indexed by
+     * their position in the directory. Entries are only decoded on demand,
+     * because most callers need just a handful of tags. The atomic array
+     * safely publishes entries to the threads that decode tiles and chunks.
+     */
+    protected final AtomicReferenceArray<IFD_Entry> entryCache;
     
     /**
      * The offset of the next IFD in the TIFF file
@@ -51,15 +92,80 @@ public class ImageFileDirectory extends Generic_CFA_PixBuf {
     protected int cfaPatternRows;
     
     /**
-     * The color filter array pattern. Has patternCols x patternRows entries
+     * The color filter array pattern. Has patternCols x patternRows entries.
+     * Null until the CFA information is requested for the first time; it's
+     * written last and publishes cfaPatternCols and cfaPatternRows.
      */
-    protected int[] cfaPattern;
+    protected volatile int[] cfaPattern;
     
     
     /**
-     * Stores the Bits-Per-Sample value, because it's often used
+     * Stores the Bits-Per-Sample value, because it's often used.
+     * Null until requested for the first time.
      */
-    protected int[] bps;
+    protected volatile int[] bps;
+    
+    /**
+     * The image width and height, -1 until requested for the first time
+     */
+    protected int width = -1;
+    protected int height = -1;
+    
+    /**
+     * The offset of each row within the data block. Computed once from the
+     * strip layout when the first pixel is accessed.
+     */
+    protected volatile long[] rowOffsets = null;
+    
+    /**
+     * The layout of tiled images, computed on first pixel access: the
+     * offset of each tile, the tile size and the bytes per tile row
+     */
+    protected volatile long[] tileOffsetTable = null;
+    protected int tileW;
+    protected int tileH;
+    protected int tilesX;
+    protected int tileRowBytes;
+    
+    /**
+     * The value of the COMPRESSION tag, -1 until requested for the first time
+     */
+    protected int compression = -1;
+    
+    /**
+     * The value of the PREDICTOR tag, -1 until requested for the first time
+     */
+    protected int predictor = -1;
+    
+    /**
+     * The chunk layout of compressed images, computed on first pixel access:
+     * the offset and byte count of each strip or tile, the chunk size, the
+     * number of chunks per row and in total
+     */
+    protected volatile long[] chunkOffsetTable = null;
+    protected long[] chunkCountTable;
+    protected int chunkW;
+    protected int chunkH;
+    protected int chunksX;
+    protected int chunkCount;
+    
+    /**
+     * The minimum number of decoded chunks that are kept for the row and
+     * pixel accessors of compressed images
+     */
+    protected static final int CHUNK_CACHE_MIN = 4;
+    
+    /**
+     * Recently decoded chunks of a compressed image, least recently used
+     * first; holds one row of chunks, but at least CHUNK_CACHE_MIN chunks
+     */
+    protected final LinkedHashMap<Integer, PixelPlane> chunkCache = new LinkedHashMap<>(16, 0.75f, true);
+    
+    /**
+     * False for directories that have been read for their metadata only,
+     * e. g. by the TIFFMetadataReader; all pixel accesses fail then
+     */
+    protected boolean pixelAccess = true;
     
     /**
      * Constructor for a "root"-IFD without parent
@@ -67,7 +173,7 @@ public class ImageFileDirectory extends Generic_CFA_PixBuf {
      * @param _data the TIFF file as FlexByteArray
      * @param offset the first byte of the IFD within the data block
      */
-    public ImageFileDirectory(FlexByteArray _data, int offset)
+    public ImageFileDirectory(FlexByteArray _data, long offset)
     {
         this(_data, offset, null);
     }
@@ -79,39 +185,146 @@ public class ImageFileDirectory extends Generic_CFA_PixBuf {
      * @param offset the first byte of the IFD within the data block
      * @param _parent pointer to the parent IFD, if any
      */
-    public ImageFileDirectory(FlexByteArray _data, int offset, ImageFileDirectory _parent)
+    public ImageFileDirectory(FlexByteArray _data, long offset, ImageFileDirectory _parent)
+    {
+        this(_data, offset, _parent, (_parent != null) && _parent.bigTiff);
+    }
+    
+    /**
+     * Constructor for a general IFD in a classic TIFF or a BigTIFF file
+     * 
+     * @param _data the TIFF file as FlexByteArray
+     * @param offset the first byte of the IFD within the data block
+     * @param _parent pointer to the parent IFD, if any
+     * @param _bigTiff true for a BigTIFF directory with 20-byte entries and 64-bit offsets
+     */
+    public ImageFileDirectory(FlexByteArray _data, long offset, ImageFileDirectory _parent, boolean _bigTiff)
     {
         super(_data);
         
         // store the parent
         parent = _parent;
+        bigTiff = _bigTiff;
         
-        // prepare an empty hashmap for the directory entries
-        // and read the number of entries from the first two bytes in the data block
-        entries = new HashMap();
-        int entryCount = (int) data.getUint16(offset);
+        // read the number of entries from the first two (BigTIFF: eight) bytes
+        // in the data block; the entries follow in 12-byte-blocks (BigTIFF: 20 bytes)
+        // and are decoded on demand only
+        long cnt = bigTiff ? data.getUint64(offset) : data.getUint16(offset);
+        if ((cnt < 0) || (cnt > 0xffff)) throw new IllegalArgumentException("Invalid number of IFD entries: " + cnt);
+        entryCount = (int) cnt;
+        entriesOffset = offset + (bigTiff ? 8 : 2);
+        entrySize = bigTiff ? BIGTIFF_ENTRY_SIZE : IFD_ENTRY_SIZE;
+        entryCache = new AtomicReferenceArray<>(entryCount);
         
-        // read all entries; they follow in 12-byte-block after the first two bytes
-        // with the entry count
+        // build the lookup table; TIFF demands ascending tags, but we don't
+        // rely on that and sort tag and position together if necessary
+        sortedTags = new int[entryCount];
+        sortedIndex = new int[entryCount];
+        boolean isSorted = true;
         for (int i = 0; i < entryCount; i++)
         {
-            IFD_Entry tmp = new IFD_Entry(data, offset + 2 + i*IFD_ENTRY_SIZE);
-            entries.put(tmp.tag, tmp);
+            sortedTags[i] = data.getUint16(entriesOffset + (long) i * entrySize);
+            sortedIndex[i] = i;
+            if ((i > 0) && (sortedTags[i] < sortedTags[i-1])) isSorted = false;
+        }
+        if (!isSorted)
+        {
+            long[] keys = new long[entryCount];
+            for (int i = 0; i < entryCount; i++) keys[i] = (((long) sortedTags[i]) << 32) | i;
+            Arrays.sort(keys);
+            for (int i = 0; i < entryCount; i++)
+            {
+                sortedTags[i] = (int) (keys[i] >>> 32);
+                sortedIndex[i] = (int) keys[i];
+            }
         }
         
-        // the last two bytes of the IFD contain the pointer to the next IFD
-        nextOffset = data.getUint32(offset + 2 + entryCount * IFD_ENTRY_SIZE);
+        // the last four (BigTIFF: eight) bytes of the IFD contain the pointer to the next IFD
+        long ptr = entriesOffset + (long) entryCount * entrySize;
+        nextOffset = bigTiff ? data.getUint64(ptr) : data.getUint32Unsigned(ptr);
+    }
+    
+    /**
+     * Searches the raw directory data for an entry
+     * 
+     * @param tag the entry's ID
+     * 
+     * @return the index of the entry within the directory or -1 if it doesn't exist
+     */
+    protected int findEntry(int tag)
+    {
+        int idx = Arrays.binarySearch(sortedTags, tag);
+        return (idx < 0) ? -1 : sortedIndex[idx];
+    }
+    
+    /**
+     * Retrieves the IFD_Entry object for a specific ID with a single lookup
+     * 
+     * @param tag the entry's ID
+     * 
+     * @return the IFD_Entry object or null if the entry doesn't exist
+     */
+    protected IFD_Entry getEntryOrNull(int tag)
+    {
+        int idx = findEntry(tag);
+        if (idx < 0) return null;
+        
+        // decode the entry only once; if two threads race, the first
+        // published entry wins
+        IFD_Entry e = entryCache.get(idx);
+        if (e != null) return e;
+        
+        e = new IFD_Entry(data, entriesOffset + (long) idx * entrySize, bigTiff);
+        return entryCache.compareAndSet(idx, null, e) ? e : entryCache.get(idx);
+    }
+    
+    /**
+     * Disables all pixel accesses for this directory and all sub-directories
+     * that are created afterwards
+     */
+    protected void disablePixelAccess()
+    {
+        pixelAccess = false;
+    }
+    
+    /**
+     * Throws an exception if the directory has been read for its metadata only
+     */
+    protected void assertPixelAccess()
+    {
+        if (!pixelAccess) throw new IllegalStateException("Pixel access is disabled for metadata-only directories");
+    }
+    
+    /**
+     * Decodes the often used CFA values on first use
+     */
+    protected void initCFAInfo()
+    {
+        if (cfaPattern != null) return;
         
-        // if we have CFA data, store some often used values
         if (photometricInterpretation() == TIFF_TAG.PHOTO_INTERPRETATION_CFA)
         {
-            cfaPatternCols = cfaPatternDim()[0];
-            cfaPatternRows = cfaPatternDim()[1];
+            int[] dim = cfaPatternDim();
+            cfaPatternCols = dim[0];
+            cfaPatternRows = dim[1];
             cfaPattern = cfaPatternGet();
         }
-        
-        // store the bits-per-pixel... it's often used
-        bps = bitsPerSample();
+    }
+    
+    /**
+     * Returns the memoized bits per sample
+     * 
+     * @return array with the number of bits per sample for each sample; don't modify
+     */
+    protected int[] getBps()
+    {
+        int[] b = bps;
+        if (b == null)
+        {
+            b = bitsPerSample();
+            bps = b;
+        }
+        return b;
     }
     
     /**
@@ -154,9 +367,10 @@ public class ImageFileDirectory extends Generic_CFA_PixBuf {
         ImageFileDirectory[] result = new ImageFileDirectory[numSubs];
         
         int cnt = 0;
-        for (long ptr : e.getLongArray())
+        for (long ptr : getUnsignedArray(TIFF_TAG.SUB_IFDs))
         {
-            result[cnt] = new ImageFileDirectory(data, (int) ptr, this);
+            result[cnt] = new ImageFileDirectory(data, ptr, this);
+            result[cnt].pixelAccess = pixelAccess;
             cnt++;
         }
         
@@ -173,7 +387,7 @@ public class ImageFileDirectory extends Generic_CFA_PixBuf {
      */
     public boolean hasTag(int t)
     {
-        return entries.containsKey(t);
+        return findEntry(t) >= 0;
     }
     
     /**
@@ -186,8 +400,9 @@ public class ImageFileDirectory extends Generic_CFA_PixBuf {
      */
     public IFD_Entry getEntry(int tag)
     {
-        if (!(hasTag(tag))) throw new IllegalArgumentException("Unknown tag!");
-        return entries.get(tag);
+        IFD_Entry e = getEntryOrNull(tag);
+        if (e == null) throw new IllegalArgumentException("Unknown tag!");
+        return e;
     }
     
     /**
@@ -197,10 +412,13 @@ public class ImageFileDirectory extends Generic_CFA_PixBuf {
      */
     public int imgWidth()
     {
+        if (width >= 0) return width;
+        
         IFD_Entry e = getEntry(TIFF_TAG.IMAGE_WIDTH);
         
-        if (e.getType() == IFD_Entry.ENTRY_TYPE.LONG) return (int) e.getLong();
-        return e.getInt();
+        if ((e.getType() == IFD_Entry.ENTRY_TYPE.LONG) || (e.getType() == IFD_Entry.ENTRY_TYPE.LONG8)) width = (int) e.getLong();
+        else width = e.getInt();
+        return width;
     }
     
     /**
@@ -210,10 +428,13 @@ public class ImageFileDirectory extends Generic_CFA_PixBuf {
      */
     public int imgHeight()
     {
+        if (height >= 0) return height;
+        
         IFD_Entry e = getEntry(TIFF_TAG.IMAGE_LENGTH);
         
-        if (e.getType() == IFD_Entry.ENTRY_TYPE.LONG) return (int) e.getLong();
-        return e.getInt();
+        if ((e.getType() == IFD_Entry.ENTRY_TYPE.LONG) || (e.getType() == IFD_Entry.ENTRY_TYPE.LONG8)) height = (int) e.getLong();
+        else height = e.getInt();
+        return height;
     }
     
     /**
@@ -223,7 +444,36 @@ public class ImageFileDirectory extends Generic_CFA_PixBuf {
      */
     public boolean isCompressed()
     {
-        return (getEntry(TIFF_TAG.COMPRESSION).getInt() != 1);
+        return (compression() != TIFF_TAG.COMPRESSION_NONE);
+    }
+    
+    /**
+     * The compression scheme of the image data, e. g. TIFF_TAG.COMPRESSION_LZW
+     * 
+     * @return the value of the COMPRESSION tag; COMPRESSION_NONE if the tag is missing
+     */
+    public int compression()
+    {
+        if (compression >= 0) return compression;
+        
+        IFD_Entry e = getEntryOrNull(TIFF_TAG.COMPRESSION);
+        compression = (e == null) ? TIFF_TAG.COMPRESSION_NONE : e.getInt();
+        return compression;
+    }
+    
+    /**
+     * The predictor that has been applied to the image data before compression,
+     * e. g. TIFF_TAG.PREDICTOR_HORIZONTAL
+     * 
+     * @return the value of the PREDICTOR tag; PREDICTOR_NONE if the tag is missing
+     */
+    public int predictor()
+    {
+        if (predictor >= 0) return predictor;
+        
+        IFD_Entry e = getEntryOrNull(TIFF_TAG.PREDICTOR);
+        predictor = (e == null) ? TIFF_TAG.PREDICTOR_NONE : e.getInt();
+        return predictor;
     }
     
     /**
@@ -273,7 +523,7 @@ public class ImageFileDirectory extends Generic_CFA_PixBuf {
      */
     public String bitsPerSampleStr()
     {
-        return arrayToString(bps);
+        return arrayToString(getBps());
     }
     
     /**
@@ -364,7 +614,7 @@ public class ImageFileDirectory extends Generic_CFA_PixBuf {
     {
         IFD_Entry e = getEntry(TIFF_TAG.ROWS_PER_STRIP);
         
-        if (e.getType() == IFD_Entry.ENTRY_TYPE.LONG) return e.getLong();
+        if ((e.getType() == IFD_Entry.ENTRY_TYPE.LONG) || (e.getType() == IFD_Entry.ENTRY_TYPE.LONG8)) return e.getLong();
         return e.getInt();
     }
     
@@ -502,17 +752,7 @@ public class ImageFileDirectory extends Generic_CFA_PixBuf {
      */
     public long[] stripOffsets()
     {
-        IFD_Entry e = getEntry(TIFF_TAG.STRIP_OFFSETS);
-        if (e.type == IFD_Entry.ENTRY_TYPE.LONG) return e.getLongArray();
-        
-        // values stored as SHORT
-        // can't directly cast an int-array to long-array,
-        // therefore I have to manually copy the values
-        int[] tmp = e.getIntArray();
-        long[] result = new long[tmp.length];
-        for (int i=0; i<tmp.length; i++) result[i] = tmp[i];
-        
-        return result;
+        return getUnsignedArray(TIFF_TAG.STRIP_OFFSETS);
     }
     
     /**
@@ -522,8 +762,147 @@ public class ImageFileDirectory extends Generic_CFA_PixBuf {
      */
     public long[] stripByteCounts()
     {
-        IFD_Entry e = getEntry(TIFF_TAG.STRIP_BYTE_COUNTS);
-        if (e.type == IFD_Entry.ENTRY_TYPE.LONG) return e.getLongArray();
+        return getUnsignedArray(TIFF_TAG.STRIP_BYTE_COUNTS);
+    }
+    
+    /**
+     * Checks whether the image is stored in tiles instead of strips
+     * 
+     * @return true for tiled images
+     */
+    public boolean isTiled()
+    {
+        return hasTag(TIFF_TAG.TILE_OFFSETS);
+    }
+    
+    /**
+     * The width of the tiles in pixels, for tiled images
+     * 
+     * @return the tile width; a multiple of 16 according to the spec
+     */
+    public int tileWidth()
+    {
+        return (int) getUnsignedArray(TIFF_TAG.TILE_WIDTH)[0];
+    }
+    
+    /**
+     * The height of the tiles in pixels, for tiled images
+     * 
+     * @return the tile height; a multiple of 16 according to the spec
+     */
+    public int tileLength()
+    {
+        return (int) getUnsignedArray(TIFF_TAG.TILE_LENGTH)[0];
+    }
+    
+    /**
+     * The offset within the TIFF data block of each tile, row by row
+     * 
+     * @return an array of longs with the byte offset of each tile in the image
+     */
+    public long[] tileOffsets()
+    {
+        return getUnsignedArray(TIFF_TAG.TILE_OFFSETS);
+    }
+    
+    /**
+     * The number of bytes in each tile
+     * 
+     * @return an array of longs with the byte size of each tile
+     */
+    public long[] tileByteCounts()
+    {
+        return getUnsignedArray(TIFF_TAG.TILE_BYTE_COUNTS);
+    }
+    
+    /**
+     * The number of tiles in a row of tiles; the last tile may extend beyond the image
+     * 
+     * @return the number of tiles across the image
+     */
+    public int tilesAcross()
+    {
+        return (imgWidth() + tileWidth() - 1) / tileWidth();
+    }
+    
+    /**
+     * The number of tile rows; the last row may extend beyond the image
+     * 
+     * @return the number of tiles down the image
+     */
+    public int tilesDown()
+    {
+        return (imgHeight() + tileLength() - 1) / tileLength();
+    }
+    
+    /**
+     * The width of a chunk of image data: the tile width for tiled images or
+     * the image width for images stored in strips
+     * 
+     * @return the number of pixels per chunk row
+     */
+    public int chunkWidth()
+    {
+        return isTiled() ? tileWidth() : imgWidth();
+    }
+    
+    /**
+     * The height of a chunk of image data: the tile height for tiled images or
+     * the number of rows per strip for images stored in strips
+     * 
+     * @return the number of rows per chunk
+     */
+    public int chunkLength()
+    {
+        if (isTiled()) return tileLength();
+        
+        // the default of 2^32-1 means "everything in one strip"; note
+        // that getLong() might return it sign-extended as -1
+        long rps = hasTag(TIFF_TAG.ROWS_PER_STRIP) ? RowsPerStrip() : -1;
+        int h = imgHeight();
+        return ((rps <= 0) || (rps > h)) ? h : (int) rps;
+    }
+    
+    /**
+     * The offsets of all chunks (tiles or strips) of the image
+     * 
+     * @return an array of longs with the byte offset of each chunk in the image
+     */
+    public long[] chunkOffsets()
+    {
+        return isTiled() ? tileOffsets() : stripOffsets();
+    }
+    
+    /**
+     * The sizes of all chunks (tiles or strips) of the image
+     * 
+     * @return an array of longs with the byte size of each chunk in the image
+     */
+    public long[] chunkByteCounts()
+    {
+        return isTiled() ? tileByteCounts() : stripByteCounts();
+    }
+    
+    /**
+     * Reads a tag with unsigned values that can be stored as SHORT, LONG
+     * or -- in BigTIFF files -- as LONG8
+     * 
+     * @param tag the entry's ID
+     * 
+     * @return the values of the entry as longs
+     */
+    protected long[] getUnsignedArray(int tag)
+    {
+        IFD_Entry e = getEntry(tag);
+        if ((e.type == IFD_Entry.ENTRY_TYPE.LONG8) || (e.type == IFD_Entry.ENTRY_TYPE.IFD8)) return e.getLongArray();
+        if ((e.type == IFD_Entry.ENTRY_TYPE.LONG) || (e.type == IFD_Entry.ENTRY_TYPE.IFD))
+        {
+            // getLongArray() returns 32-bit values sign-extended,
+            // but offsets beyond 2 GB have the MSB set
+            long[] result = e.getLongArray();
+            for (int i=0; i<result.length; i++) result[i] &= 0xffffffffL;
+            return result;
+        }
         
         // values stored as SHORT
         // can't directly cast an int-array to long-array,
@@ -543,9 +922,9 @@ public class ImageFileDirectory extends Generic_CFA_PixBuf {
     public long[] DNG_ActiveArea()
     {
         // Default: the whole image is the active area
-        if (!(hasTag(TIFF_TAG.DNG_ACTIVE_AREA))) return new long[] {0, 0, imgWidth(), imgHeight()};
+        IFD_Entry e = getEntryOrNull(TIFF_TAG.DNG_ACTIVE_AREA);
+        if (e == null) return new long[] {0, 0, imgWidth(), imgHeight()};
         
-        IFD_Entry e = getEntry(TIFF_TAG.DNG_ACTIVE_AREA);
         long[] tmpLong = new long[] {0, 0, 0, 0};
         
         // the active area might be stored as long or short
@@ -569,9 +948,8 @@ public class ImageFileDirectory extends Generic_CFA_PixBuf {
     public long[] DNG_DefaultCropOrigin()
     {
         // Default: no cropping
-        if (!(hasTag(TIFF_TAG.DNG_DEFAULT_CROP_ORIGIN))) return new long[] {0, 0};
-        
-        IFD_Entry e = getEntry(TIFF_TAG.DNG_DEFAULT_CROP_ORIGIN);
+        IFD_Entry e = getEntryOrNull(TIFF_TAG.DNG_DEFAULT_CROP_ORIGIN);
+        if (e == null) return new long[] {0, 0};
         
         // values stores as LONG: direct return
         if (e.type == IFD_Entry.ENTRY_TYPE.LONG) return e.getLongArray();
@@ -596,9 +974,8 @@ public class ImageFileDirectory extends Generic_CFA_PixBuf {
     public long[] DNG_DefaultCropSize()
     {
         // Default: no cropping
-        if (!(hasTag(TIFF_TAG.DNG_DEFAULT_CROP_SIZE))) return new long[] {imgWidth(), imgHeight()};
-        
-        IFD_Entry e = getEntry(TIFF_TAG.DNG_DEFAULT_CROP_SIZE);
+        IFD_Entry e = getEntryOrNull(TIFF_TAG.DNG_DEFAULT_CROP_SIZE);
+        if (e == null) return new long[] {imgWidth(), imgHeight()};
         
         // values stores as LONG: direct return
         if (e.type == IFD_Entry.ENTRY_TYPE.LONG) return e.getLongArray();
@@ -731,16 +1108,19 @@ public class ImageFileDirectory extends Generic_CFA_PixBuf {
      */
     public void CFA_clearAllBits(boolean bit)
     {
-        long[] offsets = stripOffsets();
-        long[] counts = stripByteCounts();
+        assertPixelAccess();
+        if (isCompressed()) throw new IllegalStateException("Can't modify the pixels of a compressed image");
+        
+        long[] offsets = chunkOffsets();
+        long[] counts = chunkByteCounts();
         
         int val = bit ? 255 : 0;
         
-        for (int s=0; s < stripsPerImage(); s++)
+        for (int s=0; s < offsets.length; s++)
         {
-            int ptr = (int) (offsets[s]);
+            long ptr = offsets[s];
             
-            for (int cnt=0; cnt < ((int) (counts[s])); cnt++) data.setByte(ptr+cnt, val);
+            for (long cnt=0; cnt < counts[s]; cnt++) data.setByte(ptr+cnt, val);
         }
     }
         
@@ -753,25 +1133,194 @@ public class ImageFileDirectory extends Generic_CFA_PixBuf {
      */
     protected long CFA_getRowOffsetInBuffer(int row)
     {
-        int w = (int) imgWidth();
-
-        // calculate the strip base address
-        int stripNum = row / (int) RowsPerStrip();
-        long ptr = stripOffsets()[stripNum];
+        if (isTiled()) return CFA_getRowSegmentOffset(0, row);
+        
+        long[] offsets = rowOffsets;
+        if (offsets == null)
+        {
+            offsets = calcRowOffsets();
+            rowOffsets = offsets;
+        }
+        
+        return offsets[row];
+    }
+    
+    /**
+     * Calculates the offsets of all rows from the strip layout
+     * 
+     * @return an array with the offset of the first byte of each row in "data"
+     */
+    protected long[] calcRowOffsets()
+    {
+        assertPixelAccess();
+        
+        int h = imgHeight();
+        long rps = chunkLength();
+        long[] strips = stripOffsets();
         
         // calculate the number of bytes in a row
         // use the ceil()-function to account for the byte-padding at the end of each row
-        int bytesPerRow = (int) Math.ceil(w * CFA_getBitsPerPixel() / 8.0);
+        long bytesPerRow = (long) Math.ceil(imgWidth() * (long) CFA_getBitsPerPixel() / 8.0);
         
-        // add an offset for the row within the strip
-        ptr += (row % (int) RowsPerStrip()) * bytesPerRow;
+        long[] result = new long[h];
+        for (int row = 0; row < h; row++)
+        {
+            int stripNum = (int) (row / rps);
+            if (stripNum >= strips.length)
+            {
+                throw new IllegalStateException("TIFF Data inconsistent: no strip for row " + row);
+            }
+            result[row] = strips[stripNum] + (row % rps) * bytesPerRow;
+        }
         
-        return ptr;
+        return result;
+    }
+
+    @Override
+    protected int CFA_getSegmentWidth()
+    {
+        if (!isTiled()) return imgWidth();
+        
+        getTileOffsetTable();
+        return tileW;
+    }
+    
+    @Override
+    protected long CFA_getRowSegmentOffset(int x0, int y)
+    {
+        if (!isTiled()) return CFA_getRowOffsetInBuffer(y);
+        
+        long[] tiles = getTileOffsetTable();
+        int t = (y / tileH) * tilesX + (x0 / tileW);
+        return tiles[t] + (long) (y % tileH) * tileRowBytes;
+    }
+    
+    /**
+     * Returns the memoized tile layout and initializes it on first use
+     * 
+     * @return the offset of each tile in "data"
+     */
+    protected long[] getTileOffsetTable()
+    {
+        long[] tiles = tileOffsetTable;
+        if (tiles != null) return tiles;
+        
+        assertPixelAccess();
+        
+        tileW = tileWidth();
+        tileH = tileLength();
+        if ((tileW < 1) || (tileH < 1)) throw new IllegalStateException("TIFF Data inconsistent: invalid tile size");
+        tilesX = tilesAcross();
+        tileRowBytes = PixelPacker.bytesPerRow(tileW, CFA_getBitsPerPixel());
+        
+        tiles = tileOffsets();
+        if (tiles.length < (tilesX * tilesDown()))
+        {
+            throw new IllegalStateException("TIFF Data inconsistent: " + tiles.length + " tiles for " + tilesX + " x " + tilesDown() + " tiles");
+        }
+        
+        tileOffsetTable = tiles;
+        return tiles;
+    }
+    
+    /**
+     * Returns the CFA image data as a PixelPlane. Tiled images are decoded
+     * tile by tile on the common ForkJoin pool.
+     * 
+     * @return a PixelPlane with the intensity of each pixel in the image
+     */
+    @Override
+    public PixelPlane CFA_getPixelPlane()
+    {
+        if (isCompressed()) return decodeChunks();
+        if (!isTiled()) return super.CFA_getPixelPlane();
+        
+        getTileOffsetTable();
+        int nTiles = tilesX * tilesDown();
+        
+        PixelPlane result = new PixelPlane(imgWidth(), imgHeight());
+        ForkJoinPool.commonPool().invoke(new TileTask(result, 0, nTiles));
+        
+        return result;
+    }
+    
+    /**
+     * Returns the pixels of a single tile, clipped to the image
+     * 
+     * @param t the 0-based tile index, row by row
+     * 
+     * @return a PixelPlane with the intensity of each pixel in the tile
+     */
+    public PixelPlane CFA_getTile(int t)
+    {
+        getTileOffsetTable();
+        if ((t < 0) || (t >= (tilesX * tilesDown()))) throw new IllegalArgumentException("Invalid tile index " + t);
+        
+        
+        // for compressed tiles, the chunks are the tiles
+        if (isCompressed()) return getChunk(t).copy();
+        
+        int x0 = (t % tilesX) * tileW;
+        int y0 = (t / tilesX) * tileH;
+        PixelPlane result = new PixelPlane(Math.min(tileW, imgWidth() - x0), Math.min(tileH, imgHeight() - y0));
+        
+        byte[] scratch = new byte[tileRowBytes];
+        int bpp = CFA_getBitsPerPixel();
+        for (int y = 0; y < result.getHeight(); y++)
+        {
+            long ptr = CFA_getRowSegmentOffset(x0, y0 + y);
+            CFA_readSegment(ptr, result.getWidth(), bpp, result.getData(), result.rowOffset(y), scratch);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Decodes a range of tiles into the image plane, splitting it recursively
+     */
+    protected class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        final PixelPlane dst;
+        final int t0;
+        final int t1;
+        
+        TileTask(PixelPlane _dst, int _t0, int _t1)
+        {
+            dst = _dst;
+            t0 = _t0;
+            t1 = _t1;
+        }
+        
+        @Override
+        protected void compute()
+        {
+            if ((t1 - t0) > 1)
+            {
+                int mid = (t0 + t1) >>> 1;
+                invokeAll(new TileTask(dst, t0, mid), new TileTask(dst, mid, t1));
+                return;
+            }
+            
+            // tiles don't overlap, so all tasks can write to the plane at the same time
+            int x0 = (t0 % tilesX) * tileW;
+            int y0 = (t0 / tilesX) * tileH;
+            int w = Math.min(tileW, dst.getWidth() - x0);
+            int h = Math.min(tileH, dst.getHeight() - y0);
+            
+            byte[] scratch = new byte[tileRowBytes];
+            int bpp = CFA_getBitsPerPixel();
+            for (int y = y0; y < (y0 + h); y++)
+            {
+                long ptr = CFA_getRowSegmentOffset(x0, y);
+                CFA_readSegment(ptr, w, bpp, dst.getData(), dst.rowOffset(y) + x0, scratch);
+            }
+        }
     }
 
     @Override
     public int CFA_getBitsPerPixel() {
-        return bps[0];
+        return getBps()[0];
     }
 
     @Override
@@ -783,23 +1332,360 @@ public class ImageFileDirectory extends Generic_CFA_PixBuf {
 
     @Override
     public int[] CFA_getCropInfo() {
-        int[] result = new int[4];
-        
-        result[0] = (int) DNG_DefaultCropOrigin()[0];
-        result[1] = (int) DNG_DefaultCropOrigin()[1];
-        result[2] = (int) DNG_DefaultCropSize()[0];
-        result[3] = (int) DNG_DefaultCropSize()[1];
+        long[] origin = DNG_DefaultCropOrigin();
+        long[] size = DNG_DefaultCropSize();
         
-        return result;
+        return new int[] {(int) origin[0], (int) origin[1], (int) size[0], (int) size[1]};
     }
 
     @Override
     public int[] CFA_getPatternDim() {
+        initCFAInfo();
         return new int[] {cfaPatternCols, cfaPatternRows};
     }
 
     @Override
     public int[] CFA_getPattern() {
+        initCFAInfo();
         return cfaPattern;
     }
+    
+    @Override
+    public int CFA_setPixel(int x, int y, int newVal)
+    {
+        if (!isCompressed()) return super.CFA_setPixel(x, y, newVal);
+        
+        if ((x >= imgWidth()) || (y >= imgHeight()) || (x < 0) || (y < 0))
+        {
+            throw new IllegalArgumentException("Invalid coordinates: " + x + ", " + y);
+        }
+        if (newVal >= 0) throw new IllegalStateException("Can't modify the pixels of a compressed image");
+        
+        getChunkTable();
+        return getChunk((y / chunkH) * chunksX + (x / chunkW)).get(x % chunkW, y % chunkH);
+    }
+    
+    @Override
+    protected void CFA_readRow(int y, short[] dst, int dstOffset, byte[] scratch)
+    {
+        if (!isCompressed())
+        {
+            super.CFA_readRow(y, dst, dstOffset, scratch);
+            return;
+        }
+        
+        int w = imgWidth();
+        if ((y < 0) || (y >= imgHeight()))
+        {
+            throw new IllegalArgumentException("Invalid row: " + y);
+        }
+        if ((dstOffset < 0) || ((dst.length - dstOffset) < w))
+        {
+            throw new IllegalArgumentException("Destination array too small for " + w + " pixels");
+        }
+        
+        getChunkTable();
+        int cy = y / chunkH;
+        for (int cx = 0; cx < chunksX; cx++)
+        {
+            PixelPlane p = getChunk(cy * chunksX + cx);
+            System.arraycopy(p.getData(), p.rowOffset(y - cy * chunkH), dst, dstOffset + cx * chunkW, p.getWidth());
+        }
+    }
+    
+    /**
+     * Returns the memoized chunk layout of a compressed image and checks on
+     * first use that the image can be decoded
+     * 
+     * @return the offset of each strip or tile in "data"
+     */
+    protected long[] getChunkTable()
+    {
+        long[] offsets = chunkOffsetTable;
+        if (offsets != null) return offsets;
+        
+        assertPixelAccess();
+        
+        int comp = compression();
+        if (!StripDecoder.isSupported(comp)) throw new IllegalStateException("Unsupported compression " + comp);
+        
+        // rows are unpacked and predictors undone as single-sample rows
+        int spp = hasTag(TIFF_TAG.SAMPLES_PER_PIXEL) ? samplesPerPixel() : 1;
+        if (spp != 1) throw new IllegalStateException("Can't decode compressed images with " + spp + " samples per pixel");
+        
+        int bpp = CFA_getBitsPerPixel();
+        if (bpp > 16) throw new IllegalStateException("Can't decode images with " + bpp + " bits per pixel");
+        
+        int pred = predictor();
+        boolean byteAligned = ((bpp == 8) || (bpp == 16));
+        if ((pred != TIFF_TAG.PREDICTOR_NONE) && (pred != TIFF_TAG.PREDICTOR_HORIZONTAL) && !((pred == TIFF_TAG.PREDICTOR_FLOATING_POINT) && byteAligned))
+        {
+            throw new IllegalStateException("Unsupported predictor " + pred + " for " + bpp + " bits per pixel");
+        }
+        if ((pred != TIFF_TAG.PREDICTOR_NONE) && (comp == TIFF_TAG.COMPRESSION_JPEG))
+        {
+            throw new IllegalStateException("Predictors can't be combined with lossless JPEG");
+        }
+        
+        chunkW = chunkWidth();
+        chunkH = chunkLength();
+        chunksX = isTiled() ? tilesAcross() : 1;
+        chunkCount = chunksX * ((imgHeight() + chunkH - 1) / chunkH);
+        
+        offsets = chunkOffsets();
+        long[] counts = chunkByteCounts();
+        if ((offsets.length < chunkCount) || (counts.length < chunkCount))
+        {
+            throw new IllegalStateException("TIFF Data inconsistent: " + offsets.length + " chunks instead of " + chunkCount);
+        }
+        
+        // the volatile write publishes all other fields of the layout
+        chunkCountTable = counts;
+        chunkOffsetTable = offsets;
+        return offsets;
+    }
+    
+    /**
+     * Decompresses all strips or tiles of the image in parallel on the
+     * common ForkJoin pool, directly into a new plane
+     * 
+     * @return a new plane with all pixels of the image
+     */
+    protected PixelPlane decodeChunks()
+    {
+        getChunkTable();
+        
+        // a few chunks per task, so that each decoder is used for several chunks
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int chunksPerTask = Math.max(1, chunkCount / (4 * pool.getParallelism()));
+        
+        PixelPlane result = new PixelPlane(imgWidth(), imgHeight());
+        pool.invoke(new ChunkTask(result, 0, chunkCount, chunksPerTask));
+        
+        return result;
+    }
+    
+    /**
+     * Returns a single decoded strip or tile, clipped to the image. Recently
+     * used chunks are kept, so that reading an image row by row decodes each
+     * chunk only once.
+     * 
+     * @param c the 0-based chunk index, row by row
+     * 
+     * @return the pixels of the chunk; must not be modified
+     */
+    protected PixelPlane getChunk(int c)
+    {
+        getChunkTable();
+        
+        synchronized (chunkCache)
+        {
+            PixelPlane p = chunkCache.get(c);
+            if (p != null) return p;
+        }
+        
+        // decode outside the lock; a race just decodes the chunk twice
+        int x0 = (c % chunksX) * chunkW;
+        int y0 = (c / chunksX) * chunkH;
+        PixelPlane p = new PixelPlane(Math.min(chunkW, imgWidth() - x0), Math.min(chunkH, imgHeight() - y0));
+        try (StripDecoder dec = StripDecoder.create(compression()))
+        {
+            int rowBytes = PixelPacker.bytesPerRow(chunkW, CFA_getBitsPerPixel());
+            byte[] buf = dec.decodesSamples() ? null : new byte[rowBytes * chunkH];
+            short[] samples = dec.decodesSamples() ? new short[chunkW * chunkH] : null;
+            decodeChunk(dec, c, buf, samples, p, 0, 0);
+        }
+        
+        synchronized (chunkCache)
+        {
+            chunkCache.put(c, p);
+            
+            Iterator<PixelPlane> it = chunkCache.values().iterator();
+            while (chunkCache.size() > Math.max(CHUNK_CACHE_MIN, chunksX))
+            {
+                it.next();
+                it.remove();
+            }
+        }
+        return p;
+    }
+    
+    /**
+     * Decompresses a single strip or tile into a plane
+     * 
+     * @param dec the decoder for the compression of the image
+     * @param c the 0-based chunk index, row by row
+     * @param buf the buffer for the decompressed bytes, if the decoder delivers bytes
+     * @param samples the buffer for the decoded samples, if the decoder delivers samples
+     * @param dst the plane to store the pixels in
+     * @param dstX the column in dst for the first pixel of the chunk
+     * @param dstY the row in dst for the first row of the chunk
+     */
+    protected void decodeChunk(StripDecoder dec, int c, byte[] buf, short[] samples, PixelPlane dst, int dstX, int dstY)
+    {
+        int w = Math.min(chunkW, imgWidth() - (c % chunksX) * chunkW);
+        int h = Math.min(chunkH, imgHeight() - (c / chunksX) * chunkH);
+        
+        if (samples != null)
+        {
+            int n = dec.decodeSamples(data, chunkOffsetTable[c], (int) chunkCountTable[c], samples);
+            int rows = Math.min(h, n / chunkW);
+            for (int y = 0; y < rows; y++)
+            {
+                System.arraycopy(samples, y * chunkW, dst.getData(), dst.rowOffset(dstY + y) + dstX, w);
+            }
+            return;
+        }
+        
+        int bpp = CFA_getBitsPerPixel();
+        int rowBytes = PixelPacker.bytesPerRow(chunkW, bpp);
+        int pred = predictor();
+        int n = dec.decode(data, chunkOffsetTable[c], (int) chunkCountTable[c], buf);
+        
+        // rows that are missing in truncated chunks remain black
+        int rows = Math.min(h, n / rowBytes);
+        for (int y = 0; y < rows; y++)
+        {
+            if (pred == TIFF_TAG.PREDICTOR_FLOATING_POINT)
+            {
+                unpackFloatPredictedRow(buf, y * rowBytes, bpp, chunkW, dst.getData(), dst.rowOffset(dstY + y) + dstX, w);
+            }
+            else unpackDecodedRow(buf, y * rowBytes, bpp, pred, dst.getData(), dst.rowOffset(dstY + y) + dstX, w);
+        }
+    }
+    
+    /**
+     * Decompresses a range of strips or tiles into the image plane,
+     * splitting it recursively
+     */
+    protected class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        final PixelPlane dst;
+        final int c0;
+        final int c1;
+        final int chunksPerTask;
+        
+        ChunkTask(PixelPlane _dst, int _c0, int _c1, int _chunksPerTask)
+        {
+            dst = _dst;
+            c0 = _c0;
+            c1 = _c1;
+            chunksPerTask = _chunksPerTask;
+        }
+        
+        @Override
+        protected void compute()
+        {
+            if ((c1 - c0) > chunksPerTask)
+            {
+                int mid = (c0 + c1) >>> 1;
+                invokeAll(new ChunkTask(dst, c0, mid, chunksPerTask), new ChunkTask(dst, mid, c1, chunksPerTask));
+                return;
+            }
+            
+            // one decoder and one set of buffers for all chunks of this task
+            try (StripDecoder dec = StripDecoder.create(compression()))
+            {
+                int rowBytes = PixelPacker.bytesPerRow(chunkW, CFA_getBitsPerPixel());
+                byte[] buf = dec.decodesSamples() ? null : new byte[rowBytes * chunkH];
+                short[] samples = dec.decodesSamples() ? new short[chunkW * chunkH] : null;
+                
+                for (int c = c0; c < c1; c++)
+                {
+                    decodeChunk(dec, c, buf, samples, dst, (c % chunksX) * chunkW, (c / chunksX) * chunkH);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Converts a row of decompressed pixel data into samples. A horizontal
+     * predictor is undone while unpacking, so that each row is touched only once.
+     * 
+     * @param src the decompressed data
+     * @param srcOffset the index of the first byte of the row in src
+     * @param bpp the number of bits per pixel
+     * @param pred PREDICTOR_NONE or PREDICTOR_HORIZONTAL
+     * @param dst the array to store the samples in
+     * @param dstOffset the index in dst for the first pixel
+     * @param count the number of pixels
+     */
+    protected void unpackDecodedRow(byte[] src, int srcOffset, int bpp, int pred, short[] dst, int dstOffset, int count)
+    {
+        boolean horizontal = (pred == TIFF_TAG.PREDICTOR_HORIZONTAL);
+        
+        if (bpp == 8)
+        {
+            int v = 0;
+            for (int x=0; x < count; x++)
+            {
+                v = horizontal ? (v + src[srcOffset + x]) : src[srcOffset + x];
+                dst[dstOffset + x] = (short) (v & 0xff);
+            }
+            return;
+        }
+        
+        // 16-bit samples are stored in the byte order of the file;
+        // big endian is the same as bit-packed MSB first
+        if ((bpp == 16) && !(data.getSwap()))
+        {
+            short v = 0;
+            for (int x=0; x < count; x++)
+            {
+                int i = srcOffset + 2*x;
+                short s = (short) ((src[i] & 0xff) | ((src[i + 1] & 0xff) << 8));
+                v = horizontal ? (short) (v + s) : s;
+                dst[dstOffset + x] = v;
+            }
+            return;
+        }
+        
+        PixelPacker.unpackRow(src, srcOffset, bpp, dst, dstOffset, count);
+        if (!horizontal) return;
+        
+        // the row has just been written and is still in the cache
+        int mask = (1 << bpp) - 1;
+        int v = 0;
+        for (int x=0; x < count; x++)
+        {
+            v = (v + dst[dstOffset + x]) & mask;
+            dst[dstOffset + x] = (short) v;
+        }
+    }
+    
+    /**
+     * Converts a row of decompressed pixel data with the floating point
+     * predictor into samples. The predictor stores the bytes of all samples
+     * in a row as planes, most significant bytes first, and then applies
+     * byte-wise horizontal differencing to the whole row.
+     * 
+     * The row in src is modified. The samples are returned as raw bit
+     * patterns, e. g. as 16-bit half floats.
+     * 
+     * @param src the decompressed data
+     * @param srcOffset the index of the first byte of the row in src
+     * @param bpp the number of bits per pixel, 8 or 16
+     * @param rowSamples the number of samples in the row of the strip or tile
+     * @param dst the array to store the samples in
+     * @param dstOffset the index in dst for the first pixel
+     * @param count the number of pixels, at most rowSamples
+     */
+    protected static void unpackFloatPredictedRow(byte[] src, int srcOffset, int bpp, int rowSamples, short[] dst, int dstOffset, int count)
+    {
+        int bytes = rowSamples * (bpp / 8);
+        for (int i = srcOffset + 1; i < srcOffset + bytes; i++) src[i] += src[i - 1];
+        
+        if (bpp == 8)
+        {
+            for (int x=0; x < count; x++) dst[dstOffset + x] = (short) (src[srcOffset + x] & 0xff);
+            return;
+        }
+        
+        int lo = srcOffset + rowSamples;
+        for (int x=0; x < count; x++)
+        {
+            dst[dstOffset + x] = (short) (((src[srcOffset + x] & 0xff) << 8) | (src[lo + x] & 0xff));
+        }
+    }
 }
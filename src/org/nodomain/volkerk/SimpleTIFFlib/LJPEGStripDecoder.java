@@ -0,0 +1,482 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+/**
+ * A decoder for lossless JPEG compressed strips and tiles (ITU T.81,
+ * process 14, Huffman coded) as used by DNG files with compression 7.
+ * 
+ * All predictors 1 to 7, 2 to 16 bits precision, up to four interleaved
+ * components and restart intervals of whole rows are supported. The
+ * decoded samples are stored one after the other, so a tile of a CFA image
+ * with two components and half the tile width ends up as the rows of the tile.
+ * 
+ * Huffman codes are decoded with a lookup table that is indexed by the next
+ * LUT_BITS bits of the stream. For short codes and small differences (the
+ * common case) the table entry already contains the decoded difference.
+ */
+public class LJPEGStripDecoder extends StripDecoder {
+    
+    protected static final int M_SOI = 0xD8;
+    protected static final int M_EOI = 0xD9;
+    protected static final int M_SOF3 = 0xC3;
+    protected static final int M_DHT = 0xC4;
+    protected static final int M_SOS = 0xDA;
+    protected static final int M_DRI = 0xDD;
+    protected static final int M_RST0 = 0xD0;
+    
+    /**
+     * The number of bits for indexing the lookup tables
+     */
+    protected static final int LUT_BITS = 12;
+    
+    /**
+     * Flag in a lookup table entry: the entry contains the complete difference
+     */
+    protected static final int LUT_DIFF_COMPLETE = 0x20;
+    
+    /**
+     * A Huffman table for the DC coefficients with its lookup table
+     */
+    protected static class HuffTable
+    {
+        /**
+         * Lookup table entries: bits 0..4 number of bits to consume, bit 5
+         * LUT_DIFF_COMPLETE, bits 8..12 the difference category, bits 16..31
+         * the signed difference. 0 for codes longer than LUT_BITS.
+         */
+        final int[] lut = new int[1 << LUT_BITS];
+        
+        /**
+         * For the slow path: the largest code, the smallest code and the
+         * index of the first value of each code length (T.81, F.2.2.3)
+         */
+        final int[] maxCode = new int[18];
+        final int[] minCode = new int[17];
+        final int[] valPtr = new int[17];
+        final int[] values = new int[256];
+    }
+    
+    protected final HuffTable[] tables = new HuffTable[4];
+    
+    /**
+     * The frame and scan parameters of the current strip
+     */
+    protected int precision;
+    protected int width;
+    protected int height;
+    protected int comps;
+    protected int[] compIds = new int[4];
+    protected int[] compTables = new int[4];
+    protected int predictor;
+    protected int pointTransform;
+    protected int restartInterval;
+    
+    /**
+     * The position in the compressed data and the bit buffer
+     */
+    protected byte[] src;
+    protected int ptr;
+    protected int end;
+    protected long bitBuf;
+    protected int bitCnt;
+    
+    @Override
+    public boolean decodesSamples()
+    {
+        return true;
+    }
+    
+    @Override
+    public int decode(byte[] _src, int srcOffset, int count, byte[] dst)
+    {
+        throw new IllegalStateException("Lossless JPEG data decodes to samples, not to bytes");
+    }
+    
+    @Override
+    public int decodeSamples(byte[] _src, int srcOffset, int count, short[] dst)
+    {
+        src = _src;
+        ptr = srcOffset;
+        end = srcOffset + count;
+        comps = 0;
+        restartInterval = 0;
+        
+        if ((readMarker() != M_SOI)) throw corrupt("missing SOI marker");
+        
+        // read all segments up to the scan header
+        while (true)
+        {
+            int m = readMarker();
+            if (m == M_SOS)
+            {
+                readScanHeader();
+                break;
+            }
+            
+            int len = readUint16();
+            if (len < 2) throw corrupt("invalid segment length");
+            int segEnd = ptr + len - 2;
+            if (segEnd > end) throw corrupt("truncated segment");
+            
+            if (m == M_DHT) readHuffmanTables(segEnd);
+            else if (m == M_SOF3) readFrameHeader();
+            else if (m == M_DRI) restartInterval = readUint16();
+            else if ((m >= 0xC0) && (m <= 0xCF) && (m != 0xC4) && (m != 0xC8) && (m != 0xCC))
+            {
+                throw new IllegalArgumentException("Unsupported JPEG process (SOF" + (m - 0xC0) + "), only lossless JPEG is supported");
+            }
+            else if (m == M_EOI) throw corrupt("no scan");
+            
+            // skip everything else (APPn, COM, ...) and unread bytes
+            ptr = segEnd;
+        }
+        
+        return decodeScan(dst);
+    }
+    
+    /**
+     * Reads the frame header (SOF3)
+     */
+    protected void readFrameHeader()
+    {
+        precision = readByte();
+        height = readUint16();
+        width = readUint16();
+        comps = readByte();
+        if ((precision < 2) || (precision > 16)) throw corrupt("invalid precision " + precision);
+        if ((comps < 1) || (comps > 4)) throw corrupt("invalid number of components " + comps);
+        if ((width < 1) || (height < 1)) throw corrupt("invalid frame size " + width + " x " + height);
+        
+        for (int c = 0; c < comps; c++)
+        {
+            compIds[c] = readByte();
+            int sampling = readByte();
+            readByte();  // quantization table, not used by lossless JPEG
+            
+            if (sampling != 0x11) throw new IllegalArgumentException("Subsampled components are not supported");
+        }
+    }
+    
+    /**
+     * Reads the scan header (SOS) and checks it against the frame
+     */
+    protected void readScanHeader()
+    {
+        int len = readUint16();
+        if (comps == 0) throw corrupt("scan without frame header");
+        
+        int ns = readByte();
+        if (ns != comps) throw new IllegalArgumentException("Non-interleaved scans are not supported");
+        if (len != (6 + 2 * ns)) throw corrupt("invalid scan header length");
+        
+        for (int i = 0; i < ns; i++)
+        {
+            int id = readByte();
+            int t = readByte() >> 4;
+            if ((id != compIds[i]) || (t > 3) || (tables[t] == null)) throw corrupt("invalid scan component " + id);
+            compTables[i] = t;
+        }
+        
+        predictor = readByte();
+        readByte();  // Se, always 0
+        pointTransform = readByte() & 0x0f;
+        
+        if ((predictor < 1) || (predictor > 7)) throw corrupt("invalid predictor " + predictor);
+        if (pointTransform >= precision) throw corrupt("invalid point transform " + pointTransform);
+    }
+    
+    /**
+     * Reads all Huffman tables of a DHT segment and builds their lookup tables
+     */
+    protected void readHuffmanTables(int segEnd)
+    {
+        while (ptr < segEnd)
+        {
+            int tc = readByte();
+            int id = tc & 0x0f;
+            if (((tc >> 4) != 0) || (id > 3)) throw corrupt("invalid Huffman table " + tc);
+            
+            int[] bits = new int[17];
+            int total = 0;
+            for (int len = 1; len <= 16; len++)
+            {
+                bits[len] = readByte();
+                total += bits[len];
+            }
+            if ((total > 256) || ((ptr + total) > segEnd)) throw corrupt("invalid Huffman table size");
+            
+            HuffTable t = (tables[id] != null) ? tables[id] : new HuffTable();
+            for (int i = 0; i < total; i++) t.values[i] = readByte();
+            buildTable(t, bits);
+            tables[id] = t;
+        }
+    }
+    
+    /**
+     * Generates the codes of a Huffman table (T.81, Annex C) and fills the
+     * slow path tables and the lookup table
+     */
+    protected void buildTable(HuffTable t, int[] bits)
+    {
+        java.util.Arrays.fill(t.lut, 0);
+        
+        int code = 0;
+        int k = 0;
+        for (int len = 1; len <= 16; len++)
+        {
+            t.valPtr[len] = k;
+            t.minCode[len] = code;
+            
+            for (int i = 0; i < bits[len]; i++)
+            {
+                int ssss = t.values[k];
+                if (ssss > 16) throw corrupt("invalid difference category " + ssss);
+                
+                if (len <= LUT_BITS)
+                {
+                    // all table indices that start with this code
+                    int shift = LUT_BITS - len;
+                    int entry = len | (ssss << 8);
+                    
+                    for (int rest = 0; rest < (1 << shift); rest++)
+                    {
+                        int e = entry;
+                        if (ssss == 0) e = len | LUT_DIFF_COMPLETE;
+                        else if (ssss == 16) e = len | LUT_DIFF_COMPLETE | (32768 << 16);
+                        else if ((len + ssss) <= LUT_BITS)
+                        {
+                            // the difference bits follow the code within the index
+                            int v = (rest >> (shift - ssss)) & ((1 << ssss) - 1);
+                            e = (len + ssss) | LUT_DIFF_COMPLETE | (extend(v, ssss) << 16);
+                        }
+                        t.lut[(code << shift) | rest] = e;
+                    }
+                }
+                
+                code++;
+                k++;
+            }
+            
+            t.maxCode[len] = (bits[len] == 0) ? -1 : (code - 1);
+            code <<= 1;
+        }
+        t.maxCode[17] = Integer.MAX_VALUE;
+    }
+    
+    /**
+     * Converts the additional bits of a difference into a signed value (T.81, F.2.2.1)
+     */
+    protected static int extend(int v, int ssss)
+    {
+        return (v < (1 << (ssss - 1))) ? (v - (1 << ssss) + 1) : v;
+    }
+    
+    /**
+     * Decodes the entropy coded data of the scan
+     * 
+     * @return the number of decoded samples
+     */
+    protected int decodeScan(short[] dst)
+    {
+        int rowLen = width * comps;
+        int total = (int) Math.min((long) rowLen * height, dst.length);
+        int initial = 1 << (precision - pointTransform - 1);
+        
+        if ((restartInterval > 0) && ((restartInterval % width) != 0))
+        {
+            throw new IllegalArgumentException("Restart intervals of partial rows are not supported");
+        }
+        int restartRows = (restartInterval > 0) ? (restartInterval / width) : 0;
+        
+        bitBuf = 0;
+        bitCnt = 0;
+        
+        HuffTable[] t = new HuffTable[comps];
+        for (int c = 0; c < comps; c++) t[c] = tables[compTables[c]];
+        
+        int i = 0;
+        for (int y = 0; (y < height) && (i < total); y++)
+        {
+            // after a restart marker, the row is predicted like the first row
+            boolean firstRow = (y == 0);
+            if ((restartRows > 0) && (y > 0) && ((y % restartRows) == 0))
+            {
+                processRestart();
+                firstRow = true;
+            }
+            
+            // the first pixel of a row
+            for (int c = 0; (c < comps) && (i < total); c++, i++)
+            {
+                int pred = firstRow ? initial : (dst[i - rowLen] & 0xffff);
+                dst[i] = (short) (pred + decodeDiff(t[c]));
+            }
+            
+            int rowEnd = Math.min(total, (y + 1) * rowLen);
+            if (firstRow)
+            {
+                for (int c = 0; i < rowEnd; i++)
+                {
+                    dst[i] = (short) ((dst[i - comps] & 0xffff) + decodeDiff(t[c]));
+                    if (++c == comps) c = 0;
+                }
+                continue;
+            }
+            
+            for (int c = 0; i < rowEnd; i++)
+            {
+                int ra = dst[i - comps] & 0xffff;
+                int rb = dst[i - rowLen] & 0xffff;
+                int rc = dst[i - rowLen - comps] & 0xffff;
+                
+                int pred;
+                switch (predictor)
+                {
+                    case 1: pred = ra; break;
+                    case 2: pred = rb; break;
+                    case 3: pred = rc; break;
+                    case 4: pred = ra + rb - rc; break;
+                    case 5: pred = ra + ((rb - rc) >> 1); break;
+                    case 6: pred = rb + ((ra - rc) >> 1); break;
+                    default: pred = (ra + rb) >> 1; break;
+                }
+                
+                dst[i] = (short) (pred + decodeDiff(t[c]));
+                if (++c == comps) c = 0;
+            }
+        }
+        
+        if (pointTransform > 0)
+        {
+            for (int k = 0; k < i; k++) dst[k] = (short) (dst[k] << pointTransform);
+        }
+        
+        return i;
+    }
+    
+    /**
+     * Decodes a single difference value
+     */
+    protected int decodeDiff(HuffTable t)
+    {
+        if (bitCnt < 32) fillBits();
+        
+        // fast path: code and difference in the lookup table
+        int e = t.lut[(int) (bitBuf >>> (bitCnt - LUT_BITS)) & ((1 << LUT_BITS) - 1)];
+        if ((e & LUT_DIFF_COMPLETE) != 0)
+        {
+            bitCnt -= e & 0x1f;
+            return e >> 16;
+        }
+        
+        int ssss;
+        if (e != 0)
+        {
+            // short code, but many difference bits
+            bitCnt -= e & 0x1f;
+            ssss = (e >> 8) & 0x1f;
+        }
+        else
+        {
+            // slow path for long codes
+            int len = LUT_BITS + 1;
+            int code = (int) (bitBuf >>> (bitCnt - len)) & ((1 << len) - 1);
+            while ((len <= 16) && (code > t.maxCode[len]))
+            {
+                len++;
+                code = (int) (bitBuf >>> (bitCnt - len)) & ((1 << len) - 1);
+            }
+            if (len > 16) throw corrupt("invalid Huffman code");
+            
+            bitCnt -= len;
+            ssss = t.values[t.valPtr[len] + code - t.minCode[len]];
+        }
+        
+        if (ssss == 0) return 0;
+        if (ssss == 16) return 32768;
+        
+        int v = (int) (bitBuf >>> (bitCnt - ssss)) & ((1 << ssss) - 1);
+        bitCnt -= ssss;
+        return extend(v, ssss);
+    }
+    
+    /**
+     * Fills the bit buffer. Removes stuffed zero bytes and stops at markers;
+     * from there on (and after the end of the data), zero bits are fed.
+     */
+    protected void fillBits()
+    {
+        while (bitCnt <= 56)
+        {
+            int b = 0;
+            if (ptr < end)
+            {
+                b = src[ptr] & 0xff;
+                if (b == 0xff)
+                {
+                    int next = ((ptr + 1) < end) ? (src[ptr + 1] & 0xff) : 0xff;
+                    if (next == 0) ptr += 2;
+                    else b = 0;  // marker: don't advance
+                }
+                else ptr++;
+            }
+            
+            bitBuf = (bitBuf << 8) | b;
+            bitCnt += 8;
+        }
+    }
+    
+    /**
+     * Skips to the next restart marker and resets the bit buffer
+     */
+    protected void processRestart()
+    {
+        bitBuf = 0;
+        bitCnt = 0;
+        
+        // skip fill bytes up to the marker
+        while ((ptr < end) && ((src[ptr] & 0xff) != 0xff)) ptr++;
+        int m = readMarker();
+        if ((m < M_RST0) || (m > (M_RST0 + 7))) throw corrupt("missing restart marker");
+    }
+    
+    /**
+     * Reads a marker, skipping any fill bytes
+     * 
+     * @return the marker code without the leading 0xFF
+     */
+    protected int readMarker()
+    {
+        if (readByte() != 0xff) throw corrupt("marker expected");
+        int m = readByte();
+        while (m == 0xff) m = readByte();
+        return m;
+    }
+    
+    protected int readByte()
+    {
+        if (ptr >= end) throw corrupt("unexpected end of data");
+        return src[ptr++] & 0xff;
+    }
+    
+    protected int readUint16()
+    {
+        return (readByte() << 8) | readByte();
+    }
+    
+    protected IllegalArgumentException corrupt(String msg)
+    {
+        return new IllegalArgumentException("Corrupt lossless JPEG data: " + msg);
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.util.Arrays;
+
+/**
+ * An encoder for lossless JPEG compressed strips and tiles (ITU T.81,
+ * process 14, Huffman coded) as used by DNG files with compression 7.
+ * 
+ * Like the DNG SDK, rows with an even number of samples are encoded as
+ * two interleaved components of half the width, so that predictor 1 uses
+ * the neighbor of the same CFA color. Each strip gets its own Huffman
+ * table, which is optimized for the strip's differences.
+ */
+public class LJPEGStripEncoder extends StripEncoder {
+    
+    /**
+     * The number of interleaved components per row
+     */
+    protected final int comps;
+    
+    /**
+     * The width of the JPEG frame
+     */
+    protected final int frameWidth;
+    
+    /**
+     * Reusable buffers for the samples and their differences
+     */
+    protected short[] samples = new short[0];
+    protected int[] diffs = new int[0];
+    
+    /**
+     * The Huffman code and code length for each difference category
+     */
+    protected final int[] codes = new int[17];
+    protected final int[] codeLengths = new int[17];
+    
+    /**
+     * The output buffer and the bit accumulator
+     */
+    protected byte[] out = new byte[0];
+    protected int outPos;
+    protected long bitBuf;
+    protected int bitCnt;
+    
+    public LJPEGStripEncoder(int _samplesPerRow, int _bpp)
+    {
+        super(_samplesPerRow, _bpp);
+        if (_bpp < 2) throw new IllegalArgumentException("Lossless JPEG needs at least 2 bits per sample");
+        
+        comps = ((_samplesPerRow % 2) == 0) ? 2 : 1;
+        frameWidth = _samplesPerRow / comps;
+    }
+    
+    @Override
+    public byte[] encode(byte[] src, int srcOffset, int count)
+    {
+        int rows = count / bytesPerRow;
+        if ((rows < 1) || (rows > 0xFFFF)) throw new IllegalArgumentException("Can't encode a strip with " + rows + " rows");
+        
+        int n = rows * samplesPerRow;
+        if (samples.length < n)
+        {
+            samples = new short[n];
+            diffs = new int[n];
+        }
+        unpackSamples(src, srcOffset, rows);
+        
+        // pass 1: differences with predictor 1 and their histogram
+        int[] freq = new int[17];
+        int initial = 1 << (bpp - 1);
+        for (int y = 0; y < rows; y++)
+        {
+            int row = y * samplesPerRow;
+            for (int x = 0; x < samplesPerRow; x++)
+            {
+                int i = row + x;
+                int pred;
+                if (x < comps) pred = (y == 0) ? initial : (samples[i - samplesPerRow] & 0xffff);
+                else pred = samples[i - comps] & 0xffff;
+                
+                int d = (((samples[i] & 0xffff) - pred + 32768) & 0xffff) - 32768;
+                diffs[i] = d;
+                freq[category(d)]++;
+            }
+        }
+        
+        int[] bits = new int[17];
+        int[] values = buildHuffmanTable(freq, bits);
+        
+        // pass 2: the headers and the entropy coded data
+        int size = count + 1024;
+        if (out.length < size) out = new byte[size];
+        outPos = 0;
+        bitBuf = 0;
+        bitCnt = 0;
+        
+        putMarker(LJPEGStripDecoder.M_SOI);
+        putMarker(LJPEGStripDecoder.M_SOF3);
+        putUint16(8 + 3 * comps);
+        putByte(bpp);
+        putUint16(rows);
+        putUint16(frameWidth);
+        putByte(comps);
+        for (int c = 0; c < comps; c++)
+        {
+            putByte(c);
+            putByte(0x11);   // no subsampling
+            putByte(0);
+        }
+        
+        putMarker(LJPEGStripDecoder.M_DHT);
+        putUint16(2 + 1 + 16 + values.length);
+        putByte(0);   // DC table 0
+        for (int len = 1; len <= 16; len++) putByte(bits[len]);
+        for (int v : values) putByte(v);
+        
+        putMarker(LJPEGStripDecoder.M_SOS);
+        putUint16(6 + 2 * comps);
+        putByte(comps);
+        for (int c = 0; c < comps; c++)
+        {
+            putByte(c);
+            putByte(0);   // table 0
+        }
+        putByte(1);   // predictor
+        putByte(0);
+        putByte(0);   // no point transform
+        
+        for (int i = 0; i < n; i++)
+        {
+            int d = diffs[i];
+            int ssss = category(d);
+            putBits(codes[ssss], codeLengths[ssss]);
+            if ((ssss > 0) && (ssss < 16)) putBits((d > 0) ? d : (d + (1 << ssss) - 1), ssss);
+        }
+        
+        // pad the last byte with 1-bits
+        if (bitCnt > 0) putBits((1 << (8 - bitCnt)) - 1, 8 - bitCnt);
+        putMarker(LJPEGStripDecoder.M_EOI);
+        
+        return Arrays.copyOf(out, outPos);
+    }
+    
+    /**
+     * Converts the uncompressed rows into samples
+     */
+    protected void unpackSamples(byte[] src, int srcOffset, int rows)
+    {
+        for (int y = 0; y < rows; y++)
+        {
+            int s = srcOffset + y * bytesPerRow;
+            int d = y * samplesPerRow;
+            
+            if (bpp == 8)
+            {
+                for (int x = 0; x < samplesPerRow; x++) samples[d + x] = (short) (src[s + x] & 0xff);
+            }
+            else if (bpp == 16)
+            {
+                for (int x = 0; x < samplesPerRow; x++)
+                {
+                    samples[d + x] = (short) ((src[s + 2*x] & 0xff) | ((src[s + 2*x + 1] & 0xff) << 8));
+                }
+            }
+            else PixelPacker.unpackRow(src, s, bpp, samples, d, samplesPerRow);
+        }
+    }
+    
+    /**
+     * The difference category (SSSS) of a difference, i. e. the number of
+     * bits of its magnitude; 16 for -32768
+     */
+    protected static int category(int d)
+    {
+        if (d == -32768) return 16;
+        return 32 - Integer.numberOfLeadingZeros((d < 0) ? -d : d);
+    }
+    
+    /**
+     * Builds a Huffman table with codes of at most 16 bits for the
+     * difference categories, following ITU T.81 Annex K.2, and fills
+     * the codes and codeLengths arrays
+     * 
+     * @param _freq the number of occurrences of each category
+     * @param bits receives the number of codes for each length 1..16
+     * 
+     * @return the categories with a code, ordered by code length
+     */
+    protected int[] buildHuffmanTable(int[] _freq, int[] bits)
+    {
+        // one extra symbol with frequency 1 reserves the all-ones code
+        int[] freq = Arrays.copyOf(_freq, 18);
+        freq[17] = 1;
+        int[] codeSize = new int[18];
+        int[] others = new int[18];
+        Arrays.fill(others, -1);
+        
+        while (true)
+        {
+            // the two least frequent symbols; the larger symbol wins ties
+            int v1 = -1;
+            int v2 = -1;
+            for (int i = 0; i < 18; i++)
+            {
+                if (freq[i] == 0) continue;
+                if ((v1 < 0) || (freq[i] <= freq[v1])) v1 = i;
+            }
+            for (int i = 0; i < 18; i++)
+            {
+                if ((freq[i] == 0) || (i == v1)) continue;
+                if ((v2 < 0) || (freq[i] <= freq[v2])) v2 = i;
+            }
+            if (v2 < 0) break;
+            
+            freq[v1] += freq[v2];
+            freq[v2] = 0;
+            
+            codeSize[v1]++;
+            while (others[v1] >= 0)
+            {
+                v1 = others[v1];
+                codeSize[v1]++;
+            }
+            others[v1] = v2;
+            
+            codeSize[v2]++;
+            while (others[v2] >= 0)
+            {
+                v2 = others[v2];
+                codeSize[v2]++;
+            }
+        }
+        
+        int[] count = new int[33];
+        for (int i = 0; i < 18; i++)
+        {
+            if (codeSize[i] > 0) count[codeSize[i]]++;
+        }
+        
+        // limit the code length to 16 bits
+        for (int i = 32; i > 16; i--)
+        {
+            while (count[i] > 0)
+            {
+                int j = i - 2;
+                while (count[j] == 0) j--;
+                count[i] -= 2;
+                count[i - 1]++;
+                count[j + 1] += 2;
+                count[j]--;
+            }
+        }
+        
+        // remove the reserved code
+        int last = 16;
+        while (count[last] == 0) last--;
+        count[last]--;
+        System.arraycopy(count, 1, bits, 1, 16);
+        
+        // the symbols ordered by code length, without the reserved one
+        int nValues = 0;
+        int[] values = new int[17];
+        for (int len = 1; len <= 32; len++)
+        {
+            for (int i = 0; i < 17; i++)
+            {
+                if (codeSize[i] == len) values[nValues++] = i;
+            }
+        }
+        values = Arrays.copyOf(values, nValues);
+        
+        // canonical codes
+        Arrays.fill(codeLengths, 0);
+        int code = 0;
+        int k = 0;
+        for (int len = 1; len <= 16; len++)
+        {
+            for (int i = 0; i < bits[len]; i++)
+            {
+                codes[values[k]] = code++;
+                codeLengths[values[k++]] = len;
+            }
+            code <<= 1;
+        }
+        
+        return values;
+    }
+    
+    /**
+     * Appends up to 16 bits to the entropy coded data, with byte stuffing
+     */
+    protected void putBits(int val, int len)
+    {
+        bitBuf = (bitBuf << len) | (val & ((1 << len) - 1));
+        bitCnt += len;
+        
+        while (bitCnt >= 8)
+        {
+            bitCnt -= 8;
+            int b = (int) (bitBuf >>> bitCnt) & 0xff;
+            putByte(b);
+            if (b == 0xFF) putByte(0);
+        }
+    }
+    
+    protected void putMarker(int m)
+    {
+        putByte(0xFF);
+        putByte(m);
+    }
+    
+    protected void putUint16(int v)
+    {
+        putByte(v >> 8);
+        putByte(v);
+    }
+    
+    protected void putByte(int b)
+    {
+        if (outPos == out.length) out = Arrays.copyOf(out, 2 * out.length);
+        out[outPos++] = (byte) b;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+/**
+ * A decoder for LZW compressed strips (compression 5) as described in
+ * section 13 of the TIFF 6.0 specification: codes of 9 to 12 bits, MSB
+ * first, with the code width growing one code "early".
+ * 
+ * The string table is sized for the maximum of 4096 codes and allocated
+ * once. Each entry only stores its last byte and a link to its prefix,
+ * so a string is written back to front without any copying.
+ */
+public class LZWStripDecoder extends StripDecoder {
+    
+    protected static final int CLEAR_CODE = 256;
+    protected static final int EOI_CODE = 257;
+    protected static final int FIRST_CODE = 258;
+    protected static final int MAX_CODES = 4096;
+    protected static final int MAX_CODE_WIDTH = 12;
+    
+    /**
+     * The string table: the code of the string without its last byte,
+     * the last byte, the first byte and the length of each string
+     */
+    protected final short[] prefix = new short[MAX_CODES];
+    protected final byte[] suffix = new byte[MAX_CODES];
+    protected final byte[] first = new byte[MAX_CODES];
+    protected final short[] length = new short[MAX_CODES];
+    
+    /**
+     * Constructor. Initializes the single-byte strings of the table
+     */
+    public LZWStripDecoder()
+    {
+        for (int i = 0; i < 256; i++)
+        {
+            suffix[i] = (byte) i;
+            first[i] = (byte) i;
+            length[i] = 1;
+        }
+    }
+    
+    @Override
+    public int decode(byte[] src, int srcOffset, int count, byte[] dst)
+    {
+        int ptr = srcOffset;
+        int end = srcOffset + count;
+        long bitBuf = 0;
+        int bitCnt = 0;
+        
+        int width = 9;
+        int next = FIRST_CODE;
+        int old = -1;
+        int n = 0;
+        
+        while (n < dst.length)
+        {
+            // fill the bit buffer with as many bytes as possible
+            while ((bitCnt <= 56) && (ptr < end))
+            {
+                bitBuf = (bitBuf << 8) | (src[ptr++] & 0xff);
+                bitCnt += 8;
+            }
+            
+            // truncated data without an EOI code
+            if (bitCnt < width) break;
+            
+            int code = (int) (bitBuf >>> (bitCnt - width)) & ((1 << width) - 1);
+            bitCnt -= width;
+            
+            if (code == EOI_CODE) break;
+            if (code == CLEAR_CODE)
+            {
+                width = 9;
+                next = FIRST_CODE;
+                old = -1;
+                continue;
+            }
+            
+            // the first code after a clear code is always a single byte
+            if (old < 0)
+            {
+                if (code > 255) throw new IllegalArgumentException("Corrupt LZW data: code " + code + " after clear code");
+                dst[n++] = (byte) code;
+                old = code;
+                continue;
+            }
+            
+            // the new table entry is the previous string plus the first byte
+            // of the current one; if the current code is the entry that we're
+            // about to create, its first byte is the first byte of the previous string
+            byte newByte;
+            if (code < next) newByte = first[code];
+            else if ((code == next) && (next < MAX_CODES)) newByte = first[old];
+            else throw new IllegalArgumentException("Corrupt LZW data: undefined code " + code);
+            
+            if (next < MAX_CODES)
+            {
+                prefix[next] = (short) old;
+                suffix[next] = newByte;
+                first[next] = first[old];
+                length[next] = (short) (length[old] + 1);
+                next++;
+                
+                if ((next >= ((1 << width) - 1)) && (width < MAX_CODE_WIDTH)) width++;
+            }
+            
+            n = writeString(code, dst, n);
+            old = code;
+        }
+        
+        return n;
+    }
+    
+    /**
+     * Writes the string for a code to the output
+     * 
+     * @param code the code of the string
+     * @param dst the output array
+     * @param n the index of the first byte of the string in dst
+     * 
+     * @return the index after the string; the string is truncated at the end of dst
+     */
+    protected int writeString(int code, byte[] dst, int n)
+    {
+        int len = length[code];
+        int p = n + len - 1;
+        int c = code;
+        
+        if (p < dst.length)
+        {
+            while (c > 255)
+            {
+                dst[p--] = suffix[c];
+                c = prefix[c];
+            }
+            dst[p] = (byte) c;
+            
+            return n + len;
+        }
+        
+        // the string doesn't fit completely
+        while (c > 255)
+        {
+            if (p < dst.length) dst[p] = suffix[c];
+            p--;
+            c = prefix[c];
+        }
+        dst[p] = (byte) c;
+        
+        return dst.length;
+    }
+}
@@ -0,0 +1,610 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.nodomain.volkerk.LoggingLib.LoggingClass;
+
+/**
+ * A persistent cache for the metadata of TIFF / DNG files.
+ * 
+ * Records are keyed by path and are valid as long as the file's size and
+ * modification time don't change. The cache is stored column by column:
+ * one array per field, strings with few distinct values (make, model) as
+ * dictionary ids, variable length fields (CFA pattern, tiles / strips) in pools.
+ * Queries are evaluated column by column on these arrays, without
+ * touching the image files.
+ * 
+ * Not thread-safe.
+ */
+public class MetadataCache extends LoggingClass {
+    
+    protected static final int MAGIC = 0x53544d43;   // "STMC"
+    protected static final int VERSION = 2;
+    
+    /**
+     * The file the cache is stored in
+     */
+    protected final Path cacheFile;
+    
+    /**
+     * The columns; row i of the cache is at index i of each array
+     * (at index 2i / 4i for cfaDims and chunkDims / activeAreas)
+     */
+    protected int rowCount = 0;
+    protected String[] paths = new String[0];
+    protected long[] fileSizes = new long[0];
+    protected long[] mtimes = new long[0];
+    protected int[] widths = new int[0];
+    protected int[] heights = new int[0];
+    protected int[] bpps = new int[0];
+    protected int[] makeIds = new int[0];
+    protected String[] makeDict = new String[0];
+    protected int[] modelIds = new int[0];
+    protected String[] modelDict = new String[0];
+    protected String[] datetimes = new String[0];
+    protected long[] activeAreas = new long[0];
+    protected int[] cfaDims = new int[0];
+    protected int[] cfaStart = new int[] {0};
+    protected int[] cfaPool = new int[0];
+    protected BitSet tiledRows = new BitSet();
+    protected int[] chunkDims = new int[0];
+    protected int[] chunkStart = new int[] {0};
+    protected long[] chunkOffsetPool = new long[0];
+    protected long[] chunkCountPool = new long[0];
+    
+    /**
+     * path -> row
+     */
+    protected HashMap<String, Integer> rowOfPath = new HashMap<>();
+    
+    /**
+     * Rows that have been replaced or whose files have vanished
+     */
+    protected BitSet staleRows = new BitSet();
+    
+    /**
+     * New records that are not yet part of the columns, by path
+     */
+    protected LinkedHashMap<String, MetadataRecord> pending = new LinkedHashMap<>();
+    
+    /**
+     * Set if the cache differs from the file
+     */
+    protected boolean modified = false;
+    
+    /**
+     * Constructor. Loads the cache file, if it exists. An outdated or
+     * invalid cache file is ignored and will be replaced by save().
+     * 
+     * @param _cacheFile the Path of the cache file
+     */
+    public MetadataCache(Path _cacheFile) throws IOException
+    {
+        if (_cacheFile == null) throw new IllegalArgumentException("Need a valid path for the cache file!");
+        cacheFile = _cacheFile;
+        
+        if (Files.exists(cacheFile)) load();
+    }
+    
+    /**
+     * Returns the metadata of a file, either from the cache or by parsing
+     * the file if it is new or has changed
+     * 
+     * @param p the Path of the TIFF / DNG file
+     * 
+     * @return the metadata of the file
+     */
+    public MetadataRecord get(Path p) throws IOException
+    {
+        BasicFileAttributes attr = Files.readAttributes(p, BasicFileAttributes.class);
+        MetadataRecord r = lookup(p.toString(), attr);
+        if (r != null) return r;
+        
+        r = MetadataRecord.fromFile(p);
+        put(r);
+        return r;
+    }
+    
+    /**
+     * Brings the cache up to date with a directory tree: new and changed
+     * files are parsed in parallel, records of deleted files are dropped
+     * 
+     * @param root the directory to scan, including all sub-directories
+     * @param scanner the scanner that finds and parses the files
+     * 
+     * @return the number of files that had to be parsed
+     */
+    public int refresh(Path root, DirectoryScanner scanner) throws IOException
+    {
+        logPush("Refreshing cache for ", root);
+        
+        List<Path> files = scanner.findFiles(root);
+        ArrayList<Path> toParse = new ArrayList<>();
+        HashSet<String> seen = new HashSet<>();
+        
+        for (Path f : files)
+        {
+            String key = f.toString();
+            seen.add(key);
+            
+            BasicFileAttributes attr;
+            try
+            {
+                attr = Files.readAttributes(f, BasicFileAttributes.class);
+            }
+            catch (NoSuchFileException e)
+            {
+                continue;
+            }
+            if (!isCurrent(key, attr.size(), attr.lastModifiedTime().toMillis())) toParse.add(f);
+        }
+        
+        // drop the records of files below root that don't exist anymore; the
+        // separator keeps "/a/b" from matching the sibling "/a/b-old"
+        String prefix = root.toString();
+        String sep = root.getFileSystem().getSeparator();
+        if (!prefix.endsWith(sep)) prefix += sep;
+        for (int row = 0; row < rowCount; row++)
+        {
+            if (staleRows.get(row) || !paths[row].startsWith(prefix) || seen.contains(paths[row])) continue;
+            staleRows.set(row);
+            modified = true;
+        }
+        
+        for (MetadataRecord r : scanner.parseFiles(toParse).getRecords()) put(r);
+        
+        logPop("Done, ", toParse.size(), " files parsed");
+        return toParse.size();
+    }
+    
+    /**
+     * Returns a record from the cache if it matches the file attributes
+     * 
+     * @return the record or null if it's missing or outdated
+     */
+    protected MetadataRecord lookup(String path, BasicFileAttributes attr)
+    {
+        if (!isCurrent(path, attr.size(), attr.lastModifiedTime().toMillis())) return null;
+        
+        MetadataRecord r = pending.get(path);
+        return (r != null) ? r : getRecord(rowOfPath.get(path));
+    }
+    
+    /**
+     * Checks if the cache holds a valid record for a file, using only the
+     * size and mtime columns; no record is built
+     * 
+     * @return true if the record exists and matches size and mtime
+     */
+    protected boolean isCurrent(String path, long size, long mtime)
+    {
+        MetadataRecord r = pending.get(path);
+        if (r != null) return (r.getFileSize() == size) && (r.getMTime() == mtime);
+        
+        Integer row = rowOfPath.get(path);
+        if ((row == null) || staleRows.get(row)) return false;
+        
+        return (fileSizes[row] == size) && (mtimes[row] == mtime);
+    }
+    
+    /**
+     * Adds or replaces a record
+     * 
+     * @param r the new record
+     */
+    public void put(MetadataRecord r)
+    {
+        Integer row = rowOfPath.get(r.getPath());
+        if (row != null) staleRows.set(row);
+        
+        pending.put(r.getPath(), r);
+        modified = true;
+    }
+    
+    /**
+     * @return the number of valid records in the cache
+     */
+    public int size()
+    {
+        flush();
+        return rowCount;
+    }
+    
+    /**
+     * Returns all records matching a query
+     * 
+     * @param q the query
+     * 
+     * @return the matching records in the order of the cache
+     */
+    public List<MetadataRecord> query(Query q)
+    {
+        flush();
+        
+        // start with all rows and apply one filter column after the other
+        BitSet sel = new BitSet(rowCount);
+        sel.set(0, rowCount);
+        
+        if (q.model != null) filterDict(sel, modelIds, modelDict, q.model);
+        if (q.make != null) filterDict(sel, makeIds, makeDict, q.make);
+        if (q.minWidth > 0) filterRange(sel, widths, q.minWidth, q.maxWidth);
+        if (q.minHeight > 0) filterRange(sel, heights, q.minHeight, q.maxHeight);
+        if (q.bpp > 0) filterRange(sel, bpps, q.bpp, q.bpp);
+        if (q.dateFrom != null)
+        {
+            for (int row = sel.nextSetBit(0); row >= 0; row = sel.nextSetBit(row + 1))
+            {
+                String d = datetimes[row];
+                if ((d.compareTo(q.dateFrom) < 0) || (d.compareTo(q.dateTo) >= 0)) sel.clear(row);
+            }
+        }
+        
+        ArrayList<MetadataRecord> result = new ArrayList<>(sel.cardinality());
+        for (int row = sel.nextSetBit(0); row >= 0; row = sel.nextSetBit(row + 1)) result.add(getRecord(row));
+        
+        return result;
+    }
+    
+    protected static void filterDict(BitSet sel, int[] ids, String[] dict, String val)
+    {
+        int id = -1;
+        for (int i = 0; i < dict.length; i++)
+        {
+            if (dict[i].equals(val)) id = i;
+        }
+        
+        for (int row = sel.nextSetBit(0); row >= 0; row = sel.nextSetBit(row + 1))
+        {
+            if (ids[row] != id) sel.clear(row);
+        }
+    }
+    
+    protected static void filterRange(BitSet sel, int[] col, int min, int max)
+    {
+        for (int row = sel.nextSetBit(0); row >= 0; row = sel.nextSetBit(row + 1))
+        {
+            if ((col[row] < min) || (col[row] > max)) sel.clear(row);
+        }
+    }
+    
+    /**
+     * Writes the cache to its file, if it has been modified
+     */
+    public void save() throws IOException
+    {
+        flush();
+        if (!modified) return;
+        
+        // write to a temporary file first, so that a crash doesn't destroy the cache
+        Path tmp = cacheFile.resolveSibling(cacheFile.getFileName().toString() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 65536)))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(rowCount);
+            
+            writeStrings(out, paths);
+            writeLongs(out, fileSizes);
+            writeLongs(out, mtimes);
+            writeInts(out, widths);
+            writeInts(out, heights);
+            writeInts(out, bpps);
+            writeStrings(out, makeDict);
+            writeInts(out, makeIds);
+            writeStrings(out, modelDict);
+            writeInts(out, modelIds);
+            writeStrings(out, datetimes);
+            writeLongs(out, activeAreas);
+            writeInts(out, cfaDims);
+            writeInts(out, cfaStart);
+            writeInts(out, cfaPool);
+            writeLongs(out, tiledRows.toLongArray());
+            writeInts(out, chunkDims);
+            writeInts(out, chunkStart);
+            writeLongs(out, chunkOffsetPool);
+            writeLongs(out, chunkCountPool);
+        }
+        Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+        
+        modified = false;
+    }
+    
+    /**
+     * Reads the columns from the cache file
+     */
+    protected void load() throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile), 65536)))
+        {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION))
+            {
+                dbg("Ignoring outdated or invalid cache file ", cacheFile);
+                modified = true;
+                return;
+            }
+            
+            rowCount = in.readInt();
+            paths = readStrings(in);
+            fileSizes = readLongs(in);
+            mtimes = readLongs(in);
+            widths = readInts(in);
+            heights = readInts(in);
+            bpps = readInts(in);
+            makeDict = readStrings(in);
+            makeIds = readInts(in);
+            modelDict = readStrings(in);
+            modelIds = readInts(in);
+            datetimes = readStrings(in);
+            activeAreas = readLongs(in);
+            cfaDims = readInts(in);
+            cfaStart = readInts(in);
+            cfaPool = readInts(in);
+            tiledRows = BitSet.valueOf(readLongs(in));
+            chunkDims = readInts(in);
+            chunkStart = readInts(in);
+            chunkOffsetPool = readLongs(in);
+            chunkCountPool = readLongs(in);
+        }
+        
+        rowOfPath = new HashMap<>(2 * rowCount);
+        for (int row = 0; row < rowCount; row++) rowOfPath.put(paths[row], row);
+    }
+    
+    /**
+     * Reconstructs a record from the columns
+     * 
+     * @param row the row of the record
+     * 
+     * @return the record
+     */
+    protected MetadataRecord getRecord(int row)
+    {
+        int[] pat = new int[cfaStart[row + 1] - cfaStart[row]];
+        System.arraycopy(cfaPool, cfaStart[row], pat, 0, pat.length);
+        
+        int nChunks = chunkStart[row + 1] - chunkStart[row];
+        long[] offsets = new long[nChunks];
+        long[] counts = new long[nChunks];
+        System.arraycopy(chunkOffsetPool, chunkStart[row], offsets, 0, nChunks);
+        System.arraycopy(chunkCountPool, chunkStart[row], counts, 0, nChunks);
+        
+        // non-CFA images have an empty pattern dimension
+        int[] dim = (pat.length == 0) ? new int[0] : new int[] {cfaDims[2 * row], cfaDims[2 * row + 1]};
+        long[] aa = new long[4];
+        System.arraycopy(activeAreas, 4 * row, aa, 0, 4);
+        
+        return new MetadataRecord(paths[row], fileSizes[row], mtimes[row], widths[row], heights[row], bpps[row],
+                dim, pat, makeDict[makeIds[row]], modelDict[modelIds[row]], datetimes[row],
+                aa, tiledRows.get(row), chunkDims[2 * row], chunkDims[2 * row + 1], offsets, counts);
+    }
+    
+    /**
+     * Merges the pending records into the columns and drops stale rows
+     */
+    protected void flush()
+    {
+        if (pending.isEmpty() && staleRows.isEmpty()) return;
+        
+        ArrayList<MetadataRecord> recs = new ArrayList<>(rowCount + pending.size());
+        for (int row = 0; row < rowCount; row++)
+        {
+            if (!staleRows.get(row)) recs.add(getRecord(row));
+        }
+        recs.addAll(pending.values());
+        
+        setColumns(recs);
+        pending.clear();
+        staleRows.clear();
+    }
+    
+    /**
+     * Rebuilds all columns from a list of records
+     */
+    protected void setColumns(List<MetadataRecord> recs)
+    {
+        int n = recs.size();
+        int nPat = 0;
+        int nChunks = 0;
+        for (MetadataRecord r : recs)
+        {
+            nPat += r.cfaPattern.length;
+            nChunks += r.chunkOffsets.length;
+        }
+        
+        paths = new String[n];
+        fileSizes = new long[n];
+        mtimes = new long[n];
+        widths = new int[n];
+        heights = new int[n];
+        bpps = new int[n];
+        makeIds = new int[n];
+        modelIds = new int[n];
+        datetimes = new String[n];
+        activeAreas = new long[4 * n];
+        cfaDims = new int[2 * n];
+        cfaStart = new int[n + 1];
+        cfaPool = new int[nPat];
+        tiledRows = new BitSet(n);
+        chunkDims = new int[2 * n];
+        chunkStart = new int[n + 1];
+        chunkOffsetPool = new long[nChunks];
+        chunkCountPool = new long[nChunks];
+        
+        HashMap<String, Integer> makes = new LinkedHashMap<>();
+        HashMap<String, Integer> models = new LinkedHashMap<>();
+        rowOfPath = new HashMap<>(2 * n);
+        
+        for (int row = 0; row < n; row++)
+        {
+            MetadataRecord r = recs.get(row);
+            paths[row] = r.path;
+            fileSizes[row] = r.fileSize;
+            mtimes[row] = r.mtime;
+            widths[row] = r.width;
+            heights[row] = r.height;
+            bpps[row] = r.bpp;
+            makeIds[row] = dictId(makes, r.make);
+            modelIds[row] = dictId(models, r.model);
+            datetimes[row] = r.datetime;
+            System.arraycopy(r.activeArea, 0, activeAreas, 4 * row, 4);
+            if (r.cfaPatternDim.length == 2) System.arraycopy(r.cfaPatternDim, 0, cfaDims, 2 * row, 2);
+            
+            System.arraycopy(r.cfaPattern, 0, cfaPool, cfaStart[row], r.cfaPattern.length);
+            cfaStart[row + 1] = cfaStart[row] + r.cfaPattern.length;
+            
+            tiledRows.set(row, r.tiled);
+            chunkDims[2 * row] = r.chunkWidth;
+            chunkDims[2 * row + 1] = r.chunkLength;
+            System.arraycopy(r.chunkOffsets, 0, chunkOffsetPool, chunkStart[row], r.chunkOffsets.length);
+            System.arraycopy(r.chunkByteCounts, 0, chunkCountPool, chunkStart[row], r.chunkOffsets.length);
+            chunkStart[row + 1] = chunkStart[row] + r.chunkOffsets.length;
+            
+            rowOfPath.put(r.path, row);
+        }
+        
+        makeDict = makes.keySet().toArray(new String[makes.size()]);
+        modelDict = models.keySet().toArray(new String[models.size()]);
+        rowCount = n;
+    }
+    
+    private static int dictId(HashMap<String, Integer> dict, String val)
+    {
+        Integer id = dict.get(val);
+        if (id == null)
+        {
+            id = dict.size();
+            dict.put(val, id);
+        }
+        return id;
+    }
+    
+    private static void writeStrings(DataOutputStream out, String[] a) throws IOException
+    {
+        out.writeInt(a.length);
+        for (String s : a) out.writeUTF(s);
+    }
+    
+    private static void writeInts(DataOutputStream out, int[] a) throws IOException
+    {
+        out.writeInt(a.length);
+        for (int v : a) out.writeInt(v);
+    }
+    
+    private static void writeLongs(DataOutputStream out, long[] a) throws IOException
+    {
+        out.writeInt(a.length);
+        for (long v : a) out.writeLong(v);
+    }
+    
+    private static String[] readStrings(DataInputStream in) throws IOException
+    {
+        String[] a = new String[in.readInt()];
+        for (int i = 0; i < a.length; i++) a[i] = in.readUTF();
+        return a;
+    }
+    
+    private static int[] readInts(DataInputStream in) throws IOException
+    {
+        int[] a = new int[in.readInt()];
+        for (int i = 0; i < a.length; i++) a[i] = in.readInt();
+        return a;
+    }
+    
+    private static long[] readLongs(DataInputStream in) throws IOException
+    {
+        long[] a = new long[in.readInt()];
+        for (int i = 0; i < a.length; i++) a[i] = in.readLong();
+        return a;
+    }
+    
+    /**
+     * A filter for the records in the cache. All conditions that have been
+     * set must match.
+     */
+    public static class Query
+    {
+        protected String make = null;
+        protected String model = null;
+        protected String dateFrom = null;
+        protected String dateTo = null;
+        protected int minWidth = 0;
+        protected int maxWidth = Integer.MAX_VALUE;
+        protected int minHeight = 0;
+        protected int maxHeight = Integer.MAX_VALUE;
+        protected int bpp = 0;
+        
+        public Query make(String _make)
+        {
+            make = _make;
+            return this;
+        }
+        
+        public Query model(String _model)
+        {
+            model = _model;
+            return this;
+        }
+        
+        /**
+         * Matches images with a date and time in a range. TIFF stores them as
+         * "YYYY:MM:DD HH:MM:SS", which can be compared as strings; shorter
+         * prefixes like "2013:07" work, too.
+         * 
+         * @param from the first date to match
+         * @param to the first date after the range
+         */
+        public Query datetime(String from, String to)
+        {
+            if ((from == null) || (to == null)) throw new IllegalArgumentException("Need a valid date range");
+            dateFrom = from;
+            dateTo = to;
+            return this;
+        }
+        
+        public Query width(int min, int max)
+        {
+            minWidth = Math.max(min, 1);
+            maxWidth = max;
+            return this;
+        }
+        
+        public Query height(int min, int max)
+        {
+            minHeight = Math.max(min, 1);
+            maxHeight = max;
+            return this;
+        }
+        
+        public Query bitsPerPixel(int _bpp)
+        {
+            bpp = _bpp;
+            return this;
+        }
+    }
+}
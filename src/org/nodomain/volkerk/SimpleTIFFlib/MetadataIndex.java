@@ -0,0 +1,103 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A list of MetadataRecords that can be stored in a compact binary file.
+ * 
+ * File format (big endian, as written by DataOutputStream):
+ * magic "STIX", format version, number of records, records.
+ */
+public class MetadataIndex {
+    
+    protected static final int MAGIC = 0x53544958;   // "STIX"
+    protected static final int VERSION = 3;
+    
+    /**
+     * The records of the index
+     */
+    protected final List<MetadataRecord> records;
+    
+    /**
+     * Constructor
+     * 
+     * @param _records the records of the index; the list is copied
+     */
+    public MetadataIndex(List<MetadataRecord> _records)
+    {
+        records = Collections.unmodifiableList(new ArrayList<>(_records));
+    }
+    
+    /**
+     * @return an unmodifiable list of all records
+     */
+    public List<MetadataRecord> getRecords()
+    {
+        return records;
+    }
+    
+    public int size()
+    {
+        return records.size();
+    }
+    
+    /**
+     * Writes the index to a file. EXISTING FILES WILL BE OVERWRITTEN!
+     * 
+     * @param p the Path of the index file
+     */
+    public void write(Path p) throws IOException
+    {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(p), 65536)))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(records.size());
+            for (MetadataRecord r : records) r.writeTo(out);
+        }
+    }
+    
+    /**
+     * Reads an index file that has been written by write()
+     * 
+     * @param p the Path of the index file
+     * 
+     * @return the index
+     */
+    public static MetadataIndex read(Path p) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(p), 65536)))
+        {
+            if (in.readInt() != MAGIC) throw new IllegalArgumentException(p.toString() + " is not a metadata index");
+            int v = in.readInt();
+            if (v != VERSION) throw new IllegalArgumentException("Unsupported index version " + v);
+            
+            int n = in.readInt();
+            ArrayList<MetadataRecord> recs = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) recs.add(MetadataRecord.readFrom(in));
+            
+            return new MetadataIndex(recs);
+        }
+    }
+}
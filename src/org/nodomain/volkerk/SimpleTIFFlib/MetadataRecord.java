@@ -0,0 +1,281 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * The catalog data of a single TIFF / DNG file: file attributes plus the
+ * most important tags of its main image (the first CFA image, if any,
+ * otherwise the first IFD). Immutable.
+ */
+public final class MetadataRecord {
+    
+    protected final String path;
+    protected final long fileSize;
+    protected final long mtime;
+    protected final int width;
+    protected final int height;
+    protected final int bpp;
+    protected final int[] cfaPatternDim;
+    protected final int[] cfaPattern;
+    protected final String make;
+    protected final String model;
+    protected final String datetime;
+    protected final long[] activeArea;
+    protected final boolean tiled;
+    protected final int chunkWidth;
+    protected final int chunkLength;
+    protected final long[] chunkOffsets;
+    protected final long[] chunkByteCounts;
+    
+    /**
+     * Constructor; arrays are not copied
+     */
+    protected MetadataRecord(String _path, long _fileSize, long _mtime, int _width, int _height, int _bpp,
+            int[] _cfaPatternDim, int[] _cfaPattern, String _make, String _model, String _datetime,
+            long[] _activeArea, boolean _tiled, int _chunkWidth, int _chunkLength, long[] _chunkOffsets, long[] _chunkByteCounts)
+    {
+        path = _path;
+        fileSize = _fileSize;
+        mtime = _mtime;
+        width = _width;
+        height = _height;
+        bpp = _bpp;
+        cfaPatternDim = _cfaPatternDim;
+        cfaPattern = _cfaPattern;
+        make = _make;
+        model = _model;
+        datetime = _datetime;
+        activeArea = _activeArea;
+        tiled = _tiled;
+        chunkWidth = _chunkWidth;
+        chunkLength = _chunkLength;
+        chunkOffsets = _chunkOffsets;
+        chunkByteCounts = _chunkByteCounts;
+    }
+    
+    /**
+     * Reads the metadata of a file without reading its image data
+     * 
+     * @param p the Path of the TIFF / DNG file
+     * 
+     * @return the record for the file
+     */
+    public static MetadataRecord fromFile(Path p) throws IOException
+    {
+        BasicFileAttributes attr = Files.readAttributes(p, BasicFileAttributes.class);
+        
+        try (TIFFMetadataReader r = new TIFFMetadataReader(p))
+        {
+            ImageFileDirectory ifd = r.getFirstIFDwithCFA();
+            if (ifd == null) ifd = r.getDirectories().get(0);
+            
+            boolean isCFA = (ifd.photometricInterpretation() == TIFF_TAG.PHOTO_INTERPRETATION_CFA);
+            boolean tiled = ifd.isTiled();
+            boolean hasChunks = tiled ? ifd.hasTag(TIFF_TAG.TILE_BYTE_COUNTS)
+                    : (ifd.hasTag(TIFF_TAG.STRIP_OFFSETS) && ifd.hasTag(TIFF_TAG.STRIP_BYTE_COUNTS));
+            
+            return new MetadataRecord(p.toString(), attr.size(), attr.lastModifiedTime().toMillis(),
+                    ifd.imgWidth(), ifd.imgHeight(), ifd.bitsPerSample()[0],
+                    isCFA ? ifd.cfaPatternDim() : new int[0], isCFA ? ifd.cfaPatternGet() : new int[0],
+                    ifd.make().trim(), ifd.model().trim(), ifd.datetime().trim(), ifd.DNG_ActiveArea(),
+                    tiled, ifd.chunkWidth(), ifd.chunkLength(),
+                    hasChunks ? ifd.chunkOffsets() : new long[0], hasChunks ? ifd.chunkByteCounts() : new long[0]);
+        }
+    }
+    
+    /**
+     * Writes the record in the binary index format
+     * 
+     * @param out the stream to write to
+     */
+    public void writeTo(DataOutput out) throws IOException
+    {
+        out.writeUTF(path);
+        out.writeLong(fileSize);
+        out.writeLong(mtime);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeShort(bpp);
+        writeInts(out, cfaPatternDim);
+        writeInts(out, cfaPattern);
+        out.writeUTF(make);
+        out.writeUTF(model);
+        out.writeUTF(datetime);
+        for (int i = 0; i < 4; i++) out.writeLong(activeArea[i]);
+        out.writeBoolean(tiled);
+        out.writeInt(chunkWidth);
+        out.writeInt(chunkLength);
+        writeLongs(out, chunkOffsets);
+        writeLongs(out, chunkByteCounts);
+    }
+    
+    /**
+     * Reads a record that has been written by writeTo()
+     * 
+     * @param in the stream to read from
+     * 
+     * @return the record
+     */
+    public static MetadataRecord readFrom(DataInput in) throws IOException
+    {
+        return new MetadataRecord(in.readUTF(), in.readLong(), in.readLong(), in.readInt(), in.readInt(), in.readUnsignedShort(),
+                readInts(in), readInts(in), in.readUTF(), in.readUTF(), in.readUTF(),
+                new long[] {in.readLong(), in.readLong(), in.readLong(), in.readLong()},
+                in.readBoolean(), in.readInt(), in.readInt(), readLongs(in), readLongs(in));
+    }
+    
+    private static void writeInts(DataOutput out, int[] a) throws IOException
+    {
+        out.writeInt(a.length);
+        for (int v : a) out.writeInt(v);
+    }
+    
+    private static void writeLongs(DataOutput out, long[] a) throws IOException
+    {
+        out.writeInt(a.length);
+        for (long v : a) out.writeLong(v);
+    }
+    
+    private static int[] readInts(DataInput in) throws IOException
+    {
+        int[] a = new int[in.readInt()];
+        for (int i = 0; i < a.length; i++) a[i] = in.readInt();
+        return a;
+    }
+    
+    private static long[] readLongs(DataInput in) throws IOException
+    {
+        long[] a = new long[in.readInt()];
+        for (int i = 0; i < a.length; i++) a[i] = in.readLong();
+        return a;
+    }
+    
+    public String getPath()
+    {
+        return path;
+    }
+    
+    public long getFileSize()
+    {
+        return fileSize;
+    }
+    
+    /**
+     * @return the time of the last modification in milliseconds since the epoch
+     */
+    public long getMTime()
+    {
+        return mtime;
+    }
+    
+    public int getWidth()
+    {
+        return width;
+    }
+    
+    public int getHeight()
+    {
+        return height;
+    }
+    
+    public int getBitsPerPixel()
+    {
+        return bpp;
+    }
+    
+    /**
+     * @return the number of columns and rows of the CFA pattern; empty for non-CFA images
+     */
+    public int[] getCFAPatternDim()
+    {
+        return cfaPatternDim.clone();
+    }
+    
+    /**
+     * @return the CFA pattern as array of 0 (R), 1 (G) or 2 (B); empty for non-CFA images
+     */
+    public int[] getCFAPattern()
+    {
+        return cfaPattern.clone();
+    }
+    
+    public String getMake()
+    {
+        return make;
+    }
+    
+    public String getModel()
+    {
+        return model;
+    }
+    
+    public String getDatetime()
+    {
+        return datetime;
+    }
+    
+    /**
+     * @return the DNG active area as x1, y1, x2, y2; the whole image if the tag is missing
+     */
+    public long[] getActiveArea()
+    {
+        return activeArea.clone();
+    }
+    
+    /**
+     * @return true if the image data is stored in tiles, false if it's stored in strips
+     */
+    public boolean isTiled()
+    {
+        return tiled;
+    }
+    
+    /**
+     * @return the tile width or, for strips, the image width
+     */
+    public int getChunkWidth()
+    {
+        return chunkWidth;
+    }
+    
+    /**
+     * @return the tile height or, for strips, the number of rows per strip (at most the image height)
+     */
+    public int getChunkLength()
+    {
+        return chunkLength;
+    }
+    
+    /**
+     * @return the offsets of the tiles or strips
+     */
+    public long[] getChunkOffsets()
+    {
+        return chunkOffsets.clone();
+    }
+    
+    /**
+     * @return the byte counts of the tiles or strips
+     */
+    public long[] getChunkByteCounts()
+    {
+        return chunkByteCounts.clone();
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.util.Arrays;
+
+/**
+ * A decoder for PackBits compressed strips (compression 32773). Literal
+ * runs are copied and repeated bytes are filled in as blocks, not byte by
+ * byte. Runs may cross row boundaries, so the strip is decoded as one
+ * stream regardless of the row length.
+ */
+public class PackBitsStripDecoder extends StripDecoder {
+    
+    @Override
+    public int decode(byte[] src, int srcOffset, int count, byte[] dst)
+    {
+        int s = srcOffset;
+        int end = srcOffset + count;
+        int d = 0;
+        
+        while ((s < end) && (d < dst.length))
+        {
+            int n = src[s++];
+            
+            if (n >= 0)
+            {
+                // n+1 literal bytes; truncated data delivers what's there
+                int cnt = Math.min(Math.min(n + 1, end - s), dst.length - d);
+                System.arraycopy(src, s, dst, d, cnt);
+                s += n + 1;
+                d += cnt;
+            }
+            else if (n != -128)
+            {
+                // the next byte repeated 1-n times; -128 is a no-op
+                if (s >= end) break;
+                int cnt = Math.min(1 - n, dst.length - d);
+                Arrays.fill(dst, d, d + cnt, src[s++]);
+                d += cnt;
+            }
+        }
+        
+        return d;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses the strips of another StripSource with PackBits (compression
+ * 32773). As required by the TIFF spec, each row is packed separately, so
+ * no run crosses a row boundary.
+ * 
+ * The COMPRESSION tag of the directory has to be set to
+ * TIFF_TAG.COMPRESSION_PACKBITS by the caller.
+ */
+public class PackBitsStripSource implements StripSource {
+    
+    /**
+     * The maximum length of a literal or repeat run
+     */
+    protected static final int MAX_RUN = 128;
+    
+    protected final StripSource src;
+    protected final int bytesPerRow;
+    
+    /**
+     * Buffers for the uncompressed and the compressed strip
+     */
+    protected byte[] raw = new byte[0];
+    protected byte[] packed = new byte[0];
+    
+    /**
+     * Constructor
+     * 
+     * @param _src the source of the uncompressed strips
+     * @param _bytesPerRow the number of bytes per row in the uncompressed strips
+     */
+    public PackBitsStripSource(StripSource _src, int _bytesPerRow)
+    {
+        if (_src == null) throw new IllegalArgumentException("Need a valid strip source!");
+        if (_bytesPerRow < 1) throw new IllegalArgumentException("Invalid row size " + _bytesPerRow);
+        
+        src = _src;
+        bytesPerRow = _bytesPerRow;
+    }
+    
+    @Override
+    public int getStripCount()
+    {
+        return src.getStripCount();
+    }
+    
+    @Override
+    public int getRowsPerStrip()
+    {
+        return src.getRowsPerStrip();
+    }
+    
+    @Override
+    public ByteBuffer getStrip(int i)
+    {
+        ByteBuffer b = src.getStrip(i);
+        int len = b.remaining();
+        if (raw.length < len) raw = new byte[len];
+        b.get(raw, 0, len);
+        
+        int rows = (len + bytesPerRow - 1) / bytesPerRow;
+        int maxLen = len + rows * ((bytesPerRow + MAX_RUN - 1) / MAX_RUN);
+        if (packed.length < maxLen) packed = new byte[maxLen];
+        
+        int n = 0;
+        for (int r = 0; r < rows; r++)
+        {
+            int off = r * bytesPerRow;
+            n = encode(raw, off, Math.min(bytesPerRow, len - off), packed, n);
+        }
+        
+        return ByteBuffer.wrap(packed, 0, n);
+    }
+    
+    /**
+     * Packs a block of bytes. Runs of three or more equal bytes are stored as
+     * repeat runs, everything else is copied as literal runs.
+     * 
+     * @param src the uncompressed data
+     * @param srcOffset the index of the first byte to pack
+     * @param count the number of bytes to pack
+     * @param dst the array for the packed data; needs space for count + (count + 127) / 128 bytes
+     * @param dstOffset the index in dst for the first packed byte
+     * 
+     * @return the index in dst after the last packed byte
+     */
+    public static int encode(byte[] src, int srcOffset, int count, byte[] dst, int dstOffset)
+    {
+        int s = srcOffset;
+        int end = srcOffset + count;
+        int d = dstOffset;
+        int litStart = s;
+        
+        while (s < end)
+        {
+            // length of the run of equal bytes at s
+            byte v = src[s];
+            int run = 1;
+            int maxRun = Math.min(MAX_RUN, end - s);
+            while ((run < maxRun) && (src[s + run] == v)) run++;
+            
+            if (run < 3)
+            {
+                s += run;
+                continue;
+            }
+            
+            d = putLiterals(src, litStart, s, dst, d);
+            dst[d++] = (byte) (1 - run);
+            dst[d++] = v;
+            s += run;
+            litStart = s;
+        }
+        
+        return putLiterals(src, litStart, end, dst, d);
+    }
+    
+    /**
+     * Stores the bytes between litStart and litEnd as literal runs
+     * 
+     * @return the index in dst after the last stored byte
+     */
+    protected static int putLiterals(byte[] src, int litStart, int litEnd, byte[] dst, int dstOffset)
+    {
+        int d = dstOffset;
+        while (litStart < litEnd)
+        {
+            int cnt = Math.min(MAX_RUN, litEnd - litStart);
+            dst[d++] = (byte) (cnt - 1);
+            System.arraycopy(src, litStart, dst, d, cnt);
+            d += cnt;
+            litStart += cnt;
+        }
+        return d;
+    }
+}
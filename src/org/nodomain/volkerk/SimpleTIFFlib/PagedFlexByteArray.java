@@ -0,0 +1,324 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A read-only FlexByteArray that fetches its bytes on demand from a file.
+ * 
+ * The file is read in pages with positional reads. The most recently used
+ * pages are kept in a small cache, so that parsing an IFD and its out-of-line
+ * values costs only a few reads. Nothing else of the file is ever read.
+ * 
+ * All write accesses fail.
+ */
+public class PagedFlexByteArray extends FlexByteArray {
+    
+    /**
+     * The default page size; large enough for most IFDs
+     */
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+    
+    /**
+     * The default number of pages in the cache
+     */
+    public static final int DEFAULT_MAX_PAGES = 16;
+    
+    /**
+     * The file to read from
+     */
+    protected final FileChannel fc;
+    
+    /**
+     * The size of the file
+     */
+    protected final long fileSize;
+    
+    protected final int pageSize;
+    
+    /**
+     * The page cache in LRU order: page number -> page content
+     */
+    protected final LinkedHashMap<Integer, ByteBuffer> pages;
+    
+    /**
+     * The total number of bytes read from the file so far
+     */
+    protected long bytesRead = 0;
+    
+    /**
+     * Constructor with default page size and cache size
+     * 
+     * @param _fc the file to read from; must remain open as long as the array is used
+     */
+    public PagedFlexByteArray(FileChannel _fc) throws IOException
+    {
+        this(_fc, DEFAULT_PAGE_SIZE, DEFAULT_MAX_PAGES);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param _fc the file to read from; must remain open as long as the array is used
+     * @param _pageSize the number of bytes per read
+     * @param maxPages the number of pages to keep in memory
+     */
+    public PagedFlexByteArray(FileChannel _fc, int _pageSize, final int maxPages) throws IOException
+    {
+        super(ByteBuffer.allocate(0));
+        
+        if (_fc == null) throw new IllegalArgumentException("Need a valid FileChannel!");
+        if ((_pageSize < 8) || (maxPages < 1)) throw new IllegalArgumentException("Invalid page cache parameters");
+        
+        fc = _fc;
+        fileSize = fc.size();
+        pageSize = _pageSize;
+        pages = new LinkedHashMap<Integer, ByteBuffer>(2 * maxPages, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, ByteBuffer> eldest)
+            {
+                return size() > maxPages;
+            }
+        };
+    }
+    
+    /**
+     * Returns a page from the cache or reads it from the file
+     * 
+     * @param n the 0-based page number
+     * 
+     * @return the page content; the last page of the file may be shorter than the page size
+     */
+    protected synchronized ByteBuffer getPage(int n)
+    {
+        ByteBuffer p = pages.get(n);
+        if (p != null) return p;
+        
+        long start = (long) n * pageSize;
+        int len = (int) Math.min(pageSize, fileSize - start);
+        p = ByteBuffer.allocate(len);
+        
+        try
+        {
+            while (p.hasRemaining())
+            {
+                int cnt = fc.read(p, start + p.position());
+                if (cnt < 0) throw new IOException("Unexpected end of file");
+            }
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Couldn't read from file: " + e.getMessage());
+        }
+        
+        bytesRead += len;
+        pages.put(n, p);
+        return p;
+    }
+    
+    /**
+     * Returns a buffer with "count" bytes starting at "offset" in the
+     * requested byte order. Only copies data if it spans two pages.
+     */
+    protected ByteBuffer fetch(long offset, int count, ByteOrder order)
+    {
+        assertArrayBoundary(offset, count);
+        
+        int inPage = (int) (offset % pageSize);
+        if ((inPage + count) <= pageSize)
+        {
+            ByteBuffer p = getPage((int) (offset / pageSize)).duplicate();
+            p.position(inPage);
+            p.limit(inPage + count);
+            return p.slice().order(order);
+        }
+        
+        byte[] tmp = new byte[count];
+        getBytes(offset, tmp, 0, count);
+        return ByteBuffer.wrap(tmp).order(order);
+    }
+    
+    /**
+     * The byte order of multi-byte values according to the swap status
+     */
+    protected ByteOrder getOrder()
+    {
+        return swapBytes ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+    }
+    
+    /**
+     * @return the number of bytes that have been read from the file so far
+     */
+    public synchronized long getBytesRead()
+    {
+        return bytesRead;
+    }
+    
+    @Override
+    protected void assertArrayBoundary(long offset, int count)
+    {
+        if ((offset < 0) || (count < 0)) throw new IllegalArgumentException();
+        
+        long lastByteOffset = offset + count - 1;
+        
+        if (lastByteOffset >= fileSize) throw new IllegalArgumentException("Requested offset " + lastByteOffset + " is beyond the file end at " + fileSize);
+    }
+    
+    @Override
+    public void getBytes(long offset, byte[] dst, int dstOffset, int count)
+    {
+        assertArrayBoundary(offset, count);
+        
+        while (count > 0)
+        {
+            ByteBuffer p = getPage((int) (offset / pageSize)).duplicate();
+            int inPage = (int) (offset % pageSize);
+            int n = Math.min(count, p.capacity() - inPage);
+            
+            p.position(inPage);
+            p.get(dst, dstOffset, n);
+            
+            offset += n;
+            dstOffset += n;
+            count -= n;
+        }
+    }
+    
+    @Override
+    public byte[] getSwappedSlice(long offset, int count)
+    {
+        byte[] result = new byte[count];
+        getBytes(offset, result, 0, count);
+        
+        if (swapBytes)
+        {
+            for (int i = 0; i < (count / 2); i++)
+            {
+                byte tmp = result[i];
+                result[i] = result[count - i - 1];
+                result[count - i - 1] = tmp;
+            }
+        }
+        
+        return result;
+    }
+    
+    @Override
+    public int getByte(long offset)
+    {
+        return fetch(offset, 1, getOrder()).get(0) & 0xff;
+    }
+    
+    @Override
+    public byte getSignedByte(long offset)
+    {
+        return fetch(offset, 1, getOrder()).get(0);
+    }
+    
+    @Override
+    public int getUint16(long offset)
+    {
+        return fetch(offset, 2, getOrder()).getShort(0) & 0xffff;
+    }
+    
+    @Override
+    public int getSint16(long offset)
+    {
+        return fetch(offset, 2, getOrder()).getShort(0);
+    }
+    
+    @Override
+    public long getUint32(long offset)
+    {
+        // sign-extended, just like the base class
+        return fetch(offset, 4, getOrder()).getInt(0);
+    }
+    
+    @Override
+    public long getUint64(long offset)
+    {
+        return fetch(offset, 8, getOrder()).getLong(0);
+    }
+    
+    @Override
+    public int getSint32(long offset)
+    {
+        return fetch(offset, 4, getOrder()).getInt(0);
+    }
+    
+    @Override
+    public long getUint32MSBFirst(long offset)
+    {
+        return fetch(offset, 4, ByteOrder.BIG_ENDIAN).getInt(0) & 0xffffffffL;
+    }
+    
+    @Override
+    public long size()
+    {
+        return fileSize;
+    }
+    
+    @Override
+    public byte[] getDataClone()
+    {
+        throw new IllegalStateException("The paged array doesn't hold the file data");
+    }
+    
+    @Override
+    public void dumpToFile(String fName)
+    {
+        throw new IllegalStateException("The paged array doesn't hold the file data");
+    }
+    
+    @Override
+    public void setByte(long offset, int newVal)
+    {
+        throw new IllegalStateException("The paged array is read-only");
+    }
+    
+    @Override
+    public void setUint16(long offset, int newVal)
+    {
+        throw new IllegalStateException("The paged array is read-only");
+    }
+    
+    @Override
+    public void setUint32(long offset, long newVal)
+    {
+        throw new IllegalStateException("The paged array is read-only");
+    }
+    
+    @Override
+    public void setUint64(long offset, long newVal)
+    {
+        throw new IllegalStateException("The paged array is read-only");
+    }
+    
+    @Override
+    public void setUint32MSBFirst(long offset, long newVal)
+    {
+        throw new IllegalStateException("The paged array is read-only");
+    }
+    
+    @Override
+    public void writeSwappedSlice(byte[] buf, long offset)
+    {
+        throw new IllegalStateException("The paged array is read-only");
+    }
+}
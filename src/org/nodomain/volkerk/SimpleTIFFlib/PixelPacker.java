@@ -0,0 +1,218 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+/**
+ * Static helpers for converting rows of bit-packed pixels (MSB first, as
+ * used by DNG and the Magic Lantern RAW files) into 16-bit samples and back.
+ *
+ * The common depths 10, 12 and 14 bpp are handled by specialized loops which
+ * convert a group of bytes into a group of pixels in one step; all other
+ * depths use a generic bit accumulator.
+ */
+public class PixelPacker {
+
+    /**
+     * Calculates the number of bytes for a row of bit-packed pixels,
+     * including the padding bits at the end of the row
+     *
+     * @param w the number of pixels in the row
+     * @param bpp the number of bits per pixel
+     *
+     * @return the number of bytes in the row
+     */
+    public static int bytesPerRow(int w, int bpp)
+    {
+        return (int) (((long) w * bpp + 7) / 8);
+    }
+
+    /**
+     * Unpacks a row of bit-packed pixels into an array of 16-bit samples
+     *
+     * @param src the array with the packed pixel data
+     * @param srcOffset the index of the byte in src that contains the first bit of the first pixel
+     * @param bpp the number of bits per pixel (1...16)
+     * @param dst the array to store the samples in (values are unsigned, i. e. to be masked with 0xFFFF)
+     * @param dstOffset the index in dst for the first pixel
+     * @param count the number of pixels to unpack
+     */
+    public static void unpackRow(byte[] src, int srcOffset, int bpp, short[] dst, int dstOffset, int count)
+    {
+        if ((bpp < 1) || (bpp > 16))
+        {
+            throw new IllegalArgumentException("Can't unpack pixels with " + bpp + " bits per pixel");
+        }
+
+        int done;
+        if (bpp == 14) done = unpack14(src, srcOffset, dst, dstOffset, count);
+        else if (bpp == 12) done = unpack12(src, srcOffset, dst, dstOffset, count);
+        else if (bpp == 10) done = unpack10(src, srcOffset, dst, dstOffset, count);
+        else done = 0;
+
+        // the remaining pixels (incomplete groups or unusual bit depths)
+        // are processed bit by bit
+        if (done < count)
+        {
+            unpackGeneric(src, srcOffset + (int) ((long) done * bpp / 8), bpp, dst, dstOffset + done, count - done);
+        }
+    }
+
+    /**
+     * Unpacks 14-bit pixels in groups of four pixels (seven bytes)
+     *
+     * @return the number of unpacked pixels, always a multiple of four
+     */
+    protected static int unpack14(byte[] src, int s, short[] dst, int d, int count)
+    {
+        int groups = count / 4;
+
+        for (int g = 0; g < groups; g++)
+        {
+            int b0 = src[s] & 0xff;
+            int b1 = src[s+1] & 0xff;
+            int b2 = src[s+2] & 0xff;
+            int b3 = src[s+3] & 0xff;
+            int b4 = src[s+4] & 0xff;
+            int b5 = src[s+5] & 0xff;
+            int b6 = src[s+6] & 0xff;
+
+            dst[d] = (short) ((b0 << 6) | (b1 >>> 2));
+            dst[d+1] = (short) (((b1 & 0x03) << 12) | (b2 << 4) | (b3 >>> 4));
+            dst[d+2] = (short) (((b3 & 0x0f) << 10) | (b4 << 2) | (b5 >>> 6));
+            dst[d+3] = (short) (((b5 & 0x3f) << 8) | b6);
+
+            s += 7;
+            d += 4;
+        }
+
+        return groups * 4;
+    }
+
+    /**
+     * Unpacks 12-bit pixels in groups of two pixels (three bytes)
+     *
+     * @return the number of unpacked pixels, always a multiple of two
+     */
+    protected static int unpack12(byte[] src, int s, short[] dst, int d, int count)
+    {
+        int groups = count / 2;
+
+        for (int g = 0; g < groups; g++)
+        {
+            int b0 = src[s] & 0xff;
+            int b1 = src[s+1] & 0xff;
+            int b2 = src[s+2] & 0xff;
+
+            dst[d] = (short) ((b0 << 4) | (b1 >>> 4));
+            dst[d+1] = (short) (((b1 & 0x0f) << 8) | b2);
+
+            s += 3;
+            d += 2;
+        }
+
+        return groups * 2;
+    }
+
+    /**
+     * Unpacks 10-bit pixels in groups of four pixels (five bytes)
+     *
+     * @return the number of unpacked pixels, always a multiple of four
+     */
+    protected static int unpack10(byte[] src, int s, short[] dst, int d, int count)
+    {
+        int groups = count / 4;
+
+        for (int g = 0; g < groups; g++)
+        {
+            int b0 = src[s] & 0xff;
+            int b1 = src[s+1] & 0xff;
+            int b2 = src[s+2] & 0xff;
+            int b3 = src[s+3] & 0xff;
+            int b4 = src[s+4] & 0xff;
+
+            dst[d] = (short) ((b0 << 2) | (b1 >>> 6));
+            dst[d+1] = (short) (((b1 & 0x3f) << 4) | (b2 >>> 4));
+            dst[d+2] = (short) (((b2 & 0x0f) << 6) | (b3 >>> 2));
+            dst[d+3] = (short) (((b3 & 0x03) << 8) | b4);
+
+            s += 5;
+            d += 4;
+        }
+
+        return groups * 4;
+    }
+
+    /**
+     * Unpacks pixels of any depth between 1 and 16 bits using a bit accumulator.
+     * The first pixel has to start at the MSB of the first byte.
+     */
+    protected static void unpackGeneric(byte[] src, int s, int bpp, short[] dst, int d, int count)
+    {
+        int mask = (1 << bpp) - 1;
+        int acc = 0;     // the bit accumulator, filled from the right
+        int nBits = 0;   // the number of valid bits in the accumulator
+
+        for (int i = 0; i < count; i++)
+        {
+            // at most 16 + 7 bits are in the accumulator, so it never overflows
+            while (nBits < bpp)
+            {
+                acc = (acc << 8) | (src[s++] & 0xff);
+                nBits += 8;
+            }
+
+            nBits -= bpp;
+            dst[d + i] = (short) ((acc >>> nBits) & mask);
+        }
+    }
+
+    /**
+     * Packs a row of 16-bit samples into a bit stream, MSB first. The
+     * unused bits of the last byte are set to zero.
+     *
+     * @param src the array with the samples; only the lower bpp bits of each sample are used
+     * @param srcOffset the index in src of the first sample
+     * @param bpp the number of bits per pixel (1...16)
+     * @param dst the array to store the packed pixels in; needs bytesPerRow(count, bpp) bytes
+     * @param dstOffset the index of the first byte in dst to write to
+     * @param count the number of samples to pack
+     */
+    public static void packRow(short[] src, int srcOffset, int bpp, byte[] dst, int dstOffset, int count)
+    {
+        if ((bpp < 1) || (bpp > 16))
+        {
+            throw new IllegalArgumentException("Can't pack pixels with " + bpp + " bits per pixel");
+        }
+
+        int mask = (1 << bpp) - 1;
+        int acc = 0;     // the bit accumulator, filled from the right
+        int nBits = 0;   // the number of valid bits in the accumulator
+        int d = dstOffset;
+
+        for (int i = 0; i < count; i++)
+        {
+            acc = (acc << bpp) | (src[srcOffset + i] & mask);
+            nBits += bpp;
+
+            // at most 7 + 16 bits are in the accumulator, so it never overflows
+            while (nBits >= 8)
+            {
+                nBits -= 8;
+                dst[d++] = (byte) (acc >>> nBits);
+            }
+        }
+
+        // the remaining bits, padded with zeros
+        if (nBits > 0) dst[d] = (byte) (acc << (8 - nBits));
+    }
+}
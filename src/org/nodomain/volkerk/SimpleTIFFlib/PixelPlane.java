@@ -0,0 +1,240 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+/**
+ * A plane of unsigned 16-bit samples, stored row by row in one flat array.
+ *
+ * A plane can have more than one channel per pixel (e. g. three for RGB);
+ * the channels of a pixel are stored next to each other. The sample at
+ * (x, y, c) is located at index y * getStride() + x * getChannels() + c.
+ */
+public class PixelPlane {
+
+    /**
+     * The width of the plane in pixels
+     */
+    protected final int width;
+
+    /**
+     * The height of the plane in pixels
+     */
+    protected final int height;
+
+    /**
+     * The number of samples per pixel
+     */
+    protected final int channels;
+
+    /**
+     * The number of array entries between the first samples of two consecutive rows
+     */
+    protected final int stride;
+
+    /**
+     * The samples; have to be masked with 0xFFFF to get the unsigned value
+     */
+    protected final short[] data;
+
+    /**
+     * Constructor for a plane with one sample per pixel (e. g. CFA data)
+     *
+     * @param w the width of the plane in pixels
+     * @param h the height of the plane in pixels
+     */
+    public PixelPlane(int w, int h)
+    {
+        this(w, h, 1);
+    }
+
+    /**
+     * Constructor for a plane with an arbitrary number of samples per pixel
+     *
+     * @param w the width of the plane in pixels
+     * @param h the height of the plane in pixels
+     * @param nChannels the number of samples per pixel, e. g. 3 for RGB
+     */
+    public PixelPlane(int w, int h, int nChannels)
+    {
+        if ((w < 1) || (h < 1) || (nChannels < 1))
+        {
+            throw new IllegalArgumentException("Invalid plane dimensions: " + w + " x " + h + " x " + nChannels);
+        }
+
+        long size = (long) w * h * nChannels;
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Plane with " + size + " samples is too large");
+        }
+
+        width = w;
+        height = h;
+        channels = nChannels;
+        stride = w * nChannels;
+        data = new short[(int) size];
+    }
+
+    /**
+     * Returns an independent copy of the plane
+     *
+     * @return a new plane with the same dimensions and samples
+     */
+    public PixelPlane copy()
+    {
+        PixelPlane result = new PixelPlane(width, height, channels);
+        System.arraycopy(data, 0, result.data, 0, data.length);
+        return result;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public int getChannels()
+    {
+        return channels;
+    }
+
+    /**
+     * The number of array entries per row
+     *
+     * @return the distance between two rows in the sample array
+     */
+    public int getStride()
+    {
+        return stride;
+    }
+
+    /**
+     * Direct access to the sample array for fast loops. Samples are unsigned
+     * and have to be masked with 0xFFFF.
+     *
+     * @return the internal sample array (not a copy!)
+     */
+    public short[] getData()
+    {
+        return data;
+    }
+
+    /**
+     * Returns the index of the first sample of a row in the sample array
+     *
+     * @param y the 0-based row
+     *
+     * @return the index of the first sample of the row
+     */
+    public int rowOffset(int y)
+    {
+        return y * stride;
+    }
+
+    /**
+     * Returns the first sample of a pixel
+     *
+     * @param x the 0-based x-coordinate of the pixel
+     * @param y the 0-based y-coordinate of the pixel
+     *
+     * @return the unsigned sample value
+     */
+    public int get(int x, int y)
+    {
+        return data[y * stride + x * channels] & 0xffff;
+    }
+
+    /**
+     * Returns a specific sample of a pixel
+     *
+     * @param x the 0-based x-coordinate of the pixel
+     * @param y the 0-based y-coordinate of the pixel
+     * @param c the 0-based channel
+     *
+     * @return the unsigned sample value
+     */
+    public int get(int x, int y, int c)
+    {
+        return data[y * stride + x * channels + c] & 0xffff;
+    }
+
+    /**
+     * Sets the first sample of a pixel
+     *
+     * @param x the 0-based x-coordinate of the pixel
+     * @param y the 0-based y-coordinate of the pixel
+     * @param val the new value; only the lower 16 bits are used
+     */
+    public void set(int x, int y, int val)
+    {
+        data[y * stride + x * channels] = (short) val;
+    }
+
+    /**
+     * Sets a specific sample of a pixel
+     *
+     * @param x the 0-based x-coordinate of the pixel
+     * @param y the 0-based y-coordinate of the pixel
+     * @param c the 0-based channel
+     * @param val the new value; only the lower 16 bits are used
+     */
+    public void set(int x, int y, int c, int val)
+    {
+        data[y * stride + x * channels + c] = (short) val;
+    }
+
+    /**
+     * Determines the maximum sample value of a channel
+     *
+     * @param c the 0-based channel
+     *
+     * @return the largest value of all samples in the channel
+     */
+    public int getMax(int c)
+    {
+        int result = 0;
+        for (int i = c; i < data.length; i += channels)
+        {
+            int v = data[i] & 0xffff;
+            if (v > result) result = v;
+        }
+
+        return result;
+    }
+
+    /**
+     * Converts the first channel of the plane into the column-major
+     * 2-dim int array that was used before the introduction of this class
+     *
+     * @return an int array with [x][y] indexing
+     */
+    public int[][] toColumnMajorArray()
+    {
+        int[][] result = new int[width][height];
+
+        for (int y = 0; y < height; y++)
+        {
+            int ptr = y * stride;
+            for (int x = 0; x < width; x++)
+            {
+                result[x][y] = data[ptr] & 0xffff;
+                ptr += channels;
+            }
+        }
+
+        return result;
+    }
+}
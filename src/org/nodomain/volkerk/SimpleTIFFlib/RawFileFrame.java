@@ -35,6 +35,14 @@ public class RawFileFrame extends Generic_CFA_PixBuf {
      */
     protected int[] crop;
     
+    /**
+     * If true, the data block is in the byte order of the RAW file: the
+     * bytes of each 16-bit word are swapped compared to the pixel bit stream.
+     * The swap is done on the fly when accessing the pixels, so that the
+     * data block can be a direct view on the (mapped) file.
+     */
+    protected boolean wordSwapped;
+    
     /**
      * Constructor with the full data set
      * 
@@ -46,14 +54,40 @@ public class RawFileFrame extends Generic_CFA_PixBuf {
      * @param crop x0, y0, w, h of an crop area within the active area
      */
     public RawFileFrame(FlexByteArray _buf, int _w, int _h, int _bpp, int[] aa, int[] _crop)
+    {
+        this(_buf, _w, _h, _bpp, aa, _crop, false);
+    }
+    
+    /**
+     * Constructor with the full data set and the byte order of the data
+     * 
+     * @param _buf FlexByteArray containing the CFA data of the frame
+     * @param _w width of the frame in pixels
+     * @param _h height of the frame in pixels
+     * @param _bpp bits per pixel
+     * @param aa x0, y0, x1, y1 of the active area within the frame
+     * @param crop x0, y0, w, h of an crop area within the active area
+     * @param _wordSwapped true if the bytes of each 16-bit word in _buf are swapped, as in the RAW file
+     */
+    public RawFileFrame(FlexByteArray _buf, int _w, int _h, int _bpp, int[] aa, int[] _crop, boolean _wordSwapped)
     {
         super(_buf);
         
+        if (_wordSwapped && ((_buf.length() % 2) != 0))
+        {
+            throw new IllegalArgumentException("Word swapped data needs an even number of bytes");
+        }
+        if (_wordSwapped && ((_bpp % 8) == 0))
+        {
+            throw new IllegalArgumentException("Word swapped data is only supported for bit-packed pixels");
+        }
+        
         width = _w;
         height = _h;
         bpp = _bpp;
         activeArea = aa;
         crop = _crop;
+        wordSwapped = _wordSwapped;
     }
     
     /**
@@ -71,7 +105,17 @@ public class RawFileFrame extends Generic_CFA_PixBuf {
     
     public RawFileFrame getCopy()
     {
-        return new RawFileFrame(new FlexByteArray(data.getDataClone()), width, height, bpp, activeArea, crop);
+        return new RawFileFrame(new FlexByteArray(data.getDataClone()), width, height, bpp, activeArea, crop, wordSwapped);
+    }
+    
+    /**
+     * Checks whether the data block is in the byte order of the RAW file
+     * 
+     * @return true if the bytes of each 16-bit word are swapped compared to the pixel bit stream
+     */
+    public boolean isWordSwapped()
+    {
+        return wordSwapped;
     }
 
     @Override
@@ -111,9 +155,9 @@ public class RawFileFrame extends Generic_CFA_PixBuf {
     {
         // calculate the number of bytes in a row
         // use the ceil()-function to account for the byte-padding at the end of each row
-        int bytesPerRow = (int) Math.ceil(width * CFA_getBitsPerPixel() / 8.0);
+        long bytesPerRow = (long) Math.ceil(width * (long) CFA_getBitsPerPixel() / 8.0);
         
-        return (long)(row * bytesPerRow);
+        return row * bytesPerRow;
     }
 
     @Override
@@ -133,7 +177,99 @@ public class RawFileFrame extends Generic_CFA_PixBuf {
      */
     public byte[] getFrameData()
     {
-        return data.getDataClone();
+        byte[] result = data.getDataClone();
+        if (wordSwapped) swapWords(result);
+        
+        return result;
+    }
+    
+    @Override
+    public boolean isCFADataIdenticalWith(Generic_CFA_PixBuf ref)
+    {
+        if ((ref instanceof RawFileFrame) && (((RawFileFrame) ref).wordSwapped != wordSwapped))
+        {
+            return java.util.Arrays.equals(getFrameData(), ((RawFileFrame) ref).getFrameData());
+        }
+        
+        return super.isCFADataIdenticalWith(ref);
+    }
+    
+    @Override
+    protected long CFA_getBitstreamWord(long ptr)
+    {
+        if (!wordSwapped) return super.CFA_getBitstreamWord(ptr);
+        
+        // the four bytes can be spread over three words, so we
+        // have to collect them one by one
+        long result = 0;
+        for (int i=0; i < 4; i++)
+        {
+            result = (result << 8) | data.getByte((ptr + i) ^ 1);
+        }
+        
+        return result;
+    }
+    
+    @Override
+    protected void CFA_setBitstreamWord(long ptr, long newVal)
+    {
+        if (!wordSwapped)
+        {
+            super.CFA_setBitstreamWord(ptr, newVal);
+            return;
+        }
+        
+        for (int i=0; i < 4; i++)
+        {
+            data.setByte((ptr + i) ^ 1, (int) (newVal >> (24 - 8*i)));
+        }
+    }
+    
+    @Override
+    protected void CFA_getRowBytes(long ptr, byte[] dst, int count)
+    {
+        if (!wordSwapped)
+        {
+            super.CFA_getRowBytes(ptr, dst, count);
+            return;
+        }
+        
+        // the normal case: the row starts and ends at word boundaries;
+        // copy it in one go and swap the words in the destination
+        if (((ptr % 2) == 0) && ((count % 2) == 0))
+        {
+            data.getBytes(ptr, dst, 0, count);
+            swapWords(dst, count);
+            return;
+        }
+        
+        for (int i=0; i < count; i++) dst[i] = (byte) data.getByte((ptr + i) ^ 1);
+    }
+    
+    /**
+     * Swaps the bytes of each 16-bit word in an array in place
+     * 
+     * @param buf the array to swap; needs an even number of bytes
+     */
+    protected static void swapWords(byte[] buf)
+    {
+        swapWords(buf, buf.length);
+    }
+    
+    /**
+     * Swaps the bytes of each 16-bit word in the first count bytes of an array, in place
+     * 
+     * @param buf the array to swap
+     * @param count the number of bytes to swap; must be even
+     */
+    protected static void swapWords(byte[] buf, int count)
+    {
+        for (int ptr=0; ptr < count; ptr += 2)
+        {
+            byte tmp = buf[ptr];
+            buf[ptr] = buf[ptr+1];
+            buf[ptr+1] = tmp;
+        }
     }
     
 }
@@ -0,0 +1,221 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The decoded info block at the end of a Magic Lantern RAW file.
+ * 
+ * The footer is decoded once from its 192 bytes; all values are
+ * stored in immutable fields afterwards.
+ */
+public final class RawFooter {
+    
+    /**
+     * The size of the footer in bytes
+     */
+    public static final int SIZE = 192;
+    
+    protected static final int MAGIC_OFFSET = 0;
+    protected static final int MAGIC_LENGTH = 4;
+    
+    protected static final int WIDTH_OFFSET = 4;
+    protected static final int HEIGHT_OFFSET = 6;
+    
+    protected static final int FRAME_SIZE_OFFSET = 8;
+    
+    protected static final int FRAME_COUNT_OFFSET = 12;
+    
+    protected static final int FRAME_SKIP_OFFSET = 16;
+    protected static final int FPSx1000_OFFSET = 20;
+    
+    protected static final int RAW_INFO_API_VERSION_OFFSET = 32;
+    protected static final int RAW_INFO_HEIGHT_OFFSET = 40;
+    protected static final int RAW_INFO_WIDTH_OFFSET = 44;
+    protected static final int RAW_INFO_PITCH_OFFSET = 48;
+    protected static final int RAW_INFO_FRAMESIZE_OFFSET = 52;
+    protected static final int RAW_INFO_BPP_OFFSET = 56;
+    protected static final int RAW_INFO_BLACKLEVEL_OFFSET = 60;
+    protected static final int RAW_INFO_WHITELEVEL_OFFSET = 64;
+    protected static final int RAW_INFO_CROPFIELD_OFFSET = 68;
+    protected static final int RAW_INFO_ACTIVEAREA_OFFSET = 84;
+    protected static final int RAW_INFO_DYNAMICRANGE_OFFSET = 84+26*4;
+    
+    private final String magic;
+    private final int width;
+    private final int height;
+    private final long frameSize;
+    private final long frameCount;
+    private final long frameSkip;
+    private final long frameRate1000;
+    private final long apiVersion;
+    private final long rawHeight;
+    private final long rawWidth;
+    private final long pitch;
+    private final long rawFrameSize;
+    private final long bitsPerPixel;
+    private final long blackLevel;
+    private final long whiteLevel;
+    private final long[] crop;
+    private final long[] activeArea;
+    private final long dynamicRange100;
+    
+    /**
+     * Constructor. Decodes the footer data.
+     * 
+     * @param buf the footer bytes, SIZE bytes starting at the buffer's current position
+     */
+    public RawFooter(ByteBuffer buf)
+    {
+        if ((buf == null) || (buf.remaining() < SIZE))
+        {
+            throw new IllegalArgumentException("Need " + SIZE + " bytes of footer data");
+        }
+        
+        ByteBuffer b = buf.slice();
+        b.order(ByteOrder.LITTLE_ENDIAN);
+        
+        byte[] m = new byte[MAGIC_LENGTH];
+        for (int i = 0; i < MAGIC_LENGTH; i++) m[i] = b.get(MAGIC_OFFSET + i);
+        magic = new String(m, StandardCharsets.US_ASCII);
+        
+        width = b.getShort(WIDTH_OFFSET) & 0xffff;
+        height = b.getShort(HEIGHT_OFFSET) & 0xffff;
+        frameSize = uint32(b, FRAME_SIZE_OFFSET);
+        frameCount = uint32(b, FRAME_COUNT_OFFSET);
+        frameSkip = uint32(b, FRAME_SKIP_OFFSET);
+        frameRate1000 = uint32(b, FPSx1000_OFFSET);
+        
+        apiVersion = uint32(b, RAW_INFO_API_VERSION_OFFSET);
+        rawHeight = uint32(b, RAW_INFO_HEIGHT_OFFSET);
+        rawWidth = uint32(b, RAW_INFO_WIDTH_OFFSET);
+        pitch = uint32(b, RAW_INFO_PITCH_OFFSET);
+        rawFrameSize = uint32(b, RAW_INFO_FRAMESIZE_OFFSET);
+        bitsPerPixel = uint32(b, RAW_INFO_BPP_OFFSET);
+        blackLevel = uint32(b, RAW_INFO_BLACKLEVEL_OFFSET);
+        whiteLevel = uint32(b, RAW_INFO_WHITELEVEL_OFFSET);
+        
+        crop = new long[4];
+        activeArea = new long[4];
+        for (int i = 0; i < 4; i++)
+        {
+            crop[i] = uint32(b, RAW_INFO_CROPFIELD_OFFSET + 4*i);
+            activeArea[i] = uint32(b, RAW_INFO_ACTIVEAREA_OFFSET + 4*i);
+        }
+        
+        dynamicRange100 = uint32(b, RAW_INFO_DYNAMICRANGE_OFFSET);
+    }
+    
+    private static long uint32(ByteBuffer b, int offset)
+    {
+        return b.getInt(offset) & 0xffffffffL;
+    }
+    
+    public String getMagic()
+    {
+        return magic;
+    }
+    
+    public int getWidth()
+    {
+        return width;
+    }
+    
+    public int getHeight()
+    {
+        return height;
+    }
+    
+    public long getFrameSize()
+    {
+        return frameSize;
+    }
+    
+    public long getFrameCount()
+    {
+        return frameCount;
+    }
+    
+    public long getFrameSkip()
+    {
+        return frameSkip;
+    }
+    
+    public long getFrameRate1000()
+    {
+        return frameRate1000;
+    }
+    
+    public long getRawInfo_APIVersion()
+    {
+        return apiVersion;
+    }
+    
+    public long getRawInfo_Height()
+    {
+        return rawHeight;
+    }
+    
+    public long getRawInfo_Width()
+    {
+        return rawWidth;
+    }
+    
+    public long getRawInfo_Pitch()
+    {
+        return pitch;
+    }
+    
+    public long getRawInfo_FrameSize()
+    {
+        return rawFrameSize;
+    }
+    
+    public long getRawInfo_BitsPerPixel()
+    {
+        return bitsPerPixel;
+    }
+    
+    public long getRawInfo_BlackLevel()
+    {
+        return blackLevel;
+    }
+    
+    public long getRawInfo_WhiteLevel()
+    {
+        return whiteLevel;
+    }
+    
+    /**
+     * @return a copy of the crop field: x, y, w, h
+     */
+    public long[] getRawInfo_Crop()
+    {
+        return crop.clone();
+    }
+    
+    /**
+     * @return a copy of the active area: x1, y1, x2, y2
+     */
+    public long[] getRawInfo_ActiveArea()
+    {
+        return activeArea.clone();
+    }
+    
+    public long getRawInfo_DynamicRange100()
+    {
+        return dynamicRange100;
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a range of frames from a RAW file in a background thread, so that
+ * reading the next frames overlaps with processing the current one.
+ * 
+ * The frames are returned by next() in ascending order. At most "depth"
+ * frames are read ahead. Frames that are not needed anymore should be
+ * handed back with recycle(), so that their memory can be reused for
+ * the following frames.
+ * 
+ * The frames always contain a copy of the data, independent of the
+ * memory mapping setting of the RawImageSequenceHandler.
+ * 
+ * The reader thread is never interrupted, because an interrupt during a
+ * read would close the file channel that the prefetcher shares with the
+ * RawImageSequenceHandler. Instead, it checks a stop flag between frames
+ * and while waiting for space in the queue.
+ */
+public class RawFramePrefetcher implements Closeable {
+    
+    /**
+     * Marks the end of the frame sequence in the queue
+     */
+    protected static final Object END_OF_SEQUENCE = new Object();
+    
+    /**
+     * How often the reader checks the stop flag while the queue is full
+     */
+    protected static final long STOP_POLL_MS = 50;
+    
+    /**
+     * The source of the frames
+     */
+    protected final RawImageSequenceHandler rawFile;
+    
+    /**
+     * The frames that have been read, but not yet returned by next();
+     * may also contain END_OF_SEQUENCE or a RuntimeException
+     */
+    protected final ArrayBlockingQueue<Object> readyFrames;
+    
+    /**
+     * Buffers of recycled frames for reuse
+     */
+    protected final ConcurrentLinkedQueue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+    
+    /**
+     * All frames that have been returned by next() and not yet recycled
+     */
+    protected final Set<RawFileFrame> handedOut = Collections.newSetFromMap(new IdentityHashMap<RawFileFrame, Boolean>());
+    
+    /**
+     * The thread that reads the frames
+     */
+    protected final Thread reader;
+    
+    /**
+     * The number of the next frame that will be returned by next()
+     */
+    protected int nextFrame;
+    
+    /**
+     * The number of the first frame after the range
+     */
+    protected final int endFrame;
+    
+    /**
+     * Set after the end of the sequence has been reached or the prefetcher has been closed
+     */
+    protected volatile boolean finished = false;
+    
+    /**
+     * Tells the reader thread to quit; set by close()
+     */
+    protected volatile boolean stopped = false;
+    
+    /**
+     * Constructor. Immediately starts reading frames.
+     * 
+     * @param _rawFile the RAW file to read from
+     * @param firstFrame the 0-based number of the first frame to read
+     * @param _endFrame the 0-based number of the first frame after the range to read
+     * @param depth the maximum number of frames to read ahead
+     */
+    public RawFramePrefetcher(RawImageSequenceHandler _rawFile, int firstFrame, int _endFrame, int depth)
+    {
+        if (_rawFile == null)
+        {
+            throw new IllegalArgumentException("Need a valid RawImageSequenceHandler!");
+        }
+        if ((firstFrame < 0) || (_endFrame < firstFrame) || (_endFrame > _rawFile.getFrameCount()))
+        {
+            throw new IllegalArgumentException("Invalid frame range " + firstFrame + " ... " + _endFrame);
+        }
+        if (depth < 1)
+        {
+            throw new IllegalArgumentException("Need to read ahead at least one frame");
+        }
+        
+        rawFile = _rawFile;
+        nextFrame = firstFrame;
+        endFrame = _endFrame;
+        
+        readyFrames = new ArrayBlockingQueue<>(depth);
+        
+        final int start = firstFrame;
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                readFrames(start);
+            }
+        }, "RawFramePrefetcher");
+        reader.setDaemon(true);
+        reader.start();
+    }
+    
+    /**
+     * Constructor for prefetching all frames of a file
+     * 
+     * @param _rawFile the RAW file to read from
+     * @param depth the maximum number of frames to read ahead
+     */
+    public RawFramePrefetcher(RawImageSequenceHandler _rawFile, int depth)
+    {
+        this(_rawFile, 0, (int) _rawFile.getFrameCount(), depth);
+    }
+    
+    /**
+     * The body of the reader thread
+     * 
+     * @param start the number of the first frame to read
+     */
+    protected void readFrames(int start)
+    {
+        int frameSize = (int) rawFile.getFrameSize();
+        
+        try
+        {
+            for (int n = start; n < endFrame; n++)
+            {
+                if (stopped) return;
+                
+                byte[] buf = freeBuffers.poll();
+                if (buf == null) buf = new byte[frameSize];
+                
+                rawFile.readFrameData(n, buf);
+                if (!(enqueue(rawFile.createFrame(buf)))) return;
+            }
+            enqueue(END_OF_SEQUENCE);
+        }
+        catch (Throwable t)
+        {
+            // hand the error over to the consumer, including Errors like an
+            // OutOfMemoryError for a frame buffer; otherwise next() would wait forever
+            enqueue((t instanceof RuntimeException) ? t : new IllegalStateException("Reading frames failed", t));
+        }
+    }
+    
+    /**
+     * Waits for space in the queue and adds an object, unless the
+     * prefetcher is closed in the meantime
+     * 
+     * @param o the frame, END_OF_SEQUENCE or an exception
+     * 
+     * @return true if the object has been added, false if the reader has to quit
+     */
+    protected boolean enqueue(Object o)
+    {
+        try
+        {
+            while (!stopped)
+            {
+                if (readyFrames.offer(o, STOP_POLL_MS, TimeUnit.MILLISECONDS)) return true;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // not caused by close(); quit anyway
+        }
+        return false;
+    }
+    
+    /**
+     * Returns the next frame of the sequence. Blocks until the frame is available.
+     * 
+     * @return the next frame or null if the end of the range has been reached
+     */
+    public RawFileFrame next()
+    {
+        if (finished) return null;
+        
+        Object o;
+        try
+        {
+            o = readyFrames.take();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException("Interrupted while waiting for frame " + nextFrame);
+        }
+        
+        if (o == END_OF_SEQUENCE)
+        {
+            finished = true;
+            return null;
+        }
+        if (o instanceof RuntimeException)
+        {
+            finished = true;
+            throw (RuntimeException) o;
+        }
+        
+        RawFileFrame f = (RawFileFrame) o;
+        synchronized (handedOut)
+        {
+            handedOut.add(f);
+        }
+        nextFrame++;
+        
+        return f;
+    }
+    
+    /**
+     * @return the 0-based number of the frame that will be returned by the next call of next()
+     */
+    public int getNextFrameNumber()
+    {
+        return nextFrame;
+    }
+    
+    /**
+     * Hands back a frame that has been returned by next(). The frame must
+     * not be used anymore after calling this method, because its memory
+     * will be overwritten with one of the following frames.
+     * 
+     * Frames that have not been created by this prefetcher are ignored.
+     * 
+     * @param f the frame that is not needed anymore
+     */
+    public void recycle(RawFileFrame f)
+    {
+        synchronized (handedOut)
+        {
+            if (!(handedOut.remove(f))) return;
+        }
+        
+        freeBuffers.offer(f.data.data.array());
+    }
+    
+    /**
+     * Stops the reader thread. A frame that is currently being read is
+     * finished first. Frames that have been returned by next() remain valid.
+     */
+    @Override
+    public void close()
+    {
+        finished = true;
+        stopped = true;
+        try
+        {
+            reader.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        readyFrames.clear();
+        freeBuffers.clear();
+        
+        // wakes up a consumer that is blocked in next()
+        readyFrames.offer(END_OF_SEQUENCE);
+    }
+}
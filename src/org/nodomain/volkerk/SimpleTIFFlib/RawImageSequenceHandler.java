@@ -11,12 +11,17 @@
  */
 package org.nodomain.volkerk.SimpleTIFFlib;
 
+import java.io.Closeable;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
 import org.nodomain.volkerk.LoggingLib.LoggingClass;
 
 /**
@@ -24,45 +29,79 @@ import org.nodomain.volkerk.LoggingLib.LoggingClass;
  * The RAW files contain pure data blocks of 14-bit little endian CFA data (one
  * per frame) plus a little info block at the file end
  */
-public class RawImageSequenceHandler extends LoggingClass{
+public class RawImageSequenceHandler extends LoggingClass implements Closeable {
     
-    protected static final int FOOTER_OFFSET_FROM_FILE_END = 192;
-    protected static final int FOOTER_MAGIC_OFFSET = 0;
-    protected static final int FOOTER_MAGIC_LENGTH = 4;
+    /**
+     * The ways of opening a RAW file
+     */
+    public enum OPEN_MODE
+    {
+        /**
+         * Only read access; no write permissions for the file required.
+         * Frames can be read concurrently from several threads.
+         */
+        READ_ONLY,
+        
+        /**
+         * Every written frame is immediately and synchronously stored on
+         * disk, including the file metadata
+         */
+        WRITE_THROUGH,
+        
+        /**
+         * Written frames are collected in memory and stored on disk in
+         * larger, sequential chunks. Data is only guaranteed to be on disk
+         * after sync() or close()
+         */
+        BUFFERED
+    }
+    
+    protected static final int FOOTER_OFFSET_FROM_FILE_END = RawFooter.SIZE;
     protected static final String MAGIC = "RAWM";
     
-    protected static final int FOOTER_WIDTH_OFFSET = 4;
-    protected static final int FOOTER_HEIGHT_OFFSET = 6;
+    /**
+     * In BUFFERED mode, pending frames are written (but not synced) when
+     * they exceed this number of bytes
+     */
+    protected static final long MAX_PENDING_BYTES = 64 * 1024 * 1024;
     
-    protected static final int FOOTER_FRAME_SIZE_OFFSET = 8;
+    /**
+     * The Path for the RAW input file
+     */
+    protected Path inFilePath;
     
-    protected static final int FOOTER_FRAME_COUNT_OFFSET = 12;
+    /**
+     * The channel for accessing the RAW file contents. All accesses
+     * are positional, so it can be shared between threads
+     */
+    protected FileChannel fData;
     
-    protected static final int FOOTER_FRAME_SKIP_OFFSET = 16;
-    protected static final int FOOTER_FPSx1000_OFFSET = 20;
+    /**
+     * The mode the file has been opened with
+     */
+    protected OPEN_MODE openMode;
     
-    protected static final int FOOTER_RAW_INFO_API_VERSION_OFFSET = 32;
-    //protected static final int FOOTER_RAW_INFO_BUFPTR_OFFSET = 40;
-    protected static final int FOOTER_RAW_INFO_HEIGHT_OFFSET = 40;
-    protected static final int FOOTER_RAW_INFO_WIDTH_OFFSET = 44;
-    protected static final int FOOTER_RAW_INFO_PITCH_OFFSET = 48;
-    protected static final int FOOTER_RAW_INFO_FRAMESIZE_OFFSET = 52;
-    protected static final int FOOTER_RAW_INFO_BPP_OFFSET = 56;
-    protected static final int FOOTER_RAW_INFO_BLACKLEVEL_OFFSET = 60;
-    protected static final int FOOTER_RAW_INFO_WHITELEVEL_OFFSET = 64;
-    protected static final int FOOTER_RAW_INFO_CROPFIELD_OFFSET = 68;
-    protected static final int FOOTER_RAW_INFO_ACTIVEAREA_OFFSET = 84;
-    protected static final int FOOTER_RAW_INFO_DYNAMICRANGE_OFFSET = 84+26*4;
+    /**
+     * In BUFFERED mode: the frames that have been written but not yet
+     * stored in the file, indexed by frame number, in file byte order
+     */
+    protected final TreeMap<Integer, byte[]> pendingFrames = new TreeMap<>();
     
     /**
-     * The Path for the RAW input file
+     * The total size of all pending frames
      */
-    protected Path inFilePath;
+    protected long pendingBytes = 0;
+    
+    /**
+     * If true, getFrame() returns frames which directly view the mapped
+     * file region instead of a copy of the frame data
+     */
+    protected boolean useMemoryMapping;
     
     /**
-     * A RandomAccessFile object for accessing the RAW file contents
+     * The decoded footer, read once when opening the file
      */
-    protected RandomAccessFile fData;
+    protected RawFooter footer;
     
     public RawImageSequenceHandler(String fname)
     {
@@ -71,120 +110,168 @@ public class RawImageSequenceHandler extends LoggingClass{
     
     public RawImageSequenceHandler(Path fPath)
     {
-        dbg("Constructor called with Path arg ", fPath);
+        this(fPath, false);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param fPath the Path of the RAW file
+     * @param _useMemoryMapping if true, the frames returned by getFrame() view the memory mapped file without copying the data
+     */
+    public RawImageSequenceHandler(Path fPath, boolean _useMemoryMapping)
+    {
+        this(fPath, OPEN_MODE.WRITE_THROUGH, _useMemoryMapping);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param fPath the Path of the RAW file
+     * @param mode how to open the file
+     * @param _useMemoryMapping if true, the frames returned by getFrame() view the memory mapped file without copying the data; in READ_ONLY mode, these frames can't be modified
+     */
+    public RawImageSequenceHandler(Path fPath, OPEN_MODE mode, boolean _useMemoryMapping)
+    {
+        dbg("Constructor called with Path arg ", fPath, " and mode ", mode);
         inFilePath = fPath;
+        openMode = mode;
+        useMemoryMapping = _useMemoryMapping;
 
-        preLog(LVL_DEBUG, "Trying to open RandomAccessFile for ", fPath);
+        preLog(LVL_DEBUG, "Trying to open FileChannel for ", fPath);
         try
         {
-            fData = new RandomAccessFile(fPath.toString(), "rws");
+            if (mode == OPEN_MODE.READ_ONLY)
+            {
+                fData = FileChannel.open(fPath, StandardOpenOption.READ);
+            }
+            else if (mode == OPEN_MODE.WRITE_THROUGH)
+            {
+                fData = FileChannel.open(fPath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+            }
+            else
+            {
+                fData = FileChannel.open(fPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
         }
         catch (Exception e)
         {
             resultLog(LOG_FAIL);
-            return;
-        }
-        
-        if (fData == null)
-        {
-            resultLog(LOG_FAIL);
-            return;
+            throw new IllegalArgumentException("Can't open " + fPath.toString() + ": " + e.getMessage());
         }
         
-        // check the magic bytes in the footer
-        if (!(getMagic().equals(MAGIC)))
+        try
         {
-            failed("Wrong file type; not a RAW file");
-            throw new IllegalArgumentException(fPath.toString() + " is not a valid RAW file");
+            footer = readFooter();
+            
+            // check the magic bytes in the footer
+            if (!(getMagic().equals(MAGIC)))
+            {
+                failed("Wrong file type; not a RAW file");
+                throw new IllegalArgumentException(fPath.toString() + " is not a valid RAW file");
+            }
+            
+            // make sure that this is 14 bpp, because we can't handle anything else
+            if (getRawInfo_BitsPerPixel() != 14)
+            {
+                failed("Wrong number of bits per pixel (need 14, got ", getRawInfo_BitsPerPixel(), ")");
+                throw new IllegalArgumentException(fPath.toString() + " is not a valid RAW file");
+            }
         }
-        
-        // make sure that this is 14 bpp, because we can't handle anything else
-        if (getRawInfo_BitsPerPixel() != 14)
+        catch (IllegalArgumentException e)
         {
-            failed("Wrong number of bits per pixel (need 14, got ", getRawInfo_BitsPerPixel(), ")");
-            throw new IllegalArgumentException(fPath.toString() + " is not a valid RAW file");
+            try
+            {
+                fData.close();
+            }
+            catch (IOException e2) {}
+            throw e;
         }
         
         resultLog(LOG_OK);
     }
     
-    protected void seekInFooter(int offset)
+    /**
+     * @return the mode the file has been opened with
+     */
+    public OPEN_MODE getOpenMode()
     {
-        try
-        {
-            fData.seek(fData.length() - FOOTER_OFFSET_FROM_FILE_END + offset);
-        }
-        catch (Exception e)
-        {
-            failed("seekFromEnd: this shouldn't happen: ", e.getMessage());
-            System.exit(42);
-        }
+        return openMode;
     }
     
-    public String getMagic()
+    /**
+     * Reads the footer at the end of the file with one positional read
+     * 
+     * @return the decoded footer
+     */
+    protected RawFooter readFooter()
     {
-        seekInFooter(FOOTER_OFFSET_FROM_FILE_END + FOOTER_MAGIC_OFFSET);
-        
-        byte[] buf = new byte[FOOTER_MAGIC_LENGTH];
-        
-        for (int i = 0; i < FOOTER_MAGIC_LENGTH; i++)
+        ByteBuffer buf = ByteBuffer.allocate(FOOTER_OFFSET_FROM_FILE_END);
+        try
         {
-            seekInFooter(FOOTER_MAGIC_OFFSET + i);
-            try
+            FileChannel fc = fData;
+            long pos = fc.size() - FOOTER_OFFSET_FROM_FILE_END;
+            if (pos < 0)
             {
-                buf[i] = fData.readByte();
+                throw new IllegalArgumentException(inFilePath.toString() + " is too short for a RAW file");
             }
-            catch (Exception e)
+            
+            while (buf.hasRemaining())
             {
-                return null;
+                int n = fc.read(buf, pos + buf.position());
+                if (n < 0) throw new EOFException();
             }
-            
         }
-        
-        try
+        catch (IOException e)
         {
-            return new String(buf, "US-ASCII");
+            throw new IllegalArgumentException("Can't read the footer of " + inFilePath.toString() + ": " + e.getMessage());
         }
-        catch (Exception e) {}
         
-        // we should never reach this point
-        return null;
+        buf.flip();
+        return new RawFooter(buf);
+    }
+    
+    /**
+     * @return the decoded footer of the RAW file
+     */
+    public RawFooter getFooter()
+    {
+        return footer;
+    }
+    
+    public String getMagic()
+    {
+        return footer.getMagic();
     }
     
     public int getWidth()
     {
-        seekInFooter(FOOTER_WIDTH_OFFSET);
-        return getUint16();
+        return footer.getWidth();
     }
     
     public int getHeight()
     {
-        seekInFooter(FOOTER_HEIGHT_OFFSET);
-        return getUint16();
+        return footer.getHeight();
     }
     
     public long getFrameSize()
     {
-        seekInFooter(FOOTER_FRAME_SIZE_OFFSET);
-        return getUint32();
+        return footer.getFrameSize();
     }
     
     public long getFrameCount()
     {
-        seekInFooter(FOOTER_FRAME_COUNT_OFFSET);
-        return getUint32();
+        return footer.getFrameCount();
     }
     
     public long getFrameSkip()
     {
-        seekInFooter(FOOTER_FRAME_SKIP_OFFSET);
-        return getUint32();        
+        return footer.getFrameSkip();
     }
     
     public long getFrameRate1000()
     {
-        seekInFooter(FOOTER_FPSx1000_OFFSET);
-        return getUint32();        
+        return footer.getFrameRate1000();
     }
     
     public double getFrameRate()
@@ -194,82 +281,57 @@ public class RawImageSequenceHandler extends LoggingClass{
     
     public long getRawInfo_APIVersion()
     {
-        seekInFooter(FOOTER_RAW_INFO_API_VERSION_OFFSET);
-        return getUint32();        
+        return footer.getRawInfo_APIVersion();
     }
     
-//    public long getRawInfo_BufferPointer()
-//    {
-//        seekInFooter(FOOTER_RAW_INFO_BUFPTR_OFFSET);
-//        return getUint32();        
-//    }
-    
     public long getRawInfo_Height()
     {
-        seekInFooter(FOOTER_RAW_INFO_HEIGHT_OFFSET);
-        return getUint32();        
+        return footer.getRawInfo_Height();
     }
     
     public long getRawInfo_Width()
     {
-        seekInFooter(FOOTER_RAW_INFO_WIDTH_OFFSET);
-        return getUint32();        
+        return footer.getRawInfo_Width();
     }
     
     public long getRawInfo_Pitch()
     {
-        seekInFooter(FOOTER_RAW_INFO_PITCH_OFFSET);
-        return getUint32();        
+        return footer.getRawInfo_Pitch();
     }
     
     public long getRawInfo_FrameSize()
     {
-        seekInFooter(FOOTER_RAW_INFO_FRAMESIZE_OFFSET);
-        return getUint32();        
+        return footer.getRawInfo_FrameSize();
     }
     
     public long getRawInfo_BitsPerPixel()
     {
-        seekInFooter(FOOTER_RAW_INFO_BPP_OFFSET);
-        return getUint32();        
+        return footer.getRawInfo_BitsPerPixel();
     }
     
     public long getRawInfo_BlackLevel()
     {
-        seekInFooter(FOOTER_RAW_INFO_BLACKLEVEL_OFFSET);
-        return getUint32();        
+        return footer.getRawInfo_BlackLevel();
     }
     
     public long getRawInfo_WhiteLevel()
     {
-        seekInFooter(FOOTER_RAW_INFO_WHITELEVEL_OFFSET);
-        return getUint32();        
+        return footer.getRawInfo_WhiteLevel();
     }
     
     public long[] getRawInfo_Crop()
     {
-        seekInFooter(FOOTER_RAW_INFO_CROPFIELD_OFFSET);
-        long[] result = new long[4];
-        
-        for (int i=0; i<4; i++) result[i] = getUint32();
-        
-        return result;
+        return footer.getRawInfo_Crop();
     }
     
     public long[] getRawInfo_ActiveArea()
     {
-        seekInFooter(FOOTER_RAW_INFO_ACTIVEAREA_OFFSET);
-        long[] result = new long[4];
-        
-        for (int i=0; i<4; i++) result[i] = getUint32();
-        
-        return result;
+        return footer.getRawInfo_ActiveArea();
     }
     
     public long getRawInfo_DynamicRange100()
     {
-        seekInFooter(FOOTER_RAW_INFO_DYNAMICRANGE_OFFSET);
-        return getUint32();        
+        return footer.getRawInfo_DynamicRange100();
     }
     
     public double getRawInfo_DynamicRange()
@@ -277,44 +339,6 @@ public class RawImageSequenceHandler extends LoggingClass{
         return getRawInfo_DynamicRange100() / 100.0;
     }
     
-    protected int getUint16()
-    {
-        try
-        {
-            int a = fData.readUnsignedByte();
-            int b = fData.readUnsignedByte();
-            return ((b & 0xff) << 8) | (a & 0xff);
-        }
-        catch (Exception e)
-        {
-            System.err.println("Aaaaaaaaaargh.......... getUint16 in RAW");
-            System.exit(42);
-        }
-        
-        // we should never reach this point
-        return -1;
-    }
-    
-    protected long getUint32()
-    {
-        try
-        {
-            int a = fData.readUnsignedByte();
-            int b = fData.readUnsignedByte();
-            int c = fData.readUnsignedByte();
-            int d = fData.readUnsignedByte();
-            return (((d & 0xff) << 24) | ((c & 0xff) << 16) | ((b & 0xff) << 8) | (a & 0xff));
-        }
-        catch (Exception e)
-        {
-            System.err.println("Aaaaaaaaaargh.......... getUint32 in RAW");
-            System.exit(42);
-        }
-        
-        // we should never reach this point
-        return -1;
-    }
-    
     public void dumpInfo()
     {
         System.err.println("----------- Raw File Footer -----------");
@@ -373,27 +397,102 @@ public class RawImageSequenceHandler extends LoggingClass{
      * All manipulations on the resulting object will be in memory only. The
      * data has to be written back to file explicitly.
      * 
+     * If memory mapping is enabled, the frame views the mapped file region
+     * directly and the 16-bit word swap is done when accessing the pixels.
+     * The mapping is private, so modifications of the frame never reach the file.
+     * 
      * @param n the 0-based frame number
      * 
      * @return an instance of RawFileFrame of the selected frame
      */
     public RawFileFrame getFrame(int n)
     {
-        if (n >= getFrameCount())
+        checkFrameNumber(n);
+        
+        if (useMemoryMapping && !(isPending(n))) return getMappedFrame(n);
+        
+        byte[] frameData = new byte[(int) footer.getFrameSize()];
+        
+        logPush("Reading ", frameData.length, " bytes from RAW file");
+        readFrameData(n, frameData);
+        logPop("Done");
+        
+//        return new RawFileFrame(new FlexByteArray(frameData), (int) getWidth(), (int) getHeight(),
+//                (int) getRawInfo_BitsPerPixel(), longArrayToIntArray(getRawInfo_ActiveArea()),
+//                longArrayToIntArray(getRawInfo_Crop()));
+        
+        // the array is not used anywhere else, so it doesn't need to be cloned
+        return createFrame(frameData);
+    }
+    
+    /**
+     * Throws an exception if a frame number is invalid
+     * 
+     * @param n the 0-based frame number
+     */
+    protected void checkFrameNumber(int n)
+    {
+        if ((n < 0) || (n >= footer.getFrameCount()))
         {
             throw new IllegalArgumentException("Frame number " + n + " is beyond file end!");
         }
+    }
+    
+    /**
+     * Checks whether a frame has been written but not yet stored in the file
+     * 
+     * @param n the 0-based frame number
+     * 
+     * @return true if the frame is in the list of pending frames
+     */
+    protected boolean isPending(int n)
+    {
+        synchronized (pendingFrames)
+        {
+            return pendingFrames.containsKey(n);
+        }
+    }
+    
+    /**
+     * Reads the data of a frame into an existing array and brings it into
+     * the byte order of the pixel bit stream. Can be called from any thread.
+     * 
+     * @param n the 0-based frame number
+     * @param dst the array to read into; needs at least getFrameSize() bytes
+     */
+    protected void readFrameData(int n, byte[] dst)
+    {
+        checkFrameNumber(n);
+        
+        long frameSize = footer.getFrameSize();
+        if (dst.length < frameSize)
+        {
+            throw new IllegalArgumentException("Buffer too small for frame data");
+        }
         
-        byte[] frameData = new byte[(int) getFrameSize()];
+        // frames that have been written but not yet stored in the
+        // file have to be taken from the pending list
+        synchronized (pendingFrames)
+        {
+            byte[] pending = pendingFrames.get(n);
+            if (pending != null)
+            {
+                System.arraycopy(pending, 0, dst, 0, (int) frameSize);
+                RawFileFrame.swapWords(dst, (int) frameSize);
+                return;
+            }
+        }
         
-        logPush("Reading ", getFrameSize(), " bytes from RAW file");
         try
         {
-            long pos = n * getFrameSize();
-            fData.seek(n * getFrameSize());
-            assert(fData.getFilePointer() == pos);
-            fData.readFully(frameData);
-            frameData = swapBytes(frameData);
+            // positional read, without touching the file pointer
+            ByteBuffer buf = ByteBuffer.wrap(dst, 0, (int) frameSize);
+            long pos = n * frameSize;
+            while (buf.hasRemaining())
+            {
+                if (fData.read(buf, pos + buf.position()) < 0) throw new EOFException();
+            }
+            RawFileFrame.swapWords(dst, (int) frameSize);
         }
         catch (EOFException e)
         {
@@ -403,43 +502,57 @@ public class RawImageSequenceHandler extends LoggingClass{
         {
             throw new IllegalArgumentException("Can't read frame data from file: " + e.getMessage());
         }
-            
-        logPop("Done");
-        
-//        return new RawFileFrame(new FlexByteArray(frameData), (int) getWidth(), (int) getHeight(),
-//                (int) getRawInfo_BitsPerPixel(), longArrayToIntArray(getRawInfo_ActiveArea()),
-//                longArrayToIntArray(getRawInfo_Crop()));
-        
-        return new RawFileFrame(new FlexByteArray(frameData), (int) getWidth(), (int) getHeight(),
-                (int) getRawInfo_BitsPerPixel());
     }
     
     /**
-     * Takes a byte array with an even number of bytes and swap the bytes
-     * on odd positions with its even neighbors.
+     * Creates a frame that uses an array with frame data without copying it
+     * 
+     * @param frameData the frame data in the byte order of the pixel bit stream
+     * 
+     * @return a RawFileFrame for the data
+     */
+    protected RawFileFrame createFrame(byte[] frameData)
+    {
+        return new RawFileFrame(new FlexByteArray(ByteBuffer.wrap(frameData)), footer.getWidth(), footer.getHeight(),
+                (int) footer.getRawInfo_BitsPerPixel());
+    }
+    
+    /**
+     * Maps the region of a frame into memory and returns a RawFileFrame viewing it
      * 
-     * @param buf the array to swap
+     * @param n the 0-based frame number
      * 
-     * @return an array with the swapped content or null if the array length not even
+     * @return an instance of RawFileFrame with the data in file byte order
      */
-    protected byte[] swapBytes(byte[] buf)
+    protected RawFileFrame getMappedFrame(int n)
     {
-        // this method works only with an even number of bytes
-        if ((buf.length % 2) != 0) return null;
+        long frameSize = footer.getFrameSize();
         
-        byte[] result = new byte[buf.length];
-        for (int ptr=0; ptr < buf.length; ptr+= 2)
+        ByteBuffer buf;
+        try
         {
-            result[ptr] = buf[ptr+1];
-            result[ptr+1] = buf[ptr];
+            // the mapping remains valid until the buffer is garbage collected;
+            // a private mapping needs write access to the channel
+            FileChannel.MapMode mm = (openMode == OPEN_MODE.READ_ONLY) ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.PRIVATE;
+            buf = fData.map(mm, n * frameSize, frameSize);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Can't map frame data: " + e.getMessage());
         }
         
-        return result;
+        int w = footer.getWidth();
+        int h = footer.getHeight();
+        return new RawFileFrame(new FlexByteArray(buf), w, h, (int) footer.getRawInfo_BitsPerPixel(),
+                new int[]{0, 0, w, h}, new int[]{0, 0, w, h}, true);
     }
     
     /**
      * Write a RawFileFrame back to the RAW file
      * 
+     * In BUFFERED mode, the data is only guaranteed to be stored in
+     * the file after calling sync() or close().
+     * 
      * @param f the RawFileFrame instance with the data to be written
      * @param n the 0-based frame number within the RAW file to write to
      */
@@ -450,26 +563,151 @@ public class RawImageSequenceHandler extends LoggingClass{
             throw new IllegalArgumentException("Need a valid RawFileFrame object!");
         }
         
-        if (n >= getFrameCount())
+        if ((n < 0) || (n >= getFrameCount()))
         {
             throw new IllegalArgumentException("Frame number " + n + " is beyond file end!");
         }
         
+        if (openMode == OPEN_MODE.READ_ONLY)
+        {
+            throw new IllegalArgumentException(inFilePath.toString() + " has been opened read-only!");
+        }
+        
         byte data[] = f.getFrameData();        
         if (data.length != getFrameSize())
         {
             throw new IllegalArgumentException("The RawFileFrame contains invalid data");
         }
+        RawFileFrame.swapWords(data);
+        
+        if (openMode == OPEN_MODE.BUFFERED)
+        {
+            synchronized (pendingFrames)
+            {
+                // a later write of the same frame replaces the earlier one
+                byte[] old = pendingFrames.put(n, data);
+                if (old == null) pendingBytes += data.length;
+                
+                if (pendingBytes > MAX_PENDING_BYTES) writePendingFrames();
+            }
+            return;
+        }
         
         try
         {
-            data = swapBytes(data);
-            fData.seek(n * getFrameSize());
-            fData.write(data);
+            writeFully(ByteBuffer.wrap(data), n * getFrameSize());
         }
         catch (Exception e)
         {
             throw new IllegalArgumentException("Couldn't write (all) frame data to the file!");
         }
     }
+    
+    /**
+     * Writes all pending frames to the file, in ascending order. Runs
+     * of consecutive frames are written with a single call.
+     * 
+     * The caller must hold the lock on pendingFrames
+     */
+    protected void writePendingFrames()
+    {
+        long frameSize = getFrameSize();
+        ArrayList<ByteBuffer> run = new ArrayList<>();
+        int runStart = -1;
+        
+        try
+        {
+            for (Map.Entry<Integer, byte[]> e : pendingFrames.entrySet())
+            {
+                int n = e.getKey();
+                if ((runStart >= 0) && (n != (runStart + run.size())))
+                {
+                    writeRun(run, runStart * frameSize);
+                    run.clear();
+                }
+                if (run.isEmpty()) runStart = n;
+                run.add(ByteBuffer.wrap(e.getValue()));
+            }
+            if (!(run.isEmpty())) writeRun(run, runStart * frameSize);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Couldn't write (all) frame data to the file!");
+        }
+        
+        pendingFrames.clear();
+        pendingBytes = 0;
+    }
+    
+    /**
+     * Writes a list of consecutive frames to the file
+     * 
+     * @param run the frame data in file byte order
+     * @param pos the file position of the first frame
+     */
+    protected void writeRun(ArrayList<ByteBuffer> run, long pos) throws IOException
+    {
+        ByteBuffer[] bufs = run.toArray(new ByteBuffer[run.size()]);
+        long total = 0;
+        for (ByteBuffer b : bufs) total += b.remaining();
+        
+        // gathering writes are not positional, so we have to set
+        // the position first; that's safe because all
+        // writes happen under the lock of pendingFrames
+        fData.position(pos);
+        long written = 0;
+        while (written < total) written += fData.write(bufs);
+    }
+    
+    /**
+     * Writes a buffer at a specific position, using as many positional writes as necessary
+     */
+    protected void writeFully(ByteBuffer buf, long pos) throws IOException
+    {
+        while (buf.hasRemaining())
+        {
+            fData.write(buf, pos + buf.position());
+        }
+    }
+    
+    /**
+     * Stores all pending frames in the file and makes sure that all
+     * written data has physically been stored on disk
+     */
+    public void sync()
+    {
+        if (openMode == OPEN_MODE.READ_ONLY) return;
+        
+        synchronized (pendingFrames)
+        {
+            writePendingFrames();
+            try
+            {
+                fData.force(true);
+            }
+            catch (IOException e)
+            {
+                throw new IllegalArgumentException("Couldn't sync " + inFilePath.toString() + ": " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Stores all pending frames and closes the file. Frames that have been
+     * returned by getFrame() remain valid.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (!(fData.isOpen())) return;
+        
+        try
+        {
+            sync();
+        }
+        finally
+        {
+            fData.close();
+        }
+    }
 }
@@ -0,0 +1,381 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.nodomain.volkerk.LoggingLib.LoggingClass;
+
+/**
+ * Converts the frames of a Magic Lantern RAW file into a sequence of DNG files,
+ * one file per frame.
+ * 
+ * The frames are converted in parallel by a pool of worker threads. Each
+ * worker reads its frame with a positional read, so the RawImageSequenceHandler
+ * should be opened in READ_ONLY mode. The number of frames in memory is
+ * limited; their buffers are reused for the following frames.
+ * 
+ * The pixel data of a RAW frame is already a byte-aligned, MSB-first bit
+ * stream as required by DNG, so it is written to the DNG file as it is.
+ * Optionally, the frames are compressed with Deflate or lossless JPEG; the
+ * strips of each frame are then compressed in parallel.
+ */
+public class RawToDNGConverter extends LoggingClass {
+    
+    /**
+     * The number of rows per strip in compressed DNG files
+     */
+    protected static final int COMPRESSED_ROWS_PER_STRIP = 16;
+    
+    /**
+     * Receives progress information during the conversion
+     */
+    public interface ProgressListener
+    {
+        /**
+         * Called after each frame. Calls can come from any worker thread,
+         * but never at the same time.
+         * 
+         * @param framesDone the number of frames converted so far
+         * @param framesTotal the number of frames to convert
+         * @param framesPerSecond the average conversion speed so far
+         */
+        void frameDone(int framesDone, int framesTotal, double framesPerSecond);
+    }
+    
+    /**
+     * The source of the frames
+     */
+    protected final RawImageSequenceHandler rawFile;
+    
+    /**
+     * The directory for the DNG files
+     */
+    protected final Path outDir;
+    
+    /**
+     * The first part of the DNG file names; followed by the frame number
+     */
+    protected final String baseName;
+    
+    /**
+     * The number of worker threads
+     */
+    protected int threadCount;
+    
+    /**
+     * The maximum number of frames that are in memory at the same time
+     */
+    protected int maxFramesInFlight;
+    
+    /**
+     * An optional receiver for progress information
+     */
+    protected ProgressListener listener = null;
+    
+    /**
+     * The compression scheme for the DNG files
+     */
+    protected int compression = TIFF_TAG.COMPRESSION_NONE;
+    
+    /**
+     * The average speed of the last conversion
+     */
+    protected volatile double framesPerSecond = 0;
+    
+    /**
+     * Constructor. Uses one worker per CPU core and two frames in memory per worker.
+     * 
+     * @param _rawFile the RAW file to convert
+     * @param _outDir the directory for the DNG files
+     * @param _baseName the first part of the DNG file names, e. g. "M15-0006_"
+     */
+    public RawToDNGConverter(RawImageSequenceHandler _rawFile, Path _outDir, String _baseName)
+    {
+        if ((_rawFile == null) || (_outDir == null) || (_baseName == null))
+        {
+            throw new IllegalArgumentException("Need a valid RAW file, output directory and base name!");
+        }
+        
+        rawFile = _rawFile;
+        outDir = _outDir;
+        baseName = _baseName;
+        threadCount = Runtime.getRuntime().availableProcessors();
+        maxFramesInFlight = 2 * threadCount;
+    }
+    
+    /**
+     * Sets the number of worker threads
+     * 
+     * @param n the number of threads, at least 1
+     */
+    public void setThreadCount(int n)
+    {
+        if (n < 1) throw new IllegalArgumentException("Need at least one thread");
+        threadCount = n;
+    }
+    
+    /**
+     * Sets the maximum number of frames that are in memory at the same time
+     * 
+     * @param n the number of frames, at least 1
+     */
+    public void setMaxFramesInFlight(int n)
+    {
+        if (n < 1) throw new IllegalArgumentException("Need at least one frame in flight");
+        maxFramesInFlight = n;
+    }
+    
+    /**
+     * Sets the compression of the DNG files
+     * 
+     * @param _compression TIFF_TAG.COMPRESSION_NONE or a scheme supported by StripEncoder,
+     * e. g. TIFF_TAG.COMPRESSION_JPEG
+     */
+    public void setCompression(int _compression)
+    {
+        if ((_compression != TIFF_TAG.COMPRESSION_NONE) && !(StripEncoder.isSupported(_compression)))
+        {
+            throw new IllegalArgumentException("Unsupported compression " + _compression);
+        }
+        compression = _compression;
+    }
+    
+    /**
+     * Sets a receiver for progress information
+     * 
+     * @param l the receiver or null
+     */
+    public void setProgressListener(ProgressListener l)
+    {
+        listener = l;
+    }
+    
+    /**
+     * @return the average number of frames per second of the last conversion
+     */
+    public double getFramesPerSecond()
+    {
+        return framesPerSecond;
+    }
+    
+    /**
+     * Returns the name of the DNG file for a frame
+     * 
+     * @param n the 0-based frame number
+     * 
+     * @return the Path of the DNG file
+     */
+    public Path getFramePath(int n)
+    {
+        return outDir.resolve(String.format("%s%06d.dng", baseName, n));
+    }
+    
+    /**
+     * Converts all frames of the RAW file. Existing files will be overwritten.
+     * 
+     * @return the number of converted frames
+     */
+    public int convert()
+    {
+        return convert(0, (int) rawFile.getFrameCount());
+    }
+    
+    /**
+     * Converts a range of frames. Existing files will be overwritten.
+     * 
+     * @param firstFrame the 0-based number of the first frame to convert
+     * @param endFrame the 0-based number of the first frame after the range
+     * 
+     * @return the number of converted frames
+     */
+    public int convert(int firstFrame, final int endFrame)
+    {
+        if ((firstFrame < 0) || (endFrame < firstFrame) || (endFrame > rawFile.getFrameCount()))
+        {
+            throw new IllegalArgumentException("Invalid frame range " + firstFrame + " ... " + endFrame);
+        }
+        
+        logPush("Converting frames ", firstFrame, " to ", endFrame - 1, " with ", threadCount, " threads");
+        
+        final int frameSize = (int) rawFile.getFrameSize();
+        final int total = endFrame - firstFrame;
+        
+        final Semaphore inFlight = new Semaphore(maxFramesInFlight);
+        final ConcurrentLinkedQueue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+        final AtomicInteger done = new AtomicInteger(0);
+        final AtomicReference<RuntimeException> error = new AtomicReference<>();
+        final long t0 = System.nanoTime();
+        
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+        try
+        {
+            for (int n = firstFrame; (n < endFrame) && (error.get() == null); n++)
+            {
+                inFlight.acquireUninterruptibly();
+                
+                final int frameNum = n;
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            byte[] buf = freeBuffers.poll();
+                            if (buf == null) buf = new byte[frameSize];
+                            
+                            rawFile.readFrameData(frameNum, buf);
+                            writeDNG(getFramePath(frameNum), buf);
+                            freeBuffers.offer(buf);
+                            
+                            reportProgress(done, total, t0);
+                        }
+                        catch (RuntimeException e)
+                        {
+                            error.compareAndSet(null, e);
+                        }
+                        finally
+                        {
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+            try
+            {
+                while (!(pool.awaitTermination(1, TimeUnit.SECONDS))) {}
+            }
+            catch (InterruptedException e)
+            {
+                pool.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        if (error.get() != null)
+        {
+            failed(error.get().getMessage());
+            throw error.get();
+        }
+        
+        logPop("Done, ", framesPerSecond, " frames per second");
+        return done.get();
+    }
+    
+    /**
+     * Counts a finished frame, updates the speed and informs the listener
+     */
+    protected synchronized void reportProgress(AtomicInteger done, int framesTotal, long t0)
+    {
+        int framesDone = done.incrementAndGet();
+        double secs = (System.nanoTime() - t0) / 1e9;
+        if (secs > 0) framesPerSecond = framesDone / secs;
+        
+        if (listener != null) listener.frameDone(framesDone, framesTotal, framesPerSecond);
+    }
+    
+    /**
+     * Writes a DNG file with the frame data as a single strip or, if
+     * compressed, as strips of COMPRESSED_ROWS_PER_STRIP rows
+     * 
+     * @param p the Path of the DNG file
+     * @param frameData the pixel data in the byte order of the bit stream
+     */
+    protected void writeDNG(Path p, byte[] frameData)
+    {
+        TIFFWriter.Directory dir = buildDNGDirectory();
+        int h = rawFile.getHeight();
+        int bytesPerRow = (int) (rawFile.getFrameSize() / h);
+        
+        if (compression == TIFF_TAG.COMPRESSION_NONE) dir.setStrips(new ByteArrayStripSource(frameData, bytesPerRow, h, h));
+        else
+        {
+            StripSource rows = new ByteArrayStripSource(frameData, bytesPerRow, h, COMPRESSED_ROWS_PER_STRIP);
+            dir.setStrips(new CompressingStripSource(rows, compression, rawFile.getWidth(), (int) rawFile.getRawInfo_BitsPerPixel()));
+        }
+        
+        try (TIFFWriter w = new TIFFWriter(p))
+        {
+            w.writeDirectory(dir);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Couldn't write " + p.toString() + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Builds the IFD entries for a frame; the strips are added by the caller
+     * 
+     * @return a new directory with all DNG tags
+     */
+    protected TIFFWriter.Directory buildDNGDirectory()
+    {
+        int w = rawFile.getWidth();
+        int h = rawFile.getHeight();
+        
+        // the footer's active area (x1, y1, x2, y2) and crop (x, y, w, h)
+        // refer to the full sensor; use them only if they fit into the frame
+        long[] aa = rawFile.getRawInfo_ActiveArea();
+        if ((aa[2] <= aa[0]) || (aa[3] <= aa[1]) || (aa[2] > w) || (aa[3] > h))
+        {
+            aa = new long[] {0, 0, w, h};
+        }
+        long[] crop = rawFile.getRawInfo_Crop();
+        if ((crop[2] < 1) || (crop[3] < 1) || ((crop[0] + crop[2]) > (aa[2] - aa[0])) || ((crop[1] + crop[3]) > (aa[3] - aa[1])))
+        {
+            crop = new long[] {0, 0, aa[2] - aa[0], aa[3] - aa[1]};
+        }
+        
+        TIFFWriter.Directory hdr = new TIFFWriter.Directory();
+        hdr.addLong(TIFF_TAG.NEW_SUB_FILE_TYPE, 0);
+        hdr.addLong(TIFF_TAG.IMAGE_WIDTH, w);
+        hdr.addLong(TIFF_TAG.IMAGE_LENGTH, h);
+        hdr.addShort(TIFF_TAG.BITS_PER_SAMPLE, (int) rawFile.getRawInfo_BitsPerPixel());
+        hdr.addShort(TIFF_TAG.COMPRESSION, compression);
+        hdr.addShort(TIFF_TAG.PHOTOMETRIC_INTERPRETATION, TIFF_TAG.PHOTO_INTERPRETATION_CFA);
+        hdr.addAscii(TIFF_TAG.MAKE, "Canon");
+        hdr.addShort(TIFF_TAG.ORIENTATION, 1);
+        hdr.addShort(TIFF_TAG.SAMPLES_PER_PIXEL, 1);
+        hdr.addShort(TIFF_TAG.PLANAR_CONFIGURATION, TIFF_TAG.PLANAR_CFG_CHUNKY);
+        hdr.addAscii(TIFF_TAG.SOFTWARE, "SimpleTIFFlib");
+        hdr.addShort(TIFF_TAG.CFA_REPEAT_PATTERN_DIM, 2, 2);
+        hdr.addByte(TIFF_TAG.CFA_PATTERN, 0, 1, 1, 2);
+        hdr.addByte(TIFF_TAG.DNG_VERSION, 1, 1, 0, 0);
+        hdr.addByte(TIFF_TAG.DNG_BACKWARD_VERSION, 1, 1, 0, 0);
+        hdr.addAscii(TIFF_TAG.DNG_UNIQUE_CAMERA_MODEL, "Magic Lantern RAW");
+        hdr.addLong(TIFF_TAG.DNG_BLACK_LEVEL, rawFile.getRawInfo_BlackLevel());
+        hdr.addLong(TIFF_TAG.DNG_WHITE_LEVEL, rawFile.getRawInfo_WhiteLevel());
+        hdr.addLong(TIFF_TAG.DNG_DEFAULT_CROP_ORIGIN, crop[0], crop[1]);
+        hdr.addLong(TIFF_TAG.DNG_DEFAULT_CROP_SIZE, crop[2], crop[3]);
+        
+        // the RAW file contains no color information; use the identity matrix
+        hdr.addSRational(TIFF_TAG.DNG_COLOR_MATRIX_1, 1, 1, 0, 1, 0, 1, 0, 1, 1, 1, 0, 1, 0, 1, 0, 1, 1, 1);
+        hdr.addShort(TIFF_TAG.DNG_CALIBRATION_ILLUMINANT_1, TIFF_TAG.ILLUMINANT_D65);
+        
+        // DNG stores the active area as top, left, bottom, right
+        hdr.addLong(TIFF_TAG.DNG_ACTIVE_AREA, aa[1], aa[0], aa[3], aa[2]);
+        
+        return hdr;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Strips that are produced on the fly from rows of 16-bit samples. Only
+ * one row of samples and one strip are held in memory.
+ * 
+ * Samples with 8 bits are stored as bytes, samples with 16 bits as little
+ * endian words and all other depths as MSB first bit stream with byte
+ * aligned rows, as expected by TIFF and DNG readers.
+ */
+public class RowStripSource implements StripSource {
+    
+    /**
+     * Delivers the samples of the image row by row
+     */
+    public interface RowSource
+    {
+        /**
+         * Reads the samples of a row
+         * 
+         * @param y the 0-based row number; rows are requested in ascending order
+         * @param dst the array for the samples (width * samples per pixel values)
+         */
+        void getRow(int y, short[] dst);
+    }
+    
+    protected final RowSource src;
+    protected final int samplesPerRow;
+    protected final int height;
+    protected final int bpp;
+    protected final int rowsPerStrip;
+    protected final int bytesPerRow;
+    
+    /**
+     * Buffer for the samples of one row
+     */
+    protected final short[] row;
+    
+    /**
+     * Buffer for one strip
+     */
+    protected final byte[] strip;
+    
+    /**
+     * Constructor
+     * 
+     * @param _src the source of the rows
+     * @param width the image width in pixels
+     * @param _height the image height in pixels
+     * @param samplesPerPixel the number of samples per pixel
+     * @param _bpp the number of bits per sample (1...16)
+     * @param _rowsPerStrip the number of rows per strip
+     */
+    public RowStripSource(RowSource _src, int width, int _height, int samplesPerPixel, int _bpp, int _rowsPerStrip)
+    {
+        if ((width < 1) || (_height < 1) || (samplesPerPixel < 1) || (_rowsPerStrip < 1))
+        {
+            throw new IllegalArgumentException("Invalid image dimensions");
+        }
+        if ((_bpp < 1) || (_bpp > 16))
+        {
+            throw new IllegalArgumentException("Can't write samples with " + _bpp + " bits");
+        }
+        
+        src = _src;
+        samplesPerRow = width * samplesPerPixel;
+        height = _height;
+        bpp = _bpp;
+        rowsPerStrip = Math.min(_rowsPerStrip, _height);
+        bytesPerRow = PixelPacker.bytesPerRow(samplesPerRow, bpp);
+        
+        row = new short[samplesPerRow];
+        strip = new byte[rowsPerStrip * bytesPerRow];
+    }
+    
+    /**
+     * Creates a source for the CFA data of a pixel buffer
+     * 
+     * @param buf the pixel buffer with up to 16 bits per pixel
+     * @param _rowsPerStrip the number of rows per strip
+     * 
+     * @return a strip source with the original bit depth of the CFA data
+     */
+    public static RowStripSource fromPixBuf(final Generic_CFA_PixBuf buf, int _rowsPerStrip)
+    {
+        return new RowStripSource(new RowSource() {
+            @Override
+            public void getRow(int y, short[] dst)
+            {
+                buf.CFA_readRow(y, dst);
+            }
+        }, buf.imgWidth(), buf.imgHeight(), 1, buf.CFA_getBitsPerPixel(), _rowsPerStrip);
+    }
+    
+    /**
+     * Creates a source for the samples of a pixel plane
+     * 
+     * @param p the pixel plane
+     * @param _bpp the number of bits per sample in the file
+     * @param _rowsPerStrip the number of rows per strip
+     * 
+     * @return a strip source for the plane
+     */
+    public static RowStripSource fromPixelPlane(final PixelPlane p, int _bpp, int _rowsPerStrip)
+    {
+        return new RowStripSource(new RowSource() {
+            @Override
+            public void getRow(int y, short[] dst)
+            {
+                System.arraycopy(p.getData(), p.rowOffset(y), dst, 0, p.getStride());
+            }
+        }, p.getWidth(), p.getHeight(), p.getChannels(), _bpp, _rowsPerStrip);
+    }
+    
+    /**
+     * @return the number of bytes of a row in the file
+     */
+    public int getBytesPerRow()
+    {
+        return bytesPerRow;
+    }
+    
+    @Override
+    public int getStripCount()
+    {
+        return (height + rowsPerStrip - 1) / rowsPerStrip;
+    }
+    
+    @Override
+    public int getRowsPerStrip()
+    {
+        return rowsPerStrip;
+    }
+    
+    @Override
+    public ByteBuffer getStrip(int i)
+    {
+        int y0 = i * rowsPerStrip;
+        int rows = Math.min(rowsPerStrip, height - y0);
+        
+        for (int r = 0; r < rows; r++)
+        {
+            src.getRow(y0 + r, row);
+            encodeRow(row, strip, r * bytesPerRow);
+        }
+        
+        return ByteBuffer.wrap(strip, 0, rows * bytesPerRow);
+    }
+    
+    /**
+     * Converts a row of samples into the file format
+     */
+    protected void encodeRow(short[] samples, byte[] dst, int dstOffset)
+    {
+        if (bpp == 8)
+        {
+            for (int i = 0; i < samplesPerRow; i++) dst[dstOffset + i] = (byte) samples[i];
+        }
+        else if (bpp == 16)
+        {
+            ByteBuffer.wrap(dst, dstOffset, 2 * samplesPerRow).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().put(samples, 0, samplesPerRow);
+        }
+        else
+        {
+            PixelPacker.packRow(samples, 0, bpp, dst, dstOffset, samplesPerRow);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+/**
+ * Decompresses the strips or tiles of a TIFF image.
+ * 
+ * A decoder keeps its buffers and tables between calls, so a worker thread
+ * should create one decoder and use it for all of its strips. Decoders are
+ * not thread-safe.
+ */
+public abstract class StripDecoder implements AutoCloseable {
+    
+    /**
+     * A reusable buffer for the compressed data
+     */
+    protected byte[] in = new byte[0];
+    
+    /**
+     * Checks whether a compression scheme can be decoded
+     * 
+     * @param compression the value of the COMPRESSION tag
+     * 
+     * @return true if create() returns a decoder for this scheme
+     */
+    public static boolean isSupported(int compression)
+    {
+        return (compression == TIFF_TAG.COMPRESSION_LZW) ||
+                (compression == TIFF_TAG.COMPRESSION_JPEG) ||
+                (compression == TIFF_TAG.COMPRESSION_DEFLATE) ||
+                (compression == TIFF_TAG.COMPRESSION_PACKBITS) ||
+                (compression == TIFF_TAG.COMPRESSION_ADOBE_DEFLATE);
+    }
+    
+    /**
+     * Creates a decoder for a compression scheme
+     * 
+     * @param compression the value of the COMPRESSION tag
+     * 
+     * @return a new decoder
+     */
+    public static StripDecoder create(int compression)
+    {
+        if (compression == TIFF_TAG.COMPRESSION_LZW) return new LZWStripDecoder();
+        if (compression == TIFF_TAG.COMPRESSION_JPEG) return new LJPEGStripDecoder();
+        if (compression == TIFF_TAG.COMPRESSION_PACKBITS) return new PackBitsStripDecoder();
+        if ((compression == TIFF_TAG.COMPRESSION_DEFLATE) || (compression == TIFF_TAG.COMPRESSION_ADOBE_DEFLATE))
+        {
+            return new DeflateStripDecoder();
+        }
+        
+        throw new IllegalArgumentException("Unsupported compression " + compression);
+    }
+    
+    /**
+     * Decompresses a strip that is stored in a data block
+     * 
+     * @param src the data block, e. g. the TIFF file
+     * @param offset the offset of the compressed strip in src
+     * @param count the number of compressed bytes
+     * @param dst the array to decompress to; decompression stops when it is full
+     * 
+     * @return the number of bytes written to dst
+     */
+    public int decode(FlexByteArray src, long offset, int count, byte[] dst)
+    {
+        if (in.length < count) in = new byte[count];
+        src.getBytes(offset, in, 0, count);
+        
+        return decode(in, 0, count, dst);
+    }
+    
+    /**
+     * Decompresses a strip
+     * 
+     * @param src the array with the compressed data
+     * @param srcOffset the index of the first compressed byte
+     * @param count the number of compressed bytes
+     * @param dst the array to decompress to; decompression stops when it is full
+     * 
+     * @return the number of bytes written to dst
+     */
+    public abstract int decode(byte[] src, int srcOffset, int count, byte[] dst);
+    
+    /**
+     * Some schemes, like lossless JPEG, don't decompress to bytes but directly
+     * to samples. These decoders have to be used with decodeSamples().
+     * 
+     * @return true if the decoder delivers samples instead of bytes
+     */
+    public boolean decodesSamples()
+    {
+        return false;
+    }
+    
+    /**
+     * Decompresses a strip that is stored in a data block into samples
+     * 
+     * @param src the data block, e. g. the TIFF file
+     * @param offset the offset of the compressed strip in src
+     * @param count the number of compressed bytes
+     * @param dst the array for the samples, row by row; decompression stops when it is full
+     * 
+     * @return the number of samples written to dst
+     */
+    public int decodeSamples(FlexByteArray src, long offset, int count, short[] dst)
+    {
+        if (in.length < count) in = new byte[count];
+        src.getBytes(offset, in, 0, count);
+        
+        return decodeSamples(in, 0, count, dst);
+    }
+    
+    /**
+     * Decompresses a strip into samples; only for decoders with decodesSamples() == true
+     * 
+     * @param src the array with the compressed data
+     * @param srcOffset the index of the first compressed byte
+     * @param count the number of compressed bytes
+     * @param dst the array for the samples, row by row; decompression stops when it is full
+     * 
+     * @return the number of samples written to dst
+     */
+    public int decodeSamples(byte[] src, int srcOffset, int count, short[] dst)
+    {
+        throw new IllegalStateException(getClass().getSimpleName() + " decodes to bytes, not to samples");
+    }
+    
+    /**
+     * Releases all resources of the decoder; the decoder can't be used afterwards
+     */
+    @Override
+    public void close()
+    {
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+/**
+ * Compresses the strips or tiles of a TIFF image; the counterpart of
+ * StripDecoder.
+ * 
+ * The uncompressed data is expected in the format that TIFFWriter stores:
+ * 8-bit samples as bytes, 16-bit samples as little endian words and all
+ * other depths as MSB first bit stream with byte aligned rows.
+ * 
+ * An encoder keeps its buffers and tables between calls. Encoders are
+ * not thread-safe.
+ */
+public abstract class StripEncoder implements AutoCloseable {
+    
+    /**
+     * The number of samples per row of a strip or tile
+     */
+    protected final int samplesPerRow;
+    
+    /**
+     * The number of bits per sample
+     */
+    protected final int bpp;
+    
+    /**
+     * The number of bytes per uncompressed row
+     */
+    protected final int bytesPerRow;
+    
+    /**
+     * Constructor
+     * 
+     * @param _samplesPerRow the number of samples per row of a strip or tile
+     * @param _bpp the number of bits per sample (1...16)
+     */
+    protected StripEncoder(int _samplesPerRow, int _bpp)
+    {
+        if (_samplesPerRow < 1) throw new IllegalArgumentException("Invalid row size " + _samplesPerRow);
+        if ((_bpp < 1) || (_bpp > 16)) throw new IllegalArgumentException("Can't encode samples with " + _bpp + " bits");
+        
+        samplesPerRow = _samplesPerRow;
+        bpp = _bpp;
+        bytesPerRow = PixelPacker.bytesPerRow(samplesPerRow, bpp);
+    }
+    
+    /**
+     * Checks whether a compression scheme can be encoded
+     * 
+     * @param compression the value of the COMPRESSION tag
+     * 
+     * @return true if create() returns an encoder for this scheme
+     */
+    public static boolean isSupported(int compression)
+    {
+        return (compression == TIFF_TAG.COMPRESSION_JPEG) ||
+                (compression == TIFF_TAG.COMPRESSION_DEFLATE) ||
+                (compression == TIFF_TAG.COMPRESSION_ADOBE_DEFLATE);
+    }
+    
+    /**
+     * Creates an encoder for a compression scheme
+     * 
+     * @param compression the value of the COMPRESSION tag
+     * @param _samplesPerRow the number of samples per row of a strip or tile
+     * @param _bpp the number of bits per sample
+     * 
+     * @return a new encoder
+     */
+    public static StripEncoder create(int compression, int _samplesPerRow, int _bpp)
+    {
+        if (compression == TIFF_TAG.COMPRESSION_JPEG) return new LJPEGStripEncoder(_samplesPerRow, _bpp);
+        if ((compression == TIFF_TAG.COMPRESSION_DEFLATE) || (compression == TIFF_TAG.COMPRESSION_ADOBE_DEFLATE))
+        {
+            return new DeflateStripEncoder(_samplesPerRow, _bpp);
+        }
+        
+        throw new IllegalArgumentException("Unsupported compression " + compression);
+    }
+    
+    /**
+     * Compresses a strip
+     * 
+     * @param src the array with the uncompressed strip
+     * @param srcOffset the index of the first byte of the strip
+     * @param count the number of bytes; a multiple of the row size
+     * 
+     * @return a new array with the compressed strip
+     */
+    public abstract byte[] encode(byte[] src, int srcOffset, int count);
+    
+    /**
+     * Releases all resources of the encoder; the encoder can't be used afterwards
+     */
+    @Override
+    public void close()
+    {
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Provides the image data of a TIFF directory strip by strip, so that
+ * the TIFFWriter never needs the whole image in memory.
+ */
+public interface StripSource {
+    
+    /**
+     * @return the number of strips of the image
+     */
+    int getStripCount();
+    
+    /**
+     * @return the number of rows per strip; the last strip may have less rows
+     */
+    int getRowsPerStrip();
+    
+    /**
+     * Returns the data of a strip, as it is to be stored in the file. The
+     * strips are requested in ascending order.
+     * 
+     * @param i the 0-based index of the strip
+     * 
+     * @return a buffer with the strip data between position and limit; only valid until the next call
+     */
+    ByteBuffer getStrip(int i);
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.nodomain.volkerk.LoggingLib.LoggingClass;
+
+/**
+ * Reads the metadata of a TIFF / DNG file without reading its image data.
+ * 
+ * Only the header, the IFD chain, the Sub-IFDs and the out-of-line tag
+ * values are fetched from the file with positional reads; typically that's
+ * a few KB, regardless of the file size. The directories offer the same
+ * accessors as those of the TIFFhandler, but all pixel accesses fail.
+ * 
+ * Tag values are decoded on demand, so the file has to remain open
+ * as long as the directories are used.
+ */
+public class TIFFMetadataReader extends LoggingClass implements Closeable {
+    
+    /**
+     * The file to read from
+     */
+    protected final FileChannel fc;
+    
+    /**
+     * The paged view on the file
+     */
+    protected final PagedFlexByteArray fData;
+    
+    /**
+     * A list of all image file directories in the file
+     */
+    protected final ArrayList<ImageFileDirectory> ifdList = new ArrayList<>();
+    
+    /**
+     * Constructor. Opens the file and reads all IFDs
+     * 
+     * @param p the Path of the TIFF file
+     */
+    public TIFFMetadataReader(Path p) throws IOException
+    {
+        fc = FileChannel.open(p, StandardOpenOption.READ);
+        try
+        {
+            fData = new PagedFlexByteArray(fc);
+            init(p);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            fc.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Checks the TIFF header and walks the IFD chain
+     */
+    protected void init(Path p)
+    {
+        if (fData.length() < TIFFhandler.MIN_FILE_SIZE)
+        {
+            throw new IllegalArgumentException(p.toString() + " is not a TIFF file");
+        }
+        
+        boolean bigTiff = TIFFhandler.checkHeader(fData);
+        
+        // same as TIFFhandler.initDirectories(), with only one level of Sub-IFDs
+        long nextOffset = TIFFhandler.getFirstDirectoryOffset(fData, bigTiff);
+        while (nextOffset != 0)
+        {
+            ImageFileDirectory d = new ImageFileDirectory(fData, nextOffset, null, bigTiff);
+            d.disablePixelAccess();
+            ifdList.add(d);
+            
+            nextOffset = d.getNextDirectoryOffset();
+            
+            if (d.hasSubDirs())
+            {
+                Collections.addAll(ifdList, d.getSubIFDs());
+            }
+        }
+        
+        dbg(ifdList.size(), " directories found in ", p, " after reading ", fData.getBytesRead(), " bytes");
+    }
+    
+    /**
+     * Returns all directories of the file, including Sub-IFDs
+     * 
+     * @return an unmodifiable list of all IFDs in the order of the file
+     */
+    public List<ImageFileDirectory> getDirectories()
+    {
+        return Collections.unmodifiableList(ifdList);
+    }
+    
+    /**
+     * Returns the IFD-object for the first image with RAW data or null
+     * 
+     * @return the IFD-object for the first image with RAW data or null
+     */
+    public ImageFileDirectory getFirstIFDwithCFA()
+    {
+        for (ImageFileDirectory ifd : ifdList)
+        {
+            if (ifd.photometricInterpretation() != TIFF_TAG.PHOTO_INTERPRETATION_CFA) continue;
+            return ifd;
+        }
+        return null;
+    }
+    
+    /**
+     * @return the number of bytes that have been read from the file so far
+     */
+    public long getBytesRead()
+    {
+        return fData.getBytesRead();
+    }
+    
+    /**
+     * Closes the file. The directories can't be used afterwards.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        fc.close();
+    }
+}
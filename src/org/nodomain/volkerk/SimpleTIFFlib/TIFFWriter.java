@@ -0,0 +1,421 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ * 
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ * 
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes little endian TIFF / DNG files incrementally.
+ * 
+ * For each directory, the image strips (or tiles) are streamed to the channel first,
+ * one by one as they are delivered by the directory's StripSource. Then
+ * the IFD with the now known strip offsets and byte counts follows. Finally,
+ * the pointer to the new IFD is patched into the TIFF header or the previous
+ * IFD. Thus, only one strip and the IFD have to be in memory at any time.
+ * 
+ * Usage:
+ * <pre>
+ * TIFFWriter w = new TIFFWriter(path);
+ * TIFFWriter.Directory d = new TIFFWriter.Directory();
+ * d.addLong(TIFF_TAG.IMAGE_WIDTH, width);
+ * ...
+ * d.setStrips(stripSource);
+ * w.writeDirectory(d);
+ * w.close();
+ * </pre>
+ */
+public class TIFFWriter implements Closeable {
+    
+    protected static final int TYPE_BYTE = 1;
+    protected static final int TYPE_ASCII = 2;
+    protected static final int TYPE_SHORT = 3;
+    protected static final int TYPE_LONG = 4;
+    protected static final int TYPE_RATIONAL = 5;
+    protected static final int TYPE_SRATIONAL = 10;
+    
+    protected static final int TIFF_HEADER_SIZE = 8;
+    protected static final int IFD_ENTRY_SIZE = 12;
+    
+    /**
+     * The largest offset that fits into the 32-bit pointers of a classic TIFF file
+     */
+    protected static final long MAX_OFFSET = 0xFFFFFFFFL;
+    
+    /**
+     * The channel to write to
+     */
+    protected final SeekableByteChannel out;
+    
+    /**
+     * The position of the file start within the channel
+     */
+    protected final long base;
+    
+    /**
+     * The position in the file that has to receive the offset of the next IFD
+     */
+    protected long nextIFDPointerPos = -1;
+    
+    /**
+     * The current write position
+     */
+    protected long pos = 0;
+    
+    /**
+     * A collection of IFD entries plus the image data of a directory
+     */
+    public static class Directory
+    {
+        /**
+         * tag -> entry, sorted by tag as required by TIFF
+         */
+        protected final TreeMap<Integer, Entry> entries = new TreeMap<>();
+        
+        /**
+         * The image data, if any
+         */
+        protected StripSource strips = null;
+        
+        /**
+         * The tile size, if the image data consists of tiles instead of strips
+         */
+        protected int tileWidth = 0;
+        protected int tileLength = 0;
+        
+        public void addByte(int tag, int... val)
+        {
+            byte[] b = new byte[val.length];
+            for (int i = 0; i < val.length; i++) b[i] = (byte) val[i];
+            entries.put(tag, new Entry(TYPE_BYTE, val.length, b));
+        }
+        
+        /**
+         * Adds a string; the terminating zero is appended automatically
+         */
+        public void addAscii(int tag, String s)
+        {
+            byte[] str = s.getBytes(StandardCharsets.US_ASCII);
+            byte[] b = new byte[str.length + 1];
+            System.arraycopy(str, 0, b, 0, str.length);
+            entries.put(tag, new Entry(TYPE_ASCII, b.length, b));
+        }
+        
+        public void addShort(int tag, int... val)
+        {
+            ByteBuffer b = allocate(2 * val.length);
+            for (int v : val) b.putShort((short) v);
+            entries.put(tag, new Entry(TYPE_SHORT, val.length, b.array()));
+        }
+        
+        public void addLong(int tag, long... val)
+        {
+            ByteBuffer b = allocate(4 * val.length);
+            for (long v : val) b.putInt((int) v);
+            entries.put(tag, new Entry(TYPE_LONG, val.length, b.array()));
+        }
+        
+        /**
+         * Adds unsigned rationals
+         * 
+         * @param tag the entry's tag
+         * @param val pairs of numerator and denominator
+         */
+        public void addRational(int tag, long... val)
+        {
+            addFractions(tag, TYPE_RATIONAL, val);
+        }
+        
+        /**
+         * Adds signed rationals
+         * 
+         * @param tag the entry's tag
+         * @param val pairs of numerator and denominator
+         */
+        public void addSRational(int tag, long... val)
+        {
+            addFractions(tag, TYPE_SRATIONAL, val);
+        }
+        
+        protected void addFractions(int tag, int type, long... val)
+        {
+            if ((val.length % 2) != 0)
+            {
+                throw new IllegalArgumentException("Need pairs of numerator and denominator");
+            }
+            ByteBuffer b = allocate(4 * val.length);
+            for (long v : val) b.putInt((int) v);
+            entries.put(tag, new Entry(type, val.length / 2, b.array()));
+        }
+        
+        /**
+         * Checks whether an entry with a specific tag has been added
+         */
+        public boolean hasTag(int tag)
+        {
+            return entries.containsKey(tag);
+        }
+        
+        /**
+         * Sets the image data of the directory. The tags for strip offsets,
+         * strip byte counts and rows per strip are set automatically.
+         */
+        public void setStrips(StripSource src)
+        {
+            strips = src;
+            tileWidth = 0;
+            tileLength = 0;
+        }
+        
+        /**
+         * Sets the image data of the directory as tiles. The StripSource
+         * delivers one tile per "strip", row by row. The tags for tile offsets,
+         * tile byte counts and the tile size are set automatically.
+         * 
+         * @param src the source of the tiles
+         * @param _tileWidth the tile width in pixels; a multiple of 16 according to the spec
+         * @param _tileLength the tile height in pixels; a multiple of 16 according to the spec
+         */
+        public void setTiles(StripSource src, int _tileWidth, int _tileLength)
+        {
+            if ((_tileWidth < 1) || (_tileLength < 1)) throw new IllegalArgumentException("Invalid tile size");
+            
+            strips = src;
+            tileWidth = _tileWidth;
+            tileLength = _tileLength;
+        }
+        
+        private static ByteBuffer allocate(int size)
+        {
+            return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+    
+    /**
+     * A single IFD entry with its value in file byte order
+     */
+    protected static class Entry
+    {
+        final int type;
+        final int count;
+        final byte[] value;
+        
+        Entry(int _type, int _count, byte[] _value)
+        {
+            type = _type;
+            count = _count;
+            value = _value;
+        }
+    }
+    
+    /**
+     * Constructor. Creates a new file; existing files will be overwritten.
+     * 
+     * @param p the Path of the file to write
+     */
+    public TIFFWriter(Path p) throws IOException
+    {
+        this(FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+    }
+    
+    /**
+     * Constructor. Writes to an existing channel, starting at its current
+     * position; all offsets in the file are relative to this position.
+     * The channel needs to be seekable for patching the IFD pointers.
+     * 
+     * @param _out the channel to write to; is closed by close()
+     */
+    public TIFFWriter(SeekableByteChannel _out) throws IOException
+    {
+        if (_out == null) throw new IllegalArgumentException("Need a valid channel!");
+        out = _out;
+        base = out.position();
+        
+        // the TIFF header with an empty pointer to the first IFD
+        ByteBuffer hdr = ByteBuffer.allocate(TIFF_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        hdr.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(0);
+        hdr.flip();
+        write(hdr);
+        nextIFDPointerPos = 4;
+    }
+    
+    /**
+     * Writes a directory including its image data and links it to the previous directory
+     * 
+     * @param d the directory to write
+     * 
+     * @return the offset of the IFD in the file
+     * 
+     * @throws IOException if writing fails or the file would exceed 4 GB
+     */
+    public long writeDirectory(Directory d) throws IOException
+    {
+        // stream the strips
+        if (d.strips != null)
+        {
+            int n = d.strips.getStripCount();
+            long[] offsets = new long[n];
+            long[] counts = new long[n];
+            
+            for (int i = 0; i < n; i++)
+            {
+                align();
+                ByteBuffer strip = d.strips.getStrip(i);
+                checkOffset(pos);
+                offsets[i] = pos;
+                counts[i] = strip.remaining();
+                write(strip);
+            }
+            
+            if (d.tileWidth > 0)
+            {
+                d.addLong(TIFF_TAG.TILE_OFFSETS, offsets);
+                d.addLong(TIFF_TAG.TILE_BYTE_COUNTS, counts);
+                d.addLong(TIFF_TAG.TILE_WIDTH, d.tileWidth);
+                d.addLong(TIFF_TAG.TILE_LENGTH, d.tileLength);
+            }
+            else
+            {
+                d.addLong(TIFF_TAG.STRIP_OFFSETS, offsets);
+                d.addLong(TIFF_TAG.STRIP_BYTE_COUNTS, counts);
+                d.addLong(TIFF_TAG.ROWS_PER_STRIP, d.strips.getRowsPerStrip());
+            }
+        }
+        
+        // the IFD, directly followed by the values that don't fit into the entries
+        align();
+        long ifdOffset = pos;
+        int ifdSize = 2 + IFD_ENTRY_SIZE * d.entries.size() + 4;
+        int extSize = 0;
+        for (Entry e : d.entries.values())
+        {
+            if (e.value.length > 4) extSize += (e.value.length + 1) & ~1;   // word aligned
+        }
+        checkOffset(ifdOffset + ifdSize + extSize);
+        
+        ByteBuffer ifd = ByteBuffer.allocate(ifdSize + extSize).order(ByteOrder.LITTLE_ENDIAN);
+        ifd.putShort((short) d.entries.size());
+        
+        long extPtr = ifdOffset + ifdSize;
+        int extPos = ifdSize;
+        for (Map.Entry<Integer, Entry> me : d.entries.entrySet())
+        {
+            Entry e = me.getValue();
+            ifd.putShort((short) (int) me.getKey());
+            ifd.putShort((short) e.type);
+            ifd.putInt(e.count);
+            
+            if (e.value.length <= 4)
+            {
+                ifd.put(e.value);
+                for (int i = e.value.length; i < 4; i++) ifd.put((byte) 0);
+            }
+            else
+            {
+                ifd.putInt((int) extPtr);
+                int p = ifd.position();
+                ifd.position(extPos);
+                ifd.put(e.value);
+                ifd.position(p);
+                
+                int len = (e.value.length + 1) & ~1;
+                extPtr += len;
+                extPos += len;
+            }
+        }
+        ifd.putInt(0);   // no next IFD (yet)
+        ifd.clear();
+        write(ifd);
+        
+        // link the new IFD to its predecessor
+        patchUint32(nextIFDPointerPos, ifdOffset);
+        nextIFDPointerPos = ifdOffset + ifdSize - 4;
+        
+        return ifdOffset;
+    }
+    
+    /**
+     * @return the number of bytes written so far
+     */
+    public long getSize()
+    {
+        return pos;
+    }
+    
+    /**
+     * Closes the channel
+     */
+    @Override
+    public void close() throws IOException
+    {
+        out.close();
+    }
+    
+    /**
+     * Writes a buffer at the current position
+     */
+    protected void write(ByteBuffer buf) throws IOException
+    {
+        pos += buf.remaining();
+        while (buf.hasRemaining()) out.write(buf);
+    }
+    
+    /**
+     * Pads the file to an even size, because TIFF wants all offsets on word boundaries
+     */
+    protected void align() throws IOException
+    {
+        if ((pos % 2) != 0) write(ByteBuffer.allocate(1));
+    }
+    
+    /**
+     * Makes sure that an offset can be stored in a 32-bit pointer
+     * 
+     * @param offset the offset in the file
+     * 
+     * @throws IOException if the offset is beyond 4 GB
+     */
+    protected void checkOffset(long offset) throws IOException
+    {
+        if (offset > MAX_OFFSET)
+        {
+            throw new IOException("TIFF files can't exceed 4 GB, offset " + offset + " doesn't fit into 32 bits");
+        }
+    }
+    
+    /**
+     * Overwrites four bytes somewhere in the file and returns to the current position
+     * 
+     * @param offset the file offset of the first byte
+     * @param val the value to store as unsigned 32-bit value
+     */
+    protected void patchUint32(long offset, long val) throws IOException
+    {
+        checkOffset(val);
+        ByteBuffer b = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt((int) val);
+        b.flip();
+        
+        out.position(base + offset);
+        while (b.hasRemaining()) out.write(b);
+        out.position(base + pos);
+    }
+}
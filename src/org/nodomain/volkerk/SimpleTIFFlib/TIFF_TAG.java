@@ -37,12 +37,24 @@ public class TIFF_TAG {
     public static final int RESOLUTION_UNIT = 0x0128;
     public static final int SOFTWARE = 0x0131;
     public static final int DATETIME = 0x0132;
+    public static final int PREDICTOR = 0x013D;
+    public static final int TILE_WIDTH = 0x0142;
+    public static final int TILE_LENGTH = 0x0143;
+    public static final int TILE_OFFSETS = 0x0144;
+    public static final int TILE_BYTE_COUNTS = 0x0145;
     public static final int SUB_IFDs = 0x014A;
     public static final int FILLORDER = 0x010A;
     
     public static final int CFA_REPEAT_PATTERN_DIM = 0x828D;
     public static final int CFA_PATTERN = 0x828E;
     
+    public static final int DNG_VERSION = 0xC612;
+    public static final int DNG_BACKWARD_VERSION = 0xC613;
+    public static final int DNG_UNIQUE_CAMERA_MODEL = 0xC614;
+    public static final int DNG_BLACK_LEVEL = 0xC61A;
+    public static final int DNG_WHITE_LEVEL = 0xC61D;
+    public static final int DNG_COLOR_MATRIX_1 = 0xC621;
+    public static final int DNG_CALIBRATION_ILLUMINANT_1 = 0xC65A;
     public static final int DNG_ACTIVE_AREA = 0xC68D;
     public static final int DNG_DEFAULT_CROP_ORIGIN = 0xC61F;
     public static final int DNG_DEFAULT_CROP_SIZE = 0xC620;
@@ -64,4 +76,23 @@ public class TIFF_TAG {
     public static final int RES_UNIT_NONE = 1;
     public static final int RES_UNIT_INCH = 2;
     public static final int RES_UNIT_CM = 3;
+        
+//----------------------------------------------------------------------------		
+    
+    public static final int COMPRESSION_NONE = 1;
+    public static final int COMPRESSION_LZW = 5;
+    public static final int COMPRESSION_JPEG = 7;  // lossless JPEG in DNG files
+    public static final int COMPRESSION_DEFLATE = 8;
+    public static final int COMPRESSION_PACKBITS = 32773;
+    public static final int COMPRESSION_ADOBE_DEFLATE = 32946;
+        
+//----------------------------------------------------------------------------		
+    
+    public static final int PREDICTOR_NONE = 1;
+    public static final int PREDICTOR_HORIZONTAL = 2;
+    public static final int PREDICTOR_FLOATING_POINT = 3;
+        
+//----------------------------------------------------------------------------		
+    
+    public static final int ILLUMINANT_D65 = 21;
 }
@@ -13,6 +13,7 @@
 package org.nodomain.volkerk.SimpleTIFFlib;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.*;
 import java.util.ArrayList;
 import org.nodomain.volkerk.LoggingLib.LoggingClass;
@@ -34,6 +35,11 @@ public class TIFFhandler extends LoggingClass {
      */
     protected FlexByteArray fData = null;
     
+    /**
+     * True for BigTIFF files with 64-bit offsets
+     */
+    protected boolean bigTiff = false;
+    
     /**
      * a list of all image file directories in the file
      */
@@ -58,18 +64,48 @@ public class TIFFhandler extends LoggingClass {
      * @throws IOException 
      */
     public TIFFhandler(Path fPath) throws IOException
+    {
+        this(fPath, false);
+    }
+    
+    /**
+     * Constructor. Takes the input file name and either reads all bytes into an array
+     * or maps the file into memory. Checks the magic bytes of a TIFF file and initializes the IFDs
+     * 
+     * With memory mapping, only those parts of the file are read from disk
+     * that are actually accessed (header, IFDs, strips). Modifications of the
+     * data are kept in memory and never written back to the input file.
+     * If the file can't be opened for writing, e. g. on a read-only file
+     * system, it is mapped read-only and the data can't be modified.
+     * 
+     * Files larger than 2 GB don't fit into an array and are always mapped.
+     * 
+     * @param fPath Path-object for the input file
+     * @param useMemoryMapping if true, the file is mapped instead of being read completely
+     * @throws IOException 
+     */
+    public TIFFhandler(Path fPath, boolean useMemoryMapping) throws IOException
     {
         dbg("Constructor called with Path arg ", fPath);
         inFilePath = fPath;
         
-        preLog(LVL_DEBUG, "Calling readAllBytes with Path arg");
-        byte[] dat = Files.readAllBytes(inFilePath);
-        if (dat != null) resultLog(LOG_OK);
-        else resultLog(LOG_FAIL);
-        
-        logPush("Instanciating FlexByteArray");
-        fData = new FlexByteArray(dat);
-        logPop("Done");
+        if (useMemoryMapping || (Files.size(inFilePath) > Integer.MAX_VALUE))
+        {
+            logPush("Mapping file into memory");
+            fData = FlexByteArray.mapFile(inFilePath, true);
+            logPop("Done");
+        }
+        else
+        {
+            preLog(LVL_DEBUG, "Calling readAllBytes with Path arg");
+            byte[] dat = Files.readAllBytes(inFilePath);
+            if (dat != null) resultLog(LOG_OK);
+            else resultLog(LOG_FAIL);
+
+            logPush("Instanciating FlexByteArray");
+            fData = new FlexByteArray(ByteBuffer.wrap(dat));  // no need to clone the freshly read array
+            logPop("Done");
+        }
         
         // check some parameters
         if (fData.length() < MIN_FILE_SIZE)
@@ -79,26 +115,14 @@ public class TIFFhandler extends LoggingClass {
         }
         
         // check header to see if we have a TIFF
-        int firstTwoBytes = fData.getUint16(0);
-        if (firstTwoBytes == 0x4949)
-        {
-            dbg("This is a little endian TIFF file");
-            fData.setSwap(false);  // 0x4949 indicates little endian
-        }
-        else if (firstTwoBytes == 0x4d4d)
-        {
-            dbg("This is a  big endian TIFF file");
-            fData.setSwap(true); // 0x4d4d indicates big endian
-        }
-        else throw new IllegalArgumentException("First two bytes in file invalid!");
-        
-        if (fData.getUint16(2) != 42) throw new IllegalArgumentException("Missing 42-tag in header!");
+        bigTiff = checkHeader(fData);
+        dbg("This is a ", fData.getSwap() ? "big" : "little", " endian ", bigTiff ? "BigTIFF" : "TIFF", " file");
         
         // if we've reached this point, we can be pretty sure to have a valid TIFF file
         dbg("Found valid TIFF header");
         
         // get a pointer to the first IFD and read all IFDs
-        int firstDirOffset = (int) fData.getUint32(4);  
+        long firstDirOffset = getFirstDirectoryOffset(fData, bigTiff);
         
         logPush("Calling initDirectories");
         initDirectories(firstDirOffset);
@@ -106,23 +130,64 @@ public class TIFFhandler extends LoggingClass {
         dbg(ifdList.size(), " directories found in file");
     }
     
+    /**
+     * Checks the byte order mark and the magic number of a TIFF or BigTIFF
+     * header and sets the byte order of the data accordingly
+     * 
+     * @param fData the file data
+     * 
+     * @return true for a BigTIFF file, false for a classic TIFF file
+     */
+    protected static boolean checkHeader(FlexByteArray fData)
+    {
+        int firstTwoBytes = fData.getUint16(0);
+        if (firstTwoBytes == 0x4949) fData.setSwap(false);  // 0x4949 indicates little endian
+        else if (firstTwoBytes == 0x4d4d) fData.setSwap(true); // 0x4d4d indicates big endian
+        else throw new IllegalArgumentException("First two bytes in file invalid!");
+        
+        int magic = fData.getUint16(2);
+        if (magic == 42) return false;
+        if (magic != 43) throw new IllegalArgumentException("Missing 42-tag in header!");
+        
+        // BigTIFF: the offset size (always 8) and a reserved zero
+        if ((fData.getUint16(4) != 8) || (fData.getUint16(6) != 0))
+        {
+            throw new IllegalArgumentException("Unsupported BigTIFF offset size!");
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Reads the pointer to the first IFD from the header
+     * 
+     * @param fData the file data
+     * @param isBigTiff the result of checkHeader()
+     * 
+     * @return the offset of the first IFD
+     */
+    protected static long getFirstDirectoryOffset(FlexByteArray fData, boolean isBigTiff)
+    {
+        return isBigTiff ? fData.getUint64(8) : fData.getUint32Unsigned(4);
+    }
+    
     /**
      * Create a flat list of all (sub-)IFDs in the file. The list is stored
      * in the member variable ifdList, which is reset in this function
      * 
      * @param firstDirectoryOffset the index of the first byte of the first IFD in the file
      */
-    protected void initDirectories(int firstDirectoryOffset)
+    protected void initDirectories(long firstDirectoryOffset)
     {
         ifdList = new ArrayList();
         
-        int nextOffset = firstDirectoryOffset;
+        long nextOffset = firstDirectoryOffset;
         while (nextOffset != 0)
         {
-            ImageFileDirectory d = new ImageFileDirectory(fData, nextOffset);
+            ImageFileDirectory d = new ImageFileDirectory(fData, nextOffset, null, bigTiff);
             ifdList.add(d);
             
-            nextOffset = (int) d.getNextDirectoryOffset();
+            nextOffset = d.getNextDirectoryOffset();
             
             // Sub-IFD? If yes, add them to the list. Assumption:
             // only one level of sub-dirs, so that we don't need to search recursively
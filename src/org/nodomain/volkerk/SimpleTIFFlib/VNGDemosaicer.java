@@ -0,0 +1,243 @@
+/*
+ * Copyright © 2013 Volker Knollmann
+ *
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file or visit
+ * http://www.wtfpl.net/ for more details.
+ *
+ * This program comes without any warranty. Use it at your own risk or
+ * don't use it at all.
+ */
+
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+/**
+ * Demosaicing using Variable Number of Gradients (VNG), after Chang, Cheung
+ * and Pang.
+ *
+ * For each pixel, gradients in eight directions are calculated from the 5x5
+ * neighborhood. Only the directions with a gradient below a threshold are
+ * used for the interpolation, so that the algorithm doesn't interpolate
+ * across edges. The missing colors are derived from the color differences
+ * in the selected directions.
+ *
+ * Only Bayer patterns are supported. The two outermost rows and columns
+ * are interpolated bilinearly.
+ */
+public class VNGDemosaicer implements Demosaicer {
+
+    /**
+     * The width of the image border that is interpolated bilinearly
+     */
+    protected static final int BORDER = 2;
+
+    /**
+     * The eight directions as (dx, dy): N, E, S, W, NE, SE, SW, NW
+     */
+    protected static final int[][] DIRECTIONS = {
+        {0, -1}, {1, 0}, {0, 1}, {-1, 0},
+        {1, -1}, {1, 1}, {-1, 1}, {-1, -1}
+    };
+
+    /**
+     * The block averages are stored multiplied by this factor. A 3x3 block
+     * of a Bayer pattern contains 1, 2, 4 or 5 samples of a color, so all
+     * averages are exact integers with this scale.
+     */
+    protected static final int AVG_SCALE = 20;
+
+    @Override
+    public int getHalo()
+    {
+        return BORDER;
+    }
+
+    @Override
+    public int getWorkingSetBytesPerPixel()
+    {
+        // two bytes input and six bytes output per pixel; the
+        // 5x5 neighborhood adds another four rows of input
+        return 16;
+    }
+
+    @Override
+    public boolean supportsPattern(CFAPattern pattern)
+    {
+        return pattern.isBayer();
+    }
+
+    @Override
+    public void demosaicTile(PixelPlane cfa, CFAPattern pattern, PixelPlane rgb, int x0, int x1, int y0, int y1)
+    {
+        int w = cfa.getWidth();
+        int h = cfa.getHeight();
+        int stride = cfa.getStride();
+        short[] in = cfa.getData();
+        short[] out = rgb.getData();
+
+        // the colors of the 5x5 neighborhood for each position within the pattern
+        int[][] colors = new int[4][25];
+        for (int pos = 0; pos < 4; pos++)
+        {
+            for (int dy = -2; dy <= 2; dy++)
+            {
+                for (int dx = -2; dx <= 2; dx++)
+                {
+                    colors[pos][(dy + 2) * 5 + dx + 2] = pattern.colorAt((pos & 1) + dx, (pos >> 1) + dy);
+                }
+            }
+        }
+
+        int[] grad = new int[8];
+        int[] avg = new int[3];
+        int[] sums = new int[3];
+
+        // the columns of the tile that are interpolated with VNG
+        int xa = Math.max(x0, BORDER);
+        int xb = Math.min(x1, w - BORDER);
+
+        for (int y = y0; y < y1; y++)
+        {
+            boolean borderRow = (y < BORDER) || (y >= (h - BORDER)) || (xa >= xb);
+            if (borderRow)
+            {
+                for (int x = x0; x < x1; x++) BilinearDemosaicer.interpolatePixel(cfa, pattern, rgb, x, y);
+                continue;
+            }
+
+            for (int x = x0; x < xa; x++) BilinearDemosaicer.interpolatePixel(cfa, pattern, rgb, x, y);
+            for (int x = xb; x < x1; x++) BilinearDemosaicer.interpolatePixel(cfa, pattern, rgb, x, y);
+
+            for (int x = xa; x < xb; x++)
+            {
+                int p = cfa.rowOffset(y) + x;
+                int[] col = colors[((y & 1) << 1) | (x & 1)];
+                int own = col[12];
+
+                // gradients, scaled so that axis and diagonal gradients are comparable
+                int gMin = Integer.MAX_VALUE;
+                int gMax = 0;
+                for (int d = 0; d < 8; d++)
+                {
+                    int g = (d < 4) ? 3 * axisGradient(in, p, stride, DIRECTIONS[d])
+                            : 4 * diagonalGradient(in, p, stride, DIRECTIONS[d]);
+                    grad[d] = g;
+                    if (g < gMin) gMin = g;
+                    if (g > gMax) gMax = g;
+                }
+                // Chang's threshold k1 * gMin + k2 * (gMax - gMin) with k1 = 1.5, k2 = 0.5
+                int threshold = (3 * gMin + (gMax - gMin)) / 2;
+
+                // average color differences over all selected directions
+                sums[0] = 0;
+                sums[1] = 0;
+                sums[2] = 0;
+                int n = 0;
+                for (int d = 0; d < 8; d++)
+                {
+                    if (grad[d] > threshold) continue;
+                    blockAverage(in, p, stride, col, DIRECTIONS[d], avg);
+                    sums[0] += avg[0];
+                    sums[1] += avg[1];
+                    sums[2] += avg[2];
+                    n++;
+                }
+
+                int den = AVG_SCALE * n;
+                int ownVal = in[p] & 0xffff;
+                int dst = rgb.rowOffset(y) + 3 * x;
+                for (int c = 0; c < 3; c++)
+                {
+                    if (c == own)
+                    {
+                        out[dst + c] = (short) ownVal;
+                        continue;
+                    }
+
+                    // rounded division of the summed color difference
+                    int diff = sums[c] - sums[own];
+                    int q = (diff >= 0) ? ((diff + (den >> 1)) / den) : -((-diff + (den >> 1)) / den);
+                    out[dst + c] = (short) clamp(ownVal + q);
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates the gradient along the axis direction v. The perpendicular
+     * neighbors contribute with half the weight. The result is scaled by 2.
+     */
+    protected static int axisGradient(short[] in, int p, int stride, int[] dir)
+    {
+        int v = dir[1] * stride + dir[0];
+        int u = dir[0] * stride + dir[1];   // perpendicular to v
+
+        int g = 2 * Math.abs(val(in, p + v) - val(in, p - v));
+        g += 2 * Math.abs(val(in, p) - val(in, p + 2 * v));
+        g += Math.abs(val(in, p + v + u) - val(in, p - v + u));
+        g += Math.abs(val(in, p + v - u) - val(in, p - v - u));
+        g += Math.abs(val(in, p + u) - val(in, p + 2 * v + u));
+        g += Math.abs(val(in, p - u) - val(in, p + 2 * v - u));
+
+        return g;
+    }
+
+    /**
+     * Calculates the gradient along the diagonal direction d = a + b with
+     * a being the horizontal and b being the vertical component.
+     * The result is scaled by 2.
+     */
+    protected static int diagonalGradient(short[] in, int p, int stride, int[] dir)
+    {
+        int a = dir[0];
+        int b = dir[1] * stride;
+        int d = a + b;
+
+        int g = 2 * Math.abs(val(in, p + d) - val(in, p - d));
+        g += 2 * Math.abs(val(in, p) - val(in, p + 2 * d));
+        g += Math.abs(val(in, p + a) - val(in, p - b));
+        g += Math.abs(val(in, p + b) - val(in, p - a));
+
+        return g;
+    }
+
+    /**
+     * Averages each color over the 3x3 block that is centered at the
+     * neighbor of a pixel in a given direction. The results are scaled by AVG_SCALE.
+     */
+    protected static void blockAverage(short[] in, int p, int stride, int[] col, int[] dir, int[] result)
+    {
+        int sumR = 0, sumG = 0, sumB = 0;
+        int cntR = 0, cntG = 0, cntB = 0;
+
+        for (int dy = dir[1] - 1; dy <= dir[1] + 1; dy++)
+        {
+            for (int dx = dir[0] - 1; dx <= dir[0] + 1; dx++)
+            {
+                int c = col[(dy + 2) * 5 + dx + 2];
+                int v = val(in, p + dy * stride + dx);
+                if (c == 0) { sumR += v; cntR++; }
+                else if (c == 1) { sumG += v; cntG++; }
+                else { sumB += v; cntB++; }
+            }
+        }
+
+        // a 3x3 block of a Bayer pattern always contains all colors
+        result[0] = sumR * (AVG_SCALE / cntR);
+        result[1] = sumG * (AVG_SCALE / cntG);
+        result[2] = sumB * (AVG_SCALE / cntB);
+    }
+
+    private static int val(short[] in, int idx)
+    {
+        return in[idx] & 0xffff;
+    }
+
+    private static int clamp(int v)
+    {
+        if (v < 0) return 0;
+        if (v > 0xffff) return 0xffff;
+        return v;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author volker
+ */
+public class DemosaicEngineTest extends TstBaseClass {
+
+    protected static final int[] RGGB = new int[] {0, 1, 1, 2};
+    protected static final int[] DIM = new int[] {2, 2};
+
+    protected PixelPlane getRandomPlane(int w, int h)
+    {
+        PixelPlane p = new PixelPlane(w, h);
+        Random rnd = new Random(42);
+        for (int i=0; i < p.getData().length; i++) p.getData()[i] = (short) rnd.nextInt(1 << 14);
+
+        return p;
+    }
+
+    /**
+     * Brute force reference: average of all neighbors of the missing color
+     */
+    protected int referenceValue(PixelPlane cfa, int x, int y, int c)
+    {
+        if (RGGB[(y % 2) * 2 + (x % 2)] == c) return cfa.get(x, y);
+
+        double sum = 0;
+        int cnt = 0;
+        for (int ny = y-1; ny <= y+1; ny++)
+        {
+            for (int nx = x-1; nx <= x+1; nx++)
+            {
+                if ((nx < 0) || (ny < 0) || (nx >= cfa.getWidth()) || (ny >= cfa.getHeight())) continue;
+                if ((nx == x) && (ny == y)) continue;
+                if (RGGB[(ny % 2) * 2 + (nx % 2)] != c) continue;
+                sum += cfa.get(nx, ny);
+                cnt++;
+            }
+        }
+
+        return (int) Math.round(sum / cnt);
+    }
+
+    @Test
+    public void testAgainstReference()
+    {
+        PixelPlane cfa = getRandomPlane(37, 41);
+        PixelPlane rgb = new DemosaicEngine().demosaic(cfa, RGGB, DIM);
+
+        assertTrue(rgb.getChannels() == 3);
+        for (int y=0; y < cfa.getHeight(); y++)
+        {
+            for (int x=0; x < cfa.getWidth(); x++)
+            {
+                for (int c=0; c < 3; c++) assertTrue(rgb.get(x, y, c) == referenceValue(cfa, x, y, c));
+            }
+        }
+    }
+
+    @Test
+    public void testParallelEqualsSequential()
+    {
+        PixelPlane cfa = getRandomPlane(640, 480);
+        ForkJoinPool pool1 = new ForkJoinPool(1);
+        ForkJoinPool pool8 = new ForkJoinPool(8);
+        PixelPlane rgb1 = new DemosaicEngine(pool1).demosaic(cfa, RGGB, DIM);
+        PixelPlane rgb2 = new DemosaicEngine(pool8).demosaic(cfa, RGGB, DIM);
+        pool1.shutdown();
+        pool8.shutdown();
+
+        assertArrayEquals(rgb1.getData(), rgb2.getData());
+    }
+
+    @Test
+    public void testTilesEqualWholeImage()
+    {
+        // wide enough for several columns of tiles for all algorithms
+        PixelPlane cfa = getRandomPlane(517, 203);
+        CFAPattern pattern = new CFAPattern(RGGB, DIM);
+        for (Demosaicer algo : new Demosaicer[] {new BilinearDemosaicer(), new VNGDemosaicer(), new AHDDemosaicer()})
+        {
+            PixelPlane ref = new PixelPlane(517, 203, 3);
+            algo.demosaicTile(cfa, pattern, ref, 0, 517, 0, 203);
+
+            assertArrayEquals(ref.getData(), new DemosaicEngine().demosaic(cfa, pattern, algo).getData());
+        }
+    }
+
+    @Test
+    public void testPrimitiveDemosaic() throws IOException
+    {
+        TIFFhandler h = new TIFFhandler(Paths.get(testInputDataDir(), "000000.dng"));
+        File out = new File(outDir(), "demosaic.png");
+        h.primitiveDemosaic(out.toString());
+        assertTrue(out.exists());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author volker
+ */
+public class DemosaicerTest extends TstBaseClass {
+
+    protected static final CFAPattern RGGB = new CFAPattern(new int[] {0, 1, 1, 2}, new int[] {2, 2});
+
+    protected Demosaicer[] getAlgos()
+    {
+        return new Demosaicer[] {new BilinearDemosaicer(), new VNGDemosaicer(), new AHDDemosaicer()};
+    }
+
+    @Test
+    public void testCFAPattern()
+    {
+        assertTrue(RGGB.isBayer());
+        assertTrue(new CFAPattern(new int[] {1, 0, 2, 1}, new int[] {2, 2}).isBayer());
+        assertFalse(new CFAPattern(new int[] {0, 1, 2, 1}, new int[] {2, 2}).isBayer());
+        assertFalse(new CFAPattern(new int[] {0, 1, 2}, new int[] {3, 1}).isBayer());
+
+        assertTrue(RGGB.colorAt(-1, -1) == 2);
+        assertTrue(RGGB.colorAt(3, 2) == 1);
+
+        try
+        {
+            new CFAPattern(new int[] {0, 1, 1}, new int[] {2, 2});
+            fail("Invalid pattern not detected");
+        }
+        catch (IllegalArgumentException e) {}
+
+        // VNG and AHD need a Bayer pattern
+        PixelPlane cfa = new PixelPlane(16, 16);
+        CFAPattern stripes = new CFAPattern(new int[] {0, 1, 2}, new int[] {3, 1});
+        new DemosaicEngine().demosaic(cfa, stripes, new BilinearDemosaicer());
+        try
+        {
+            new DemosaicEngine().demosaic(cfa, stripes, new AHDDemosaicer());
+            fail("Unsupported pattern not detected");
+        }
+        catch (IllegalArgumentException e) {}
+    }
+
+    @Test
+    public void testFlatImage()
+    {
+        // a uniformly gray image must stay uniformly gray
+        PixelPlane cfa = new PixelPlane(50, 40);
+        java.util.Arrays.fill(cfa.getData(), (short) 40000);
+
+        for (Demosaicer algo : getAlgos())
+        {
+            PixelPlane rgb = new DemosaicEngine().demosaic(cfa, RGGB, algo);
+            for (short v : rgb.getData()) assertTrue(algo.getClass().getSimpleName(), (v & 0xffff) == 40000);
+        }
+    }
+
+    /**
+     * The average of a color over a column, ignoring the two border rows
+     */
+    protected int columnMean(PixelPlane rgb, int x, int c)
+    {
+        long sum = 0;
+        for (int y=2; y < (rgb.getHeight() - 2); y++) sum += rgb.get(x, y, c);
+        return (int) (sum / (rgb.getHeight() - 4));
+    }
+
+    @Test
+    public void testEdgePreserved()
+    {
+        // a noisy gray image with a vertical step between x=29 and x=30;
+        // the noise makes all gradients large, not only the one across the step
+        PixelPlane cfa = new PixelPlane(60, 200);
+        Random rnd = new Random(42);
+        for (int y=0; y < 200; y++)
+        {
+            for (int x=0; x < 60; x++) cfa.set(x, y, ((x < 30) ? 1000 : 3000) + rnd.nextInt(400));
+        }
+
+        PixelPlane vng = new DemosaicEngine().demosaic(cfa, RGGB, new VNGDemosaicer());
+        for (int c=0; c < 3; c++)
+        {
+            // VNG doesn't interpolate across the step, so nothing bleeds
+            // into the columns next to the two columns at the step
+            for (int x : new int[] {27, 28, 31, 32})
+            {
+                int level = ((x < 30) ? 1000 : 3000) + 200;
+                assertTrue(x + ": " + columnMean(vng, x, c), Math.abs(columnMean(vng, x, c) - level) < 40);
+            }
+
+            // the columns at the step have no samples of some colors on their
+            // own side; bilinear interpolation ends up half way (error 1000)
+            for (int x : new int[] {29, 30})
+            {
+                int level = ((x < 30) ? 1000 : 3000) + 200;
+                assertTrue(x + ": " + columnMean(vng, x, c), Math.abs(columnMean(vng, x, c) - level) < 500);
+            }
+        }
+    }
+
+    @Test
+    public void testParallelEqualsSequential()
+    {
+        PixelPlane cfa = new PixelPlane(333, 257);
+        Random rnd = new Random(42);
+        for (int i=0; i < cfa.getData().length; i++) cfa.getData()[i] = (short) rnd.nextInt(1 << 16);
+
+        ForkJoinPool pool1 = new ForkJoinPool(1);
+        ForkJoinPool pool8 = new ForkJoinPool(8);
+        for (Demosaicer algo : getAlgos())
+        {
+            PixelPlane rgb1 = new DemosaicEngine(pool1).demosaic(cfa, RGGB, algo);
+            PixelPlane rgb2 = new DemosaicEngine(pool8).demosaic(cfa, RGGB, algo);
+            assertArrayEquals(rgb1.getData(), rgb2.getData());
+
+            // the known CFA sample must be preserved for each pixel
+            for (int y=0; y < cfa.getHeight(); y++)
+            {
+                for (int x=0; x < cfa.getWidth(); x++)
+                {
+                    assertTrue(rgb1.get(x, y, RGGB.colorAt(x, y)) == cfa.get(x, y));
+                }
+            }
+        }
+        pool1.shutdown();
+        pool8.shutdown();
+    }
+
+    @Test
+    public void testRealImage() throws IOException
+    {
+        TIFFhandler h = new TIFFhandler(Paths.get(testInputDataDir(), "000000.dng"));
+        ImageFileDirectory ifd = h.getFirstIFDwithCFA();
+
+        for (Demosaicer algo : getAlgos())
+        {
+            PixelPlane rgb = ifd.CFA_demosaic(algo);
+            assertTrue(rgb.getWidth() == ifd.imgWidth());
+            assertTrue(rgb.getHeight() == ifd.imgHeight());
+            assertTrue(rgb.getMax(1) > 0);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author volker
+ */
+public class DirectoryScannerTest extends TstBaseClass {
+    
+    /**
+     * Creates a directory tree with copies of the test images and some junk
+     */
+    protected Path createTree() throws IOException
+    {
+        Path root = Paths.get(outDir(), "scan");
+        Path src = Paths.get(testInputDataDir());
+        
+        for (int i=0; i < 20; i++)
+        {
+            Path d = root.resolve("dir" + (i % 3));
+            Files.createDirectories(d);
+            String name = (i % 2 == 0) ? "000000.dng" : "M26-1615_00000.dng";
+            Files.copy(src.resolve(name), d.resolve(String.format("img%02d.DNG", i)), StandardCopyOption.REPLACE_EXISTING);
+        }
+        
+        // a broken file and a file with a different extension
+        Files.write(root.resolve("broken.dng"), new byte[100]);
+        Files.write(root.resolve("notes.txt"), new byte[100]);
+        
+        return root;
+    }
+    
+    @Test
+    public void testScan() throws IOException
+    {
+        Path root = createTree();
+        Path idxFile = Paths.get(outDir(), "scan.idx");
+        
+        ForkJoinPool pool = new ForkJoinPool(4);
+        DirectoryScanner s = new DirectoryScanner(pool);
+        MetadataIndex idx = s.scanToIndex(root, idxFile);
+        pool.shutdown();
+        assertTrue(idx.size() == 20);
+        assertTrue(s.getErrorCount() == 1);
+        
+        // compare with a full parse
+        for (MetadataRecord r : idx.getRecords())
+        {
+            ImageFileDirectory ifd = new TIFFhandler(Paths.get(r.getPath())).getFirstIFDwithCFA();
+            assertTrue(r.getWidth() == ifd.imgWidth());
+            assertTrue(r.getHeight() == ifd.imgHeight());
+            assertTrue(r.getBitsPerPixel() == ifd.CFA_getBitsPerPixel());
+            assertTrue(r.getMake().equals(ifd.make().trim()));
+            assertArrayEquals(ifd.CFA_getPattern(), r.getCFAPattern());
+            assertArrayEquals(ifd.chunkOffsets(), r.getChunkOffsets());
+            assertTrue(r.getFileSize() == Files.size(Paths.get(r.getPath())));
+        }
+        
+        // the index file contains the same data
+        List<MetadataRecord> recs = MetadataIndex.read(idxFile).getRecords();
+        assertTrue(recs.size() == 20);
+        for (int i=0; i < recs.size(); i++)
+        {
+            MetadataRecord r1 = idx.getRecords().get(i);
+            MetadataRecord r2 = recs.get(i);
+            assertTrue(r1.getPath().equals(r2.getPath()));
+            assertTrue(r1.getMTime() == r2.getMTime());
+            assertTrue(r1.getDatetime().equals(r2.getDatetime()));
+            assertTrue(r1.getModel().equals(r2.getModel()));
+            assertTrue(r1.getChunkLength() == r2.getChunkLength());
+            assertArrayEquals(r1.getCFAPatternDim(), r2.getCFAPatternDim());
+            assertArrayEquals(r1.getChunkByteCounts(), r2.getChunkByteCounts());
+        }
+        
+        // sorted by path
+        for (int i=1; i < recs.size(); i++) assertTrue(recs.get(i-1).getPath().compareTo(recs.get(i).getPath()) < 0);
+    }
+}
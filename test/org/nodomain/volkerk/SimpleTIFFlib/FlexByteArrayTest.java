@@ -4,6 +4,11 @@
  */
 package org.nodomain.volkerk.SimpleTIFFlib;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -200,9 +205,93 @@ public class FlexByteArrayTest {
         assertTrue(a.getSint32(6) < 0);
     }
 
+    @Test
+    public void testUint32MSBFirst() {
+        FlexByteArray a = getTestArray();
+        
+        // independent of the swap status
+        assertTrue(a.getUint32MSBFirst(0) == 0x01020304L);
+        assertTrue(a.getUint32MSBFirst(4) == 0xFFFEFDFCL);
+        a.setSwap(true);
+        assertTrue(a.getUint32MSBFirst(4) == 0xFFFEFDFCL);
+        
+        a.setSwap(false);
+        a.setUint32MSBFirst(0, 0xF3426677L);
+        assertTrue(a.getByte(0) == 0xF3);
+        assertTrue(a.getByte(3) == 0x77);
+        assertTrue(a.getSwap() == false);
+    }
+
     @Test
     public void testLength() {
         FlexByteArray a = getTestArray();
         assertTrue(a.length() == 10);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testSegments() {
+        byte[] raw = new byte[40];
+        for (int i=0; i < raw.length; i++) raw[i] = (byte) i;
+        
+        // segments of eight bytes plus overlap, the last one is shorter
+        FlexByteArray a = FlexByteArray.segmented(ByteBuffer.wrap(raw), 3);
+        assertTrue(a.size() == 40);
+        assertTrue(a.length() == 40);
+        
+        // values across a segment boundary
+        assertTrue(a.getByte(7) == 7);
+        assertTrue(a.getByte(8) == 8);
+        assertTrue(a.getUint16(7) == 0x0807);
+        assertTrue(a.getUint32(14) == 0x11100F0E);
+        assertTrue(a.getUint64(30) == 0x2524232221201F1EL);
+        assertTrue(a.getUint32MSBFirst(6) == 0x06070809L);
+        a.setSwap(true);
+        assertTrue(a.getUint32(14) == 0x0E0F1011);
+        assertTrue(a.getUint16(38) == 0x2627);
+        a.setSwap(false);
+        
+        // bulk copies across several segments
+        byte[] dst = new byte[30];
+        a.getBytes(5, dst, 0, 30);
+        for (int i=0; i < 30; i++) assertTrue(dst[i] == (byte) (i + 5));
+        assertArrayEquals(raw, a.getDataClone());
+        
+        // writes are visible in the overlapping segment
+        a.setUint32(6, 0xAABBCCDDL);
+        assertTrue(a.getByte(8) == 0xBB);
+        assertTrue(a.getUint32Unsigned(6) == 0xAABBCCDDL);
+        assertTrue(a.getUint32(6) < 0);
+        
+        try
+        {
+            a.getUint16(39);
+            fail();
+        }
+        catch (IllegalArgumentException e) {}
+    }
+    
+    @Test
+    public void testMapFile() throws IOException
+    {
+        Path p = Files.createTempFile("flex", ".bin");
+        Files.write(p, new byte[] {1, 2, 3, 4});
+        
+        // read-only by default
+        FlexByteArray a = FlexByteArray.mapFile(p);
+        assertTrue(a.getUint32MSBFirst(0) == 0x01020304L);
+        try
+        {
+            a.setByte(0, 9);
+            fail();
+        }
+        catch (ReadOnlyBufferException e) {}
+        
+        // a private mapping on request; the file remains unchanged
+        a = FlexByteArray.mapFile(p, true);
+        a.setByte(0, 9);
+        assertTrue(a.getByte(0) == 9);
+        assertTrue(Files.readAllBytes(p)[0] == 1);
+        
+        Files.delete(p);
+    }
+}
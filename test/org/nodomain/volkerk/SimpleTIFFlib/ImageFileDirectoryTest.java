@@ -5,8 +5,11 @@
 package org.nodomain.volkerk.SimpleTIFFlib;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Random;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -81,4 +84,395 @@ public class ImageFileDirectoryTest extends TstBaseClass {
         assertNull(ifd2.getSubIFDs());
         
     }
-}
\ No newline at end of file
+    
+    @Test
+    public void testLazyEntries() throws IOException
+    {
+        byte[] allBytes = Files.readAllBytes(Paths.get(testInputDataDir(), "000000.dng"));
+        FlexByteArray a = new FlexByteArray(allBytes);
+        ImageFileDirectory ifd = new ImageFileDirectory(a, 398);
+        
+        // nothing is decoded by the constructor
+        for (int i=0; i < ifd.entryCache.length(); i++) assertNull(ifd.entryCache.get(i));
+        
+        // entries are decoded once and then reused
+        IFD_Entry e = ifd.getEntry(TIFF_TAG.IMAGE_WIDTH);
+        assertTrue(e == ifd.getEntry(TIFF_TAG.IMAGE_WIDTH));
+        assertFalse(ifd.hasTag(0xfffe));
+        
+        // memoized arrays are not exposed to the caller
+        int[] pat = ifd.cfaPatternGet();
+        pat[0] = 42;
+        assertTrue(ifd.cfaPatternGet()[0] == 0);
+        assertTrue(ifd.CFA_getBitsPerPixel() == 14);
+        assertArrayEquals(new int[] {2, 2}, ifd.CFA_getPatternDim());
+    }
+    
+    @Test
+    public void testUnsortedTags()
+    {
+        // a hand-made IFD whose entries violate the ascending tag order
+        int[][] ent = new int[][] {{TIFF_TAG.IMAGE_LENGTH, 20}, {TIFF_TAG.SAMPLES_PER_PIXEL, 1}, {TIFF_TAG.IMAGE_WIDTH, 30}};
+        FlexByteArray a = new FlexByteArray(new byte[2 + 12 * ent.length + 4]);
+        a.setUint16(0, ent.length);
+        for (int i=0; i < ent.length; i++)
+        {
+            a.setUint16(2 + 12*i, ent[i][0]);
+            a.setUint16(2 + 12*i + 2, 3);   // SHORT
+            a.setUint16(2 + 12*i + 4, 1);
+            a.setUint16(2 + 12*i + 8, ent[i][1]);
+        }
+        
+        ImageFileDirectory ifd = new ImageFileDirectory(a, 0);
+        assertTrue(ifd.imgWidth() == 30);
+        assertTrue(ifd.imgHeight() == 20);
+        assertTrue(ifd.samplesPerPixel() == 1);
+        assertFalse(ifd.hasTag(TIFF_TAG.COMPRESSION));
+        assertTrue(ifd.getNextDirectoryOffset() == 0);
+    }
+    
+    /**
+     * Writes a tiled CFA image with edge tiles that extend beyond the image
+     */
+    protected Path writeTiledImage(PixelPlane src, int bpp, int tw, int th) throws IOException
+    {
+        return writeTiledImage(src, bpp, tw, th, TIFF_TAG.COMPRESSION_NONE);
+    }
+    
+    protected Path writeTiledImage(PixelPlane src, int bpp, int tw, int th, int compression) throws IOException
+    {
+        int across = (src.getWidth() + tw - 1) / tw;
+        int down = (src.getHeight() + th - 1) / th;
+        int rowBytes = PixelPacker.bytesPerRow(tw, bpp);
+        byte[] tiles = new byte[across * down * th * rowBytes];
+        
+        short[] seg = new short[tw];
+        for (int t=0; t < across * down; t++)
+        {
+            int x0 = (t % across) * tw;
+            int y0 = (t / across) * th;
+            for (int y=0; y < th; y++)
+            {
+                for (int x=0; x < tw; x++)
+                {
+                    boolean inside = ((x0 + x) < src.getWidth()) && ((y0 + y) < src.getHeight());
+                    seg[x] = (short) (inside ? src.get(x0 + x, y0 + y) : 0);
+                }
+                int dst = (t * th + y) * rowBytes;
+                if (bpp == 16)
+                {
+                    for (int x=0; x < tw; x++)
+                    {
+                        tiles[dst + 2*x] = (byte) seg[x];
+                        tiles[dst + 2*x + 1] = (byte) (seg[x] >> 8);
+                    }
+                }
+                else PixelPacker.packRow(seg, 0, bpp, tiles, dst, tw);
+            }
+        }
+        
+        TIFFWriter.Directory d = getCFADirectory(src.getWidth(), src.getHeight(), bpp, compression);
+        d.setTiles(compressingSource(new ByteArrayStripSource(tiles, rowBytes, across * down * th, th), compression), tw, th);
+        
+        Path p = Paths.get(outDir(), "tiled" + bpp + "_" + compression + ".dng");
+        try (TIFFWriter w = new TIFFWriter(p))
+        {
+            w.writeDirectory(d);
+        }
+        return p;
+    }
+    
+    @Test
+    public void testTiled() throws IOException
+    {
+        for (int bpp : new int[] {12, 14, 16})
+        {
+            PixelPlane src = new PixelPlane(100, 70);
+            Random rnd = new Random(42);
+            for (int i=0; i < src.getData().length; i++) src.getData()[i] = (short) rnd.nextInt(1 << bpp);
+            
+            ImageFileDirectory ifd = new TIFFhandler(writeTiledImage(src, bpp, 32, 16)).getFirstIFDwithCFA();
+            assertTrue(ifd.isTiled());
+            assertTrue(ifd.tilesAcross() == 4);
+            assertTrue(ifd.tilesDown() == 5);
+            assertTrue(ifd.chunkOffsets().length == 20);
+            
+            // bulk read, decoded tile by tile in parallel
+            assertArrayEquals(src.getData(), ifd.CFA_getPixelPlane().getData());
+            
+            // row and pixel accessors
+            short[] row = new short[100];
+            ifd.CFA_readRow(33, row);
+            for (int x=0; x < 100; x++)
+            {
+                assertTrue((row[x] & 0xffff) == src.get(x, 33));
+                assertTrue(ifd.CFA_getPixel(x, 69) == src.get(x, 69));
+            }
+            
+            // a single edge tile
+            PixelPlane t = ifd.CFA_getTile(7);
+            assertTrue(t.getWidth() == 4);
+            assertTrue(t.getHeight() == 16);
+            assertTrue(t.get(3, 15) == src.get(99, 31));
+            
+            // writing a pixel doesn't touch its neighbors
+            ifd.CFA_setPixel(65, 17, 1234);
+            assertTrue(ifd.CFA_getPixel(65, 17) == 1234);
+            assertTrue(ifd.CFA_getPixel(64, 17) == src.get(64, 17));
+            assertTrue(ifd.CFA_getPixel(66, 17) == src.get(66, 17));
+        }
+    }
+    
+    /**
+     * Wraps a source of uncompressed strips and compresses each strip
+     */
+    protected StripSource compressingSource(final StripSource src, final int compression)
+    {
+        if (compression == TIFF_TAG.COMPRESSION_NONE) return src;
+        
+        return new StripSource() {
+            @Override
+            public int getStripCount()
+            {
+                return src.getStripCount();
+            }
+            
+            @Override
+            public int getRowsPerStrip()
+            {
+                return src.getRowsPerStrip();
+            }
+            
+            @Override
+            public ByteBuffer getStrip(int i)
+            {
+                ByteBuffer b = src.getStrip(i);
+                byte[] raw = new byte[b.remaining()];
+                b.get(raw);
+                
+                if (compression == TIFF_TAG.COMPRESSION_LZW) return ByteBuffer.wrap(StripDecoderTest.lzwEncode(raw));
+                return ByteBuffer.wrap(StripDecoderTest.deflate(raw));
+            }
+        };
+    }
+    
+    @Test
+    public void testCompressed() throws IOException
+    {
+        for (int comp : new int[] {TIFF_TAG.COMPRESSION_LZW, TIFF_TAG.COMPRESSION_DEFLATE, TIFF_TAG.COMPRESSION_ADOBE_DEFLATE, TIFF_TAG.COMPRESSION_PACKBITS})
+        {
+            for (int bpp : new int[] {8, 12, 16})
+            {
+                // a smooth gradient that compresses well
+                PixelPlane src = new PixelPlane(90, 61);
+                Random rnd = new Random(42);
+                for (int y=0; y < 61; y++)
+                {
+                    for (int x=0; x < 90; x++) src.set(x, y, ((x * 37 + y * 11) + rnd.nextInt(8)) % (1 << bpp));
+                }
+                
+                TIFFWriter.Directory d = getCFADirectory(90, 61, bpp, comp);
+                RowStripSource rows = RowStripSource.fromPixelPlane(src, bpp, 8);
+                if (comp == TIFF_TAG.COMPRESSION_PACKBITS) d.setStrips(new PackBitsStripSource(rows, rows.getBytesPerRow()));
+                else d.setStrips(compressingSource(rows, comp));
+                
+                Path p = Paths.get(outDir(), "compressed" + comp + "_" + bpp + ".dng");
+                try (TIFFWriter w = new TIFFWriter(p))
+                {
+                    w.writeDirectory(d);
+                }
+                
+                ImageFileDirectory ifd = new TIFFhandler(p).getFirstIFDwithCFA();
+                assertTrue(ifd.isCompressed());
+                assertTrue(ifd.compression() == comp);
+                assertArrayEquals(src.getData(), ifd.CFA_getPixelPlane().getData());
+                
+                short[] row = new short[90];
+                ifd.CFA_readRow(60, row);
+                for (int x=0; x < 90; x++)
+                {
+                    assertTrue((row[x] & 0xffff) == src.get(x, 60));
+                    assertTrue(ifd.CFA_getPixel(x, 17) == src.get(x, 17));
+                }
+                
+                try
+                {
+                    ifd.CFA_setPixel(1, 1, 0);
+                    fail();
+                }
+                catch (IllegalStateException e) {}
+            }
+        }
+        
+        // compressed tiles
+        PixelPlane src = new PixelPlane(100, 70);
+        Random rnd = new Random(42);
+        for (int i=0; i < src.getData().length; i++) src.getData()[i] = (short) (i % 200 + rnd.nextInt(16));
+        ImageFileDirectory ifd = new TIFFhandler(writeTiledImage(src, 12, 32, 16, TIFF_TAG.COMPRESSION_DEFLATE)).getFirstIFDwithCFA();
+        assertArrayEquals(src.getData(), ifd.CFA_getPixelPlane().getData());
+        PixelPlane t = ifd.CFA_getTile(7);
+        assertTrue(t.getWidth() == 4);
+        assertTrue(t.get(3, 15) == src.get(99, 31));
+        
+        // rows and pixels are decoded chunk by chunk, keeping only a few chunks
+        short[] row = new short[100];
+        for (int y=0; y < 70; y++)
+        {
+            ifd.CFA_readRow(y, row);
+            for (int x=0; x < 100; x++) assertTrue((row[x] & 0xffff) == src.get(x, y));
+        }
+        assertTrue(ifd.CFA_getPixel(67, 45) == src.get(67, 45));
+        assertTrue(ifd.chunkCache.size() <= Math.max(ImageFileDirectory.CHUNK_CACHE_MIN, ifd.tilesAcross()));
+        
+        // each bulk read decodes into its own plane
+        assertTrue(ifd.CFA_getPixelPlane() != ifd.CFA_getPixelPlane());
+    }
+    
+    @Test
+    public void testLosslessJPEG() throws IOException
+    {
+        final PixelPlane src = new PixelPlane(100, 70);
+        Random rnd = new Random(42);
+        for (int i=0; i < src.getData().length; i++) src.getData()[i] = (short) ((i % 300) * 40 + rnd.nextInt(64));
+        
+        // DNG style tiles: two interleaved components of half the tile width
+        final int tw = 32;
+        final int th = 16;
+        final int across = 4;
+        TIFFWriter.Directory d = getCFADirectory(100, 70, 14, TIFF_TAG.COMPRESSION_JPEG);
+        d.setTiles(new StripSource() {
+            @Override
+            public int getStripCount()
+            {
+                return 20;
+            }
+            
+            @Override
+            public int getRowsPerStrip()
+            {
+                return th;
+            }
+            
+            @Override
+            public ByteBuffer getStrip(int i)
+            {
+                int x0 = (i % across) * tw;
+                int y0 = (i / across) * th;
+                short[] samples = new short[tw * th];
+                for (int y=0; y < th; y++)
+                {
+                    for (int x=0; x < tw; x++)
+                    {
+                        boolean inside = ((x0 + x) < 100) && ((y0 + y) < 70);
+                        samples[y * tw + x] = (short) (inside ? src.get(x0 + x, y0 + y) : 0);
+                    }
+                }
+                return ByteBuffer.wrap(StripDecoderTest.ljpegEncode(samples, tw / 2, th, 2, 14, 1, 0));
+            }
+        }, tw, th);
+        
+        Path p = Paths.get(outDir(), "ljpeg.dng");
+        try (TIFFWriter w = new TIFFWriter(p))
+        {
+            w.writeDirectory(d);
+        }
+        
+        ImageFileDirectory ifd = new TIFFhandler(p).getFirstIFDwithCFA();
+        assertTrue(ifd.compression() == TIFF_TAG.COMPRESSION_JPEG);
+        assertArrayEquals(src.getData(), ifd.CFA_getPixelPlane().getData());
+        assertTrue(ifd.CFA_getPixel(99, 69) == src.get(99, 69));
+        PixelPlane t = ifd.CFA_getTile(7);
+        assertTrue(t.getWidth() == 4);
+        assertTrue(t.get(3, 15) == src.get(99, 31));
+    }
+    
+    protected ImageFileDirectory writePredicted(StripSource strips, int bpp, int pred, String name) throws IOException
+    {
+        TIFFWriter.Directory d = getCFADirectory(90, 61, bpp, TIFF_TAG.COMPRESSION_DEFLATE);
+        d.addShort(TIFF_TAG.PREDICTOR, pred);
+        d.setStrips(compressingSource(strips, TIFF_TAG.COMPRESSION_DEFLATE));
+        
+        Path p = Paths.get(outDir(), name);
+        try (TIFFWriter w = new TIFFWriter(p))
+        {
+            w.writeDirectory(d);
+        }
+        return new TIFFhandler(p).getFirstIFDwithCFA();
+    }
+    
+    @Test
+    public void testPredictor() throws IOException
+    {
+        for (int bpp : new int[] {8, 12, 14, 16})
+        {
+            int mask = (1 << bpp) - 1;
+            PixelPlane src = new PixelPlane(90, 61);
+            PixelPlane diff = new PixelPlane(90, 61);
+            Random rnd = new Random(42);
+            for (int y=0; y < 61; y++)
+            {
+                for (int x=0; x < 90; x++)
+                {
+                    src.set(x, y, rnd.nextInt(1 << bpp));
+                    int left = (x == 0) ? 0 : src.get(x - 1, y);
+                    diff.set(x, y, (src.get(x, y) - left) & mask);
+                }
+            }
+            
+            ImageFileDirectory ifd = writePredicted(RowStripSource.fromPixelPlane(diff, bpp, 8), bpp, TIFF_TAG.PREDICTOR_HORIZONTAL, "predictor2_" + bpp + ".dng");
+            assertTrue(ifd.predictor() == TIFF_TAG.PREDICTOR_HORIZONTAL);
+            assertArrayEquals(src.getData(), ifd.CFA_getPixelPlane().getData());
+        }
+        
+        // floating point predictor with 16-bit samples: byte planes, then byte differences
+        PixelPlane src = new PixelPlane(90, 61);
+        Random rnd = new Random(42);
+        byte[] raw = new byte[90 * 2 * 61];
+        for (int y=0; y < 61; y++)
+        {
+            byte[] planes = new byte[180];
+            for (int x=0; x < 90; x++)
+            {
+                src.set(x, y, rnd.nextInt(1 << 16));
+                planes[x] = (byte) (src.get(x, y) >> 8);
+                planes[90 + x] = (byte) src.get(x, y);
+            }
+            for (int i=0; i < 180; i++) raw[y * 180 + i] = (byte) (planes[i] - ((i == 0) ? 0 : planes[i - 1]));
+        }
+        ImageFileDirectory ifd = writePredicted(new ByteArrayStripSource(raw, 180, 61, 8), 16, TIFF_TAG.PREDICTOR_FLOATING_POINT, "predictor3.dng");
+        assertArrayEquals(src.getData(), ifd.CFA_getPixelPlane().getData());
+        
+        // without the tag, no predictor is assumed
+        PixelPlane plain = new PixelPlane(90, 61);
+        ifd = writePredicted(RowStripSource.fromPixelPlane(plain, 12, 8), 12, TIFF_TAG.PREDICTOR_NONE, "predictor1.dng");
+        assertTrue(ifd.predictor() == TIFF_TAG.PREDICTOR_NONE);
+        assertArrayEquals(plain.getData(), ifd.CFA_getPixelPlane().getData());
+        
+        ifd = writePredicted(RowStripSource.fromPixelPlane(plain, 12, 8), 12, TIFF_TAG.PREDICTOR_FLOATING_POINT, "predictor3_12.dng");
+        try
+        {
+            ifd.CFA_getPixelPlane();
+            fail();
+        }
+        catch (IllegalStateException e) {}
+        
+        // compressed rows with several samples per pixel can't be decoded
+        TIFFWriter.Directory d = getCFADirectory(30, 61, 8, TIFF_TAG.COMPRESSION_DEFLATE);
+        d.addShort(TIFF_TAG.PREDICTOR, TIFF_TAG.PREDICTOR_HORIZONTAL);
+        d.addShort(TIFF_TAG.BITS_PER_SAMPLE, 8, 8, 8);
+        d.addShort(TIFF_TAG.SAMPLES_PER_PIXEL, 3);
+        d.setStrips(compressingSource(RowStripSource.fromPixelPlane(plain, 8, 8), TIFF_TAG.COMPRESSION_DEFLATE));
+        Path p = Paths.get(outDir(), "predictorRGB.dng");
+        try (TIFFWriter w = new TIFFWriter(p))
+        {
+            w.writeDirectory(d);
+        }
+        ifd = new TIFFhandler(p).getFirstIFDwithCFA();
+        try
+        {
+            ifd.CFA_readRow(0, new short[30]);
+            fail();
+        }
+        catch (IllegalStateException e) {}
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author volker
+ */
+public class MetadataCacheTest extends TstBaseClass {
+    
+    protected Path createTree() throws IOException
+    {
+        Path root = Paths.get(outDir(), "cache");
+        Path src = Paths.get(testInputDataDir());
+        Files.createDirectories(root);
+        
+        for (int i=0; i < 10; i++)
+        {
+            String name = (i % 2 == 0) ? "000000.dng" : "M26-1615_00000.dng";
+            Files.copy(src.resolve(name), root.resolve(String.format("img%02d.dng", i)), StandardCopyOption.REPLACE_EXISTING);
+        }
+        
+        return root;
+    }
+    
+    @Test
+    public void testRefresh() throws IOException
+    {
+        Path root = createTree();
+        Path cacheFile = Paths.get(outDir(), "meta.cache");
+        Files.deleteIfExists(cacheFile);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        DirectoryScanner s = new DirectoryScanner(pool);
+        
+        MetadataCache c = new MetadataCache(cacheFile);
+        assertTrue(c.refresh(root, s) == 10);
+        assertTrue(c.size() == 10);
+        c.save();
+        
+        // nothing changed: nothing to parse
+        c = new MetadataCache(cacheFile);
+        assertTrue(c.size() == 10);
+        assertTrue(c.refresh(root, s) == 0);
+        
+        // one modified, one deleted file
+        Path p = root.resolve("img00.dng");
+        Files.setLastModifiedTime(p, FileTime.fromMillis(Files.getLastModifiedTime(p).toMillis() - 10000));
+        Files.delete(root.resolve("img01.dng"));
+        assertTrue(c.refresh(root, s) == 1);
+        pool.shutdown();
+        assertTrue(c.size() == 9);
+        c.save();
+        
+        c = new MetadataCache(cacheFile);
+        assertTrue(c.size() == 9);
+        MetadataRecord r = c.get(p);
+        assertTrue(r.getWidth() == 1280);
+        assertTrue(r.getModel().equals("Canikon"));
+        assertArrayEquals(new long[] {0, 0, 1280, 720}, r.getActiveArea());
+        assertArrayEquals(new int[] {0, 1, 1, 2}, r.getCFAPattern());
+        assertArrayEquals(new TIFFhandler(p).getFirstIFDwithCFA().stripOffsets(), r.getChunkOffsets());
+    }
+    
+    @Test
+    public void testRefreshSiblings() throws IOException
+    {
+        Path base = Paths.get(outDir(), "archive");
+        Path src = Paths.get(testInputDataDir(), "000000.dng");
+        for (String dir : new String[] {"2013", "2013-old"})
+        {
+            Files.createDirectories(base.resolve(dir));
+            for (int i=0; i < 3; i++) Files.copy(src, base.resolve(dir).resolve("img" + i + ".dng"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Path cacheFile = Paths.get(outDir(), "siblings.cache");
+        Files.deleteIfExists(cacheFile);
+        DirectoryScanner s = new DirectoryScanner();
+        
+        MetadataCache c = new MetadataCache(cacheFile);
+        assertTrue(c.refresh(base, s) == 6);
+        c.save();
+        
+        // counts the records that are built from the columns
+        final int[] built = new int[1];
+        c = new MetadataCache(cacheFile) {
+            @Override
+            protected MetadataRecord getRecord(int row)
+            {
+                built[0]++;
+                return super.getRecord(row);
+            }
+        };
+        
+        // refreshing "2013" must neither drop the rows of "2013-old" nor build records
+        assertTrue(c.refresh(base.resolve("2013"), s) == 0);
+        assertTrue(built[0] == 0);
+        assertTrue(c.size() == 6);
+    }
+    
+    /**
+     * Writes a 100x70 CFA image, either in 32x16 tiles or in one strip
+     */
+    protected Path writeImage(String name, boolean tiled) throws IOException
+    {
+        TIFFWriter.Directory d = getCFADirectory(100, 70, 16, TIFF_TAG.COMPRESSION_NONE);
+        if (tiled) d.setTiles(new ByteArrayStripSource(new byte[20 * 16 * 64], 64, 20 * 16, 16), 32, 16);
+        else d.setStrips(new ByteArrayStripSource(new byte[70 * 200], 200, 70, 70));
+        
+        Path p = Paths.get(outDir(), name);
+        try (TIFFWriter w = new TIFFWriter(p))
+        {
+            w.writeDirectory(d);
+        }
+        return p;
+    }
+    
+    @Test
+    public void testChunkLayout() throws IOException
+    {
+        Path tiles = writeImage("layoutTiles.dng", true);
+        Path strip = writeImage("layoutStrip.dng", false);
+        
+        // patch RowsPerStrip (LONG, count 1, value 70) to the default of 2^32-1
+        byte[] data = Files.readAllBytes(strip);
+        byte[] entry = {0x16, 0x01, 4, 0, 1, 0, 0, 0, 70, 0, 0, 0};
+        int pos = -1;
+        for (int i=0; (pos < 0) && (i <= data.length - entry.length); i++)
+        {
+            int k = 0;
+            while ((k < entry.length) && (data[i + k] == entry[k])) k++;
+            if (k == entry.length) pos = i;
+        }
+        assertTrue(pos > 0);
+        for (int k=8; k < 12; k++) data[pos + k] = (byte) 0xff;
+        Files.write(strip, data);
+        
+        MetadataRecord r = MetadataRecord.fromFile(strip);
+        assertFalse(r.isTiled());
+        assertTrue(r.getChunkWidth() == 100);
+        assertTrue(r.getChunkLength() == 70);
+        assertTrue(r.getChunkOffsets().length == 1);
+        assertTrue(r.getChunkByteCounts()[0] == 14000);
+        
+        r = MetadataRecord.fromFile(tiles);
+        assertTrue(r.isTiled());
+        assertTrue(r.getChunkWidth() == 32);
+        assertTrue(r.getChunkLength() == 16);
+        assertArrayEquals(new TIFFhandler(tiles).getFirstIFDwithCFA().tileOffsets(), r.getChunkOffsets());
+        assertTrue(r.getChunkByteCounts().length == 20);
+        
+        // the layout survives the cache columns and a save / load cycle
+        Path cacheFile = Paths.get(outDir(), "layout.cache");
+        Files.deleteIfExists(cacheFile);
+        MetadataCache c = new MetadataCache(cacheFile);
+        c.get(strip);
+        c.get(tiles);
+        c.save();
+        
+        c = new MetadataCache(cacheFile);
+        List<MetadataRecord> res = c.query(new MetadataCache.Query());
+        assertTrue(res.size() == 2);
+        assertFalse(res.get(0).isTiled());
+        assertTrue(res.get(0).getChunkLength() == 70);
+        assertTrue(res.get(1).isTiled());
+        assertTrue(res.get(1).getChunkWidth() == 32);
+        assertTrue(res.get(1).getChunkLength() == 16);
+        assertArrayEquals(r.getChunkOffsets(), res.get(1).getChunkOffsets());
+        assertArrayEquals(r.getChunkByteCounts(), res.get(1).getChunkByteCounts());
+    }
+    
+    @Test
+    public void testQuery() throws IOException
+    {
+        Path root = createTree();
+        Path cacheFile = Paths.get(outDir(), "query.cache");
+        Files.deleteIfExists(cacheFile);
+        
+        MetadataCache c = new MetadataCache(cacheFile);
+        c.refresh(root, new DirectoryScanner());
+        
+        // some synthetic records with dates
+        for (int i=0; i < 12; i++)
+        {
+            String date = String.format("2013:%02d:15 12:00:00", i + 1);
+            c.put(new MetadataRecord("/virtual/" + i, 100, 0, 1920, 1080, 12, new int[] {2, 2}, new int[] {0, 1, 1, 2},
+                    "Canon", "EOS 5D Mark III", date, new long[] {0, 0, 1920, 1080}, false, 1920, 1080, new long[] {8}, new long[] {3110400}));
+        }
+        
+        assertTrue(c.query(new MetadataCache.Query()).size() == 22);
+        assertTrue(c.query(new MetadataCache.Query().model("Canikon")).size() == 5);
+        assertTrue(c.query(new MetadataCache.Query().model("Nikon")).isEmpty());
+        assertTrue(c.query(new MetadataCache.Query().bitsPerPixel(16)).size() == 5);
+        assertTrue(c.query(new MetadataCache.Query().width(1400, 1500).height(600, 700)).size() == 5);
+        assertTrue(c.query(new MetadataCache.Query().width(1280, 1920).bitsPerPixel(14)).size() == 5);
+        
+        List<MetadataRecord> res = c.query(new MetadataCache.Query().make("Canon").datetime("2013:03", "2013:06"));
+        assertTrue(res.size() == 3);
+        assertTrue(res.get(0).getDatetime().startsWith("2013:03"));
+        
+        // survives a save / load cycle
+        c.save();
+        c = new MetadataCache(cacheFile);
+        assertTrue(c.query(new MetadataCache.Query().model("EOS 5D Mark III").datetime("2013:12", "2014")).size() == 1);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author volker
+ */
+public class PixelPackerTest extends TstBaseClass {
+
+    /**
+     * Creates a frame with random content. Four extra bytes at the end make
+     * sure that CFA_getPixel() can always read a full DWORD.
+     */
+    protected RawFileFrame getRandomFrame(int w, int h, int bpp)
+    {
+        byte[] buf = new byte[PixelPacker.bytesPerRow(w, bpp) * h + 4];
+        new Random(42).nextBytes(buf);
+
+        return new RawFileFrame(new FlexByteArray(buf), w, h, bpp);
+    }
+
+    protected void assertRowsMatchPixels(Generic_CFA_PixBuf buf)
+    {
+        short[] row = new short[buf.imgWidth()];
+
+        for (int y=0; y < buf.imgHeight(); y++)
+        {
+            buf.CFA_readRow(y, row);
+            for (int x=0; x < buf.imgWidth(); x++)
+            {
+                assertTrue((row[x] & 0xffff) == buf.CFA_getPixel(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testReadRow()
+    {
+        // specialized loops with and without incomplete groups at the row end
+        assertRowsMatchPixels(getRandomFrame(64, 4, 14));
+        assertRowsMatchPixels(getRandomFrame(67, 4, 14));
+        assertRowsMatchPixels(getRandomFrame(64, 4, 12));
+        assertRowsMatchPixels(getRandomFrame(65, 4, 12));
+        assertRowsMatchPixels(getRandomFrame(64, 4, 10));
+        assertRowsMatchPixels(getRandomFrame(66, 4, 10));
+
+        // generic bit accumulator
+        assertRowsMatchPixels(getRandomFrame(33, 4, 11));
+        assertRowsMatchPixels(getRandomFrame(33, 4, 5));
+        assertRowsMatchPixels(getRandomFrame(32, 4, 16));
+        assertRowsMatchPixels(getRandomFrame(32, 4, 8));
+    }
+
+    @Test
+    public void testReadRowDNG() throws IOException
+    {
+        TIFFhandler h = new TIFFhandler(Paths.get(testInputDataDir(), "000000.dng"));
+        assertRowsMatchPixels(h.getFirstIFDwithCFA());
+    }
+}
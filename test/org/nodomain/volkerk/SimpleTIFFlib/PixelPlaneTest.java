@@ -0,0 +1,61 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author volker
+ */
+public class PixelPlaneTest extends TstBaseClass {
+
+    @Test
+    public void testIndexing()
+    {
+        PixelPlane p = new PixelPlane(5, 3, 3);
+        assertTrue(p.getStride() == 15);
+        assertTrue(p.getData().length == 45);
+
+        p.set(4, 2, 1, 0xFFFF);
+        assertTrue(p.get(4, 2, 1) == 0xFFFF);
+        assertTrue(p.getData()[p.rowOffset(2) + 4*3 + 1] == -1);
+        assertTrue(p.getMax(1) == 0xFFFF);
+        assertTrue(p.getMax(0) == 0);
+
+        p.set(1, 2, 42);
+        assertTrue(p.get(1, 2, 0) == 42);
+        assertTrue(p.toColumnMajorArray()[1][2] == 42);
+    }
+
+    @Test
+    public void testCFAPlane() throws IOException
+    {
+        TIFFhandler h = new TIFFhandler(Paths.get(testInputDataDir(), "000000.dng"));
+        ImageFileDirectory ifd = h.getFirstIFDwithCFA();
+
+        PixelPlane p = ifd.CFA_getPixelPlane();
+        int[][] legacy = ifd.CFA_getPixelData();
+        assertTrue(p.getWidth() == ifd.imgWidth());
+        assertTrue(p.getHeight() == ifd.imgHeight());
+
+        for (int y=0; y < p.getHeight(); y += 7)
+        {
+            for (int x=0; x < p.getWidth(); x += 3)
+            {
+                assertTrue(p.get(x, y) == ifd.CFA_getPixel(x, y));
+                assertTrue(legacy[x][y] == p.get(x, y));
+            }
+        }
+
+        File out = new File(outDir(), "raw.png");
+        ifd.CFA_raw2png(out.toString(), false);
+        assertTrue(out.exists());
+    }
+}
@@ -4,6 +4,15 @@
  */
 package org.nodomain.volkerk.SimpleTIFFlib;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -20,4 +29,333 @@ public class RawImageSequenceHandlerTest extends TstBaseClass {
         RawImageSequenceHandler r = new RawImageSequenceHandler("/home/volker/data/130602_MagicLantern/RawMovie/TestData/M1/M15-0006.RAW");
         r.dumpInfo();
     }
-}
\ No newline at end of file
+    
+    /**
+     * Creates a RAW file with random 14-bit frame data and a valid footer
+     * 
+     * @param fName the name of the file in the output directory
+     * @param w the frame width
+     * @param h the frame height
+     * @param nFrames the number of frames
+     * 
+     * @return the Path of the new file
+     */
+    protected Path createRawFile(String fName, int w, int h, int nFrames) throws IOException
+    {
+        int frameSize = PixelPacker.bytesPerRow(w, 14) * h;
+        byte[] raw = new byte[frameSize * nFrames + 192];
+        new Random(42).nextBytes(raw);
+        
+        ByteBuffer footer = ByteBuffer.wrap(raw, frameSize * nFrames, 192).slice();
+        footer.order(ByteOrder.LITTLE_ENDIAN);
+        Arrays.fill(raw, frameSize * nFrames, raw.length, (byte) 0);
+        footer.put(new byte[] {'R', 'A', 'W', 'M'});
+        footer.putShort(4, (short) w);
+        footer.putShort(6, (short) h);
+        footer.putInt(8, frameSize);
+        footer.putInt(12, nFrames);
+        footer.putInt(20, 23976);
+        footer.putInt(40, h);
+        footer.putInt(44, w);
+        footer.putInt(52, frameSize);
+        footer.putInt(56, 14);
+        footer.putInt(60, 2047);
+        footer.putInt(64, 15000);
+        for (int i=0; i < 4; i++) footer.putInt(68 + 4*i, 10 + i);
+        footer.putInt(84 + 12, h);
+        footer.putInt(84 + 26*4, 1105);
+        
+        Path p = Paths.get(outDir(), fName);
+        Files.write(p, raw);
+        return p;
+    }
+    
+    @Test
+    public void testMemoryMapping() throws IOException
+    {
+        Path p = createRawFile("mapped.raw", 64, 20, 3);
+        byte[] before = Files.readAllBytes(p);
+        
+        RawImageSequenceHandler heap = new RawImageSequenceHandler(p);
+        RawImageSequenceHandler mapped = new RawImageSequenceHandler(p, true);
+        
+        for (int n=0; n < 3; n++)
+        {
+            RawFileFrame f1 = heap.getFrame(n);
+            RawFileFrame f2 = mapped.getFrame(n);
+            assertFalse(f1.isWordSwapped());
+            assertTrue(f2.isWordSwapped());
+            
+            assertArrayEquals(f1.getFrameData(), f2.getFrameData());
+            assertTrue(f1.isCFADataIdenticalWith(f2));
+            assertArrayEquals(f1.CFA_getPixelPlane().getData(), f2.CFA_getPixelPlane().getData());
+            for (int x=0; x < 64; x++)
+            {
+                assertTrue(f1.CFA_getPixel(x, 7) == f2.CFA_getPixel(x, 7));
+            }
+            
+            // modifications are visible in the frame, but not in the file
+            f2.CFA_setPixel(13, 5, 0x2abc);
+            f1.CFA_setPixel(13, 5, 0x2abc);
+            assertTrue(f2.CFA_getPixel(13, 5) == 0x2abc);
+            assertTrue(f2.CFA_getPixel(12, 5) == f1.CFA_getPixel(12, 5));
+            assertTrue(f2.CFA_getPixel(14, 5) == f1.CFA_getPixel(14, 5));
+            assertArrayEquals(f1.getFrameData(), f2.getFrameData());
+        }
+        assertArrayEquals(before, Files.readAllBytes(p));
+        
+        // writing back a modified frame
+        RawFileFrame f = mapped.getFrame(1);
+        f.CFA_setPixel(0, 0, 1234);
+        mapped.writeFrameToFile(f, 1);
+        assertTrue(heap.getFrame(1).CFA_getPixel(0, 0) == 1234);
+        assertTrue(heap.getFrame(1).isCFADataIdenticalWith(f));
+        assertTrue(heap.getFrame(0).isCFADataIdenticalWith(mapped.getFrame(0)));
+    }
+    
+    @Test
+    public void testFooter() throws IOException
+    {
+        Path p = createRawFile("footer.raw", 96, 10, 5);
+        RawImageSequenceHandler r = new RawImageSequenceHandler(p);
+        RawFooter f = r.getFooter();
+        
+        assertEquals("RAWM", r.getMagic());
+        assertTrue(r.getWidth() == 96);
+        assertTrue(r.getHeight() == 10);
+        assertTrue(r.getFrameSize() == 96 * 14 / 8 * 10);
+        assertTrue(r.getFrameCount() == 5);
+        assertEquals(23.976, r.getFrameRate(), 1e-9);
+        assertTrue(r.getRawInfo_BitsPerPixel() == 14);
+        assertTrue(r.getRawInfo_BlackLevel() == 2047);
+        assertTrue(r.getRawInfo_WhiteLevel() == 15000);
+        assertArrayEquals(new long[] {10, 11, 12, 13}, r.getRawInfo_Crop());
+        assertArrayEquals(new long[] {0, 0, 0, 10}, r.getRawInfo_ActiveArea());
+        assertEquals(11.05, r.getRawInfo_DynamicRange(), 1e-9);
+        
+        // the footer is immutable
+        f.getRawInfo_Crop()[0] = 99;
+        assertTrue(f.getRawInfo_Crop()[0] == 10);
+        
+        // not a RAW file
+        try
+        {
+            new RawImageSequenceHandler(Paths.get(testInputDataDir(), "000000.dng"));
+            fail("Invalid RAW file not detected");
+        }
+        catch (IllegalArgumentException e) {}
+    }
+    
+    @Test
+    public void testOpenModes() throws IOException
+    {
+        Path p = createRawFile("modes.raw", 64, 8, 6);
+        byte[] before = Files.readAllBytes(p);
+        
+        // read-only: reading works, writing doesn't
+        RawImageSequenceHandler ro = new RawImageSequenceHandler(p, RawImageSequenceHandler.OPEN_MODE.READ_ONLY, false);
+        RawImageSequenceHandler roMapped = new RawImageSequenceHandler(p, RawImageSequenceHandler.OPEN_MODE.READ_ONLY, true);
+        RawFileFrame f0 = ro.getFrame(0);
+        assertTrue(f0.isCFADataIdenticalWith(roMapped.getFrame(0)));
+        try
+        {
+            ro.writeFrameToFile(f0, 0);
+            fail("Write access in read-only mode not detected");
+        }
+        catch (IllegalArgumentException e) {}
+        ro.close();
+        roMapped.close();
+        
+        // buffered: nothing reaches the file before sync()
+        RawImageSequenceHandler buf = new RawImageSequenceHandler(p, RawImageSequenceHandler.OPEN_MODE.BUFFERED, true);
+        RawFileFrame[] frames = new RawFileFrame[6];
+        for (int n : new int[] {4, 1, 2, 5})
+        {
+            frames[n] = buf.getFrame(n);
+            frames[n].CFA_setPixel(3, 3, n * 100);
+            buf.writeFrameToFile(frames[n], n);
+        }
+        
+        // a second write of the same frame replaces the first one
+        frames[2].CFA_setPixel(4, 4, 4444);
+        buf.writeFrameToFile(frames[2], 2);
+        
+        assertArrayEquals(before, Files.readAllBytes(p));
+        
+        // ... but we can read our own writes
+        assertTrue(buf.getFrame(2).CFA_getPixel(4, 4) == 4444);
+        assertTrue(buf.getFrame(5).isCFADataIdenticalWith(frames[5]));
+        
+        buf.close();
+        
+        RawImageSequenceHandler check = new RawImageSequenceHandler(p, RawImageSequenceHandler.OPEN_MODE.READ_ONLY, false);
+        for (int n=0; n < 6; n++)
+        {
+            if (frames[n] == null)
+            {
+                assertTrue(check.getFrame(n).isCFADataIdenticalWith(new RawImageSequenceHandler(createRawFile("ref.raw", 64, 8, 6)).getFrame(n)));
+            }
+            else
+            {
+                assertTrue(check.getFrame(n).isCFADataIdenticalWith(frames[n]));
+            }
+        }
+        assertTrue(check.getFrame(2).CFA_getPixel(4, 4) == 4444);
+        assertTrue(check.getFrameCount() == 6);
+        check.close();
+        
+        // write-through: the data is in the file immediately
+        RawImageSequenceHandler wt = new RawImageSequenceHandler(p);
+        RawFileFrame f = wt.getFrame(3);
+        f.CFA_setPixel(0, 1, 999);
+        wt.writeFrameToFile(f, 3);
+        assertTrue(new RawImageSequenceHandler(p, RawImageSequenceHandler.OPEN_MODE.READ_ONLY, false).getFrame(3).CFA_getPixel(0, 1) == 999);
+        wt.close();
+    }
+    
+    @Test
+    public void testPrefetcher() throws IOException
+    {
+        Path p = createRawFile("prefetch.raw", 64, 8, 10);
+        RawImageSequenceHandler r = new RawImageSequenceHandler(p, RawImageSequenceHandler.OPEN_MODE.READ_ONLY, false);
+        
+        // all frames, with recycling
+        RawFramePrefetcher pf = new RawFramePrefetcher(r, 3);
+        for (int n=0; n < 10; n++)
+        {
+            assertTrue(pf.getNextFrameNumber() == n);
+            RawFileFrame f = pf.next();
+            assertTrue(f.isCFADataIdenticalWith(r.getFrame(n)));
+            pf.recycle(f);
+        }
+        assertNull(pf.next());
+        assertNull(pf.next());
+        pf.close();
+        
+        // a sub-range, without recycling
+        pf = new RawFramePrefetcher(r, 4, 7, 1);
+        RawFileFrame[] frames = new RawFileFrame[3];
+        for (int i=0; i < 3; i++) frames[i] = pf.next();
+        assertNull(pf.next());
+        for (int i=0; i < 3; i++) assertTrue(frames[i].isCFADataIdenticalWith(r.getFrame(4 + i)));
+        pf.close();
+        
+        // closing in the middle of the sequence
+        pf = new RawFramePrefetcher(r, 2);
+        assertNotNull(pf.next());
+        pf.close();
+        assertNull(pf.next());
+        
+        // closing while the reader is busy must leave the file usable
+        Path big = createRawFile("prefetchBig.raw", 512, 256, 20);
+        RawImageSequenceHandler rb = new RawImageSequenceHandler(big, RawImageSequenceHandler.OPEN_MODE.READ_ONLY, false);
+        RawFileFrame ref = rb.getFrame(7);
+        for (int i=0; i < 20; i++)
+        {
+            pf = new RawFramePrefetcher(rb, 8);
+            pf.close();
+            assertNull(pf.next());
+            assertTrue(rb.getFrame(7).isCFADataIdenticalWith(ref));
+        }
+        rb.close();
+        
+        // an Error in the reader thread ends the sequence with an exception
+        RawImageSequenceHandler broken = new RawImageSequenceHandler(p, RawImageSequenceHandler.OPEN_MODE.READ_ONLY, false) {
+            @Override
+            protected void readFrameData(int n, byte[] dst)
+            {
+                if (n == 1) throw new OutOfMemoryError("test");
+                super.readFrameData(n, dst);
+            }
+        };
+        pf = new RawFramePrefetcher(broken, 3);
+        assertNotNull(pf.next());
+        try
+        {
+            pf.next();
+            fail();
+        }
+        catch (IllegalStateException e)
+        {
+            assertTrue(e.getCause() instanceof OutOfMemoryError);
+        }
+        assertNull(pf.next());
+        pf.close();
+        broken.close();
+        
+        r.close();
+    }
+    
+    @Test
+    public void testDNGConversion() throws IOException
+    {
+        Path p = createRawFile("clip.raw", 96, 20, 12);
+        RawImageSequenceHandler r = new RawImageSequenceHandler(p, RawImageSequenceHandler.OPEN_MODE.READ_ONLY, false);
+        
+        RawToDNGConverter conv = new RawToDNGConverter(r, Paths.get(outDir()), "clip_");
+        conv.setThreadCount(4);
+        conv.setMaxFramesInFlight(3);
+        final int[] calls = new int[1];
+        conv.setProgressListener(new RawToDNGConverter.ProgressListener() {
+            @Override
+            public void frameDone(int framesDone, int framesTotal, double framesPerSecond)
+            {
+                assertTrue(framesTotal == 12);
+                assertTrue(framesDone == ++calls[0]);
+            }
+        });
+        
+        assertTrue(conv.convert() == 12);
+        assertTrue(calls[0] == 12);
+        assertTrue(conv.getFramesPerSecond() > 0);
+        
+        for (int n=0; n < 12; n++)
+        {
+            Path dng = conv.getFramePath(n);
+            assertTrue(dng.getFileName().toString().equals(String.format("clip_%06d.dng", n)));
+            
+            TIFFhandler h = new TIFFhandler(dng);
+            ImageFileDirectory ifd = h.getFirstIFDwithCFA();
+            assertTrue(ifd.imgWidth() == 96);
+            assertTrue(ifd.imgHeight() == 20);
+            assertTrue(ifd.CFA_getBitsPerPixel() == 14);
+            assertArrayEquals(new int[] {0, 1, 1, 2}, ifd.CFA_getPattern());
+            
+            // the test footer's active area and crop don't fit into the frame
+            assertArrayEquals(new long[] {0, 0, 96, 20}, ifd.DNG_ActiveArea());
+            assertArrayEquals(new long[] {0, 0}, ifd.DNG_DefaultCropOrigin());
+            assertArrayEquals(new long[] {96, 20}, ifd.DNG_DefaultCropSize());
+            assertTrue(ifd.getEntry(TIFF_TAG.DNG_BLACK_LEVEL).getLong() == 2047);
+            assertTrue(ifd.getEntry(TIFF_TAG.DNG_WHITE_LEVEL).getLong() == 15000);
+            
+            assertArrayEquals(r.getFrame(n).CFA_getPixelPlane().getData(), ifd.CFA_getPixelPlane().getData());
+        }
+        
+        // a sub-range
+        conv.setProgressListener(null);
+        assertTrue(conv.convert(3, 5) == 2);
+        
+        // compressed DNGs
+        for (int comp : new int[] {TIFF_TAG.COMPRESSION_DEFLATE, TIFF_TAG.COMPRESSION_JPEG})
+        {
+            conv.setCompression(comp);
+            assertTrue(conv.convert(0, 2) == 2);
+            for (int n=0; n < 2; n++)
+            {
+                ImageFileDirectory ifd = new TIFFhandler(conv.getFramePath(n)).getFirstIFDwithCFA();
+                assertTrue(ifd.compression() == comp);
+                assertTrue(ifd.chunkOffsets().length == 2);
+                assertArrayEquals(r.getFrame(n).CFA_getPixelPlane().getData(), ifd.CFA_getPixelPlane().getData());
+            }
+        }
+        
+        try
+        {
+            conv.setCompression(TIFF_TAG.COMPRESSION_LZW);
+            fail();
+        }
+        catch (IllegalArgumentException e) {}
+        
+        r.close();
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.zip.Deflater;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author volker
+ */
+public class StripDecoderTest {
+    
+    /**
+     * A simple TIFF LZW encoder for creating test data
+     */
+    static byte[] lzwEncode(byte[] in)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long bitBuf = 0;
+        int bitCnt = 0;
+        
+        HashMap<Integer, Integer> dict = new HashMap<Integer, Integer>();
+        int width = 9;
+        int next = 258;
+        int prefix = -1;
+        
+        // the code sequence, written after the loop
+        int[] codes = new int[2 * in.length + 4];
+        int[] widths = new int[codes.length];
+        int n = 0;
+        
+        codes[n] = 256; widths[n++] = 9;
+        for (byte b : in)
+        {
+            int c = b & 0xff;
+            if (prefix < 0)
+            {
+                prefix = c;
+                continue;
+            }
+            
+            Integer known = dict.get((prefix << 8) | c);
+            if (known != null)
+            {
+                prefix = known;
+                continue;
+            }
+            
+            codes[n] = prefix; widths[n++] = width;
+            dict.put((prefix << 8) | c, next++);
+            if (next >= (1 << width)) width++;
+            if (next >= 4094)
+            {
+                codes[n] = 256; widths[n++] = width;
+                dict.clear();
+                width = 9;
+                next = 258;
+            }
+            prefix = c;
+        }
+        if (prefix >= 0)
+        {
+            codes[n] = prefix; widths[n++] = width;
+            if ((next + 1) >= (1 << width)) width++;
+        }
+        codes[n] = 257; widths[n++] = width;
+        
+        for (int i = 0; i < n; i++)
+        {
+            bitBuf = (bitBuf << widths[i]) | codes[i];
+            bitCnt += widths[i];
+            while (bitCnt >= 8)
+            {
+                out.write((int) (bitBuf >>> (bitCnt - 8)));
+                bitCnt -= 8;
+            }
+        }
+        if (bitCnt > 0) out.write((int) (bitBuf << (8 - bitCnt)));
+        
+        return out.toByteArray();
+    }
+    
+    static byte[] deflate(byte[] in)
+    {
+        Deflater d = new Deflater();
+        d.setInput(in);
+        d.finish();
+        
+        byte[] buf = new byte[in.length + 1024];
+        int n = 0;
+        while (!(d.finished())) n += d.deflate(buf, n, buf.length - n);
+        d.end();
+        
+        return Arrays.copyOf(buf, n);
+    }
+    
+    /**
+     * A simple lossless JPEG encoder for creating test data. Uses a fixed
+     * Huffman table with code lengths of 2 to 15 bits.
+     */
+    static byte[] ljpegEncode(short[] samples, int w, int h, int comps, int precision, int predictor, int restartRows)
+    {
+        int[] bits = new int[] {0, 0, 1, 3, 2, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0};
+        int[] codes = new int[17];
+        int[] lengths = new int[17];
+        int code = 0;
+        int k = 0;
+        for (int len = 1; len <= 16; len++)
+        {
+            for (int i = 0; i < bits[len]; i++)
+            {
+                codes[k] = code++;
+                lengths[k++] = len;
+            }
+            code <<= 1;
+        }
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] hdr = new int[] {0xFF, 0xD8,
+            0xFF, 0xC4, 0, 3 + 16 + 17, 0x00};
+        for (int b : hdr) out.write(b);
+        for (int len = 1; len <= 16; len++) out.write(bits[len]);
+        for (int i = 0; i <= 16; i++) out.write(i);
+        if (restartRows > 0)
+        {
+            int ri = restartRows * w;
+            for (int b : new int[] {0xFF, 0xDD, 0, 4, ri >> 8, ri & 0xff}) out.write(b);
+        }
+        for (int b : new int[] {0xFF, 0xC3, 0, 8 + 3 * comps, precision, h >> 8, h & 0xff, w >> 8, w & 0xff, comps}) out.write(b);
+        for (int c = 0; c < comps; c++) for (int b : new int[] {c + 1, 0x11, 0}) out.write(b);
+        for (int b : new int[] {0xFF, 0xDA, 0, 6 + 2 * comps, comps}) out.write(b);
+        for (int c = 0; c < comps; c++) for (int b : new int[] {c + 1, 0x00}) out.write(b);
+        for (int b : new int[] {predictor, 0, 0}) out.write(b);
+        
+        long bitBuf = 0;
+        int bitCnt = 0;
+        int rowLen = w * comps;
+        int rst = 0;
+        for (int y = 0; y < h; y++)
+        {
+            boolean firstRow = (y == 0);
+            if ((restartRows > 0) && (y > 0) && ((y % restartRows) == 0))
+            {
+                // pad with 1-bits and write the restart marker
+                if ((bitCnt % 8) != 0)
+                {
+                    int pad = 8 - (bitCnt % 8);
+                    bitBuf = (bitBuf << pad) | ((1 << pad) - 1);
+                    bitCnt += pad;
+                }
+                while (bitCnt >= 8)
+                {
+                    int b = (int) (bitBuf >>> (bitCnt - 8)) & 0xff;
+                    out.write(b);
+                    if (b == 0xFF) out.write(0);
+                    bitCnt -= 8;
+                }
+                out.write(0xFF);
+                out.write(0xD0 + (rst++ % 8));
+                firstRow = true;
+            }
+            
+            for (int i = y * rowLen; i < (y + 1) * rowLen; i++)
+            {
+                int x = (i % rowLen) / comps;
+                int pred;
+                if (x == 0) pred = firstRow ? (1 << (precision - 1)) : (samples[i - rowLen] & 0xffff);
+                else if (firstRow) pred = samples[i - comps] & 0xffff;
+                else
+                {
+                    int ra = samples[i - comps] & 0xffff;
+                    int rb = samples[i - rowLen] & 0xffff;
+                    int rc = samples[i - rowLen - comps] & 0xffff;
+                    if (predictor == 1) pred = ra;
+                    else if (predictor == 2) pred = rb;
+                    else if (predictor == 3) pred = rc;
+                    else if (predictor == 4) pred = ra + rb - rc;
+                    else if (predictor == 5) pred = ra + ((rb - rc) >> 1);
+                    else if (predictor == 6) pred = rb + ((ra - rc) >> 1);
+                    else pred = (ra + rb) >> 1;
+                }
+                
+                int d = (((samples[i] & 0xffff) - pred + 32768) & 0xffff) - 32768;
+                int ssss = (d == -32768) ? 16 : (32 - Integer.numberOfLeadingZeros(Math.abs(d)));
+                
+                bitBuf = (bitBuf << lengths[ssss]) | codes[ssss];
+                bitCnt += lengths[ssss];
+                if ((ssss > 0) && (ssss < 16))
+                {
+                    int v = (d > 0) ? d : (d + (1 << ssss) - 1);
+                    bitBuf = (bitBuf << ssss) | v;
+                    bitCnt += ssss;
+                }
+                
+                while (bitCnt >= 8)
+                {
+                    int b = (int) (bitBuf >>> (bitCnt - 8)) & 0xff;
+                    out.write(b);
+                    if (b == 0xFF) out.write(0);
+                    bitCnt -= 8;
+                }
+            }
+        }
+        if (bitCnt > 0)
+        {
+            int b = (int) ((bitBuf << (8 - bitCnt)) | ((1 << (8 - bitCnt)) - 1)) & 0xff;
+            out.write(b);
+            if (b == 0xFF) out.write(0);
+        }
+        out.write(0xFF);
+        out.write(0xD9);
+        
+        return out.toByteArray();
+    }
+    
+    protected byte[] getTestData(int size)
+    {
+        // low entropy, like image data
+        byte[] result = new byte[size];
+        Random rnd = new Random(42);
+        for (int i = 0; i < size; i++) result[i] = (byte) ((i / 7) % 13 + rnd.nextInt(4));
+        
+        return result;
+    }
+    
+    protected void checkDecoder(int compression, byte[] raw, byte[] packed)
+    {
+        try (StripDecoder dec = StripDecoder.create(compression))
+        {
+            // full decode, twice with the same decoder
+            for (int i = 0; i < 2; i++)
+            {
+                byte[] dst = new byte[raw.length];
+                assertTrue(dec.decode(packed, 0, packed.length, dst) == raw.length);
+                assertArrayEquals(raw, dst);
+            }
+            
+            // decoding stops at the end of the output buffer
+            byte[] dst = new byte[raw.length / 3];
+            assertTrue(dec.decode(packed, 0, packed.length, dst) == dst.length);
+            assertArrayEquals(Arrays.copyOf(raw, dst.length), dst);
+            
+            // from a data block with an offset
+            byte[] file = new byte[packed.length + 100];
+            System.arraycopy(packed, 0, file, 100, packed.length);
+            dst = new byte[raw.length];
+            assertTrue(dec.decode(new FlexByteArray(file), 100, packed.length, dst) == raw.length);
+            assertArrayEquals(raw, dst);
+            
+            // truncated data returns what could be decoded
+            dst = new byte[raw.length];
+            int n = dec.decode(packed, 0, packed.length / 2, dst);
+            assertTrue((n > 0) && (n < raw.length));
+            assertArrayEquals(Arrays.copyOf(raw, n), Arrays.copyOf(dst, n));
+        }
+    }
+    
+    @Test
+    public void testLZW()
+    {
+        // enough data for several clear codes
+        byte[] raw = getTestData(200000);
+        byte[] packed = lzwEncode(raw);
+        assertTrue(packed.length < raw.length);
+        checkDecoder(TIFF_TAG.COMPRESSION_LZW, raw, packed);
+        
+        // a string that references the code which is just being defined
+        raw = new byte[] {7, 7, 7, 7, 7, 7, 7, 7, 7};
+        checkDecoder(TIFF_TAG.COMPRESSION_LZW, raw, lzwEncode(raw));
+    }
+    
+    @Test
+    public void testDeflate()
+    {
+        byte[] raw = getTestData(200000);
+        byte[] packed = deflate(raw);
+        checkDecoder(TIFF_TAG.COMPRESSION_DEFLATE, raw, packed);
+        checkDecoder(TIFF_TAG.COMPRESSION_ADOBE_DEFLATE, raw, packed);
+        
+        try
+        {
+            StripDecoder.create(TIFF_TAG.COMPRESSION_DEFLATE).decode(new byte[] {1, 2, 3, 4}, 0, 4, new byte[10]);
+            fail();
+        }
+        catch (IllegalArgumentException e) {}
+    }
+    
+    @Test
+    public void testPackBits()
+    {
+        // the example from the TIFF 6.0 spec
+        byte[] packed = new byte[] {(byte) 0xFE, (byte) 0xAA, 0x02, (byte) 0x80, 0x00, 0x2A, (byte) 0xFD, (byte) 0xAA,
+            0x03, (byte) 0x80, 0x00, 0x2A, 0x22, (byte) 0xF7, (byte) 0xAA};
+        byte[] raw = new byte[24];
+        assertTrue(StripDecoder.create(TIFF_TAG.COMPRESSION_PACKBITS).decode(packed, 0, packed.length, raw) == 24);
+        assertTrue((raw[2] == (byte) 0xAA) && (raw[3] == (byte) 0x80) && (raw[13] == 0x22) && (raw[23] == (byte) 0xAA));
+        
+        // a no-op header must be skipped
+        byte[] dst = new byte[3];
+        assertTrue(StripDecoder.create(TIFF_TAG.COMPRESSION_PACKBITS).decode(new byte[] {(byte) 0x80, (byte) 0xFE, 5}, 0, 3, dst) == 3);
+        assertArrayEquals(new byte[] {5, 5, 5}, dst);
+        
+        // long literal and repeat runs
+        raw = getTestData(100000);
+        for (int i = 5000; i < 5700; i++) raw[i] = 42;
+        packed = new byte[raw.length + (raw.length + 127) / 128];
+        int n = PackBitsStripSource.encode(raw, 0, raw.length, packed, 0);
+        checkDecoder(TIFF_TAG.COMPRESSION_PACKBITS, raw, Arrays.copyOf(packed, n));
+        
+        // random data doesn't grow more than the spec allows
+        Random rnd = new Random(42);
+        rnd.nextBytes(raw);
+        n = PackBitsStripSource.encode(raw, 0, raw.length, packed, 0);
+        assertTrue(n <= packed.length);
+        checkDecoder(TIFF_TAG.COMPRESSION_PACKBITS, raw, Arrays.copyOf(packed, n));
+    }
+    
+    @Test
+    public void testCreate()
+    {
+        assertTrue(StripDecoder.isSupported(TIFF_TAG.COMPRESSION_LZW));
+        assertFalse(StripDecoder.isSupported(TIFF_TAG.COMPRESSION_NONE));
+        try
+        {
+            StripDecoder.create(TIFF_TAG.COMPRESSION_NONE);
+            fail();
+        }
+        catch (IllegalArgumentException e) {}
+    }
+    
+    protected short[] getTestSamples(int count, int precision, boolean withJumps)
+    {
+        short[] result = new short[count];
+        Random rnd = new Random(42);
+        int max = (1 << precision) - 1;
+        for (int i = 0; i < count; i++)
+        {
+            int v = (i * 5) % 300 + rnd.nextInt(40);
+            if (withJumps && (rnd.nextInt(10) == 0)) v = rnd.nextBoolean() ? max : rnd.nextInt(max);
+            result[i] = (short) Math.min(max, v);
+        }
+        
+        return result;
+    }
+    
+    @Test
+    public void testLJPEG()
+    {
+        try (StripDecoder dec = StripDecoder.create(TIFF_TAG.COMPRESSION_JPEG))
+        {
+            assertTrue(dec.decodesSamples());
+            
+            // all predictors with two interleaved components
+            for (int pred = 1; pred <= 7; pred++)
+            {
+                short[] raw = getTestSamples(2 * 20 * 9, 14, false);
+                byte[] packed = ljpegEncode(raw, 20, 9, 2, 14, pred, 0);
+                short[] dst = new short[raw.length];
+                assertTrue(dec.decodeSamples(packed, 0, packed.length, dst) == raw.length);
+                assertArrayEquals(raw, dst);
+            }
+            
+            // 16 bits with large differences and long Huffman codes
+            short[] raw = getTestSamples(64 * 31, 16, true);
+            byte[] packed = ljpegEncode(raw, 64, 31, 1, 16, 6, 0);
+            short[] dst = new short[raw.length];
+            assertTrue(dec.decodeSamples(packed, 0, packed.length, dst) == raw.length);
+            assertArrayEquals(raw, dst);
+            
+            // restart markers every three rows, read from a data block
+            raw = getTestSamples(3 * 17 * 10, 12, true);
+            packed = ljpegEncode(raw, 17, 10, 3, 12, 4, 3);
+            byte[] file = new byte[packed.length + 7];
+            System.arraycopy(packed, 0, file, 7, packed.length);
+            dst = new short[raw.length];
+            assertTrue(dec.decodeSamples(new FlexByteArray(file), 7, packed.length, dst) == raw.length);
+            assertArrayEquals(raw, dst);
+            
+            // decoding stops at the end of the output buffer
+            dst = new short[100];
+            assertTrue(dec.decodeSamples(packed, 0, packed.length, dst) == 100);
+            assertArrayEquals(Arrays.copyOf(raw, 100), dst);
+            
+            try
+            {
+                dec.decodeSamples(new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xC0, 0, 2}, 0, 6, dst);
+                fail();
+            }
+            catch (IllegalArgumentException e) {}
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author volker
+ */
+public class StripEncoderTest extends TstBaseClass {
+    
+    /**
+     * Fills a plane with a noisy gradient, occasionally with extreme values
+     */
+    protected PixelPlane getTestPlane(int w, int h, int bpp, boolean withJumps)
+    {
+        PixelPlane result = new PixelPlane(w, h);
+        Random rnd = new Random(42);
+        int max = (1 << bpp) - 1;
+        for (int y=0; y < h; y++)
+        {
+            for (int x=0; x < w; x++)
+            {
+                int v = (x * 13 + y * 7 + rnd.nextInt(16)) & max;
+                if (withJumps && (rnd.nextInt(20) == 0)) v = rnd.nextBoolean() ? max : 0;
+                result.set(x, y, v);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Encodes a plane as a single strip and decodes it again
+     */
+    protected void checkRoundTrip(int compression, PixelPlane src, int bpp)
+    {
+        RowStripSource rows = RowStripSource.fromPixelPlane(src, bpp, src.getHeight());
+        ByteBuffer b = rows.getStrip(0);
+        byte[] raw = new byte[b.remaining()];
+        b.get(raw);
+        
+        byte[] packed;
+        try (StripEncoder enc = StripEncoder.create(compression, src.getWidth(), bpp))
+        {
+            // twice with the same encoder
+            packed = enc.encode(raw, 0, raw.length);
+            assertArrayEquals(packed, enc.encode(raw, 0, raw.length));
+        }
+        
+        try (StripDecoder dec = StripDecoder.create(compression))
+        {
+            if (dec.decodesSamples())
+            {
+                short[] samples = new short[src.getData().length];
+                assertTrue(dec.decodeSamples(packed, 0, packed.length, samples) == samples.length);
+                assertArrayEquals(src.getData(), samples);
+            }
+            else
+            {
+                byte[] unpacked = new byte[raw.length];
+                assertTrue(dec.decode(packed, 0, packed.length, unpacked) == raw.length);
+                assertArrayEquals(raw, unpacked);
+            }
+        }
+    }
+    
+    @Test
+    public void testDeflate()
+    {
+        for (int bpp : new int[] {8, 12, 16})
+        {
+            PixelPlane src = getTestPlane(120, 30, bpp, true);
+            checkRoundTrip(TIFF_TAG.COMPRESSION_DEFLATE, src, bpp);
+            checkRoundTrip(TIFF_TAG.COMPRESSION_ADOBE_DEFLATE, src, bpp);
+        }
+        
+        // incompressible data needs more than the initial buffer
+        PixelPlane src = new PixelPlane(500, 40);
+        Random rnd = new Random(42);
+        for (int i=0; i < src.getData().length; i++) src.getData()[i] = (short) rnd.nextInt();
+        checkRoundTrip(TIFF_TAG.COMPRESSION_DEFLATE, src, 16);
+    }
+    
+    @Test
+    public void testLJPEG()
+    {
+        for (int bpp : new int[] {8, 10, 12, 14, 16})
+        {
+            // even widths are encoded as two components, odd widths as one
+            checkRoundTrip(TIFF_TAG.COMPRESSION_JPEG, getTestPlane(64, 17, bpp, true), bpp);
+            checkRoundTrip(TIFF_TAG.COMPRESSION_JPEG, getTestPlane(33, 5, bpp, true), bpp);
+        }
+        
+        // a single row, a single difference category and all categories
+        checkRoundTrip(TIFF_TAG.COMPRESSION_JPEG, getTestPlane(50, 1, 14, false), 14);
+        checkRoundTrip(TIFF_TAG.COMPRESSION_JPEG, new PixelPlane(40, 8), 12);
+        PixelPlane src = new PixelPlane(400, 4);
+        Random rnd = new Random(42);
+        for (int i=0; i < src.getData().length; i++) src.getData()[i] = (short) rnd.nextInt();
+        checkRoundTrip(TIFF_TAG.COMPRESSION_JPEG, src, 16);
+        
+        // smooth data compresses well
+        byte[] raw = new byte[PixelPacker.bytesPerRow(256, 14) * 64];
+        PixelPlane smooth = getTestPlane(256, 64, 14, false);
+        for (int y=0; y < 64; y++) PixelPacker.packRow(smooth.getData(), y * 256, 14, raw, y * PixelPacker.bytesPerRow(256, 14), 256);
+        try (StripEncoder enc = StripEncoder.create(TIFF_TAG.COMPRESSION_JPEG, 256, 14))
+        {
+            assertTrue(enc.encode(raw, 0, raw.length).length < (raw.length / 2));
+        }
+        
+        try
+        {
+            StripEncoder.create(TIFF_TAG.COMPRESSION_JPEG, 10, 1);
+            fail();
+        }
+        catch (IllegalArgumentException e) {}
+    }
+    
+    @Test
+    public void testCompressingStripSource() throws IOException
+    {
+        assertFalse(StripEncoder.isSupported(TIFF_TAG.COMPRESSION_LZW));
+        
+        final PixelPlane src = getTestPlane(100, 70, 12, true);
+        for (int comp : new int[] {TIFF_TAG.COMPRESSION_DEFLATE, TIFF_TAG.COMPRESSION_JPEG})
+        {
+            // strips, compressed on a pool with more workers than strips in the window
+            TIFFWriter.Directory d = getCFADirectory(100, 70, 12, comp);
+            ForkJoinPool pool = new ForkJoinPool(3);
+            d.setStrips(new CompressingStripSource(RowStripSource.fromPixelPlane(src, 12, 4), comp, 100, 12, pool));
+            
+            Path p = Paths.get(outDir(), "compressedStrips" + comp + ".dng");
+            try (TIFFWriter w = new TIFFWriter(p))
+            {
+                w.writeDirectory(d);
+            }
+            pool.shutdown();
+            
+            ImageFileDirectory ifd = new TIFFhandler(p).getFirstIFDwithCFA();
+            assertTrue(ifd.chunkOffsets().length == 18);
+            assertArrayEquals(src.getData(), ifd.CFA_getPixelPlane().getData());
+            
+            // the strips are stored back to back in their original order
+            long[] offsets = ifd.chunkOffsets();
+            long[] counts = ifd.chunkByteCounts();
+            for (int i=1; i < offsets.length; i++)
+            {
+                assertTrue(offsets[i] == offsets[i - 1] + ((counts[i - 1] + 1) & ~1));
+            }
+            
+            // tiles on the common pool
+            final int tw = 32;
+            final int th = 16;
+            StripSource tiles = new StripSource() {
+                final byte[] buf = new byte[PixelPacker.bytesPerRow(tw, 12) * th];
+                
+                @Override
+                public int getStripCount()
+                {
+                    return 20;
+                }
+                
+                @Override
+                public int getRowsPerStrip()
+                {
+                    return th;
+                }
+                
+                @Override
+                public ByteBuffer getStrip(int i)
+                {
+                    short[] row = new short[tw];
+                    int x0 = (i % 4) * tw;
+                    int y0 = (i / 4) * th;
+                    for (int y=0; y < th; y++)
+                    {
+                        for (int x=0; x < tw; x++)
+                        {
+                            boolean inside = ((x0 + x) < 100) && ((y0 + y) < 70);
+                            row[x] = (short) (inside ? src.get(x0 + x, y0 + y) : 0);
+                        }
+                        PixelPacker.packRow(row, 0, 12, buf, y * PixelPacker.bytesPerRow(tw, 12), tw);
+                    }
+                    return ByteBuffer.wrap(buf);
+                }
+            };
+            d = getCFADirectory(100, 70, 12, comp);
+            d.setTiles(new CompressingStripSource(tiles, comp, tw, 12), tw, th);
+            
+            p = Paths.get(outDir(), "compressedTiles" + comp + ".dng");
+            try (TIFFWriter w = new TIFFWriter(p))
+            {
+                w.writeDirectory(d);
+            }
+            
+            ifd = new TIFFhandler(p).getFirstIFDwithCFA();
+            assertTrue(ifd.isTiled());
+            assertArrayEquals(src.getData(), ifd.CFA_getPixelPlane().getData());
+        }
+        
+        CompressingStripSource s = new CompressingStripSource(RowStripSource.fromPixelPlane(src, 12, 4), TIFF_TAG.COMPRESSION_DEFLATE, 100, 12);
+        try
+        {
+            s.getStrip(1);
+            fail();
+        }
+        catch (IllegalStateException e) {}
+        
+        try
+        {
+            new CompressingStripSource(RowStripSource.fromPixelPlane(src, 12, 4), TIFF_TAG.COMPRESSION_LZW, 100, 12);
+            fail();
+        }
+        catch (IllegalArgumentException e) {}
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author volker
+ */
+public class TIFFMetadataReaderTest extends TstBaseClass {
+    
+    @Test
+    public void testSameAsHandler() throws IOException
+    {
+        Path p = Paths.get(testInputDataDir(), "000000.dng");
+        TIFFhandler h = new TIFFhandler(p);
+        
+        try (TIFFMetadataReader r = new TIFFMetadataReader(p))
+        {
+            List<ImageFileDirectory> dirs = r.getDirectories();
+            assertTrue(dirs.size() == h.ifdList.size());
+            
+            for (int i=0; i < dirs.size(); i++)
+            {
+                ImageFileDirectory d1 = h.ifdList.get(i);
+                ImageFileDirectory d2 = dirs.get(i);
+                assertTrue(d1.imgWidth() == d2.imgWidth());
+                assertTrue(d1.imgHeight() == d2.imgHeight());
+                assertTrue(d1.make().equals(d2.make()));
+                assertTrue(d1.model().equals(d2.model()));
+                assertTrue(d1.datetime().equals(d2.datetime()));
+                assertTrue(d1.software().equals(d2.software()));
+                assertArrayEquals(d1.bitsPerSample(), d2.bitsPerSample());
+                assertArrayEquals(d1.cfaPatternGet(), d2.cfaPatternGet());
+                assertArrayEquals(d1.stripOffsets(), d2.stripOffsets());
+                assertArrayEquals(d1.DNG_ActiveArea(), d2.DNG_ActiveArea());
+            }
+            
+            ImageFileDirectory cfa = r.getFirstIFDwithCFA();
+            assertTrue(cfa.imgWidth() == 1280);
+            assertArrayEquals(new int[] {0, 1, 1, 2}, cfa.CFA_getPattern());
+            
+            // only a tiny fraction of the file has been read
+            assertTrue(r.getBytesRead() > 0);
+            assertTrue(r.getBytesRead() < (Files.size(p) / 50));
+            
+            // no pixel access
+            try
+            {
+                cfa.CFA_getPixel(0, 0);
+                fail();
+            }
+            catch (IllegalStateException e) {}
+        }
+    }
+    
+    @Test
+    public void testPagedArray() throws IOException
+    {
+        Path p = Paths.get(testInputDataDir(), "000000.dng");
+        FlexByteArray all = new FlexByteArray(Files.readAllBytes(p));
+        
+        try (FileChannel fc = FileChannel.open(p))
+        {
+            // tiny pages for testing accesses across page boundaries
+            PagedFlexByteArray paged = new PagedFlexByteArray(fc, 8, 2);
+            assertTrue(paged.length() == all.length());
+            
+            for (boolean swap : new boolean[] {false, true})
+            {
+                all.setSwap(swap);
+                paged.setSwap(swap);
+                for (int i=0; i < 64; i++)
+                {
+                    assertTrue(all.getByte(i) == paged.getByte(i));
+                    assertTrue(all.getUint16(i) == paged.getUint16(i));
+                    assertTrue(all.getSint16(i) == paged.getSint16(i));
+                    assertTrue(all.getUint32(i) == paged.getUint32(i));
+                    assertTrue(all.getUint32MSBFirst(i) == paged.getUint32MSBFirst(i));
+                    assertArrayEquals(all.getSwappedSlice(i, 5), paged.getSwappedSlice(i, 5));
+                }
+            }
+            
+            try
+            {
+                paged.setByte(0, 0);
+                fail();
+            }
+            catch (IllegalStateException e) {}
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.nodomain.volkerk.SimpleTIFFlib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author volker
+ */
+public class TIFFWriterTest extends TstBaseClass {
+    
+    protected PixelPlane getRandomPlane(int w, int h, int bpp)
+    {
+        PixelPlane p = new PixelPlane(w, h);
+        Random rnd = new Random(42);
+        for (int i=0; i < p.getData().length; i++) p.getData()[i] = (short) rnd.nextInt(1 << bpp);
+        
+        return p;
+    }
+    
+    @Test
+    public void testMultiStripRoundTrip() throws IOException
+    {
+        for (int bpp : new int[] {8, 12, 14, 16})
+        {
+            PixelPlane src = getRandomPlane(37, 50, bpp);
+            Path p = Paths.get(outDir(), "strips" + bpp + ".dng");
+            
+            TIFFWriter.Directory d = getCFADirectory(37, 50, bpp, TIFF_TAG.COMPRESSION_NONE);
+            d.addAscii(TIFF_TAG.SOFTWARE, "SimpleTIFFlib");
+            d.setStrips(RowStripSource.fromPixelPlane(src, bpp, 7));
+            try (TIFFWriter w = new TIFFWriter(p))
+            {
+                w.writeDirectory(d);
+            }
+            
+            TIFFhandler h = new TIFFhandler(p);
+            ImageFileDirectory ifd = h.getFirstIFDwithCFA();
+            assertTrue(ifd.stripsPerImage() == 8);
+            assertTrue(ifd.RowsPerStrip() == 7);
+            assertTrue(ifd.software().trim().equals("SimpleTIFFlib"));
+            for (long o : ifd.stripOffsets()) assertTrue((o % 2) == 0);
+            assertTrue(ifd.CFA_getRowOffsetInBuffer(7) == ifd.stripOffsets()[1]);
+            assertTrue(ifd.CFA_getRowOffsetInBuffer(9) == ifd.stripOffsets()[1] + 2 * ((37 * bpp + 7) / 8));
+            assertArrayEquals(src.getData(), ifd.CFA_getPixelPlane().getData());
+            
+            // copy the image with a different strip layout, straight from the pixel buffer
+            Path p2 = Paths.get(outDir(), "copy" + bpp + ".dng");
+            d = getCFADirectory(37, 50, bpp, TIFF_TAG.COMPRESSION_NONE);
+            d.setStrips(RowStripSource.fromPixBuf(ifd, 50));
+            try (TIFFWriter w = new TIFFWriter(p2))
+            {
+                w.writeDirectory(d);
+            }
+            
+            ImageFileDirectory ifd2 = new TIFFhandler(p2).getFirstIFDwithCFA();
+            assertTrue(ifd2.stripsPerImage() == 1);
+            assertArrayEquals(src.getData(), ifd2.CFA_getPixelPlane().getData());
+        }
+    }
+    
+    @Test
+    public void testChainedDirectories() throws IOException
+    {
+        Path p = Paths.get(outDir(), "chained.tif");
+        PixelPlane thumb = getRandomPlane(8, 6, 8);
+        PixelPlane full = getRandomPlane(64, 48, 14);
+        
+        try (TIFFWriter w = new TIFFWriter(p))
+        {
+            TIFFWriter.Directory d = getCFADirectory(8, 6, 8, TIFF_TAG.COMPRESSION_NONE);
+            d.addLong(TIFF_TAG.NEW_SUB_FILE_TYPE, 1);
+            d.setStrips(RowStripSource.fromPixelPlane(thumb, 8, 4));
+            long first = w.writeDirectory(d);
+            assertTrue(first > 8);
+            
+            d = getCFADirectory(64, 48, 14, TIFF_TAG.COMPRESSION_NONE);
+            d.addRational(TIFF_TAG.X_RESOLUTION, 300, 1);
+            d.setStrips(RowStripSource.fromPixelPlane(full, 14, 16));
+            assertTrue(w.writeDirectory(d) > first);
+            assertTrue(w.getSize() > (64 * 48 * 14 / 8));
+        }
+        
+        TIFFhandler h = new TIFFhandler(p);
+        assertTrue(h.ifdList.size() == 2);
+        assertTrue(h.ifdList.get(0).newSubFileType() == 1);
+        assertArrayEquals(thumb.getData(), h.ifdList.get(0).CFA_getPixelPlane().getData());
+        assertArrayEquals(full.getData(), h.ifdList.get(1).CFA_getPixelPlane().getData());
+        assertTrue(h.ifdList.get(1).xRes() == 300.0);
+    }
+    
+    @Test
+    public void testByteArrayStrips()
+    {
+        byte[] data = new byte[100];
+        for (int i=0; i < data.length; i++) data[i] = (byte) i;
+        
+        // only the first 9 rows à 10 bytes are part of the image
+        ByteArrayStripSource src = new ByteArrayStripSource(data, 10, 9, 4);
+        assertTrue(src.getStripCount() == 3);
+        assertTrue(src.getStrip(0).remaining() == 40);
+        assertTrue(src.getStrip(2).remaining() == 10);
+        assertTrue(src.getStrip(2).get() == 80);
+    }
+    
+    /**
+     * A channel that discards all data, for simulating huge files
+     */
+    protected static class NullChannel implements SeekableByteChannel
+    {
+        long position = 0;
+        long size = 0;
+        
+        @Override
+        public int write(ByteBuffer src)
+        {
+            int n = src.remaining();
+            src.position(src.limit());
+            position += n;
+            size = Math.max(size, position);
+            return n;
+        }
+        
+        @Override
+        public int read(ByteBuffer dst)
+        {
+            return -1;
+        }
+        
+        @Override
+        public long position()
+        {
+            return position;
+        }
+        
+        @Override
+        public SeekableByteChannel position(long newPosition)
+        {
+            position = newPosition;
+            return this;
+        }
+        
+        @Override
+        public long size()
+        {
+            return size;
+        }
+        
+        @Override
+        public SeekableByteChannel truncate(long newSize)
+        {
+            size = Math.min(size, newSize);
+            return this;
+        }
+        
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+        
+        @Override
+        public void close()
+        {
+        }
+    }
+    
+    @Test
+    public void testOffsetLimit() throws IOException
+    {
+        TIFFWriter w = new TIFFWriter(new NullChannel());
+        
+        // a directory that ends right below 4 GB is fine
+        w.pos = 0xFFFFFF00L;
+        TIFFWriter.Directory d = getCFADirectory(8, 8, 8, TIFF_TAG.COMPRESSION_NONE);
+        d.setStrips(RowStripSource.fromPixelPlane(getRandomPlane(8, 8, 8), 8, 8));
+        assertTrue(w.writeDirectory(d) < 0xFFFFFFFFL);
+        
+        // strips beyond 4 GB
+        w.pos = 0xFFFFFFF0L;
+        d = getCFADirectory(64, 48, 14, TIFF_TAG.COMPRESSION_NONE);
+        d.setStrips(RowStripSource.fromPixelPlane(getRandomPlane(64, 48, 14), 14, 16));
+        try
+        {
+            w.writeDirectory(d);
+            fail();
+        }
+        catch (IOException e) {}
+        
+        // an IFD that would cross the 4 GB boundary
+        w.pos = 0xFFFFFFF0L;
+        try
+        {
+            w.writeDirectory(getCFADirectory(8, 8, 8, TIFF_TAG.COMPRESSION_NONE));
+            fail();
+        }
+        catch (IOException e) {}
+    }
+}
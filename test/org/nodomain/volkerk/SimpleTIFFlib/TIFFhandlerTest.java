@@ -7,6 +7,8 @@ package org.nodomain.volkerk.SimpleTIFFlib;
 import org.nodomain.volkerk.SimpleTIFFlib.ImageFileDirectory;
 import org.nodomain.volkerk.SimpleTIFFlib.TIFFhandler;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -28,4 +30,106 @@ public class TIFFhandlerTest extends TstBaseClass {
         System.err.println(Integer.parseInt("10000000", 2));
         fail();
     }
-}
\ No newline at end of file
+    
+    @Test
+    public void testMemoryMapping() throws IOException
+    {
+        TIFFhandler h1 = new TIFFhandler(Paths.get(testInputDataDir(), "000000.dng"));
+        TIFFhandler h2 = new TIFFhandler(Paths.get(testInputDataDir(), "000000.dng"), true);
+        
+        ImageFileDirectory ifd1 = h1.getFirstIFDwithCFA();
+        ImageFileDirectory ifd2 = h2.getFirstIFDwithCFA();
+        assertTrue(ifd2.imgWidth() == ifd1.imgWidth());
+        assertTrue(ifd2.imgHeight() == ifd1.imgHeight());
+        assertTrue(ifd2.isCFADataIdenticalWith(ifd1));
+        
+        // modifications must not end up in the mapped file
+        int oldVal = ifd2.CFA_getPixel(10, 10);
+        ifd2.CFA_setPixel(10, 10, oldVal ^ 0x3FFF);
+        assertTrue(ifd2.CFA_getPixel(10, 10) == (oldVal ^ 0x3FFF));
+        TIFFhandler h3 = new TIFFhandler(Paths.get(testInputDataDir(), "000000.dng"), true);
+        assertTrue(h3.getFirstIFDwithCFA().CFA_getPixel(10, 10) == oldVal);
+    }
+    
+    /**
+     * Writes a big endian BigTIFF entry with a value that fits into the entry
+     */
+    protected void putEntry(FlexByteArray a, int ptr, int tag, int type, int cnt, int elemSize, long... val)
+    {
+        a.setUint16(ptr, tag);
+        a.setUint16(ptr + 2, type);
+        a.setUint64(ptr + 4, cnt);
+        for (int i=0; i < val.length; i++)
+        {
+            if (elemSize == 1) a.setByte(ptr + 12 + i, (int) val[i]);
+            else if (elemSize == 2) a.setUint16(ptr + 12 + 2*i, (int) val[i]);
+            else if (elemSize == 4) a.setUint32(ptr + 12 + 4*i, val[i]);
+            else a.setUint64(ptr + 12, val[i]);
+        }
+    }
+    
+    @Test
+    public void testBigTIFF() throws IOException
+    {
+        // an 8x4 CFA image with 8 bits in two strips
+        int numEntries = 13;
+        int ifdEnd = 16 + 8 + numEntries * 20 + 8;
+        int modelPtr = ifdEnd;
+        int stripPtr = ifdEnd + 16;
+        int pixPtr = stripPtr + 16;
+        FlexByteArray a = new FlexByteArray(new byte[pixPtr + 32]);
+        a.setSwap(true);
+        
+        a.setUint16(0, 0x4d4d);
+        a.setUint16(2, 43);
+        a.setUint16(4, 8);
+        a.setUint64(8, 16);
+        a.setUint64(16, numEntries);
+        
+        int e = 24;
+        putEntry(a, e, TIFF_TAG.IMAGE_WIDTH, 3, 1, 2, 8); e += 20;
+        putEntry(a, e, TIFF_TAG.IMAGE_LENGTH, 4, 1, 4, 4); e += 20;
+        putEntry(a, e, TIFF_TAG.BITS_PER_SAMPLE, 3, 1, 2, 8); e += 20;
+        putEntry(a, e, TIFF_TAG.COMPRESSION, 3, 1, 2, 1); e += 20;
+        putEntry(a, e, TIFF_TAG.PHOTOMETRIC_INTERPRETATION, 3, 1, 2, TIFF_TAG.PHOTO_INTERPRETATION_CFA); e += 20;
+        putEntry(a, e, TIFF_TAG.MAKE, 2, 5, 1, 'M', 'a', 'k', 'e', 0); e += 20;
+        putEntry(a, e, TIFF_TAG.MODEL, 2, 14, 8, modelPtr); e += 20;
+        putEntry(a, e, TIFF_TAG.STRIP_OFFSETS, 16, 2, 8, stripPtr); e += 20;
+        putEntry(a, e, TIFF_TAG.SAMPLES_PER_PIXEL, 3, 1, 2, 1); e += 20;
+        putEntry(a, e, TIFF_TAG.ROWS_PER_STRIP, 3, 1, 2, 2); e += 20;
+        putEntry(a, e, TIFF_TAG.STRIP_BYTE_COUNTS, 4, 2, 4, 16, 16); e += 20;
+        putEntry(a, e, TIFF_TAG.CFA_REPEAT_PATTERN_DIM, 3, 2, 2, 2, 2); e += 20;
+        putEntry(a, e, TIFF_TAG.CFA_PATTERN, 1, 4, 1, 0, 1, 1, 2); e += 20;
+        a.setUint64(e, 0);
+        
+        byte[] model = "BigTIFF model".getBytes();
+        for (int i=0; i < model.length; i++) a.setByte(modelPtr + i, model[i]);
+        a.setUint64(stripPtr, pixPtr);
+        a.setUint64(stripPtr + 8, pixPtr + 16);
+        for (int i=0; i < 32; i++) a.setByte(pixPtr + i, (i % 8) + 10 * (i / 8));
+        
+        Path p = Paths.get(outDir(), "bigtiff.tif");
+        a.dumpToFile(p.toString());
+        
+        for (boolean mapped : new boolean[] {false, true})
+        {
+            ImageFileDirectory ifd = new TIFFhandler(p, mapped).getFirstIFDwithCFA();
+            assertTrue(ifd.imgWidth() == 8);
+            assertTrue(ifd.imgHeight() == 4);
+            assertTrue(ifd.make().trim().equals("Make"));
+            assertTrue(ifd.model().trim().equals("BigTIFF model"));
+            assertArrayEquals(new long[] {pixPtr, pixPtr + 16}, ifd.stripOffsets());
+            assertArrayEquals(new long[] {16, 16}, ifd.stripByteCounts());
+            
+            for (int y=0; y < 4; y++)
+            {
+                for (int x=0; x < 8; x++) assertTrue(ifd.CFA_getPixel(x, y) == (x + 10 * y));
+            }
+        }
+        
+        try (TIFFMetadataReader r = new TIFFMetadataReader(p))
+        {
+            assertTrue(r.getFirstIFDwithCFA().imgHeight() == 4);
+        }
+    }
+}
@@ -148,4 +148,27 @@ public class TstBaseClass {
         if (doCleanup) cleanupOutDir();
     }
     
+//----------------------------------------------------------------------------		
+
+    /**
+     * Returns a directory for a single-sample CFA image with an RGGB pattern,
+     * without any image data
+     */
+    protected TIFFWriter.Directory getCFADirectory(int w, int h, int bpp, int compression)
+    {
+        TIFFWriter.Directory d = new TIFFWriter.Directory();
+        d.addLong(TIFF_TAG.NEW_SUB_FILE_TYPE, 0);
+        d.addLong(TIFF_TAG.IMAGE_WIDTH, w);
+        d.addLong(TIFF_TAG.IMAGE_LENGTH, h);
+        d.addShort(TIFF_TAG.BITS_PER_SAMPLE, bpp);
+        d.addShort(TIFF_TAG.COMPRESSION, compression);
+        d.addShort(TIFF_TAG.PHOTOMETRIC_INTERPRETATION, TIFF_TAG.PHOTO_INTERPRETATION_CFA);
+        d.addShort(TIFF_TAG.SAMPLES_PER_PIXEL, 1);
+        d.addShort(TIFF_TAG.PLANAR_CONFIGURATION, TIFF_TAG.PLANAR_CFG_CHUNKY);
+        d.addShort(TIFF_TAG.CFA_REPEAT_PATTERN_DIM, 2, 2);
+        d.addByte(TIFF_TAG.CFA_PATTERN, 0, 1, 1, 2);
+        
+        return d;
+    }
+    
 }